@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * EventQueueBenchmark
+ */
+
+package se.sics.mspsim.bench;
+
+import java.util.Random;
+
+import se.sics.mspsim.core.EventQueue;
+
+/**
+ * EventQueueBenchmark - compares the heap based EventQueue with the
+ * linked list implementation it replaced.
+ *
+ * Each operation is one step of the classic "hold" model: the first event
+ * is popped and rescheduled a random time ahead, and one other pending
+ * event is rescheduled the same way as peripherals do when they change
+ * state (timers, radios and USARTs reschedule constantly).
+ *
+ * Usage: EventQueueBenchmark [pending events...]
+ */
+public class EventQueueBenchmark {
+
+  private static final int[] DEFAULT_SIZES = { 10, 30, 100, 300, 1000 };
+  private static final long MAX_DELAY = 10000;
+  private static final int ROUNDS = 5;
+
+  private static long heapBenchmark(int size, int operations, long seed) {
+    Random random = new Random(seed);
+    EventQueue queue = new EventQueue();
+    BenchEvent[] events = new BenchEvent[size];
+    for (int i = 0; i < size; i++) {
+      events[i] = new BenchEvent("e" + i);
+      queue.addEvent(events[i], random.nextInt((int) MAX_DELAY));
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      BenchEvent event = (BenchEvent) queue.popFirst();
+      long now = event.getTime();
+      queue.addEvent(event, now + 1 + random.nextInt((int) MAX_DELAY));
+      BenchEvent other = events[random.nextInt(size)];
+      queue.addEvent(other, now + 1 + random.nextInt((int) MAX_DELAY));
+    }
+    long time = System.nanoTime() - start;
+    if (queue.eventCount != size) {
+      throw new IllegalStateException("lost events: " + queue.eventCount);
+    }
+    return time;
+  }
+
+  private static long listBenchmark(int size, int operations, long seed) {
+    Random random = new Random(seed);
+    LinkedEventQueue queue = new LinkedEventQueue();
+    BenchEvent[] events = new BenchEvent[size];
+    for (int i = 0; i < size; i++) {
+      events[i] = new BenchEvent("e" + i);
+      queue.addEvent(events[i], random.nextInt((int) MAX_DELAY));
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      BenchEvent event = queue.popFirst();
+      long now = event.getTime();
+      queue.addEvent(event, now + 1 + random.nextInt((int) MAX_DELAY));
+      BenchEvent other = events[random.nextInt(size)];
+      queue.addEvent(other, now + 1 + random.nextInt((int) MAX_DELAY));
+    }
+    long time = System.nanoTime() - start;
+    if (queue.eventCount != size) {
+      throw new IllegalStateException("lost events: " + queue.eventCount);
+    }
+    return time;
+  }
+
+  public static void main(String[] args) {
+    int[] sizes = DEFAULT_SIZES;
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) {
+        sizes[i] = Integer.parseInt(args[i]);
+      }
+    }
+
+    System.out.println("pending      list ns/op      heap ns/op   speedup");
+    for (int size : sizes) {
+      /* keep the total work roughly constant for the list implementation */
+      int operations = Math.max(20000, 20000000 / size);
+      long listTime = Long.MAX_VALUE;
+      long heapTime = Long.MAX_VALUE;
+      /* first rounds are warmup - keep the best result */
+      for (int r = 0; r < ROUNDS; r++) {
+        listTime = Math.min(listTime, listBenchmark(size, operations, r));
+        heapTime = Math.min(heapTime, heapBenchmark(size, operations, r));
+      }
+      double listOp = (double) listTime / operations;
+      double heapOp = (double) heapTime / operations;
+      System.out.println(String.format("%7d  %14.1f  %14.1f  %8.2fx",
+          size, listOp, heapOp, listOp / heapOp));
+    }
+  }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * LinkedEventQueue
+ */
+
+package se.sics.mspsim.bench;
+
+/**
+ * Copy of the sorted linked list algorithm used by EventQueue before it
+ * was replaced by a binary heap. Only kept as a reference for the
+ * event queue benchmarks.
+ */
+public class LinkedEventQueue {
+
+  private BenchEvent first;
+  public long nextTime;
+  public int eventCount = 0;
+
+  public void addEvent(BenchEvent event, long time) {
+    event.setTime(time);
+    addEvent(event);
+  }
+
+  public void addEvent(BenchEvent event) {
+    if (event.queue != null) {
+      event.queue.removeEvent(event);
+    }
+    if (first == null) {
+      first = event;
+    } else {
+      BenchEvent pos = first;
+      BenchEvent lastPos = first;
+      while (pos != null && pos.getTime() < event.getTime()) {
+        lastPos = pos;
+        pos = pos.next;
+      }
+      event.next = pos;
+      if (pos == first) {
+        first = event;
+      } else {
+        lastPos.next = event;
+      }
+    }
+    nextTime = first.getTime();
+    event.queue = this;
+    eventCount++;
+  }
+
+  public boolean removeEvent(BenchEvent event) {
+    BenchEvent pos = first;
+    BenchEvent lastPos = first;
+    while (pos != null && pos != event) {
+      lastPos = pos;
+      pos = pos.next;
+    }
+    if (pos == null) return false;
+    if (pos == first) {
+      first = pos.next;
+    } else {
+      lastPos.next = pos.next;
+    }
+    pos.next = null;
+    nextTime = first != null ? first.getTime() : 0;
+    event.queue = null;
+    eventCount--;
+    return true;
+  }
+
+  public BenchEvent popFirst() {
+    BenchEvent tmp = first;
+    if (tmp != null) {
+      first = tmp.next;
+      tmp.next = null;
+      tmp.queue = null;
+      eventCount--;
+    }
+    nextTime = first != null ? first.getTime() : 0;
+    return tmp;
+  }
+
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * BenchmarkSupport
+ */
+
+package se.sics.mspsim.bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import se.sics.mspsim.config.MSP430f1611Config;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.util.ComponentRegistry;
+import se.sics.mspsim.util.ELF;
+
+/**
+ * Helpers shared by the JMH benchmarks. The CPU is set up the same way as
+ * util.Test does it, i.e. a bare MSP430f1611 without any node peripherals.
+ */
+final class BenchmarkSupport {
+
+  private BenchmarkSupport() {
+  }
+
+  static byte[] readFile(String name) throws IOException {
+    File file = new File(name);
+    if (!file.isFile()) {
+      throw new IOException("could not find firmware " + file.getAbsolutePath());
+    }
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] data = new byte[(int) input.length()];
+      input.readFully(data);
+      return data;
+    } finally {
+      input.close();
+    }
+  }
+
+  static MSP430 createCPU(String firmware) throws IOException {
+    MSP430 cpu = new MSP430(0, new ComponentRegistry(), new MSP430f1611Config());
+    ELF elf = new ELF(readFile(firmware));
+    elf.readAll();
+    elf.loadPrograms(cpu);
+    cpu.getDisAsm().setMap(elf.getMap());
+    cpu.reset();
+    return cpu;
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * DisAsmBenchmark
+ */
+
+package se.sics.mspsim.bench.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.sics.mspsim.core.DbgInstruction;
+import se.sics.mspsim.core.DisAsm;
+import se.sics.mspsim.core.MSP430;
+
+/**
+ * Disassembly of the instructions executed by the blink firmware. The
+ * addresses are collected by running the firmware for a while so that
+ * only real instruction starts are disassembled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DisAsmBenchmark {
+
+  private static final int MAX_ADDRESSES = 4096;
+
+  private MSP430 cpu;
+  private DisAsm disAsm;
+  private int[] addresses;
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    cpu = BenchmarkSupport.createCPU("firmware/sky/blink.sky");
+    disAsm = cpu.getDisAsm();
+    int[] pcs = new int[MAX_ADDRESSES];
+    int count = 0;
+    for (int i = 0; i < 200000 && count < MAX_ADDRESSES; i++) {
+      int pc = cpu.emulateOP(-1);
+      if (pc >= 0) {
+        pcs[count++] = pc;
+      }
+    }
+    if (count == 0) {
+      throw new IOException("no instructions executed");
+    }
+    addresses = new int[count];
+    System.arraycopy(pcs, 0, addresses, 0, count);
+  }
+
+  @Benchmark
+  public DbgInstruction disassemble() {
+    int pc = addresses[next];
+    if (++next == addresses.length) {
+      next = 0;
+    }
+    return disAsm.disassemble(pc, cpu, cpu.reg, new DbgInstruction(), 0);
+  }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * EmulatorBenchmark
+ */
+
+package se.sics.mspsim.bench.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.MSP430;
+
+/**
+ * Emulation throughput on real firmware images. The default image is the
+ * bundled energest-demo firmware that keeps the CPU active, so the results
+ * are not dominated by low power mode jumps. The CPU test can be used by
+ * passing "-p firmware=tests/cputest.sky" after compiling it.
+ *
+ * The fastMemory parameter compares the inlined RAM and flash accesses
+ * with going through the memory segments for every access. The execution
+ * mode only applies to stepInstructions since emulateOP always executes
+ * a single instruction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EmulatorBenchmark {
+
+  private static final int INSTRUCTIONS = 1000;
+
+  @State(Scope.Thread)
+  public static class CPUState {
+
+    @Param({ "firmware/sky/energest-demo.sky" })
+    public String firmware;
+
+    @Param({ "true", "false" })
+    public boolean fastMemory;
+
+    MSP430 cpu;
+
+    @Setup
+    public void setup() throws IOException {
+      cpu = BenchmarkSupport.createCPU(firmware);
+      cpu.setFastMemoryEnabled(fastMemory);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SteppingState {
+
+    @Param({ "firmware/sky/energest-demo.sky" })
+    public String firmware;
+
+    @Param({ "true", "false" })
+    public boolean fastMemory;
+
+    MSP430 cpu;
+
+    @Setup
+    public void setup() throws IOException {
+      cpu = BenchmarkSupport.createCPU(firmware);
+      cpu.setFastMemoryEnabled(fastMemory);
+    }
+  }
+
+  /* Raw emulateOP calls */
+  @Benchmark
+  @OperationsPerInvocation(INSTRUCTIONS)
+  public int emulateOP(CPUState state) throws EmulationException {
+    MSP430 cpu = state.cpu;
+    int pc = 0;
+    for (int i = 0; i < INSTRUCTIONS; i++) {
+      pc += cpu.emulateOP(-1);
+    }
+    return pc;
+  }
+
+  /* Includes the time the CPU spends in low power mode between the instructions */
+  @Benchmark
+  @OperationsPerInvocation(INSTRUCTIONS)
+  public long stepInstructions(SteppingState state) throws EmulationException {
+    return state.cpu.stepInstructions(INSTRUCTIONS);
+  }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * EventScheduleBenchmark
+ */
+
+package se.sics.mspsim.bench.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.sics.mspsim.bench.BenchEvent;
+import se.sics.mspsim.core.EventQueue;
+import se.sics.mspsim.core.TimeEvent;
+
+/**
+ * EventQueue schedule and pop cost with a number of pending events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventScheduleBenchmark {
+
+  private static final int MAX_DELAY = 10000;
+
+  @Param({ "10", "100", "1000" })
+  public int pending;
+
+  private EventQueue queue;
+  private BenchEvent[] events;
+  private Random random;
+
+  @Setup
+  public void setup() {
+    random = new Random(pending);
+    queue = new EventQueue();
+    events = new BenchEvent[pending];
+    for (int i = 0; i < pending; i++) {
+      events[i] = new BenchEvent("e" + i);
+      queue.addEvent(events[i], random.nextInt(MAX_DELAY));
+    }
+  }
+
+  /* Pop the first event and schedule it again (timer tick) */
+  @Benchmark
+  public TimeEvent popAndSchedule() {
+    TimeEvent event = queue.popFirst();
+    queue.addEvent(event, event.getTime() + 1 + random.nextInt(MAX_DELAY));
+    return event;
+  }
+
+  /* Move any pending event (peripheral state change) */
+  @Benchmark
+  public long reschedule() {
+    BenchEvent event = events[random.nextInt(pending)];
+    queue.addEvent(event, queue.nextTime + 1 + random.nextInt(MAX_DELAY));
+    return queue.nextTime;
+  }
+
+  /* Cancel any pending event and schedule it again */
+  @Benchmark
+  public long removeAndSchedule() {
+    BenchEvent event = events[random.nextInt(pending)];
+    queue.removeEvent(event);
+    queue.addEvent(event, queue.nextTime + 1 + random.nextInt(MAX_DELAY));
+    return queue.nextTime;
+  }
+
+}
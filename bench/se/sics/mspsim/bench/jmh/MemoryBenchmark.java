@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * MemoryBenchmark
+ */
+
+package se.sics.mspsim.bench.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.Memory.AccessMode;
+import se.sics.mspsim.core.Memory.AccessType;
+import se.sics.mspsim.core.MemoryMonitor;
+
+/**
+ * Memory.read/write through the different memory segment types:
+ * RAM       - plain RAMSegment
+ * IO        - IOSegment dispatching to the port 1 IO unit (P1DIR)
+ * WATCHED   - WatchedMemory wrapping RAM, address without a monitor
+ * MONITORED - WatchedMemory wrapping RAM, address with a monitor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryBenchmark {
+
+  private static final int RAM_ADDRESS = 0x1200;
+  private static final int IO_ADDRESS = 0x22;
+  private static final int WATCHED_ADDRESS = 0x2000;
+
+  @Param({ "RAM", "IO", "WATCHED", "MONITORED" })
+  public String segment;
+
+  private Memory memory;
+  private int address;
+  private int data;
+
+  @Setup
+  public void setup() throws IOException {
+    MSP430 cpu = BenchmarkSupport.createCPU("firmware/sky/blink.sky");
+    memory = cpu.getMemory();
+    cpu.addWatchPoint(WATCHED_ADDRESS, new MemoryMonitor.Adapter());
+    if ("RAM".equals(segment)) {
+      address = RAM_ADDRESS;
+    } else if ("IO".equals(segment)) {
+      address = IO_ADDRESS;
+    } else if ("WATCHED".equals(segment)) {
+      address = WATCHED_ADDRESS + 2;
+    } else if ("MONITORED".equals(segment)) {
+      address = WATCHED_ADDRESS;
+    } else {
+      throw new IllegalArgumentException("unknown segment: " + segment);
+    }
+  }
+
+  @Benchmark
+  public int readWord() throws EmulationException {
+    return memory.read(address, AccessMode.WORD, AccessType.READ);
+  }
+
+  @Benchmark
+  public int readByte() throws EmulationException {
+    return memory.read(address, AccessMode.BYTE, AccessType.READ);
+  }
+
+  @Benchmark
+  public void writeWord() throws EmulationException {
+    memory.write(address, data++ & 0xffff, AccessMode.WORD);
+  }
+
+  @Benchmark
+  public void writeByte() throws EmulationException {
+    memory.write(address, data++ & 0xff, AccessMode.BYTE);
+  }
+
+}
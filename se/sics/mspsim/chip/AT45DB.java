@@ -163,7 +163,7 @@ public class AT45DB extends ExternalFlash implements USARTListener {
             bufferAddress |= data;
 
             if(DEBUG)
-              log("Address - PA[10-0]: " + pageAddress + " BA[8-0]: " + bufferAddress);
+              log("Address - PA[10-0]: %d BA[8-0]: %d", pageAddress, bufferAddress);
 
             if(dummy == 0) {
               if(DEBUG) log("State " + state + " -> " + next_state);
@@ -256,7 +256,7 @@ public class AT45DB extends ExternalFlash implements USARTListener {
             break;
 
           case STATUS_REGISTER_READ:
-            if(DEBUG) log("Read status register command.  status: " + status);
+            if(DEBUG) log("Read status register command.  status: %d", status);
             setState(STATUS_REGISTER_READ);
             source.byteReceived(0);
             break;
@@ -28,6 +28,9 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -576,6 +579,7 @@ public class CC1101 extends Radio802154 implements USARTListener {
 
         if (txFooterCountdown == 0) {
             /* countdown is zero, send first CRC byte */
+            frameTransmitted();
             if (rfListener != null) {
                 rfListener.receivedByte((byte) (0xee));
             }
@@ -727,6 +731,7 @@ public class CC1101 extends Radio802154 implements USARTListener {
 		rxExpectedLen--;
 		if (rxExpectedLen == 0) {
 			setGDO0(false);
+			frameReceived();
 			rxExpectedLen = -1;
 			rxGotSynchByte = false;
 		}
@@ -902,4 +907,32 @@ public class CC1101 extends Radio802154 implements USARTListener {
     return status;
   }
 
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    writeFIFO(txfifo, out);
+    writeFIFO(rxfifo, out);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    readFIFO(txfifo, in);
+    readFIFO(rxfifo, in);
+  }
+
+  private static void writeFIFO(List<Byte> fifo, DataOutputStream out) throws IOException {
+    out.writeInt(fifo.size());
+    for (Byte b : fifo) {
+      out.writeByte(b);
+    }
+  }
+
+  private static void readFIFO(List<Byte> fifo, DataInputStream in) throws IOException {
+    fifo.clear();
+    for (int i = in.readInt(); i > 0; i--) {
+      fifo.add(in.readByte());
+    }
+  }
+
 }
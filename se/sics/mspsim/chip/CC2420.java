@@ -37,6 +37,10 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
@@ -316,6 +320,14 @@ public class CC2420 extends Radio802154 implements USARTListener {
   private int txCursor;
   private boolean on;
 
+  /* Frame level transmission and reception - see RFFrameListener */
+  private final byte[] txFrame = new byte[256];
+  private final byte[] rxFrame = new byte[256];
+  private int rxFrameLength;
+  private int rxFramePos;
+  private int rxFrameStop;
+  private double rxFrameStart;
+
   private TimeEvent oscillatorEvent = new TimeEvent(0, "CC2420 OSC") {
     public void execute(long t) {
       status |= STATUS_XOSC16M_STABLE;
@@ -357,6 +369,13 @@ public class CC2420 extends Radio802154 implements USARTListener {
     }
   };
 
+  private TimeEvent rxFrameEvent = new TimeEvent(0, "CC2420 RX Frame") {
+    public void execute(long t) {
+      receiveFrameBytes(rxFrameStop + 1);
+      scheduleFrameStop();
+    }
+  };
+
   private TimeEvent symbolEvent = new TimeEvent(0, "CC2420 Symbol") {
     public void execute(long t) {
       switch(stateMachine) {
@@ -562,6 +581,82 @@ public class CC2420 extends Radio802154 implements USARTListener {
       frameRejected = true;
   }
   
+  /**
+   * Receives a whole frame. In frame mode only the bytes that can change
+   * the state seen by the CPU (the length byte, the FIFOP threshold, the
+   * address recognition and the last byte) are received at their exact
+   * time. The other bytes are received when the CPU accesses the radio.
+   */
+  @Override
+  public void receivedFrame(byte[] data, int length) {
+    if (rxFramePos < rxFrameLength) {
+      /* a new frame while still receiving the previous one */
+      rxFrameEvent.remove();
+      receiveFrameBytes(rxFrameLength);
+    }
+    if (!isFrameMode()) {
+      super.receivedFrame(data, length);
+      return;
+    }
+    if (length == 0 || length > rxFrame.length
+        || (stateMachine != RadioState.RX_SFD_SEARCH && stateMachine != RadioState.RX_FRAME)) {
+      /* not listening - all bytes would be ignored */
+      return;
+    }
+    System.arraycopy(data, 0, rxFrame, 0, length);
+    rxFrameLength = length;
+    rxFramePos = 0;
+    rxFrameStart = cpu.getTimeMillis();
+    for (int i = 0; i < 4; i++) {
+      receivedByte((byte) 0);
+    }
+    receivedByte((byte) 0x7A);
+    receiveFrameBytes(1);
+    scheduleFrameStop();
+  }
+
+  private void receiveFrameBytes(int end) {
+    while (rxFramePos < end) {
+      receivedByte(rxFrame[rxFramePos++]);
+    }
+  }
+
+  private void scheduleFrameStop() {
+    while (rxFramePos < rxFrameLength) {
+      int stop = rxFrameLength - 1;
+      if (fifopThr >= rxFramePos && fifopThr < stop) {
+        stop = fifopThr;
+      }
+      if (addressDecode) {
+        /* frame type, short and long destination address recognized */
+        if (2 >= rxFramePos && 2 < stop) {
+          stop = 2;
+        } else if (7 >= rxFramePos && 7 < stop) {
+          stop = 7;
+        } else if (13 >= rxFramePos && 13 < stop) {
+          stop = 13;
+        }
+      }
+      double delay = rxFrameStart + stop * BYTE_PERIOD - cpu.getTimeMillis();
+      if (delay > 0.0005) {
+        rxFrameStop = stop;
+        cpu.scheduleTimeEventMillis(rxFrameEvent, delay);
+        return;
+      }
+      receiveFrameBytes(stop + 1);
+    }
+  }
+
+  /* Receives all bytes of the current frame that are due */
+  private void receiveDueFrameBytes() {
+    int due = (int) ((cpu.getTimeMillis() - rxFrameStart) / BYTE_PERIOD + 1e-6) + 1;
+    if (due > rxFramePos) {
+      rxFrameEvent.remove();
+      receiveFrameBytes(due < rxFrameLength ? due : rxFrameLength);
+      scheduleFrameStop();
+    }
+  }
+
   /* variables for the address recognition */
   int destinationAddressMode = 0;
   boolean decodeAddress = false;
@@ -605,7 +700,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
                       rxlen = data & 0xff;
                       //System.out.println("Starting to get packet at: " + rxfifoWritePos + " len = " + rxlen);
                       decodeAddress = addressDecode;
-                      if (logLevel > INFO) log("RX: Start frame length " + rxlen);
+                      if (logLevel > INFO) log("RX: Start frame length %d", rxlen);
                       // FIFO pin goes high after length byte is written to RXFIFO
                       setFIFO(true);
                   } else if (rxread < rxlen - 1) {
@@ -685,7 +780,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
 
                   crcOk = crc == rxCrc.getCRCBitrev();
                   if (logLevel > INFO && !crcOk) {
-                      log("CRC not OK: recv:" + Utils.hex16(crc) + " calc: " + Utils.hex16(rxCrc.getCRCBitrev()));
+                      log("CRC not OK: recv:%04x calc: %04x", crc & 0xffff, rxCrc.getCRCBitrev() & 0xffff);
                   }
                   // Should take a RSSI value as input or use a set-RSSI value...
                   rxFIFO.set(-2, registers[REG_RSSI] & 0xff); 
@@ -703,6 +798,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
                       if (logLevel > INFO) log("Did not set FIFOP rxfifoLen: " + rxFIFO.length() + " rxlen: " + rxlen);
                   }
                   setSFD(false);
+                  frameReceived();
                   if (logLevel > INFO) log("RX: Complete: packetStart: " + rxFIFO.stateToString());
 
                   /* if either manual ack request (shouldAck) or autoack + ACK_REQ on package do ack! */
@@ -729,7 +825,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
       switch(address) {
       case REG_IOCFG0:
           fifopThr = data & FIFOP_THR;
-          if (logLevel > INFO) log("IOCFG0: 0x" + Utils.hex16(oldValue) + " => 0x" + Utils.hex16(data));
+          if (logLevel > INFO) log("IOCFG0: 0x%04x => 0x%04x", oldValue & 0xffff, data & 0xffff);
           if ((oldValue & POLARITY_MASK) != (data & POLARITY_MASK)) {
               // Polarity has changed - must update pins
               setFIFOP(currentFIFOP);
@@ -766,6 +862,9 @@ public class CC2420 extends Radio802154 implements USARTListener {
   }
 
   public void dataReceived(USARTSource source, int data) {
+    if (rxFramePos < rxFrameLength) {
+      receiveDueFrameBytes();
+    }
     int oldStatus = status;
     if (logLevel > INFO) {
       log("byte received: " + Utils.hex8(data) +
@@ -822,7 +921,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
           // registers[usartDataAddress] = (registers[usartDataAddress] & 0xff00) | data;
 
           if (logLevel > INFO) {
-            log("wrote to " + Utils.hex8(usartDataAddress) + " = " + usartDataValue);
+            log("wrote to %02x = %d", usartDataAddress & 0xff, usartDataValue);
           }
           setReg(usartDataAddress, usartDataValue);
           /* register written - go back to waiting... */
@@ -836,8 +935,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
         } else {
           source.byteReceived(registers[usartDataAddress] & 0xff);
           if (logLevel > INFO) {
-            log("read from " + Utils.hex8(usartDataAddress) + " = "
-                + registers[usartDataAddress]);
+            log("read from %02x = %d", usartDataAddress & 0xff, registers[usartDataAddress]);
           }
           state = SpiState.WAITING;
         }
@@ -885,7 +983,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
           txCursor = 0;
           txfifoFlush = false;
         }
-        if (logLevel > INFO) log("Writing data: " + data + " to tx: " + txCursor);
+        if (logLevel > INFO) log("Writing data: %d to tx: %d", data, txCursor);
 
         if(txCursor == 0) {
           if ((data & 0xff) > 127) {
@@ -917,9 +1015,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
               usartDataAddress = 0;
             }
             if (logLevel > INFO && usartDataAddress == RAM_PANID + 2) {
-              log("Pan ID set to: 0x" +
-                  Utils.hex8(memory[RAM_PANID]) +
-                  Utils.hex8(memory[RAM_PANID + 1]));
+              log("Pan ID set to: 0x%02x%02x", memory[RAM_PANID] & 0xff, memory[RAM_PANID + 1] & 0xff);
             }
           } else {
             //log("Read RAM Addr: " + address + " Data: " + memory[address]);  
@@ -950,13 +1046,13 @@ public class CC2420 extends Radio802154 implements USARTListener {
     }
 
     if( (stateMachine == RadioState.POWER_DOWN) && (data != REG_SXOSCON) ) {
-      if (logLevel > INFO) log("Got command strobe: " + data + " in POWER_DOWN.  Ignoring.");
+      if (logLevel > INFO) log("Got command strobe: %d in POWER_DOWN.  Ignoring.", data);
       return;
     }
 
     switch (data) {
     case REG_SNOP:
-      if (logLevel > INFO) log("SNOP => " + Utils.hex8(status) + " at " + cpu.cycles);
+      if (logLevel > INFO) log("SNOP => %02x at %d", status & 0xff, cpu.cycles);
       break;
     case REG_SRXON:
       if(stateMachine == RadioState.IDLE) {
@@ -972,7 +1068,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
       break;
     case REG_SRFOFF:
       if (logLevel > INFO) {
-        log("Strobe RXTX-OFF!!! at " + cpu.cycles);
+        log("Strobe RXTX-OFF!!! at %d", cpu.cycles);
         if (stateMachine == RadioState.TX_ACK ||
               stateMachine == RadioState.TX_FRAME ||
               stateMachine == RadioState.RX_FRAME) {
@@ -995,7 +1091,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
           sendEvent("STXON", null);
         }
         // Starting up TX subsystem - indicate that we are in TX mode!
-        if (logLevel > INFO) log("Strobe STXON - transmit on! at " + cpu.cycles);
+        if (logLevel > INFO) log("Strobe STXON - transmit on! at %d", cpu.cycles);
       }
       break;
     case REG_STXONCCA:
@@ -1014,7 +1110,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
         if(cca) {
           status |= STATUS_TX_ACTIVE;
           setState(RadioState.TX_CALIBRATE);
-          if (logLevel > INFO) log("Strobe STXONCCA - transmit on! at " + cpu.cycles);
+          if (logLevel > INFO) log("Strobe STXONCCA - transmit on! at %d", cpu.cycles);
         }else{
           if (logLevel > INFO) log("STXONCCA Ignored, CCA false");
         }
@@ -1047,14 +1143,18 @@ public class CC2420 extends Radio802154 implements USARTListener {
         break;
     default:
       if (logLevel > INFO) {
-        log("Unknown strobe command: " + data);
+        log("Unknown strobe command: %d", data);
       }
     break;
     }
   }
 
   private void shrNext() {
-    if(shrPos == 5) {
+    if (shrPos == 0 && isFrameTransmission()) {
+      /* no byte level listeners - skip the header bytes */
+      shrPos = 5;
+      cpu.scheduleTimeEventMillis(shrEvent, BYTE_PERIOD * 5);
+    } else if(shrPos == 5) {
       // Set SFD high
       setSFD(true);
 
@@ -1069,7 +1169,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
       }
     } else {
       if (rfListener != null) {
-        if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(SHR[shrPos]));
+        if (logLevel > INFO) log("transmitting byte: %02x", SHR[shrPos] & 0xff);
         rfListener.receivedByte(SHR[shrPos]);
       }
       shrPos++;
@@ -1078,21 +1178,18 @@ public class CC2420 extends Radio802154 implements USARTListener {
   }
 
   private void txNext() {
-    if(txfifoPos <= memory[RAM_TXFIFO]) {
+    if (txfifoPos == 0 && isFrameTransmission()) {
+      transmitFrame();
+    } else if(txfifoPos <= memory[RAM_TXFIFO]) {
       int len = memory[RAM_TXFIFO] & 0xff;
       if (txfifoPos == len - 1) {
-          txCrc.setCRC(0);
-          for (int i = 1; i < len - 1; i++) {
-            txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
-          }
-          memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
-          memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
+          updateTxCRC(len);
       }
       if (txfifoPos > 0x7f) {
         logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes txfifoPos: " + txfifoPos);
       }
       if (rfListener != null) {
-        if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
+        if (logLevel > INFO) log("transmitting byte: %02x", memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xff);
         rfListener.receivedByte((byte)(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
       }
       txfifoPos++;
@@ -1100,6 +1197,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
       cpu.scheduleTimeEventMillis(sendEvent, SYMBOL_PERIOD * 2);
     } else {
       if (logLevel > INFO) log("Completed Transmission.");
+      frameTransmitted();
       status &= ~STATUS_TX_ACTIVE;
       setSFD(false);
       if (overflow) {
@@ -1114,6 +1212,38 @@ public class CC2420 extends Radio802154 implements USARTListener {
     }
   }
 
+  private void updateTxCRC(int len) {
+    txCrc.setCRC(0);
+    for (int i = 1; i < len - 1; i++) {
+      txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
+    }
+    memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
+    memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
+  }
+
+  /*
+   * Frame level transmission used when there are no byte level listeners.
+   * The whole frame is reported at once and the transmission completes
+   * after the air time of the frame.
+   */
+  private void transmitFrame() {
+    int len = memory[RAM_TXFIFO] & 0xff;
+    if (len >= 1) {
+      updateTxCRC(len);
+    }
+    if (len > 0x7f) {
+      logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes: " + len);
+    }
+    for (int i = 0; i <= len; i++) {
+      txFrame[i] = (byte) memory[RAM_TXFIFO + (i & 0x7f)];
+    }
+    if (frameListener != null) {
+      frameListener.transmittedFrame(this, txFrame, len + 1);
+    }
+    txfifoPos = len + 1;
+    cpu.scheduleTimeEventMillis(sendEvent, BYTE_PERIOD * (len + 1));
+  }
+
   private void ackNext() {
       if (ackPos < ackBuf.length) {
           if(ackPos == 0) {
@@ -1131,9 +1261,22 @@ public class CC2420 extends Radio802154 implements USARTListener {
               }
               ackBuf[4] = txCrc.getCRCHi();
               ackBuf[5] = txCrc.getCRCLow();
+
+              if (isFrameTransmission()) {
+                  /* frame level transmission of the whole ACK */
+                  for (int i = 0; i < ackBuf.length; i++) {
+                      txFrame[i] = (byte) ackBuf[i];
+                  }
+                  if (frameListener != null) {
+                      frameListener.transmittedFrame(this, txFrame, ackBuf.length);
+                  }
+                  ackPos = ackBuf.length;
+                  cpu.scheduleTimeEventMillis(ackEvent, BYTE_PERIOD * ackBuf.length);
+                  return;
+              }
           }
           if (rfListener != null) {
-              if (logLevel > INFO) log("transmitting byte: " + Utils.hex8(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
+              if (logLevel > INFO) log("transmitting byte: %02x", memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xff);
 
               rfListener.receivedByte((byte)(ackBuf[ackPos] & 0xFF));
           }
@@ -1172,7 +1315,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
 
   private void flushRX() {
     if (logLevel > INFO) {
-      log("Flushing RX len = " + rxFIFO.length());
+      log("Flushing RX len = %d", rxFIFO.length());
     }
     rxFIFO.reset();
     setSFD(false);
@@ -1323,7 +1466,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
         power = maxp;
     }
 
-    if (logLevel > INFO) log("external setRSSI to: " + power);
+    if (logLevel > INFO) log("external setRSSI to: %d", power);
 
     rssi = power;
     registers[REG_RSSI] = (registers[REG_RSSI] & 0xFF00) | ((power - RSSI_OFFSET) & 0xFF);
@@ -1393,7 +1536,7 @@ public class CC2420 extends Radio802154 implements USARTListener {
           // Register write incomplete. Do a 8 bit register write.
           usartDataValue = (registers[usartDataAddress] & 0xff) | (usartDataValue & 0xff00);
           if (logLevel > INFO) {
-              log("wrote 8 MSB to 0x" + Utils.hex8(usartDataAddress) + " = " + usartDataValue);
+              log("wrote 8 MSB to 0x%02x = %d", usartDataAddress & 0xff, usartDataValue);
           }
           setReg(usartDataAddress, usartDataValue);
       }
@@ -1488,5 +1631,21 @@ public class CC2420 extends Radio802154 implements USARTListener {
   public int getConfiguration(int parameter) {
       return registers[parameter];
   }
-  
+
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+      super.writeState(out);
+      rxFIFO.writeState(out);
+      out.writeInt(rxCrc.getCRC());
+      out.writeInt(txCrc.getCRC());
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+      super.readState(in);
+      rxFIFO.readState(in);
+      rxCrc.setCRC(in.readInt());
+      txCrc.setCRC(in.readInt());
+  }
+
 } // CC2420
@@ -35,11 +35,15 @@
  */
 
 package se.sics.mspsim.chip;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import se.sics.mspsim.core.*;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.ArrayFIFO;
 import se.sics.mspsim.util.CCITT_CRC;
+import se.sics.mspsim.util.StateSnapshot;
 import se.sics.mspsim.util.Utils;
 import java.util.Scanner;
 
@@ -66,7 +70,7 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         public void assign(int gpiof) {
 			if (vgpio[this.gpiof] == this) {
 				vgpio[this.gpiof] = dummyGpio;
-				log("gpio: reconfigured old 0x" + Utils.hex(this.gpiof,2) + " to dummy");
+				log("gpio: reconfigured old 0x%02x to dummy", this.gpiof);
 			}
             vgpio[gpiof] = this;
             this.gpiof = gpiof;
@@ -532,6 +536,16 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
     private IOPort SOport;
     private int SOpin;
 
+    /* Frame level transmission and reception - see Radio802154.setFrameMode() */
+    private final byte[] txFrame = new byte[256];
+    private int txFrameLength;
+    private TimeEvent txFrameDone;
+    private final byte[] rxFrame = new byte[256];
+    private int rxFrameLength;
+    private int rxFramePos;
+    private int rxFrameStop;
+    private double rxFrameStart;
+
     public void setSOConfig(IOPort port, int pin) {
         this.SOport = port;
         this.SOpin = pin;
@@ -575,7 +589,7 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
 			//cpu.scheduleTimeEventMillis(sendByte, (SYMBOL_PERIOD * 2) /*- 0.001*/);
 		}
 		else {
-			log("Still busy sending previous byte ["+ (txBUF & 0xFF) + "] new byte is [" + b + "]" );
+			log("Still busy sending previous byte [%d] new byte is [%d]", txBUF & 0xFF, b);
 		}
 	}
     
@@ -610,6 +624,28 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         }
     };
 
+    /* Reports the frame when its length byte has been sent and completes
+     * the transmission after the air time of the remaining bytes */
+    private TimeEvent txFrameEvent = new TimeEvent(0, "CC2520 TX Frame") {
+        public void execute(long t) {
+            if (frameListener != null) {
+                frameListener.transmittedFrame(CC2520.this, txFrame, txFrameLength);
+            }
+            if (txFrameLength > 1) {
+                cpu.scheduleTimeEventMillis(txFrameDone, SYMBOL_PERIOD * 2 * (txFrameLength - 1));
+            } else {
+                txFrameDone.execute(t);
+            }
+        }
+    };
+
+    private TimeEvent rxFrameEvent = new TimeEvent(0, "CC2520 RX Frame") {
+        public void execute(long t) {
+            receiveFrameBytes(rxFrameStop + 1);
+            scheduleFrameStop();
+        }
+    };
+
     private TimeEvent symbolEvent = new TimeEvent(0, "CC2520 Symbol") {
         public void execute(long t) {
             switch(stateMachine) {
@@ -903,6 +939,82 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         frameRejected = true;
     }
 
+    /**
+     * Receives a whole frame. In frame mode only the bytes that can change
+     * the state seen by the CPU (the length byte, the FIFOP threshold, the
+     * address recognition and the last byte) are received at their exact
+     * time. The other bytes are received when the CPU accesses the radio.
+     */
+    @Override
+    public void receivedFrame(byte[] data, int length) {
+        if (rxFramePos < rxFrameLength) {
+            /* a new frame while still receiving the previous one */
+            rxFrameEvent.remove();
+            receiveFrameBytes(rxFrameLength);
+        }
+        if (!isFrameMode()) {
+            super.receivedFrame(data, length);
+            return;
+        }
+        if (length == 0 || length > rxFrame.length
+                || (stateMachine != RadioState.RX_SFD_SEARCH && stateMachine != RadioState.RX_FRAME)) {
+            /* not listening - all bytes would be ignored */
+            return;
+        }
+        System.arraycopy(data, 0, rxFrame, 0, length);
+        rxFrameLength = length;
+        rxFramePos = 0;
+        rxFrameStart = cpu.getTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            receivedByte((byte) 0);
+        }
+        receivedByte((byte) 0x7A);
+        receiveFrameBytes(1);
+        scheduleFrameStop();
+    }
+
+    private void receiveFrameBytes(int end) {
+        while (rxFramePos < end) {
+            receivedByte(rxFrame[rxFramePos++]);
+        }
+    }
+
+    private void scheduleFrameStop() {
+        while (rxFramePos < rxFrameLength) {
+            int stop = rxFrameLength - 1;
+            if (fifopThr >= rxFramePos && fifopThr < stop) {
+                stop = fifopThr;
+            }
+            if (frameFilter) {
+                /* frame type, short and long destination address recognized */
+                if (2 >= rxFramePos && 2 < stop) {
+                    stop = 2;
+                } else if (7 >= rxFramePos && 7 < stop) {
+                    stop = 7;
+                } else if (13 >= rxFramePos && 13 < stop) {
+                    stop = 13;
+                }
+            }
+            double delay = rxFrameStart + stop * SYMBOL_PERIOD * 2 - cpu.getTimeMillis();
+            if (delay > 0.0005) {
+                rxFrameStop = stop;
+                cpu.scheduleTimeEventMillis(rxFrameEvent, delay);
+                return;
+            }
+            receiveFrameBytes(stop + 1);
+        }
+    }
+
+    /* Receives all bytes of the current frame that are due */
+    private void receiveDueFrameBytes() {
+        int due = (int) ((cpu.getTimeMillis() - rxFrameStart) / (SYMBOL_PERIOD * 2) + 1e-6) + 1;
+        if (due > rxFramePos) {
+            rxFrameEvent.remove();
+            receiveFrameBytes(due < rxFrameLength ? due : rxFrameLength);
+            scheduleFrameStop();
+        }
+    }
+
     /* variables for the address recognition */
     int destinationAddressMode = 0;
     boolean decodeAddress = false;
@@ -1086,6 +1198,7 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
                         if (DEBUG) log("Did not set FIFOP rxfifoLen: " + rxFIFO.length() + " rxlen: " + rxlen);
                     }
                     setSFD(false);
+                    frameReceived();
                     if (DEBUG) log("RX: Complete: packetStart: " + rxFIFO.stateToString());
 
                     /* if either manual ack request (shouldAck) or autoack + ACK_REQ on package do ack! */
@@ -1177,6 +1290,9 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
 
     @Override
     public void dataReceived(USARTSource source, int data) {
+        if (rxFramePos < rxFrameLength) {
+            receiveDueFrameBytes();
+        }
         uartSource = source;
         outputSPI = status; /* if nothing replace the outputSPI it will be output */
         if (DEBUG) {
@@ -1187,7 +1303,7 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         }
 
         if (!chipSelect) {
-            log("byte received: 0x" + Utils.hex8(data) + "while CS is disabled");
+            log("byte received: 0x%02xwhile CS is disabled", data & 0xff);
             return;
         }
 
@@ -1321,7 +1437,11 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
 
     private void shrNext() {
         txCnt ++;
-        if(shrPos == 5) {
+        if (shrPos == 0 && isFrameTransmission()) {
+            /* no byte level listeners - skip the header bytes */
+            shrPos = 5;
+            cpu.scheduleTimeEventMillis(shrEvent, SYMBOL_PERIOD * 2 * 5);
+        } else if(shrPos == 5) {
             // Set SFD high
             setSFD(true);
 
@@ -1343,17 +1463,14 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
 
     private void txNext() {
         txCnt ++;
-        if(txfifoPos <= memory[RAM_TXFIFO]) {
+        if (txfifoPos == 0 && isFrameTransmission()) {
+            transmitFrame();
+        } else if(txfifoPos <= memory[RAM_TXFIFO]) {
             int len = memory[RAM_TXFIFO] & 0xff;
             
             if (autoCRC) {
                 if (txfifoPos == len - 1) {
-                    txCrc.setCRC(0);
-                    for (int i = 1; i < len - 1; i++) {
-                        txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
-                    }
-                    memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
-                    memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
+                    updateTxCRC(len);
                 }
             }
             
@@ -1367,6 +1484,7 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
             cpu.scheduleTimeEventMillis(sendEvent, SYMBOL_PERIOD * 2);
         } else {
             if (DEBUG) log("Completed Transmission.");
+            frameTransmitted();
 	    status |= STATUS_RX_ACTIVE;
             status &= ~STATUS_TX_ACTIVE;
             setTXACTIVE(false);
@@ -1384,6 +1502,38 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         }
     }
 
+    private void updateTxCRC(int len) {
+        txCrc.setCRC(0);
+        for (int i = 1; i < len - 1; i++) {
+            txCrc.addBitrev(memory[RAM_TXFIFO + i] & 0xff);
+        }
+        memory[RAM_TXFIFO + len - 1] = txCrc.getCRCHi();
+        memory[RAM_TXFIFO + len] = txCrc.getCRCLow();
+    }
+
+    /*
+     * Frame level transmission used in frame mode when there are no byte
+     * level listeners. The whole frame is reported at the time the length
+     * byte would have been sent and the transmission completes after the
+     * air time of the frame.
+     */
+    private void transmitFrame() {
+        int len = memory[RAM_TXFIFO] & 0xff;
+        if (autoCRC && len >= 1) {
+            updateTxCRC(len);
+        }
+        if (len > 0x7f) {
+            logw(WarningType.EXECUTION, "**** Warning - packet size too large - repeating packet bytes: " + len);
+        }
+        for (int i = 0; i <= len; i++) {
+            txFrame[i] = (byte) memory[RAM_TXFIFO + (i & 0x7f)];
+        }
+        txfifoPos = len + 1;
+        txFrameLength = len + 1;
+        txFrameDone = sendEvent;
+        cpu.scheduleTimeEventMillis(txFrameEvent, SYMBOL_PERIOD * 2);
+    }
+
     private void ackNext() {
         if (ackPos < ackBuf.length) {
             if(ackPos == 0) {
@@ -1401,6 +1551,18 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
                 }
                 ackBuf[4] = txCrc.getCRCHi();
                 ackBuf[5] = txCrc.getCRCLow();
+
+                if (isFrameTransmission()) {
+                    /* frame level transmission of the whole ACK */
+                    for (int i = 0; i < ackBuf.length; i++) {
+                        txFrame[i] = (byte) ackBuf[i];
+                    }
+                    ackPos = ackBuf.length;
+                    txFrameLength = ackBuf.length;
+                    txFrameDone = ackEvent;
+                    cpu.scheduleTimeEventMillis(txFrameEvent, SYMBOL_PERIOD * 2);
+                    return;
+                }
             }
 			if (DEBUG) log("transmitting byte: " + Utils.hex8(memory[RAM_TXFIFO + (txfifoPos & 0x7f)] & 0xFF));
 			radioSendByte((byte)(ackBuf[ackPos] & 0xFF));
@@ -1926,4 +2088,48 @@ public class CC2520 extends Radio802154 implements USARTListener, SPIData {
         }
     }
 
+    /* The GPIO function mapping is saved as -2 for none, -1 for the dummy or the GPIO index */
+    private int getGPIOIndex(GPIO g) {
+        if (g == null) {
+            return -2;
+        }
+        return g == dummyGpio ? -1 : Arrays.asList(gpio).indexOf(g);
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        rxFIFO.writeState(out);
+        out.writeInt(rxCrc.getCRC());
+        out.writeInt(txCrc.getCRC());
+        out.writeBoolean(command != null);
+        for (GPIO g : gpio) {
+            StateSnapshot.writeFields(g, Object.class, out);
+        }
+        out.writeInt(vgpio.length);
+        for (GPIO g : vgpio) {
+            out.writeInt(getGPIOIndex(g));
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        rxFIFO.readState(in);
+        rxCrc.setCRC(in.readInt());
+        txCrc.setCRC(in.readInt());
+        /* the command is selected by the first byte of the SPI data */
+        command = in.readBoolean() ? cc2520SPI.getCommand(spiData[0]) : null;
+        for (GPIO g : gpio) {
+            StateSnapshot.readFields(g, Object.class, in);
+        }
+        if (in.readInt() != vgpio.length) {
+            throw new IOException("GPIO configuration does not match the snapshot");
+        }
+        for (int i = 0; i < vgpio.length; i++) {
+            int index = in.readInt();
+            vgpio[i] = index == -2 ? null : index == -1 ? dummyGpio : gpio[index];
+        }
+    }
+
 } // CC2520
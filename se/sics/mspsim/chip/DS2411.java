@@ -40,7 +40,6 @@ import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.TimeEvent;
-import se.sics.mspsim.util.Utils;
 
 public class DS2411 extends Chip {
   
@@ -85,11 +84,11 @@ public class DS2411 extends Chip {
         pos = 0;
         break;
       case READY:
-        if (DEBUG) log("Reading: " + (lastPin ? 1 : 0));
+        if (DEBUG) log("Reading: %d", lastPin ? 1 : 0);
         readByte = readByte + (lastPin ? (1 << pos) : 0);
         pos++;
         if (pos == 8) {
-          if (DEBUG) log("Command: " + Utils.hex8(readByte));
+          if (DEBUG) log("Command: %02x", readByte & 0xff);
           handleCommand(readByte);
           state = STATE.WAIT_SENDING;        
           stateChanged(state.ordinal());
@@ -208,12 +207,12 @@ public class DS2411 extends Chip {
       break;
     case SENDING:
       if (high) {
-        if (pos == 0 && DEBUG) log("should write next byte: " + writeByte);
+        if (pos == 0 && DEBUG) log("should write next byte: %d", writeByte);
 
         /* went high => we should send another bit */
         sdataPort.setPinState(sdataPin,
             ((writeByte & (1 << pos)) > 0) ? IOPort.PinState.HI : IOPort.PinState.LOW);
-        if (DEBUG) log("wrote bit: " + (((writeByte & (1 << pos)) > 0) ? 1 : 0));
+        if (DEBUG) log("wrote bit: %d", ((writeByte & (1 << pos)) > 0) ? 1 : 0);
         pos++;
         if (pos == 8) {
           writePos++;
@@ -33,6 +33,9 @@
 
 package se.sics.mspsim.chip;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import se.sics.mspsim.core.Chip;
@@ -269,4 +272,42 @@ public class Enc28J60 extends Chip {
 	public int getModeMax() {
 		return -1;
 	}
+
+	@Override
+	public void writeState(DataOutputStream out) throws IOException {
+		super.writeState(out);
+		writeBytes(wbmData, out);
+		out.writeInt(rbmPackets.size());
+		for (RbmPacket p : rbmPackets) {
+			writeBytes(p.data, out);
+			out.writeBoolean(p.wasRead);
+		}
+	}
+
+	@Override
+	public void readState(DataInputStream in) throws IOException {
+		super.readState(in);
+		readBytes(wbmData, in);
+		rbmPackets.clear();
+		for (int i = in.readInt(); i > 0; i--) {
+			RbmPacket p = new RbmPacket();
+			readBytes(p.data, in);
+			p.wasRead = in.readBoolean();
+			rbmPackets.add(p);
+		}
+	}
+
+	private static void writeBytes(ArrayList<Byte> data, DataOutputStream out) throws IOException {
+		out.writeInt(data.size());
+		for (Byte b : data) {
+			out.writeByte(b);
+		}
+	}
+
+	private static void readBytes(ArrayList<Byte> data, DataInputStream in) throws IOException {
+		data.clear();
+		for (int i = in.readInt(); i > 0; i--) {
+			data.add(in.readByte());
+		}
+	}
 }
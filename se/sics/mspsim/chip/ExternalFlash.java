@@ -30,6 +30,10 @@
  */
 package se.sics.mspsim.chip;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.MSP430Core;
 
@@ -56,6 +60,9 @@ public abstract class ExternalFlash extends Chip {
 
     public void setStorage(Storage storage) {
         this.storage = storage;
+        if (storage != null && storage.getMaxSize() <= 0) {
+            storage.setMaxSize(getSize());
+        }
     }
 
     @Override
@@ -65,4 +72,35 @@ public abstract class ExternalFlash extends Chip {
 
     public abstract int getSize();
 
+    /* A memory storage is part of the snapshot but the contents of other storages are not */
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        if (storage == null || storage instanceof MemoryStorage) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] content = new byte[getSize()];
+        for (int pos = 0; pos < content.length; ) {
+            int len = storage.read(pos, content, pos, Math.min(4096, content.length - pos));
+            if (len <= 0) {
+                break;
+            }
+            pos += len;
+        }
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        int size = in.readInt();
+        if (size >= 0) {
+            byte[] content = new byte[size];
+            in.readFully(content);
+            getStorage().write(0, content);
+        }
+    }
+
 }
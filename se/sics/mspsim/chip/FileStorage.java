@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -58,7 +59,7 @@ public class FileStorage implements Storage {
         this.filename = filename;
     }
 
-    private boolean ensureOpen(boolean write) throws IOException {
+    protected boolean ensureOpen(boolean write) throws IOException {
         if (fileChannel != null) {
             return true;
         }
@@ -101,7 +102,12 @@ public class FileStorage implements Storage {
             currentFilename = filename;
             file = new RandomAccessFile(filename, "rw");
             fileChannel = file.getChannel();
-            fileLock = fileChannel.tryLock();
+            try {
+                fileLock = fileChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // The file is already in use by another node in this JVM
+                fileLock = null;
+            }
             if (fileLock != null) {
                 // The file is now locked for use
 //                if (DEBUG) log("using flash file '" + filename + '\'');
@@ -116,6 +122,11 @@ public class FileStorage implements Storage {
         }
     }
 
+    /* The channel of the open storage file or null if not open yet */
+    protected FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
     public String getFilename() {
         return filename;
     }
@@ -43,7 +43,6 @@ package se.sics.mspsim.chip;
 import java.io.IOException;
 import se.sics.mspsim.core.*;
 import se.sics.mspsim.core.EmulationLogger.WarningType;
-import se.sics.mspsim.util.Utils;
 
 public class M25P80 extends ExternalFlash implements USARTListener, PortListener, Memory {
 
@@ -66,6 +65,15 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
   
   public static final int CHIP_SELECT = 0x10;
 
+  public static final int MODE_STANDBY = 0;
+  public static final int MODE_ACTIVE = 1;
+  public static final int MODE_WRITE = 2;
+  public static final int MODE_POWER_DOWN = 3;
+  public static final int MODE_MAX = MODE_POWER_DOWN;
+  private static final String[] MODE_NAMES = new String[] {
+    "standby", "active", "write", "power_down"
+  };
+
   private static final double PROGRAM_PAGE_MILLIS = 1.0; // 0.8 - 5 ms
   private static final double SECTOR_ERASE_MILLIS = 800; // 800 - 3 000 ms 
 
@@ -77,6 +85,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
 
   private boolean writeEnable = false;
   private boolean writing = false;
+  private boolean powerDown = false;
 
   private int[] identity = new int[] {
       0x20,0x20,0x14,0x10,
@@ -88,23 +97,43 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
   private int blockWriteAddress;
   private byte[] readMemory = new byte[256];
   private byte[] buffer = new byte[256];
+  /* the inverted page data written to the storage */
+  private byte[] writeMemory = new byte[256];
 
   private TimeEvent writeEvent = new TimeEvent(0, "M25P80 Writing") {
     public void execute(long t) {
       writing = false;
+      updateMode();
     }};
 
   protected M25P80(String id, MSP430Core cpu) {
       super(id, "External Flash", cpu);
+      setModeNames(MODE_NAMES);
   }
 
   public M25P80(MSP430Core cpu) {
       super("M25P80", "External Flash", cpu);
+      setModeNames(MODE_NAMES);
   }
 
   @Override
   public void notifyReset() {
     writing = false;
+    powerDown = false;
+    updateMode();
+  }
+
+  /* The operating mode follows the current draw of the chip */
+  private void updateMode() {
+    if (writing) {
+      setMode(MODE_WRITE);
+    } else if (chipSelect) {
+      setMode(MODE_ACTIVE);
+    } else if (powerDown) {
+      setMode(MODE_POWER_DOWN);
+    } else {
+      setMode(MODE_STANDBY);
+    }
   }
 
   public int getStatus() {
@@ -117,12 +146,12 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
   public void dataReceived(USARTSource source, int data) {
     if (chipSelect) {
       if (DEBUG) {
-        log("byte received: " + data);
+        log("byte received: %d", data);
       }
       switch(state) {
       case READ_STATUS:
           if (DEBUG) {
-            log("Read status => " + getStatus() + " from $" + Utils.hex(cpu.getPC(), 4));
+            log("Read status => %d from $%04x", getStatus(), cpu.getPC());
           }
           source.byteReceived(getStatus());
           return;
@@ -143,11 +172,11 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
           source.byteReceived(0);
           pos++;
           if (DEBUG && pos == 3) {
-            log("reading from $" + Integer.toHexString(readAddress));
+            log("reading from $%x", readAddress);
           }
         } else {
           source.byteReceived(readMemory(readAddress++));
-          if (readAddress > 0xfffff) {
+          if (readAddress >= getSize()) {
              readAddress = 0;
           }
         }
@@ -173,9 +202,9 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
             for (int i = 0; i < buffer.length; i++) {
               buffer[i] = (byte) 0xff;
             }
-            blockWriteAddress = readAddress & 0xfff00;
+            blockWriteAddress = readAddress & getPageMask();
             if (DEBUG) {
-              log("programming at $" + Integer.toHexString(readAddress));
+              log("programming at $%x", readAddress);
             }
           }
         } else {
@@ -186,7 +215,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
         return;
       }
       if (DEBUG) {
-        log("new command: " + data);
+        log("new command: %d", data);
       }
       switch (data) {
       case WRITE_ENABLE:
@@ -243,6 +272,18 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
       case BULK_ERASE:
         log("Bulk Erase");
         break;
+      case DEEP_POWER_DOWN:
+        if (DEBUG) {
+          log("Deep Power Down");
+        }
+        powerDown = true;
+        break;
+      case WAKE_UP:
+        if (DEBUG) {
+          log("Release from Deep Power Down");
+        }
+        powerDown = false;
+        break;
       }
       source.byteReceived(0);
     }
@@ -252,28 +293,14 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
    * Memory interface methods
    ***********************************************/
   public int readByte(int address) {
-    byte[] data = new byte[256];
-    try {
-      loadMemory(address, data);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    return ~data[address & 0xff];
+    ensureLoaded(address);
+    return ~readMemory[address & 0xff];
   }
   
   public void writeByte(int address, int data) {
-    byte[] mem = new byte[256];
-    try {
-      loadMemory(address, mem);
-      mem[address & 0xff] = (byte) ~data;
-      writeBack(address, mem);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    if (loadedAddress >= 0
-        && ((loadedAddress & 0xfff00) == (address & 0xfff00))) {
-      loadedAddress = -1;
-    }
+    ensureLoaded(address);
+    readMemory[address & 0xff] = (byte) ~data;
+    writeBack(address, readMemory);
   }
 
   @Override
@@ -284,7 +311,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
   // Should return correct data!
   private int readMemory(int address) {
     if (DEBUG) {
-      log("Reading memory address: " + Integer.toHexString(address));
+      log("Reading memory address: %x", address);
     }
     ensureLoaded(address);
     return readMemory[address & 0xff];
@@ -294,23 +321,28 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
     buffer[address] = (byte) data;
   }
 
+  /* Mask for the start address of the 256 byte page of an address */
+  private int getPageMask() {
+    return (getSize() - 1) & ~0xff;
+  }
+
   private void ensureLoaded(int address) {
-    if (loadedAddress < 0
-	|| ((loadedAddress & 0xfff00) != (address & 0xfff00))) {
+    int page = address & getPageMask();
+    if (loadedAddress != page) {
       try {
         if (DEBUG) {
-          log("Loading memory: " + (address & 0xfff00));
+          log("Loading memory: %d", page);
         }
-        loadMemory(address, readMemory);
+        loadMemory(page, readMemory);
       } catch (IOException e) {
         e.printStackTrace();
       }
-      loadedAddress = address & 0xfff00;
+      loadedAddress = page;
     }
   }
 
   private void loadMemory(int address, byte[] readMemory) throws IOException {
-    getStorage().read(address & 0xfff00, readMemory);
+    getStorage().read(address & getPageMask(), readMemory);
     for (int i = 0; i < readMemory.length; i++) {
       readMemory[i] = (byte) (~readMemory[i] & 0xff);
     }
@@ -331,6 +363,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
       }
     }
     chipSelect = (data & CHIP_SELECT) == 0;
+    updateMode();
 //    if (DEBUG) log("write to Port4: " +
 //		       Integer.toString(data, 16)
 //		       + " CS:" + chipSelect);
@@ -339,11 +372,12 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
 
   private void writeStatus(double time) {
       writing = true;
+      updateMode();
       cpu.scheduleTimeEventMillis(writeEvent, time);
   }
 
   private void programPage() {
-      if (writing) logw(WarningType.EXECUTION, "Can not set program page while already writing... from $" + Utils.hex(cpu.getPC(), 4));
+      if (writing) logw(WarningType.EXECUTION, "Can not set program page while already writing... from $%04x", cpu.getPC());
       writeStatus(PROGRAM_PAGE_MILLIS);
       ensureLoaded(blockWriteAddress);
       for (int i = 0; i < readMemory.length; i++) {
@@ -354,7 +388,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
 
   private void sectorErase(int address) {
     writeStatus(SECTOR_ERASE_MILLIS);
-    int sectorAddress = address & 0xf0000;
+    int sectorAddress = address & getPageMask() & ~0xffff;
     loadedAddress = -1;
     for (int i = 0; i < buffer.length; i++) {
       buffer[i] = (byte)0xff;
@@ -363,7 +397,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
     blockWriteAddress = sectorAddress;
     for (int i = 0; i < 0x100; i++) {
       if (DEBUG) {
-        log("erasing at $" + Integer.toHexString(blockWriteAddress));
+        log("erasing at $%x", blockWriteAddress);
       }
       writeBack(blockWriteAddress, buffer);
       blockWriteAddress += 0x100;
@@ -373,14 +407,14 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
 
   private void writeBack(int address, byte[] data) {
     try {
-      byte[] tmp = new byte[data.length];
+      byte[] tmp = writeMemory;
       if (DEBUG) {
-        log("Writing data to disk at $" + Integer.toHexString(address));
+        log("Writing data to disk at $%x", address);
       }
       for (int i = 0; i < data.length; i++) {
-        tmp[i] = (byte) (~data[i] & 0xff);
+        tmp[i] = (byte) ~data[i];
       }
-      getStorage().write(address & 0xfff00, tmp);
+      getStorage().write(address & getPageMask(), tmp);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -388,7 +422,7 @@ public class M25P80 extends ExternalFlash implements USARTListener, PortListener
 
   @Override
   public int getModeMax() {
-    return 0;
+    return MODE_MAX;
   }
 
   @Override
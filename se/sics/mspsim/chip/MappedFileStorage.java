@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2013, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ */
+package se.sics.mspsim.chip;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * File storage that maps the whole storage file into memory. Reads and
+ * writes are plain memory copies and the operating system writes the
+ * modified pages back to the file. Use flush() to force the written data
+ * to disk.
+ *
+ * The file is mapped with the maximal storage size so the maximal size
+ * must be set before the first access. Without a maximal size the
+ * storage falls back to normal file accesses.
+ */
+public class MappedFileStorage extends FileStorage {
+
+    private MappedByteBuffer buffer;
+
+    public MappedFileStorage() {
+        super();
+    }
+
+    public MappedFileStorage(String filename) {
+        super(filename);
+    }
+
+    private boolean ensureMapped(boolean write) throws IOException {
+        if (buffer != null) {
+            return true;
+        }
+        long size = getMaxSize();
+        if (size <= 0 || size > Integer.MAX_VALUE || !ensureOpen(write)) {
+            return false;
+        }
+        buffer = getFileChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return true;
+    }
+
+    @Override
+    public synchronized int read(long pos, byte[] b, int offset, int len) throws IOException {
+        if (buffer == null && !ensureMapped(false)) {
+            return super.read(pos, b, offset, len);
+        }
+        if (pos + len > buffer.capacity()) {
+            throw new IOException("outside storage");
+        }
+        buffer.position((int) pos);
+        buffer.get(b, offset, len);
+        return len;
+    }
+
+    @Override
+    public synchronized void write(long pos, byte[] b, int offset, int len) throws IOException {
+        if (buffer == null && !ensureMapped(true)) {
+            super.write(pos, b, offset, len);
+            return;
+        }
+        if (pos + len > buffer.capacity()) {
+            throw new IOException("outside storage");
+        }
+        buffer.position((int) pos);
+        buffer.put(b, offset, len);
+    }
+
+    /* Forces all written data to the storage file */
+    public synchronized void flush() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void setMaxSize(long size) {
+        flush();
+        /* mapped again with the new size on next access */
+        buffer = null;
+        super.setMaxSize(size);
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        buffer = null;
+        super.close();
+    }
+
+    @Override
+    public String info() {
+        return "Mapped" + super.info();
+    }
+}
@@ -63,7 +63,9 @@ public class MemoryStorage implements Storage {
             Arrays.fill(buffer, offset, offset + len, (byte)0);
         } else {
             int pos = (int) storagePos;
-            if (pos + len > data.length) {
+            if (pos >= data.length) {
+                Arrays.fill(buffer, offset, offset + len, (byte) 0);
+            } else if (pos + len > data.length) {
                 System.arraycopy(data, pos, buffer, offset, data.length - pos);
                 Arrays.fill(buffer, offset + data.length - pos, offset + len, (byte) 0);
             } else {
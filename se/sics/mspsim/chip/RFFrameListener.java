@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * RFFrameListener
+ */
+
+package se.sics.mspsim.chip;
+import se.sics.mspsim.util.ProxySupport;
+
+/**
+ * Frame level alternative to RFListener. A radio in frame mode that only
+ * has frame listeners may skip the per byte transmission events and report
+ * each frame once, see Radio802154.setFrameMode().
+ */
+public interface RFFrameListener {
+
+    /**
+     * A frame is being transmitted. Called when the length byte is sent,
+     * i.e. after the synchronization header. The last byte is sent
+     * (length - 1) byte periods later.
+     *
+     * @param source the transmitting radio
+     * @param data the PSDU - the length byte followed by the frame. Only
+     * valid during the call.
+     * @param length the number of bytes in data
+     */
+    public void transmittedFrame(Radio802154 source, byte[] data, int length);
+
+    public static class Proxy extends ProxySupport<RFFrameListener> implements RFFrameListener {
+        public static final Proxy INSTANCE = new Proxy();
+
+        @Override
+        public void transmittedFrame(Radio802154 source, byte[] data, int length) {
+            RFFrameListener[] listeners = this.listeners;
+            for(RFFrameListener listener : listeners) {
+                listener.transmittedFrame(source, data, length);
+            }
+        }
+
+    }
+
+}
@@ -30,6 +30,7 @@
 package se.sics.mspsim.chip;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.TimeEvent;
 
 /**
  * @author Niclas Finne
@@ -38,6 +39,25 @@ public abstract class Radio802154 extends Chip implements RFListener, RFSource {
 
     protected RFListener rfListener;
     protected ChannelListener channelListener;
+    protected RFFrameListener frameListener;
+
+    /* Air time of one byte at 250 kbps */
+    public static final double BYTE_PERIOD = 0.032;
+
+    private static final byte[] SHR = { 0, 0, 0, 0, 0x7A };
+
+    /* Frame being replayed byte by byte by the default receivedFrame() */
+    private byte[] replayData = new byte[128];
+    private int replayLength;
+    private int replayPos;
+    private TimeEvent replayEvent;
+
+    /* Frame level fast path, see setFrameMode() */
+    private boolean frameMode;
+
+    /* Frame counters - only updated by the emulation thread */
+    private long txFrames;
+    private long rxFrames;
 
     public Radio802154(String id, String name, MSP430Core cpu) {
         super(id, name, cpu);
@@ -71,6 +91,94 @@ public abstract class Radio802154 extends Chip implements RFListener, RFSource {
         rfListener = RFListener.Proxy.INSTANCE.remove(rfListener, rf);
     }
 
+    public synchronized void addRFFrameListener(RFFrameListener listener) {
+        frameListener = RFFrameListener.Proxy.INSTANCE.add(frameListener, listener);
+    }
+
+    public synchronized void removeRFFrameListener(RFFrameListener listener) {
+        frameListener = RFFrameListener.Proxy.INSTANCE.remove(frameListener, listener);
+    }
+
+    public boolean isFrameMode() {
+        return frameMode;
+    }
+
+    /**
+     * Enables the frame level fast path of radios that have one. In frame
+     * mode a radio without RFListeners reports each transmitted frame once
+     * to its RFFrameListeners instead of sending it byte by byte, and a
+     * frame given to receivedFrame() is received with events only for the
+     * bytes that change what the CPU can see. Disabled by default.
+     */
+    public void setFrameMode(boolean frameMode) {
+        this.frameMode = frameMode;
+    }
+
+    /* True if transmissions should be reported as whole frames */
+    protected boolean isFrameTransmission() {
+        return frameMode && rfListener == null;
+    }
+
+    /**
+     * Receives a whole frame from the radio medium. Called at the time the
+     * length byte is received and the following bytes are received one
+     * byte period apart, see RFFrameListener.
+     *
+     * The default implementation replays the synchronization header and
+     * the frame through receivedByte() with one event per byte. Radios
+     * having a frame level fast path override this and use it when frame
+     * mode is enabled.
+     */
+    public void receivedFrame(byte[] data, int length) {
+        if (replayPos < replayLength) {
+            /* still receiving the previous frame - finish it first */
+            while (replayPos < replayLength) {
+                receivedByte(replayData[replayPos++]);
+            }
+        }
+        if (replayData.length < length) {
+            replayData = new byte[length];
+        }
+        System.arraycopy(data, 0, replayData, 0, length);
+        replayLength = length;
+        replayPos = 0;
+        for (byte b : SHR) {
+            receivedByte(b);
+        }
+        if (replayEvent == null) {
+            replayEvent = new TimeEvent(0, getName() + " replay") {
+                public void execute(long t) {
+                    receivedByte(replayData[replayPos++]);
+                    if (replayPos < replayLength) {
+                        cpu.scheduleTimeEventMillis(this, BYTE_PERIOD);
+                    }
+                }
+            };
+        }
+        replayEvent.remove();
+        if (length > 0) {
+            replayEvent.execute(cpu.getTime());
+        }
+    }
+
+    /* Called by the radios when a frame has been completely sent */
+    protected void frameTransmitted() {
+        txFrames++;
+    }
+
+    /* Called by the radios when a frame has been completely received */
+    protected void frameReceived() {
+        rxFrames++;
+    }
+
+    public long getTransmittedFrames() {
+        return txFrames;
+    }
+
+    public long getReceivedFrames() {
+        return rxFrames;
+    }
+
     public synchronized void addChannelListener(ChannelListener listener) {
         channelListener = ChannelListener.Proxy.INSTANCE.add(channelListener, listener);
     }
@@ -45,7 +45,6 @@ import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.TimeEvent;
-import se.sics.mspsim.util.Utils;
 
 public class SHT11 extends Chip {
 
@@ -126,8 +125,7 @@ public class SHT11 extends Chip {
       crc = crc8Add(crc, readData);
       crc = crc8Add(crc, output[0]);
       crc = crc8Add(crc, output[1]);
-      if (DEBUG) log("CRC: " + Utils.hex8(crc) +
-          " rcrc: " + Utils.hex8(rev8bits(crc)));
+      if (DEBUG) log("CRC: %02x rcrc: %02x", crc & 0xff, rev8bits(crc) & 0xff);
       output[2] = rev8bits(crc);
       
       /* finished measuring - signal with LOW! */
@@ -193,7 +191,7 @@ public class SHT11 extends Chip {
         readData = (readData << 1) | (dataHi ? 1 : 0);
         bitCnt++;
         if (bitCnt == 8) {
-          if (DEBUG) log("read: " + Utils.hex8(readData));
+          if (DEBUG) log("read: %02x", readData & 0xff);
           bitCnt = 0;
           state = ACK_CMD;
           sdataPort.setPinState(sdataPin, IOPort.PinState.LOW);
@@ -221,7 +219,7 @@ public class SHT11 extends Chip {
         if (bitCnt == 8) {
           // All bits are written!
           state = ACK_WRITE;
-          if (DEBUG) log("Wrote byte: " + output[writePos]);
+          if (DEBUG) log("Wrote byte: %d", output[writePos]);
           writePos++;
         }
       }
@@ -33,6 +33,13 @@
  * Created : Mon Feb 11 2008
  */
 package se.sics.mspsim.cli;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import se.sics.mspsim.core.DbgInstruction;
 import se.sics.mspsim.core.DisAsm;
 import se.sics.mspsim.core.EmulationException;
@@ -47,12 +54,14 @@ import se.sics.mspsim.core.Memory.AccessType;
 import se.sics.mspsim.core.MemoryMonitor;
 import se.sics.mspsim.core.RegisterMonitor;
 import se.sics.mspsim.core.TimeEvent;
+import se.sics.mspsim.core.WatchPoint;
 import se.sics.mspsim.platform.GenericNode;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.GDBStubs;
 import se.sics.mspsim.util.MapEntry;
+import se.sics.mspsim.util.TraceRecorder;
 import se.sics.mspsim.util.Utils;
 
 public class DebugCommands implements CommandBundle {
@@ -72,14 +81,14 @@ public class DebugCommands implements CommandBundle {
       ch.registerCommand("break", new BasicAsyncCommand("add a breakpoint to a given address or symbol",
           "<address or symbol>") {
         private int address;
-        private MemoryMonitor monitor;
+        private WatchPoint breakpoint;
         public int executeCommand(final CommandContext context) {
           address = context.getArgumentAsAddress(0);
           if (address < 0) {
             context.err.println("unknown symbol: " + context.getArgument(0));
             return 1;
           }
-          monitor = new MemoryMonitor.Adapter() {
+          MemoryMonitor monitor = new MemoryMonitor.Adapter() {
               private long lastCycles = -1;
               @Override
               public void notifyReadBefore(int address, AccessMode mode, AccessType type) {
@@ -90,22 +99,25 @@ public class DebugCommands implements CommandBundle {
                   }
               }
           };
-          cpu.addWatchPoint(address, monitor);
+          breakpoint = cpu.addBreakpoint(address, monitor);
           context.err.println("Breakpoint set at $" + cpu.getAddressAsString(address));
           return 0;
         }
         public void stopCommand(CommandContext context) {
-          cpu.removeWatchPoint(address, monitor);
+          cpu.removeWatchPoint(breakpoint);
         }
       });
 
       ch.registerCommand("watch",
-          new BasicAsyncCommand("add a write/read watch to a given address or symbol", "<address or symbol> [length] [char | hex | break]") {
+          new BasicAsyncCommand("add a write/read watch to a given address or symbol",
+              "<address or symbol> [length] [char | hex | break] [read | write] [==value | !=value]") {
         int mode = 0;
         int address = 0;
         int length = 1;
-        MemoryMonitor monitor;
+        WatchPoint watchPoint;
         public int executeCommand(final CommandContext context) {
+          int types = WatchPoint.ALL;
+          WatchPoint.Condition condition = null;
           address = context.getArgumentAsAddress(0);
           if (address < 0) {
             context.err.println("unknown symbol: " + context.getArgument(0));
@@ -122,6 +134,20 @@ public class DebugCommands implements CommandBundle {
                       mode = 10;
                   } else if ("hex".equals(modeStr)) {
                       mode = Utils.HEX; // 2
+                  } else if ("read".equals(modeStr)) {
+                      types = WatchPoint.READ;
+                  } else if ("write".equals(modeStr)) {
+                      types = WatchPoint.WRITE;
+                  } else if (modeStr.startsWith("==") || modeStr.startsWith("!=")) {
+                      try {
+                          condition = new ValueCondition(Integer.decode(modeStr.substring(2)), modeStr.charAt(0) == '=');
+                      } catch (NumberFormatException e) {
+                          context.err.println("illegal value: " + modeStr);
+                          return -1;
+                      }
+                  } else {
+                      context.err.println("unknown watch option: " + modeStr);
+                      return -1;
                   }
               }
           }
@@ -129,7 +155,7 @@ public class DebugCommands implements CommandBundle {
               context.err.println("please specify a length of at least one byte");
               return -1;
           }
-          monitor = new MemoryMonitor.Adapter() {
+          MemoryMonitor monitor = new MemoryMonitor.Adapter() {
               private void cpuAction(AccessType type, int adr, int data) {
                   if (mode == 0 || mode == 10) {
                       int pc = cpu.getPC();
@@ -169,9 +195,8 @@ public class DebugCommands implements CommandBundle {
             }
           };
 
-          for (int i = 0; i < length; i++) {
-              cpu.addWatchPoint(address + i, monitor);
-          }
+          watchPoint = new WatchPoint(address, length, types, monitor, condition);
+          cpu.addWatchPoint(watchPoint);
           if (length > 1) {
               context.err.println("Watch set at $" + cpu.getAddressAsString(address) + " - $" + cpu.getAddressAsString(address + length - 1));
           } else {
@@ -181,9 +206,7 @@ public class DebugCommands implements CommandBundle {
         }
 
         public void stopCommand(CommandContext context) {
-            for (int i = 0; i < length; i++) {
-                cpu.removeWatchPoint(address + i, monitor);
-            }
+            cpu.removeWatchPoint(watchPoint);
             context.exit(0);
         }
       });
@@ -239,9 +262,27 @@ public class DebugCommands implements CommandBundle {
 //        }
 //      });
 
-      ch.registerCommand("symbol", new BasicCommand("list matching symbols", "<regexp>") {
+      ch.registerCommand("symbol", new BasicCommand("list matching symbols or the symbol at an address", "<regexp or $address>") {
         public int executeCommand(final CommandContext context) {
           String regExp = context.getArgument(0);
+          if (regExp.startsWith("$") || Character.isDigit(regExp.charAt(0))) {
+            int address = context.getArgumentAsAddress(0);
+            MapEntry entry = context.getMapTable().findEntry(address);
+            String function = context.getMapTable().getFunctionLocation(address);
+            if (entry == null && function == null) {
+              context.err.println("No symbol found at $" + cpu.getAddressAsString(address));
+              return 1;
+            }
+            if (entry != null) {
+              context.out.println(" $" + cpu.getAddressAsString(address) + " is "
+                  + entry.getName() + (address == entry.getAddress() ? "" : "+" + (address - entry.getAddress()))
+                  + " " + entry.getType() + " in file " + (entry.getFile() == null ? "(unspecified)" : entry.getFile()));
+            }
+            if (function != null && (entry == null || entry.getType() != MapEntry.TYPE.function)) {
+              context.out.println(" $" + cpu.getAddressAsString(address) + " is in function " + function);
+            }
+            return 0;
+          }
           MapEntry[] entries = context.getMapTable().getEntries(regExp);
           if (entries.length == 0) {
               context.err.println("Could not find any symbols matching '" + regExp + '\'');
@@ -284,6 +325,10 @@ public class DebugCommands implements CommandBundle {
           if (di != null) {
             di.getLine();
             context.out.println(di);
+          } else if (context.getMapTable() != null
+              && context.getMapTable().getFunctionEntry(adr) != null) {
+            context.out.println("No line number found, in function "
+                + context.getMapTable().getFunctionLocation(adr));
           } else {
             context.err.println("No line number found for: " + context.getArgument(0));
           }
@@ -375,9 +420,9 @@ public class DebugCommands implements CommandBundle {
           public int executeCommand(CommandContext context) {
             int adr = context.getArgumentAsAddress(0);
             if (adr >= 0) {
-              int value = cpu.memory[adr];
+              int value = cpu.peek(adr);
               if (adr >= 0x100 && adr + 1 < cpu.MAX_MEM) {
-                  value |= cpu.memory[adr + 1] << 8;
+                  value |= cpu.peek(adr + 1) << 8;
               }
               context.out.println(context.getArgument(0) + " = $" + Utils.hex16(value));
               return 0;
@@ -419,6 +464,60 @@ public class DebugCommands implements CommandBundle {
           }
         });
 
+        ch.registerCommand("savestate", new BasicCommand("save the emulation state to a file", "<filename>") {
+          public int executeCommand(CommandContext context) {
+            if (cpu.isRunning()) {
+              context.err.println("Can not save state when emulation is running.");
+              return 1;
+            }
+            String filename = context.getArgument(0);
+            try {
+              OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+              try {
+                if (node != null) {
+                  node.saveState(out);
+                } else {
+                  cpu.saveState(out);
+                }
+              } finally {
+                out.close();
+              }
+            } catch (IOException e) {
+              context.err.println("Failed to save state to '" + filename + "': " + e.getMessage());
+              return 1;
+            }
+            context.out.println("State saved at " + cpu.cycles + " cycles");
+            return 0;
+          }
+        });
+
+        ch.registerCommand("loadstate", new BasicCommand("restore the emulation state from a file", "<filename>") {
+          public int executeCommand(CommandContext context) {
+            if (cpu.isRunning()) {
+              context.err.println("Can not load state when emulation is running.");
+              return 1;
+            }
+            String filename = context.getArgument(0);
+            try {
+              InputStream in = new BufferedInputStream(new FileInputStream(filename));
+              try {
+                if (node != null) {
+                  node.loadState(in);
+                } else {
+                  cpu.loadState(in);
+                }
+              } finally {
+                in.close();
+              }
+            } catch (IOException e) {
+              context.err.println("Failed to load state from '" + filename + "': " + e.getMessage());
+              return 1;
+            }
+            context.out.println("State restored at " + cpu.cycles + " cycles");
+            return 0;
+          }
+        });
+
         ch.registerCommand("time", new BasicCommand("print the elapse time and cycles", "") {
           public int executeCommand(CommandContext context) {
             long time = (long)cpu.getTimeMillis();
@@ -472,7 +571,7 @@ public class DebugCommands implements CommandBundle {
             DisAsm disAsm = cpu.getDisAsm();
             for (int i = 0; i < count; i++) {
                 if (mode == Utils.DIS_ASM) {
-                    DbgInstruction dbg = disAsm.disassemble(start, cpu.memory, cpu.reg, new DbgInstruction(),
+                    DbgInstruction dbg = disAsm.disassemble(start, cpu, cpu.reg, new DbgInstruction(),
                             0);
                     String fkn;
                     if ((fkn = dbg.getFunction()) != null) {
@@ -482,9 +581,9 @@ public class DebugCommands implements CommandBundle {
                     start += dbg.getSize();
                 } else {
                     int data = 0;
-                    data = cpu.memory[start++];
+                    data = cpu.peek(start++);
                     if (Utils.size(type) == 2) {
-                        data = data  + (cpu.memory[start++] << 8);
+                        data = data  + (cpu.peek(start++) << 8);
                     }
                     context.out.print((mode != Utils.ASCII ? " " : "") + 
                             Utils.toString(data, type, mode));
@@ -691,11 +790,45 @@ public class DebugCommands implements CommandBundle {
             }
         });
 
-        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.", "[trace size | show]") {
+        ch.registerCommand("trace", new BasicCommand("store a trace of execution positions.",
+                "[trace size | show | record <file> | stop]") {
             @Override
             public int executeCommand(CommandContext context) {
                 if (context.getArgumentCount() > 0) {
-                    if ("show".equals(context.getArgument(0))) {
+                    if ("record".equals(context.getArgument(0))) {
+                        if (context.getArgumentCount() < 2) {
+                            context.err.println("please specify a trace file");
+                            return 1;
+                        }
+                        if (cpu.getTraceRecorder() != null) {
+                            context.err.println("already recording to " + cpu.getTraceRecorder().getFile());
+                            return 1;
+                        }
+                        try {
+                            cpu.setTraceRecorder(new TraceRecorder(context.getArgument(1)));
+                        } catch (IOException e) {
+                            context.err.println("could not create trace file: " + e.getMessage());
+                            return 1;
+                        }
+                        context.out.println("Recording execution trace to " + context.getArgument(1));
+                        return 0;
+                    } else if ("stop".equals(context.getArgument(0))) {
+                        final TraceRecorder recorder = cpu.getTraceRecorder();
+                        if (recorder == null) {
+                            context.err.println("no trace is being recorded");
+                            return 1;
+                        }
+                        if (!cpu.isRunning()) {
+                            return stopRecording(cpu, context, recorder);
+                        }
+                        /* The recorder is in use by the emulation thread - detach it there */
+                        final CommandContext ctx = context;
+                        cpu.scheduleCycleEvent(new TimeEvent(0, "TraceStop") {
+                            @Override public void execute(long t) {
+                                stopRecording(cpu, ctx, recorder);
+                            }}, cpu.cycles);
+                        return 0;
+                    } else if ("show".equals(context.getArgument(0))) {
                         int size = cpu.getTraceSize();
                         if (size > 0) {
                             DisAsm disAsm = cpu.getDisAsm();
@@ -731,6 +864,24 @@ public class DebugCommands implements CommandBundle {
     }
   }
 
+  /* Detaches the trace recorder from the CPU and closes it */
+  private static int stopRecording(MSP430 cpu, CommandContext context, TraceRecorder recorder) {
+    if (cpu.getTraceRecorder() != recorder) {
+      /* Already stopped by an earlier request */
+      return 1;
+    }
+    cpu.setTraceRecorder(null);
+    try {
+      recorder.close();
+    } catch (IOException e) {
+      context.err.println("failed to write trace: " + e.getMessage());
+      return 1;
+    }
+    context.out.println("Recorded " + recorder.getRecordCount() + " records ("
+        + recorder.getFileSize() + " bytes) to " + recorder.getFile());
+    return 0;
+  }
+
   private static String getSymOrAddr(MSP430 cpu, CommandContext context, int adr) {
     MapEntry me = context.getMapTable().getEntry(adr);
     if (me != null) {
@@ -753,4 +904,23 @@ public class DebugCommands implements CommandBundle {
     }
     return "R" + register;
   }
+
+  /* Matches accesses that read or write (or not) the specified value */
+  private static class ValueCondition implements WatchPoint.Condition {
+    private final int value;
+    private final boolean equal;
+
+    ValueCondition(int value, boolean equal) {
+      this.value = value;
+      this.equal = equal;
+    }
+
+    public boolean matches(int address, int data, AccessMode mode, AccessType type) {
+      return ((data & mode.mask) == (value & mode.mask)) == equal;
+    }
+
+    public String toString() {
+      return (equal ? "== 0x" : "!= 0x") + Integer.toHexString(value);
+    }
+  }
 }
@@ -50,6 +50,7 @@ import java.util.regex.Pattern;
 import se.sics.mspsim.chip.RFListener;
 import se.sics.mspsim.chip.RFSource;
 import se.sics.mspsim.core.Chip;
+import se.sics.mspsim.core.ExecutionPacer;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.MSP430Constants;
 import se.sics.mspsim.core.TimeEvent;
@@ -132,25 +133,31 @@ public class MiscCommands implements CommandBundle {
       }
     });
 
-    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU", "[factor]") {
+    handler.registerCommand("speed", new BasicCommand("set the speed factor for the CPU",
+        "[max|realtime|factor]") {
       public int executeCommand(CommandContext context) {
         MSP430 cpu = registry.getComponent(MSP430.class);
         if (cpu == null) {
           context.err.println("could not access the CPU.");
           return 1;
-        } else if (context.getArgumentCount() == 0) {
+        }
+        ExecutionPacer pacer = cpu.getPacer();
+        if (context.getArgumentCount() == 0) {
           /* No speed specified. Simply show current speed. */
+        } else if ("max".equals(context.getArgument(0))) {
+          pacer.setMode(ExecutionPacer.Mode.MAX_SPEED);
+        } else if ("realtime".equals(context.getArgument(0))) {
+          pacer.setMode(ExecutionPacer.Mode.REAL_TIME);
         } else {
           double rate = context.getArgumentAsDouble(0);
           if (rate > 0.0) {
-            cpu.setExecutionRate(rate);
+            pacer.setMode(ExecutionPacer.Mode.SCALED, rate);
           } else {
             context.err.println("Speed factor must be larger than zero.");
             return 1;
           }
         }
-        double rate = cpu.getExecutionRate();
-        context.out.printf("Speed factor is set to %.2f\n", rate);
+        context.out.println(pacer.info().trim());
         return 0;
       }
     });
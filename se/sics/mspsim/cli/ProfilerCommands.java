@@ -39,9 +39,14 @@
  */
 
 package se.sics.mspsim.cli;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Properties;
 
 import se.sics.mspsim.core.Chip;
+import se.sics.mspsim.core.Coverage;
 import se.sics.mspsim.core.EventListener;
 import se.sics.mspsim.core.EventSource;
 import se.sics.mspsim.core.MSP430;
@@ -50,6 +55,8 @@ import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.ui.CPUHeatMap;
 import se.sics.mspsim.ui.WindowManager;
 import se.sics.mspsim.util.ComponentRegistry;
+import se.sics.mspsim.util.CoverageReport;
+import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.StackMonitor;
 
 /**
@@ -61,7 +68,7 @@ public class ProfilerCommands implements CommandBundle {
     final MSP430 cpu = registry.getComponent(MSP430.class);
     if (cpu != null) {
       ch.registerCommand("profile", new BasicCommand("show profile information",
-          "[-clear] [-sort column] [-showcallers] [regexp]") {
+          "[-clear] [-sort column] [-showcallers] [-sample cycles] [-stacks] [-pprof file] [regexp]") {
         public int executeCommand(final CommandContext context) {
           Profiler profiler = cpu.getProfiler();
           if (profiler == null) {
@@ -89,6 +96,52 @@ public class ProfilerCommands implements CommandBundle {
               }
             } else if ("-showcallers".equals(value)) {
               showCaller = value;
+            } else if ("-sample".equals(value) || "-stacks".equals(value)
+                || "-pprof".equals(value)) {
+              if (!(profiler instanceof SimpleProfiler)) {
+                context.err.println("The profiler does not support call stacks.");
+                return 1;
+              }
+              SimpleProfiler sp = (SimpleProfiler) profiler;
+              if ("-stacks".equals(value)) {
+                sp.printStacks(context.out);
+                return 0;
+              }
+              if ("-pprof".equals(value)) {
+                if (context.getArgumentCount() <= i + 1) {
+                  context.err.println("Missing file argument for -pprof.");
+                  return 1;
+                }
+                String filename = context.getArgument(i + 1);
+                try {
+                  OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+                  try {
+                    sp.writePprof(out);
+                  } finally {
+                    out.close();
+                  }
+                } catch (IOException e) {
+                  context.err.println("Failed to write profile to '" + filename + "': " + e.getMessage());
+                  return 1;
+                }
+                context.out.println("Wrote " + sp.getCallTree().getNodeCount() + " call stacks to " + filename);
+                return 0;
+              }
+              if (context.getArgumentCount() <= i + 1) {
+                context.err.println("Missing cycles argument for -sample.");
+                return 1;
+              }
+              int period = context.getArgumentAsInt(i + 1, -1);
+              if (period < 0) {
+                return 1;
+              }
+              sp.setSamplePeriod(period);
+              if (period == 0) {
+                context.out.println("Profiling all calls.");
+              } else {
+                context.out.println("Sampling call stacks every " + period + " cycles.");
+              }
+              return 0;
             } else if ("--".equals(value)) {
                 /* Done with arguments */
                 break;
@@ -139,6 +192,51 @@ public class ProfilerCommands implements CommandBundle {
         }
       });
 
+      ch.registerCommand("coverage", new BasicCommand("control execution coverage",
+          "[on | off | clear | info | lcov [testname] | json]") {
+        public int executeCommand(CommandContext context) {
+          String cmd = context.getArgumentCount() > 0 ? context.getArgument(0) : "info";
+          if ("on".equals(cmd)) {
+            cpu.setCoverageEnabled(true);
+            return 0;
+          }
+          if (cpu.isRunning()) {
+            /* The counters are updated by the emulation thread */
+            context.err.println("Can not access coverage when emulation is running (use 'stop').");
+            return 1;
+          }
+          if ("off".equals(cmd)) {
+            cpu.setCoverageEnabled(false);
+            return 0;
+          }
+          Coverage coverage = cpu.getCoverage();
+          if (coverage == null) {
+            context.err.println("Coverage is not enabled (use 'coverage on').");
+            return 1;
+          }
+          if ("clear".equals(cmd)) {
+            coverage.clear();
+          } else if ("info".equals(cmd)) {
+            context.out.println(coverage.info());
+          } else if ("lcov".equals(cmd) || "json".equals(cmd)) {
+            ELF elf = registry.getComponent(ELF.class);
+            if (elf == null || elf.getDebug() == null) {
+              context.err.println("No debug information available - source lines are not reported.");
+            }
+            CoverageReport report = new CoverageReport(coverage, elf, context.getMapTable());
+            if ("lcov".equals(cmd)) {
+              report.writeLcov(context.out, context.getArgumentCount() > 1 ? context.getArgument(1) : null);
+            } else {
+              report.writeJSON(context.out);
+            }
+          } else {
+            context.err.println("Unknown coverage command: " + cmd);
+            return 1;
+          }
+          return 0;
+        }
+      });
+
       ch.registerCommand("stackprof", new BasicCommand("Start stack profiler", "") {
           public int executeCommand(CommandContext context) {
               new StackMonitor(cpu);
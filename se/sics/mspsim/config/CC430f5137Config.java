@@ -115,12 +115,12 @@ public class CC430f5137Config extends MSP430Config {
 
     public int setup(MSP430Core cpu, ArrayList<IOUnit> ioUnits) {
     
-        Multiplier32 mp = new Multiplier32(cpu, cpu.memory, 0x4c0);
+        Multiplier32 mp = new Multiplier32(cpu, cpu.ioMemory, 0x4c0);
         cpu.setIORange(0x4c0, 0x2e, mp);
 
         /* this code should be slightly more generic... and be somewhere else... */
         for (int i = 0, n = uartConfig.length; i < n; i++) {
-            GenericUSCI usci = new GenericUSCI(cpu, i, cpu.memory, this);
+            GenericUSCI usci = new GenericUSCI(cpu, i, cpu.ioMemory, this);
             /* setup 0 - 1f as IO addresses */
             cpu.setIORange(uartConfig[i].offset, 0x20, usci);
 //            System.out.println("Adding IOUnit USCI: " + usci.getName());
@@ -135,19 +135,19 @@ public class CC430f5137Config extends MSP430Config {
         }
 
 		/* XXX: Stub IO units: Sysreg and PMM */
-		SysReg sysreg = new SysReg(cpu, cpu.memory);
+		SysReg sysreg = new SysReg(cpu, cpu.ioMemory);
 		cpu.setIORange(SysReg.ADDRESS, SysReg.SIZE, sysreg);
 		ioUnits.add(sysreg);
 
-        PMMDummy pmmDummy = new PMMDummy(cpu, cpu.memory, 0x110);
+        PMMDummy pmmDummy = new PMMDummy(cpu, cpu.ioMemory, 0x110);
         cpu.setIORange(0x110, PMMDummy.SIZE, pmmDummy);
         ioUnits.add(pmmDummy);
         
-		PMM pmm = new PMM(cpu, cpu.memory, 0x120);
+		PMM pmm = new PMM(cpu, cpu.ioMemory, 0x120);
 		cpu.setIORange(0x120, PMM.SIZE, pmm);
 		ioUnits.add(pmm);
 
-		RF1A rf1a = new RF1A(cpu, cpu.memory);
+		RF1A rf1a = new RF1A(cpu, cpu.ioMemory);
 		cpu.setIORange(RF1A.ADDRESS, RF1A.SIZE, rf1a);
 		ioUnits.add(rf1a);
 
@@ -139,7 +139,7 @@ public class ADC12 extends IOUnit {
 
   
   public ADC12(MSP430Core cpu) {
-    super("ADC12", cpu, cpu.memory, 0);
+    super("ADC12", cpu, cpu.ioMemory, 0);
   }
 
   public void reset(int type) {
@@ -200,7 +200,7 @@ public class ADC12Plus extends IOUnit {
 	private boolean ref25V = false;
 
 	public ADC12Plus(MSP430Core cpu, int offset, int intVector) {
-		super("ADC12Plus", cpu, cpu.memory, offset);
+		super("ADC12Plus", cpu, cpu.ioMemory, offset);
 		adc12Vector = intVector;
 	}
 
@@ -32,6 +32,10 @@
  */
 package se.sics.mspsim.core;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -121,7 +125,7 @@ public class AES128 extends IOUnit {
 	 * @param offset
 	 */
 	public AES128(MSP430Core cpu, int offset) {
-		super("CRC", cpu, cpu.memory, offset);
+		super("CRC", cpu, cpu.ioMemory, offset);
 	}
 
 	/**
@@ -353,6 +357,16 @@ public class AES128 extends IOUnit {
 		}
 	}
 
+	@Override
+	protected void log(String format, long arg) {
+		log(format, new Object[] { arg });
+	}
+
+	@Override
+	protected void log(String format, long arg1, long arg2) {
+		log(format, new Object[] { arg1, arg2 });
+	}
+
 	/**
 	 * The registers are written
 	 */
@@ -504,4 +518,20 @@ public class AES128 extends IOUnit {
 			readyInterruptFlag = false;
 		}
 	}
+
+	@Override
+	public void writeState(DataOutputStream out) throws IOException {
+		super.writeState(out);
+		cpu.writeFieldState(key, Object.class, out);
+		cpu.writeFieldState(inData, Object.class, out);
+		cpu.writeFieldState(outData, Object.class, out);
+	}
+
+	@Override
+	public void readState(DataInputStream in) throws IOException {
+		super.readState(in);
+		cpu.readFieldState(key, Object.class, in);
+		cpu.readFieldState(inData, Object.class, in);
+		cpu.readFieldState(outData, Object.class, in);
+	}
 }
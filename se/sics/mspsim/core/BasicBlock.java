@@ -0,0 +1,85 @@
+package se.sics.mspsim.core;
+
+/**
+ * A straight-line sequence of instructions that is entered at the first
+ * instruction and only left after the last one (or earlier when an
+ * interrupt, LPM or a stop request interferes). Blocks are recorded by
+ * the Coverage collector and kept in the InstructionCache.
+ */
+public class BasicBlock {
+
+    /* Maximum number of instructions in a block */
+    static final int MAX_LENGTH = 64;
+
+    /* address of the first instruction */
+    public final int start;
+    /* address of each instruction in the block */
+    final int[] pcs;
+
+    boolean valid = true;
+    /* number of times the block was entered and not yet moved to the coverage counters */
+    long executions;
+
+    BasicBlock(int start, int[] pcs) {
+        this.start = start;
+        this.pcs = pcs;
+    }
+
+    public int getLength() {
+        return pcs.length;
+    }
+
+    public int getAddress(int index) {
+        return pcs[index];
+    }
+
+    public long getExecutions() {
+        return executions;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns true if the instruction may change the program flow or the
+     * CPU state in a way that must be handled by the dispatcher, i.e. all
+     * jumps, calls, returns and any instruction having PC or SR as the
+     * destination register. Such an instruction always ends a block.
+     */
+    static boolean isBlockEnd(int instruction) {
+        switch (instruction >> 12) {
+        case 0:
+            /* MSP430X address instructions - only register destinations */
+            int dst = instruction & 0xf;
+            switch (instruction & 0xf0) {
+            case MSP430Constants.MOVA_REG2ABS:
+            case MSP430Constants.MOVA_REG2INDX:
+                return false;
+            }
+            return dst == MSP430Constants.PC || dst == MSP430Constants.SR;
+        case 1:
+            int op = instruction & 0xff80;
+            if (op == MSP430Constants.PUSH) {
+                return false;
+            }
+            if (op == MSP430Constants.RRC || op == MSP430Constants.SWPB
+                    || op == MSP430Constants.RRA || op == MSP430Constants.SXT) {
+                /* register mode on PC or SR */
+                int reg = instruction & 0xf;
+                return ((instruction >> 4) & 3) == MSP430Constants.AM_REG
+                        && (reg == MSP430Constants.PC || reg == MSP430Constants.SR);
+            }
+            /* CALL, RETI, CALLA, PUSHM and POPM */
+            return true;
+        case 2:
+        case 3:
+            return true;
+        default:
+            /* double operand - register destination PC or SR */
+            int dstReg = instruction & 0xf;
+            return ((instruction >> 7) & 1) == 0
+                    && (dstReg == MSP430Constants.PC || dstReg == MSP430Constants.SR);
+        }
+    }
+}
@@ -32,6 +32,10 @@
  */
 package se.sics.mspsim.core;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 
 /**
  * CRC16 module for the MSP430
@@ -77,7 +81,7 @@ public class CRC16 extends IOUnit {
 	 *           Address offset, by default is 0x0150
 	 */
 	public CRC16(MSP430Core cpu, int offset) {
-		super("CRC16", cpu, cpu.memory, offset);
+		super("CRC16", cpu, cpu.ioMemory, offset);
 		setLogLevel(Loggable.DEBUG);
 	}
 
@@ -247,4 +251,16 @@ public class CRC16 extends IOUnit {
 
 	public void interruptServiced(int vector) {
 	}
+
+	@Override
+	public void writeState(DataOutputStream out) throws IOException {
+		super.writeState(out);
+		cpu.writeFieldState(crc, Object.class, out);
+	}
+
+	@Override
+	public void readState(DataInputStream in) throws IOException {
+		super.readState(in);
+		cpu.readFieldState(crc, Object.class, in);
+	}
 }
@@ -35,8 +35,13 @@
  * Created : 17 jan 2008
  */
 package se.sics.mspsim.core;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.ArrayUtils;
+import se.sics.mspsim.util.StateSnapshot;
 
 /**
  * @author Joakim Eriksson, SICS
@@ -45,7 +50,7 @@ import se.sics.mspsim.util.ArrayUtils;
  * LPM1,2,3 / ON is OperatingModes as well as Transmitting, Listening and Off.
  * State can be things such as search for SFD (which is in mode Listen for CC2420).
  */
-public abstract class Chip implements Loggable, EventSource {
+public abstract class Chip implements Loggable, EventSource, StateSnapshot.Stateful {
 
   protected final String id;
   protected final String name;
@@ -58,8 +63,8 @@ public abstract class Chip implements Loggable, EventSource {
   private EventListener eventListener;
   protected boolean sendEvents = false;
   private String[] modeNames = null;
-  private int mode;
-  private int chipState;
+  int mode;
+  int chipState;
   protected EmulationLogger logger;
   protected boolean DEBUG = true;
   protected int logLevel;
@@ -212,6 +217,24 @@ public abstract class Chip implements Loggable, EventSource {
     return "* no info";
   }
 
+  /**
+   * Saves the state of the chip in a snapshot. The default saves the
+   * operating mode and state, the primitive and enum fields declared by
+   * the chip class and the time events it holds. Chips with state in
+   * other objects, such as FIFOs, also override this and readState.
+   */
+  public void writeState(DataOutputStream out) throws IOException {
+    out.writeInt(mode);
+    out.writeInt(chipState);
+    cpu.writeFieldState(this, Chip.class, out);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+    mode = in.readInt();
+    chipState = in.readInt();
+    cpu.readFieldState(this, Chip.class, in);
+  }
+
   public int getLogLevel() {
       return logLevel;
   }
@@ -225,9 +248,33 @@ public abstract class Chip implements Loggable, EventSource {
       logger.log(this, msg);
   }
 
+  protected void log(String format, long arg) {
+      log(format, arg, 0);
+  }
+
+  protected void log(String format, long arg1, long arg2) {
+      if (logger instanceof FormattingEmulationLogger) {
+          ((FormattingEmulationLogger) logger).log(this, format, arg1, arg2);
+      } else {
+          logger.log(this, String.format(format, arg1, arg2));
+      }
+  }
+
   /* warn about anything above severe - but what types are severe? */
   protected void logw(WarningType type, String msg) {
       logger.logw(this, type, msg);
   }
 
+  protected void logw(WarningType type, String format, long arg) {
+      logw(type, format, arg, 0);
+  }
+
+  protected void logw(WarningType type, String format, long arg1, long arg2) {
+      if (logger instanceof FormattingEmulationLogger) {
+          ((FormattingEmulationLogger) logger).logw(this, type, format, arg1, arg2);
+      } else {
+          logger.logw(this, type, String.format(format, arg1, arg2));
+      }
+  }
+
 }
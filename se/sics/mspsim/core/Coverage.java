@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * Coverage
+ */
+
+package se.sics.mspsim.core;
+
+/**
+ * Execution coverage collector.
+ *
+ * Executed code is counted per basic block. The first time straight-line
+ * code runs it is counted per instruction and recorded as a BasicBlock in
+ * the instruction cache. After that the block is counted once when it is
+ * entered (BasicBlock.executions), and each following instruction is only
+ * compared with the next address of the block. If the block is left early
+ * the instructions that did not run are taken back. The block counts are
+ * spread to the instructions of the block when the counts are read or the
+ * block is dropped from the instruction cache. Counters are kept in lazily
+ * allocated 256 byte pages so only pages with executed code take memory.
+ *
+ * The collector is disabled by default and enabled with
+ * MSP430Core.setCoverageEnabled().
+ *
+ * The counters are updated by the emulation thread without locking, so
+ * the counts may only be read or cleared while the CPU is stopped or from
+ * the emulation thread itself (for example in a TimeEvent).
+ */
+public class Coverage {
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int ENTRIES_PER_PAGE = Memory.SEGMENT_SIZE >> 1;
+
+    private final MSP430Core cpu;
+    private final InstructionCache instructionCache;
+    private final long[][] counts;
+
+    /* The block being executed, already counted, and the index of its next instruction */
+    private BasicBlock block;
+    private int next;
+
+    /* The block being recorded and the address of its next instruction */
+    private final int[] recordPCs = new int[BasicBlock.MAX_LENGTH];
+    private int recordCount;
+    private int recordNext;
+
+    Coverage(MSP430Core cpu, int maxMem, InstructionCache instructionCache) {
+        this.cpu = cpu;
+        this.instructionCache = instructionCache;
+        this.counts = new long[maxMem >> PAGE_SHIFT][];
+    }
+
+    /* Called by the interpreter after each executed instruction */
+    final void executed(int pc) {
+        BasicBlock b = block;
+        if (b != null) {
+            if (b.pcs[next] == pc) {
+                if (++next == b.pcs.length) {
+                    block = null;
+                }
+                return;
+            }
+            leaveBlock(b);
+        }
+        b = instructionCache.getBlock(pc);
+        if (b != null) {
+            if (recordCount > 0 && pc == recordNext) {
+                /* the recorded code falls through into the block */
+                storeRecorded();
+            }
+            recordCount = 0;
+            b.executions++;
+            if (b.pcs.length > 1) {
+                block = b;
+                next = 1;
+            }
+            return;
+        }
+        add(pc, 1);
+        record(pc);
+    }
+
+    /* Takes back the instructions of the current block that did not run */
+    private void leaveBlock(BasicBlock b) {
+        block = null;
+        int[] pcs = b.pcs;
+        for (int i = next; i < pcs.length; i++) {
+            add(pcs[i], -1);
+        }
+    }
+
+    private void record(int pc) {
+        if (instructionCache.lookup(pc) == 0) {
+            /* only code in the instruction cache is dropped when written */
+            recordCount = 0;
+            return;
+        }
+        if (recordCount > 0 && pc != recordNext) {
+            recordCount = 0;
+        }
+        recordPCs[recordCount++] = pc;
+        int nextPC = cpu.reg[MSP430Constants.PC];
+        if (BasicBlock.isBlockEnd(cpu.instruction) || recordCount == BasicBlock.MAX_LENGTH
+                || (nextPC >> PAGE_SHIFT) != (recordPCs[0] >> PAGE_SHIFT)) {
+            storeRecorded();
+        } else {
+            recordNext = nextPC;
+        }
+    }
+
+    private void storeRecorded() {
+        int[] pcs = new int[recordCount];
+        System.arraycopy(recordPCs, 0, pcs, 0, recordCount);
+        instructionCache.storeBlock(new BasicBlock(pcs[0], pcs));
+        recordCount = 0;
+    }
+
+    private void add(int pc, long executions) {
+        long[] page = counts[pc >> PAGE_SHIFT];
+        if (page == null) {
+            counts[pc >> PAGE_SHIFT] = page = new long[ENTRIES_PER_PAGE];
+        }
+        page[(pc & 0xff) >> 1] += executions;
+    }
+
+    /* Moves the block executions to the instruction counters */
+    final void addBlock(BasicBlock block) {
+        long executions = block.executions;
+        if (executions != 0) {
+            block.executions -= executions;
+            for (int pc : block.pcs) {
+                add(pc, executions);
+            }
+        }
+    }
+
+    private void flush() {
+        if (block != null) {
+            /* the rest of the block is counted per instruction when it runs */
+            leaveBlock(block);
+        }
+        for (BasicBlock block : instructionCache.getBlocks()) {
+            addBlock(block);
+        }
+    }
+
+    /* Returns the number of times the instruction at the address was executed */
+    public synchronized long getCount(int address) {
+        flush();
+        long[] page = counts[address >> PAGE_SHIFT];
+        return page == null ? 0 : page[(address & 0xff) >> 1];
+    }
+
+    /**
+     * Returns the execution counts of all instructions in the address
+     * range start to end - 1, indexed by (address - start) / 2.
+     */
+    public synchronized long[] getCounts(int start, int end) {
+        flush();
+        long[] result = new long[(end - start + 1) >> 1];
+        for (int a = start & ~1; a < end; a += 2) {
+            long[] page = counts[a >> PAGE_SHIFT];
+            if (page != null) {
+                result[(a - start) >> 1] = page[(a & 0xff) >> 1];
+            }
+        }
+        return result;
+    }
+
+    /* Returns the addresses of all instructions that have been executed */
+    public synchronized int[] getExecutedAddresses() {
+        flush();
+        int n = 0;
+        for (long[] page : counts) {
+            if (page != null) {
+                for (long c : page) {
+                    if (c != 0) {
+                        n++;
+                    }
+                }
+            }
+        }
+        int[] addresses = new int[n];
+        n = 0;
+        for (int p = 0; p < counts.length; p++) {
+            long[] page = counts[p];
+            if (page != null) {
+                for (int i = 0; i < page.length; i++) {
+                    if (page[i] != 0) {
+                        addresses[n++] = (p << PAGE_SHIFT) + (i << 1);
+                    }
+                }
+            }
+        }
+        return addresses;
+    }
+
+    public synchronized void clear() {
+        block = null;
+        recordCount = 0;
+        for (BasicBlock block : instructionCache.getBlocks()) {
+            block.executions = 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = null;
+        }
+    }
+
+    public String info() {
+        return " Coverage: " + getExecutedAddresses().length + " instructions executed";
+    }
+}
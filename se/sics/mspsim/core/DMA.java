@@ -1,5 +1,9 @@
 package se.sics.mspsim.core;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 
@@ -259,4 +263,39 @@ public class DMA extends IOUnit {
         return sb.toString();
     }
 
+    /* The triggers are saved as the index in the trigger table */
+    private int getTriggerNumber(Channel c) {
+        for (int i = 0; i < dmaTrigger.length; i++) {
+            if (dmaTrigger[i] == c.trigger && dmaTriggerIndex[i] == c.triggerIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        for (Channel c : channels) {
+            cpu.writeFieldState(c, Object.class, out);
+            out.writeInt(c.trigger == null ? -1 : getTriggerNumber(c));
+        }
+        if (interruptMultiplexer != null) {
+            interruptMultiplexer.writeState(out);
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        for (Channel c : channels) {
+            cpu.readFieldState(c, Object.class, in);
+            int trigger = in.readInt();
+            c.trigger = trigger < 0 ? null : dmaTrigger[trigger];
+        }
+        if (interruptMultiplexer != null) {
+            interruptMultiplexer.readState(in);
+        }
+    }
+
 }
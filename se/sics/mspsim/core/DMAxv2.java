@@ -9,6 +9,9 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.util.Utils;
 import se.sics.mspsim.profiler.SimpleProfiler;
 import java.util.Scanner;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 
 public class DMAxv2 extends IOUnit {
 
@@ -464,4 +467,41 @@ public class DMAxv2 extends IOUnit {
         return sb.toString();
     }
 
+    /* The triggers are saved as the index in the trigger table */
+    private int getTriggerNumber(Channel c) {
+        for (int i = 0; i < dmaTrigger.length; i++) {
+            if (dmaTrigger[i] == c.trigger && dmaTriggerIndex[i] == c.triggerIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        for (Channel c : channels) {
+            cpu.writeFieldState(c, Object.class, out);
+            out.writeInt(c.sourceAddress);
+            out.writeInt(c.destinationAddress);
+            out.writeInt(c.currentSourceAddress);
+            out.writeInt(c.currentDestinationAddress);
+            out.writeInt(c.trigger == null ? -1 : getTriggerNumber(c));
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        for (Channel c : channels) {
+            cpu.readFieldState(c, Object.class, in);
+            c.sourceAddress = in.readInt();
+            c.destinationAddress = in.readInt();
+            c.currentSourceAddress = in.readInt();
+            c.currentDestinationAddress = in.readInt();
+            int trigger = in.readInt();
+            c.trigger = trigger < 0 ? null : dmaTrigger[trigger];
+        }
+    }
+
 }
@@ -42,10 +42,25 @@
 package se.sics.mspsim.core;
 
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
 
+/**
+ * Priority queue of time events implemented as an indexed binary heap.
+ *
+ * Each scheduled event knows its position in the heap which makes both
+ * rescheduling and removal O(log n) instead of a linear search. Events
+ * with the same time are executed in the order of the old linked list
+ * implementation, i.e. the most recently scheduled event first, so that
+ * emulation results do not depend on the queue implementation.
+ */
 public class EventQueue {
 
-  private TimeEvent first;
+  private static final int INITIAL_SIZE = 16;
+
+  private TimeEvent[] heap = new TimeEvent[INITIAL_SIZE];
+  private long sequence;
+
   public long nextTime;
   public int eventCount = 0;
 
@@ -53,6 +68,17 @@ public class EventQueue {
   }
 
   public void addEvent(TimeEvent event, long time) {
+    if (event.scheduledIn == this) {
+      /* Already in this queue - just move it to the new position */
+      event.time = time;
+      event.sequence = ++sequence;
+      int index = event.heapIndex;
+      if (!siftUp(index)) {
+        siftDown(index);
+      }
+      nextTime = heap[0].time;
+      return;
+    }
     event.time = time;
     addEvent(event);
   }
@@ -61,111 +87,161 @@ public class EventQueue {
     if (event.scheduledIn != null) {
       event.remove();
     }
-    if (first == null) {
-      first = event;
-    } else {
-      TimeEvent pos = first;
-      TimeEvent lastPos = first;
-      while (pos != null && pos.time < event.time) {
-        lastPos = pos;
-        pos = pos.nextEvent;
-      }
-      // Here pos will be the first TE after event
-      // and lastPos the first before
-      if (pos == first) {
-        // Before all other
-        event.nextEvent = pos;
-        first = event;
-      } else {
-        event.nextEvent = pos;
-        lastPos.nextEvent = event;
-      }
-    }
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
+    if (eventCount == heap.length) {
+      heap = Arrays.copyOf(heap, eventCount * 2);
     }
+    event.sequence = ++sequence;
     event.scheduledIn = this;
+    heap[eventCount] = event;
+    event.heapIndex = eventCount;
     eventCount++;
+    siftUp(eventCount - 1);
+    nextTime = heap[0].time;
   }
 
-  // Not yet impl.
   public boolean removeEvent(TimeEvent event) {
-    TimeEvent pos = first;
-    TimeEvent lastPos = first;
-//  System.out.println("Removing: " + event.getShort() + "  Before remove: ");
-//  print();
-    while (pos != null && pos != event) {
-      lastPos = pos;
-      pos = pos.nextEvent;
+    if (event.scheduledIn != this) {
+      return false;
     }
-    if (pos == null) return false;
-    // pos == event!
-    if (pos == first) {
-      // remove it from first pos.
-      first = pos.nextEvent;
-    } else {
-      // else link prev to next...
-      lastPos.nextEvent = pos.nextEvent;
-    }
-    // unlink
-    pos.nextEvent = null;
-
-    if (first != null) {
-      nextTime = first.time;
-    } else {
-      nextTime = 0;
+    int index = event.heapIndex;
+    TimeEvent last = heap[--eventCount];
+    heap[eventCount] = null;
+    if (index < eventCount) {
+      heap[index] = last;
+      last.heapIndex = index;
+      if (!siftUp(index)) {
+        siftDown(index);
+      }
     }
-//  System.out.println("Removed =>");
-//  print();
+    event.heapIndex = -1;
     event.scheduledIn = null;
-    eventCount--;
+    nextTime = eventCount > 0 ? heap[0].time : 0;
     return true;
   }
 
   public TimeEvent popFirst() {
-    TimeEvent tmp = first;
-    if (tmp != null) {
-      first = tmp.nextEvent;
-      // Unlink.
-      tmp.nextEvent = null;
-
-      // No longer scheduled!
-      tmp.scheduledIn = null;
-
-      eventCount--;
+    if (eventCount == 0) {
+      nextTime = 0;
+      return null;
     }
-
-    if (first != null) {
-      nextTime = first.time;
+    TimeEvent tmp = heap[0];
+    TimeEvent last = heap[--eventCount];
+    heap[eventCount] = null;
+    if (eventCount > 0) {
+      heap[0] = last;
+      last.heapIndex = 0;
+      siftDown(0);
+      nextTime = heap[0].time;
     } else {
       nextTime = 0;
     }
+    // No longer scheduled!
+    tmp.heapIndex = -1;
+    tmp.scheduledIn = null;
     return tmp;
   }
 
   public void removeAll() {
-    TimeEvent t = first;
-    while(t != null) {
-      TimeEvent clr = t;
-      t = t.nextEvent;
-      clr.nextEvent = null;
+    for (int i = 0; i < eventCount; i++) {
+      TimeEvent clr = heap[i];
+      heap[i] = null;
+      clr.heapIndex = -1;
       clr.time = 0;
       clr.scheduledIn = null;
     }
-    first = null;
     eventCount = 0;
   }
-  
+
+  /* The sequence number of the last scheduled event, saved in state snapshots */
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Removes all events before the events of a state snapshot are restored
+   * with restoreEvent, and continues the sequence numbers of the snapshot.
+   */
+  void clear(long sequence) {
+    removeAll();
+    this.sequence = sequence;
+    nextTime = 0;
+  }
+
+  /* Schedules an event at the time and with the sequence number it had when saved */
+  void restoreEvent(TimeEvent event, long time, long sequence) {
+    if (event.scheduledIn != null) {
+      event.remove();
+    }
+    if (eventCount == heap.length) {
+      heap = Arrays.copyOf(heap, eventCount * 2);
+    }
+    event.time = time;
+    event.sequence = sequence;
+    event.scheduledIn = this;
+    heap[eventCount] = event;
+    event.heapIndex = eventCount;
+    eventCount++;
+    siftUp(eventCount - 1);
+    nextTime = heap[0].time;
+  }
+
+  /* Returns true if a should be executed before b */
+  private static boolean before(TimeEvent a, TimeEvent b) {
+    return a.time < b.time || (a.time == b.time && a.sequence > b.sequence);
+  }
+
+  private boolean siftUp(int index) {
+    TimeEvent event = heap[index];
+    int start = index;
+    while (index > 0) {
+      int parent = (index - 1) >> 1;
+      TimeEvent p = heap[parent];
+      if (!before(event, p)) {
+        break;
+      }
+      heap[index] = p;
+      p.heapIndex = index;
+      index = parent;
+    }
+    heap[index] = event;
+    event.heapIndex = index;
+    return index != start;
+  }
+
+  private void siftDown(int index) {
+    TimeEvent event = heap[index];
+    int half = eventCount >> 1;
+    while (index < half) {
+      int child = (index << 1) + 1;
+      TimeEvent c = heap[child];
+      int right = child + 1;
+      if (right < eventCount && before(heap[right], c)) {
+        child = right;
+        c = heap[child];
+      }
+      if (!before(c, event)) {
+        break;
+      }
+      heap[index] = c;
+      c.heapIndex = index;
+      index = child;
+    }
+    heap[index] = event;
+    event.heapIndex = index;
+  }
+
   public void print(PrintStream out) {
-    TimeEvent t = first;
+    TimeEvent[] events = Arrays.copyOf(heap, eventCount);
+    Arrays.sort(events, new Comparator<TimeEvent>() {
+      public int compare(TimeEvent a, TimeEvent b) {
+        return before(a, b) ? -1 : (before(b, a) ? 1 : 0);
+      }
+    });
     out.print("nxt: " + nextTime + " [");
-    while(t != null) {
-      out.print(t.getShort());
-      t = t.nextEvent;
-      if (t != null) out.print(", ");
+    for (int i = 0; i < events.length; i++) {
+      if (i > 0) out.print(", ");
+      out.print(events[i].getShort());
     }
     out.println("]");
   }
-} // LLEventQueue
+} // EventQueue
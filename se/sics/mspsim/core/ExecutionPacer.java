@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * ExecutionPacer
+ */
+
+package se.sics.mspsim.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the emulation against the wall clock.
+ *
+ * The pacer keeps an anchor - a wall clock time and the simulated time at
+ * that moment - and the CPU loop calls pace() about once per simulated
+ * millisecond and after each LPM jump. The target wall clock time is
+ * always computed from the anchor so oversleeping in one period is made
+ * up for in the following ones instead of adding up to a drift. When the
+ * emulation falls more than MAX_LAG behind, for example after a debugger
+ * pause or a GC, the pacer gives up on catching up and moves the anchor
+ * instead of running at full speed until the lost time is recovered.
+ *
+ * The achieved rate, simulated time per wall clock time, is measured
+ * over periods of about one second in all modes.
+ */
+public class ExecutionPacer {
+
+    public enum Mode {
+        /* no pacing - run as fast as possible */
+        MAX_SPEED,
+        /* simulated time follows the wall clock */
+        REAL_TIME,
+        /* simulated time runs a specified factor faster than the wall clock */
+        SCALED
+    }
+
+    /* Maximal lag before the pacer moves the anchor, in nanoseconds */
+    public static final long MAX_LAG = 200000000L;
+
+    /* Period of the achieved rate measurement in nanoseconds */
+    private static final long RATE_PERIOD = 1000000000L;
+
+    private final MSP430Core cpu;
+
+    private volatile Mode mode;
+    private volatile double factor;
+    private volatile boolean reanchor = true;
+
+    private long anchorWallTime;
+    private long anchorSimTime;
+    private volatile long lag;
+    private volatile long slips;
+
+    private long rateWallTime;
+    private long rateSimTime;
+    private volatile double achievedRate;
+
+    private volatile Thread parked;
+
+    public ExecutionPacer(MSP430Core cpu, Mode mode, double factor) {
+        this.cpu = cpu;
+        setMode(mode, factor);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        setMode(mode, mode == Mode.SCALED ? factor : 1.0);
+    }
+
+    /**
+     * Sets the pacing mode. The factor is only used in the SCALED mode
+     * and must be larger than zero.
+     */
+    public synchronized void setMode(Mode mode, double factor) {
+        if (mode == Mode.SCALED && !(factor > 0.0)) {
+            throw new IllegalArgumentException("speed factor must be larger than zero");
+        }
+        this.mode = mode;
+        this.factor = mode == Mode.REAL_TIME ? 1.0 : factor;
+        this.reanchor = true;
+        wakeup();
+    }
+
+    /* Returns the target rate or infinity when running at max speed */
+    public double getTargetRate() {
+        return mode == Mode.MAX_SPEED ? Double.POSITIVE_INFINITY : factor;
+    }
+
+    public double getFactor() {
+        return factor;
+    }
+
+    /* Returns the measured simulated time per wall clock time */
+    public double getAchievedRate() {
+        return achievedRate;
+    }
+
+    /* Returns how far the emulation was behind the target at the last check */
+    public double getLagMillis() {
+        return lag / 1000000.0;
+    }
+
+    /* Returns the number of times the pacer gave up catching up */
+    public long getSlipCount() {
+        return slips;
+    }
+
+    /* Starts pacing from the current time, called when the CPU is started */
+    public void start() {
+        reanchor = true;
+        rateWallTime = 0;
+    }
+
+    /* Interrupts an ongoing wait, for example when the CPU is stopped */
+    public void wakeup() {
+        Thread t = parked;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Waits until the wall clock has caught up with the simulated time.
+     * Returns early when wakeup() is called. Must only be called by the
+     * thread running the CPU.
+     */
+    public void pace() {
+        long now = System.nanoTime();
+        long simTime = (long) (cpu.getTimeMillis() * 1000000.0);
+
+        if (rateWallTime == 0) {
+            rateWallTime = now;
+            rateSimTime = simTime;
+        } else if (now - rateWallTime >= RATE_PERIOD) {
+            achievedRate = (double) (simTime - rateSimTime) / (now - rateWallTime);
+            rateWallTime = now;
+            rateSimTime = simTime;
+        }
+
+        Mode mode = this.mode;
+        if (mode == Mode.MAX_SPEED) {
+            lag = 0;
+            return;
+        }
+        if (reanchor) {
+            reanchor = false;
+            anchorWallTime = now;
+            anchorSimTime = simTime;
+            lag = 0;
+            return;
+        }
+
+        long target = anchorWallTime + (long) ((simTime - anchorSimTime) / factor);
+        long wait = target - now;
+        if (wait <= 0) {
+            lag = -wait;
+            if (lag > MAX_LAG) {
+                /* too far behind - continue from here */
+                slips++;
+                anchorWallTime = now;
+                anchorSimTime = simTime;
+            }
+            return;
+        }
+        lag = 0;
+        parked = Thread.currentThread();
+        try {
+            while (wait > 0 && !reanchor) {
+                LockSupport.parkNanos(this, wait);
+                if (cpu.isStopping) {
+                    break;
+                }
+                wait = target - System.nanoTime();
+            }
+        } finally {
+            parked = null;
+        }
+    }
+
+    public String info() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(" Pacing: ");
+        switch (mode) {
+        case MAX_SPEED:
+            sb.append("max speed");
+            break;
+        case REAL_TIME:
+            sb.append("real-time");
+            break;
+        default:
+            sb.append(String.format("%.2fx real-time", factor));
+            break;
+        }
+        sb.append(String.format(", achieved %.3fx", achievedRate));
+        if (mode != Mode.MAX_SPEED) {
+            sb.append(String.format(", lag %.2f ms, %d slips", getLagMillis(), slips));
+        }
+        return sb.toString();
+    }
+}
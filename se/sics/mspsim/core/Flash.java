@@ -36,8 +36,6 @@
  */
 package se.sics.mspsim.core;
 
-import java.util.Arrays;
-
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.Memory.AccessMode;
 import se.sics.mspsim.util.Utils;
@@ -185,8 +183,12 @@ public class Flash extends IOUnit {
     this.info_range = info_range;
     locked = true;
 
-    Arrays.fill(memory, main_range.start, main_range.end, 0xff);
-    Arrays.fill(memory, info_range.start, info_range.end, 0xff);
+    for (int i = main_range.start; i < main_range.end; i++) {
+      cpu.poke(i, 0xff);
+    }
+    for (int i = info_range.start; i < info_range.end; i++) {
+      cpu.poke(i, 0xff);
+    }
 
     reset(MSP430.RESET_POR);
   }
@@ -293,8 +295,9 @@ public class Flash extends IOUnit {
 	    Utils.hex(area_end, 4));
       }
       for (int i = area_start; i < area_end; i++) {
-	memory[i] = 0xff;
+	cpu.poke(i, 0xff);
       }
+      cpu.instructionCache.invalidate(area_start, area_end - area_start);
       waitFlashProcess(SEGMENT_ERASE_TIME);
       break;
       
@@ -303,18 +306,20 @@ public class Flash extends IOUnit {
 	return;
       }
       for (int i = main_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	cpu.poke(i, 0xff);
       }
+      cpu.instructionCache.invalidate(main_range.start, main_range.end - main_range.start);
       waitFlashProcess(MASS_ERASE_TIME);
       break;
       
     case ERASE_ALL:
       for (int i = main_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	cpu.poke(i, 0xff);
       }
       for (int i = info_range.start; i < main_range.end; i++) {
-	memory[i] = 0xff;
+	cpu.poke(i, 0xff);
       }
+      cpu.instructionCache.invalidateAll();
       waitFlashProcess(MASS_ERASE_TIME);
       break;
     case WRITE_SINGLE:
@@ -338,15 +343,16 @@ public class Flash extends IOUnit {
         wait_time = WRITE_TIME;
       }
       /* Flash memory allows clearing bits only */
-      memory[address] &= data & 0xff;
+      clearBits(address, data & 0xff);
       if (dataMode != AccessMode.BYTE) {
-          memory[address + 1] &= (data >> 8) & 0xff;
+          clearBits(address + 1, (data >> 8) & 0xff);
           if (dataMode == AccessMode.WORD20) {
               /* TODO should the write really write the full word? CHECK THIS */
-              memory[address + 2] &= (data >> 16) & 0xff;
-              memory[address + 3] &= (data >> 24) & 0xff;
+              clearBits(address + 2, (data >> 16) & 0xff);
+              clearBits(address + 3, (data >> 24) & 0xff);
           }
       }
+      cpu.instructionCache.invalidate(address, dataMode.bytes);
       if (DEBUG) {
         log("Writing $" + Utils.hex20(data) + " to $" + Utils.hex(address, 4) + " (" + dataMode.bytes + " bytes)");
       }
@@ -355,6 +361,10 @@ public class Flash extends IOUnit {
     }
   }
   
+  private void clearBits(int address, int value) {
+    cpu.poke(address, cpu.peek(address) & value);
+  }
+
   public void notifyRead(int address) {
     if (cpu.isFlashBusy) {
       triggerAccessViolation("Flash read not allowed while BUSY flag set");
@@ -0,0 +1,13 @@
+package se.sics.mspsim.core;
+
+/* An emulation logger that formats messages only when they are used.
+ * Chip and IOUnit format the message before logging it when the logger
+ * does not implement this interface. */
+public interface FormattingEmulationLogger extends EmulationLogger {
+
+  /* The message is given as a String.format format with two arguments and is
+   * only formatted when it is used. Frequent messages should use these. */
+  public void log(Loggable source, String format, long arg1, long arg2);
+  public void logw(Loggable source, WarningType type, String format, long arg1, long arg2) throws EmulationException;
+
+}
@@ -1,5 +1,8 @@
 package se.sics.mspsim.core;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayDeque;
 
 import se.sics.mspsim.chip.I2CUnit.I2CData;
@@ -207,7 +210,7 @@ public class GenericUSCI extends IOUnit implements DMAxv2Trigger, USARTSource {
             if (isIEBitsSet(TXIFG)) {
                 log(" flagging on transmit interrupt");
             }
-            log(" Ready to transmit next AT: " + cycles);
+            log(" Ready to transmit next AT: %d", cycles);
         }
     }
 
@@ -391,7 +394,7 @@ public class GenericUSCI extends IOUnit implements DMAxv2Trigger, USARTSource {
             // and error status should also be cleared later...
             // is this cleared also on the MSP430x5xx series???
             if (MSP430Constants.DEBUGGING_LEVEL > 0) {
-                log(" clearing rx interrupt flag " + cpu.getPC() + " byte: " + tmp);
+                log(" clearing rx interrupt flag %d byte: %d", cpu.getPC(), tmp);
             }
             clrBitIFG(RXIFG);
             /* This should be changed to a state rather than an "event" */
@@ -518,4 +521,22 @@ public class GenericUSCI extends IOUnit implements DMAxv2Trigger, USARTSource {
     	}
     }
 
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        super.writeState(out);
+        out.writeInt(txBuffer.size());
+        for (Integer data : txBuffer) {
+            out.writeInt(data);
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        super.readState(in);
+        txBuffer.clear();
+        for (int i = in.readInt(); i > 0; i--) {
+            txBuffer.add(in.readInt());
+        }
+    }
+
 }
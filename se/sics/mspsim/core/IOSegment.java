@@ -1,5 +1,6 @@
 package se.sics.mspsim.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import se.sics.mspsim.util.Utils;
 
@@ -32,6 +33,15 @@ public class IOSegment implements Memory {
         }
     }
 
+    /* Adds the IO units mapped in this segment that are not in the list, in address order */
+    void addIOUnits(ArrayList<IOUnit> units) {
+        for (IOUnit io : mem) {
+            if (io != voidIO && !units.contains(io)) {
+                units.add(io);
+            }
+        }
+    }
+
     @Override
     public int read(int address, AccessMode mode, AccessType type) throws EmulationException {
         boolean word = mode != AccessMode.BYTE;
@@ -54,6 +64,19 @@ public class IOSegment implements Memory {
         }
     }
 
+    /*
+     * Returns the value last stored by the IO units without calling them,
+     * i.e. without any side effects.
+     */
+    int peek(int address, AccessMode mode) {
+        int[] memory = core.ioMemory;
+        int val = 0;
+        for (int i = 0; i < mode.bytes && address + i < memory.length; i++) {
+            val |= (memory[address + i] & 0xff) << (i * 8);
+        }
+        return val & mode.mask;
+    }
+
     @Override
     public int get(int address, AccessMode mode) {
         return read(address, mode, AccessType.READ);
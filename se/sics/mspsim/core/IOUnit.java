@@ -36,9 +36,14 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationLogger.WarningType;
+import se.sics.mspsim.util.StateSnapshot;
 
-public abstract class IOUnit implements InterruptHandler, Loggable {
+public abstract class IOUnit implements InterruptHandler, Loggable, StateSnapshot.Stateful {
 
   protected final MSP430Core cpu;
   protected final int[] memory;
@@ -126,11 +131,51 @@ public abstract class IOUnit implements InterruptHandler, Loggable {
       logger.log(this, msg);
   }
 
+  protected void log(String format, long arg) {
+      log(format, arg, 0);
+  }
+
+  protected void log(String format, long arg1, long arg2) {
+      if (logger instanceof FormattingEmulationLogger) {
+          ((FormattingEmulationLogger) logger).log(this, format, arg1, arg2);
+      } else {
+          logger.log(this, String.format(format, arg1, arg2));
+      }
+  }
+
   protected void logw(WarningType type, String msg) {
       logger.logw(this, type, msg);
   }
 
+  protected void logw(WarningType type, String format, long arg) {
+      logw(type, format, arg, 0);
+  }
+
+  protected void logw(WarningType type, String format, long arg1, long arg2) {
+      if (logger instanceof FormattingEmulationLogger) {
+          ((FormattingEmulationLogger) logger).logw(this, type, format, arg1, arg2);
+      } else {
+          logger.logw(this, type, String.format(format, arg1, arg2));
+      }
+  }
+
   public String info() {
       return "* no info";
   }
+
+  /**
+   * Saves the state of the IO unit in a snapshot. The default saves the
+   * primitive and enum fields declared by the IO unit class and the time
+   * events it holds. Registers kept in the shared IO memory are saved by
+   * the CPU.
+   */
+  public void writeState(DataOutputStream out) throws IOException {
+      out.writeInt(ioState);
+      cpu.writeFieldState(this, IOUnit.class, out);
+  }
+
+  public void readState(DataInputStream in) throws IOException {
+      ioState = in.readInt();
+      cpu.readFieldState(this, IOUnit.class, in);
+  }
 }
@@ -0,0 +1,216 @@
+package se.sics.mspsim.core;
+
+/**
+ * Cache of fetched instruction words keyed by PC.
+ *
+ * Each entry holds the opcode word, an optional MSP430X extension word and
+ * the number of bytes fetched so that emulateOP can skip the EXECUTE reads
+ * for code that has already been executed once. This is a fetch cache, not
+ * a decode cache: the operation, registers, addressing modes and cycle
+ * costs are decoded from the opcode word by executeInstruction on every
+ * execution, and index, absolute and immediate operand words are read
+ * through readMemory so that they see the current memory contents and
+ * watchpoints. The cache is bypassed while the flash controller is busy
+ * since every fetch from flash must then reach the flash controller.
+ * Entries are stored in lazily allocated 256 byte pages, which keeps the
+ * invalidation check on data writes down to a single null test for pages
+ * that never contained any executed code.
+ *
+ * The cache also holds the basic blocks of the executed code. A block
+ * never crosses a page so dropping the blocks of the pages touched
+ * by a write is enough to keep them consistent with memory.
+ */
+public class InstructionCache {
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int ENTRIES_PER_PAGE = Memory.SEGMENT_SIZE >> 1;
+
+    private static final long VALID = 1L << 40;
+
+    private final long[][] pages;
+    private final BasicBlock[][] blocks;
+    private final boolean[] cacheable;
+    /* Collects the executions of dropped blocks when coverage is enabled */
+    Coverage coverage;
+
+    InstructionCache(int maxMem) {
+        pages = new long[maxMem >> PAGE_SHIFT][];
+        blocks = new BasicBlock[maxMem >> PAGE_SHIFT][];
+        cacheable = new boolean[maxMem >> PAGE_SHIFT];
+    }
+
+    /* Only pages backed directly by RAM or flash may be cached */
+    void setCacheable(int page, boolean enabled) {
+        cacheable[page] = enabled;
+        if (!enabled) {
+            pages[page] = null;
+            dropBlocks(page);
+        }
+    }
+
+    boolean isCacheable(int address) {
+        return cacheable[address >> PAGE_SHIFT];
+    }
+
+    /**
+     * Returns the cached entry for the specified address or 0 if the address
+     * has not been fetched yet.
+     */
+    final long lookup(int address) {
+        long[] page = pages[address >> PAGE_SHIFT];
+        if (page == null) {
+            return 0;
+        }
+        return page[(address & 0xff) >> 1];
+    }
+
+    final void store(int address, int instruction, int extWord, int size) {
+        int p = address >> PAGE_SHIFT;
+        long[] page = pages[p];
+        if (page == null) {
+            if (!cacheable[p]) {
+                return;
+            }
+            pages[p] = page = new long[ENTRIES_PER_PAGE];
+        }
+        page[(address & 0xff) >> 1] = VALID | ((long) size << 32)
+            | ((extWord & 0xffffL) << 16) | (instruction & 0xffff);
+    }
+
+    final BasicBlock getBlock(int address) {
+        BasicBlock[] page = blocks[address >> PAGE_SHIFT];
+        if (page == null) {
+            return null;
+        }
+        return page[(address & 0xff) >> 1];
+    }
+
+    final void storeBlock(BasicBlock block) {
+        int p = block.start >> PAGE_SHIFT;
+        BasicBlock[] page = blocks[p];
+        if (page == null) {
+            if (!cacheable[p]) {
+                return;
+            }
+            blocks[p] = page = new BasicBlock[ENTRIES_PER_PAGE];
+        }
+        page[(block.start & 0xff) >> 1] = block;
+    }
+
+    private void dropBlocks(int p) {
+        BasicBlock[] page = blocks[p];
+        if (page != null) {
+            blocks[p] = null;
+            /* a block might be executing right now */
+            Coverage c = coverage;
+            for (BasicBlock block : page) {
+                if (block != null) {
+                    block.valid = false;
+                    if (c != null) {
+                        c.addBlock(block);
+                    }
+                }
+            }
+        }
+    }
+
+    /* Returns all blocks that are currently cached */
+    public BasicBlock[] getBlocks() {
+        int count = 0;
+        for (BasicBlock[] page : blocks) {
+            if (page != null) {
+                for (BasicBlock block : page) {
+                    if (block != null) {
+                        count++;
+                    }
+                }
+            }
+        }
+        BasicBlock[] result = new BasicBlock[count];
+        count = 0;
+        for (BasicBlock[] page : blocks) {
+            if (page != null) {
+                for (BasicBlock block : page) {
+                    if (block != null) {
+                        result[count++] = block;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    static int getInstruction(long entry) {
+        return (int) (entry & 0xffff);
+    }
+
+    static int getExtWord(long entry) {
+        return (int) ((entry >> 16) & 0xffff);
+    }
+
+    static int getSize(long entry) {
+        return (int) ((entry >> 32) & 0xff);
+    }
+
+    /**
+     * Drops all entries that could contain any of the bytes in the
+     * range address to address + bytes - 1. An entry may span an
+     * extension word and the opcode word, so the entry two bytes
+     * before the range is dropped as well.
+     */
+    final void invalidate(int address, int bytes) {
+        int start = (address - 2) & ~1;
+        int end = address + bytes;
+        if (start < 0) {
+            start = 0;
+        }
+        int lastPage = -1;
+        for (int a = start; a < end; a += 2) {
+            int p = a >> PAGE_SHIFT;
+            if (p >= pages.length) {
+                break;
+            }
+            long[] page = pages[p];
+            if (page != null) {
+                page[(a & 0xff) >> 1] = 0;
+            }
+            if (p != lastPage) {
+                dropBlocks(p);
+                lastPage = p;
+            }
+        }
+    }
+
+    /**
+     * Called for data writes. Only does the invalidation when code has been
+     * fetched from any of the touched pages, which keeps stack and variable
+     * writes cheap.
+     */
+    final void notifyWrite(int address, int bytes) {
+        int p = address >> PAGE_SHIFT;
+        int q = (address + bytes - 1) >> PAGE_SHIFT;
+        if (pages[p] != null
+            || (p > 0 && (address & 0xff) < 2 && pages[p - 1] != null)
+            || (q != p && q < pages.length && pages[q] != null)) {
+            invalidate(address, bytes);
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0, n = pages.length; i < n; i++) {
+            pages[i] = null;
+            dropBlocks(i);
+        }
+    }
+
+    public String info() {
+        int allocated = 0;
+        for (long[] page : pages) {
+            if (page != null) {
+                allocated++;
+            }
+        }
+        return " Instruction cache: " + allocated + " of " + pages.length + " pages cached, "
+            + getBlocks().length + " basic blocks";
+    }
+}
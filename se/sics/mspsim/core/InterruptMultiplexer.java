@@ -1,6 +1,12 @@
 package se.sics.mspsim.core;
 
-public class InterruptMultiplexer implements InterruptHandler {
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import se.sics.mspsim.util.StateSnapshot;
+
+public class InterruptMultiplexer implements InterruptHandler, StateSnapshot.Stateful {
 
     private final MSP430Core cpu;
     private final int vector;
@@ -30,4 +36,17 @@ public class InterruptMultiplexer implements InterruptHandler {
         return "InterruptMultiplexer vector " + vector +  " bits: " + interruptBits;
     }
 
+    /* Saved by the owner as the CPU only restores the interrupts of IO units and chips */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(interruptBits);
+        out.writeBoolean(cpu.interruptSource[vector] == this);
+    }
+
+    public void readState(DataInputStream in) throws IOException {
+        interruptBits = in.readInt();
+        if (in.readBoolean()) {
+            cpu.interruptSource[vector] = this;
+        }
+    }
+
 }
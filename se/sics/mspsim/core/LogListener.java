@@ -2,6 +2,11 @@ package se.sics.mspsim.core;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 
+/* Listeners are called on the thread that logs the message, which is
+ * normally the emulation thread. When an AsyncEmulationLogger is in
+ * asynchronous mode they are instead called on its writer thread, after
+ * the CPU has moved on, so listeners that touch the emulation state must
+ * synchronize with the emulation thread themselves. */
 public interface LogListener {
 
     public void log(Loggable source, String message);
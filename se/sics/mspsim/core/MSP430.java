@@ -36,12 +36,18 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 
 import se.sics.mspsim.profiler.SimpleProfiler;
 import se.sics.mspsim.util.ArrayUtils;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.StateSnapshot;
 
 public class MSP430 extends MSP430Core {
 
@@ -52,17 +58,18 @@ public class MSP430 extends MSP430Core {
   private boolean debug = false;
   private boolean running = false;
   private boolean isBreaking = false;
-  private double rate = 2.0;
 
   // Debug time - measure cycles
   private long lastCycles = 0;
   private long lastCpuCycles = 0;
   private long time;
-  private long nextSleep = 0;
+  private long nextPaceCycles = 0;
   private long nextOut = 0;
 
   private double lastCPUPercent = 0d;
 
+  private final ExecutionPacer pacer;
+
   private DisAsm disAsm;
 
   private SimEventListener[] simEventListeners;
@@ -74,6 +81,7 @@ public class MSP430 extends MSP430Core {
   public MSP430(int type, ComponentRegistry registry, MSP430Config config) {
     super(type, registry, config);
     disAsm = new DisAsm();
+    pacer = new ExecutionPacer(this, ExecutionPacer.Mode.SCALED, 2.0);
   }
 
   public double getCPUPercent() {
@@ -92,6 +100,8 @@ public class MSP430 extends MSP430Core {
     try {
         // ??? - power-up  should be executed?!
         time = System.currentTimeMillis();
+        pacer.start();
+        nextPaceCycles = 0;
         run();
     } finally {
         setRunning(false);
@@ -111,6 +121,9 @@ public class MSP430 extends MSP430Core {
 	if (execCounter != null) {
 	  execCounter[pc]++;
 	}
+	if (coverage != null) {
+	  coverage.executed(pc);
+	}
 	if (trace != null) {
 	    trace[tracePos++] = pc;
 	    if (tracePos >= trace.length)
@@ -121,22 +134,17 @@ public class MSP430 extends MSP430Core {
 	// -------------------------------------------------------------------
 	if (debug) {
 	    if (servicedInterrupt >= 0) {
-	        disAsm.disassemble(pc, memory, reg, servicedInterrupt);
+	        disAsm.disassemble(pc, this, reg, servicedInterrupt);
 	    } else {
-	        disAsm.disassemble(pc, memory, reg);
+	        disAsm.disassemble(pc, this, reg);
 	    }
 	}
       }
 
-      /* Just a test to see if it gets down to a reasonable speed */
-      if (cycles > nextSleep) {
-	try {
-	  Thread.sleep(100);
-	} catch (Exception e) {
-	}
-	// Frequency = 100 * cycles ratio
-	// Ratio = Frq / 100
-	nextSleep = cycles + (long)(rate * dcoFrq / 10);
+      /* Pace about once per simulated millisecond and after LPM jumps */
+      if (cycles >= nextPaceCycles) {
+        pacer.pace();
+        nextPaceCycles = cycles + dcoFrq / 1000;
       }
 
 //       if ((instruction & 0xff80) == CALL) {
@@ -164,6 +172,9 @@ public class MSP430 extends MSP430Core {
         if (execCounter != null) {
           execCounter[pc]++;
         }
+        if (coverage != null) {
+          coverage.executed(pc);
+        }
         if (trace != null) {
   	  trace[tracePos++] = pc;
           if (tracePos >= trace.length) {
@@ -176,9 +187,9 @@ public class MSP430 extends MSP430Core {
         // -------------------------------------------------------------------
         if (debug) {
             if (servicedInterrupt >= 0) {
-                disAsm.disassemble(pc, memory, reg, servicedInterrupt);
+                disAsm.disassemble(pc, this, reg, servicedInterrupt);
             } else {
-                disAsm.disassemble(pc, memory, reg);
+                disAsm.disassemble(pc, this, reg);
             }
         }
       }
@@ -258,6 +269,9 @@ public class MSP430 extends MSP430Core {
             if (execCounter != null) {
                 execCounter[pc]++;
             }
+            if (coverage != null) {
+                coverage.executed(pc);
+            }
             if (trace != null) {
               if (tracePos >= trace.length) {
                 tracePos = 0;
@@ -269,9 +283,9 @@ public class MSP430 extends MSP430Core {
             // -------------------------------------------------------------------
             if (debug) {
               if (servicedInterrupt >= 0) {
-                disAsm.disassemble(pc, memory, reg, servicedInterrupt);
+                disAsm.disassemble(pc, this, reg, servicedInterrupt);
               } else {
-                disAsm.disassemble(pc, memory, reg);
+                disAsm.disassemble(pc, this, reg);
               }
             }
         }
@@ -309,6 +323,7 @@ public class MSP430 extends MSP430Core {
 
   public void stop() {
       isStopping = true;
+      pacer.wakeup();
   }
 
   public void triggBreakpoint() {
@@ -323,6 +338,9 @@ public class MSP430 extends MSP430Core {
     if (execCounter != null) {
       return execCounter[address];
     }
+    if (coverage != null) {
+      return (int) coverage.getCount(address);
+    }
     return 0;
   }
 
@@ -382,7 +400,7 @@ public class MSP430 extends MSP430Core {
     lastCycles = cycles;
     lastCpuCycles = cpuCycles;
     if (DEBUGGING_LEVEL > 0) {
-      disAsm.disassemble(pc, memory, reg);
+      disAsm.disassemble(pc, this, reg);
     }
   }
 
@@ -402,6 +420,7 @@ public class MSP430 extends MSP430Core {
 
   public void setMap(MapTable map) {
     this.map = map;
+    functionCache = null;
     /* When we got the map table we can also profile! */
     if (profiler == null) {
       setProfiler(new SimpleProfiler());
@@ -431,12 +450,59 @@ public class MSP430 extends MSP430Core {
     return running;
   }
 
+  /**
+   * Saves the complete state of the CPU, its IO units and the chips
+   * connected to it. The CPU must be stopped.
+   */
+  public void saveState(OutputStream out) throws IOException {
+    if (isRunning()) {
+      throw new IllegalStateException("save state not possible when CPU is running");
+    }
+    StateSnapshot.save(this, out);
+  }
+
+  /**
+   * Restores a state saved by saveState. The CPU must be stopped and set
+   * up the same way as the CPU the state was saved from.
+   */
+  public void loadState(InputStream in) throws IOException {
+    if (isRunning()) {
+      throw new IllegalStateException("load state not possible when CPU is running");
+    }
+    StateSnapshot.restore(this, in);
+  }
+
+  /* Adds the clock bookkeeping of stepMicros to the CPU state */
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+    super.writeState(out);
+    out.writeLong(lastReturnedMicros);
+    out.writeLong(lastMicrosCycles);
+    out.writeBoolean(microClockReady);
+    out.writeLong(maxCycles);
+  }
+
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+    super.readState(in);
+    lastReturnedMicros = in.readLong();
+    lastMicrosCycles = in.readLong();
+    microClockReady = in.readBoolean();
+    maxCycles = in.readLong();
+  }
+
+  public ExecutionPacer getPacer() {
+    return pacer;
+  }
+
+  /* Returns the target speed factor or infinity when running at max speed */
   public double getExecutionRate() {
-    return rate;
+    return pacer.getTargetRate();
   }
 
+  /* Runs the CPU at the specified factor of real-time */
   public void setExecutionRate(double rate) {
-    this.rate = rate;
+    pacer.setMode(ExecutionPacer.Mode.SCALED, rate);
   }
 
   public synchronized void addSimEventListener(SimEventListener l) {
@@ -36,18 +36,28 @@
  */
 
 package se.sics.mspsim.core;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringWriter;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 
 import se.sics.mspsim.core.EmulationLogger.WarningType;
 import se.sics.mspsim.core.Memory.AccessMode;
 import se.sics.mspsim.core.Memory.AccessType;
+import se.sics.mspsim.util.AsyncEmulationLogger;
 import se.sics.mspsim.util.ComponentRegistry;
-import se.sics.mspsim.util.DefaultEmulationLogger;
 import se.sics.mspsim.util.MapEntry;
 import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.StateSnapshot;
+import se.sics.mspsim.util.TraceRecorder;
 import se.sics.mspsim.util.Utils;
 import java.util.Scanner;
 
@@ -75,17 +85,46 @@ public class MSP430Core extends Chip implements MSP430Constants {
   // true => breakpoints can occur!
   boolean breakpointActive = true;
 
-  public final int memory[];
+  // IO registers - RAM, info memory and flash are kept in pagedMemory,
+  // use peek() and poke() to access all of the address space
+  public final int ioMemory[];
+  public final PagedMemory pagedMemory;
   private final Flash flash;
   boolean isFlashBusy;
   boolean isStopping = false;
 
   private final Memory memorySegments[];
+  private final IOSegment ioSegment;
+  private final ArrayList<WatchPoint> watchPoints = new ArrayList<WatchPoint>();
   Memory currentSegment;
 
+  /*
+   * Type of each memory page for the inlined accesses in readMemory and
+   * writeMemory. Only unwatched RAM and flash pages are handled inline,
+   * all other pages go through currentSegment.
+   */
+  private static final byte PAGE_SEGMENT = 0;
+  private static final byte PAGE_RAM = 1;
+  private static final byte PAGE_FLASH = 2;
+  private final byte[] pageTypes;
+  private final Memory ramSegment;
+  private final Memory flashSegment;
+  private boolean fastMemoryEnabled = true;
+
+  // Fetched instruction words for pages of plain RAM and flash
+  final InstructionCache instructionCache;
+  private boolean instructionCacheEnabled = true;
+  /* Execution coverage or null when not collected */
+  Coverage coverage;
+  /* Execution trace recorder or null when not recording */
+  private volatile TraceRecorder traceRecorder;
+
   public long cycles = 0;
   public long cpuCycles = 0;
   MapTable map;
+  /* Map entries of called functions in lazily allocated pages of the
+   * address space, avoids a map lookup for each profiled call */
+  MapEntry[][] functionCache;
   public final boolean MSP430XArch;
   public final MSP430Config config;
 
@@ -96,7 +135,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   // From the possible interrupt sources - to be able to indicate is serviced.
   // NOTE: 64 since more modern MSP430's have more than 16 vectors (5xxx has 64).
-  private InterruptHandler interruptSource[] = new InterruptHandler[64];
+  InterruptHandler interruptSource[] = new InterruptHandler[64];
   public int MAX_INTERRUPT;
   
   protected int interruptMax = -1;
@@ -130,6 +169,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
   private EventQueue cycleEventQueue = new EventQueue();
   private long nextCycleEventCycles;
+  /* Number of executed time events - only updated by the emulation thread */
+  private long executedEvents;
+  /* The scheduled events saved so far while a snapshot is being written */
+  private IdentityHashMap<TimeEvent,Boolean> savedEvents;
   
   private ArrayList<Chip> chips = new ArrayList<Chip>();
 
@@ -153,7 +196,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
     logger = registry.getComponent(EmulationLogger.class);
     //sim = registry.getComponent(SimControl.class);
     if (logger == null) {
-        logger = new DefaultEmulationLogger(this, System.out);
+        logger = new AsyncEmulationLogger(this, System.out);
         registry.registerComponent("logger", logger);
     }
     
@@ -162,10 +205,17 @@ public class MSP430Core extends Chip implements MSP430Constants {
     MAX_MEM = config.maxMem;
     MSP430XArch = config.MSP430XArch;
 
-    memory = new int[MAX_MEM];
+    ioMemory = new int[MAX_MEM_IO];
+    /* RAM is allocated last as it has precedence over flash in the segments */
+    pagedMemory = new PagedMemory(MAX_MEM);
+    pagedMemory.allocate(config.mainFlashStart, config.mainFlashSize, 0xff);
+    pagedMemory.allocate(config.infoMemStart, config.infoMemSize, 0xff);
+    pagedMemory.allocate(config.ramStart, config.ramSize, 0);
     memorySegments = new Memory[MAX_MEM >> 8];
+    pageTypes = new byte[MAX_MEM >> 8];
+    instructionCache = new InstructionCache(MAX_MEM);
 
-    flash = new Flash(this, memory,
+    flash = new Flash(this, ioMemory,
             new FlashRange(config.mainFlashStart, config.mainFlashStart + config.mainFlashSize, 512, 64),
             new FlashRange(config.infoMemStart, config.infoMemStart + config.infoMemSize, 128, 64),
             config.flashControllerOffset);
@@ -204,29 +254,30 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //    System.out.println("Set up MSP430 Core with " + MAX_MEM + " bytes memory");
 
     /* this is for detecting writes/read to/from non-existing IO */
-    IOUnit voidIO = new IOUnit("void", this, memory, 0) {
+    IOUnit voidIO = new IOUnit("void", this, ioMemory, 0) {
         public void interruptServiced(int vector) {
         }
         public void write(int address, int value, boolean word, long cycles) {
-            cpu.logw(WarningType.VOID_IO_WRITE, "*** IOUnit write to non-existent IO at $" + Utils.hex(address, 4));
+            cpu.logw(WarningType.VOID_IO_WRITE, "*** IOUnit write to non-existent IO at $%04x", address);
         }
         public int read(int address, boolean word, long cycles) {
-            cpu.logw(WarningType.VOID_IO_READ, "*** IOUnit read from non-existent IO at $" + Utils.hex(address, 4));
+            cpu.logw(WarningType.VOID_IO_READ, "*** IOUnit read from non-existent IO at $%04x", address);
             return 0;
         }
     };
 
     /* setup memory segments */
     int maxSeg = MAX_MEM >> 8;
-    Memory ramSegment = new RAMSegment(this);
+    ramSegment = new RAMSegment(this);
     RAMOffsetSegment ramMirrorSegment = null;
-    Memory flashSegment = new FlashSegment(this, flash);
-    IOSegment ioSegment = new IOSegment(this, MAX_MEM_IO, voidIO);
+    flashSegment = new FlashSegment(this, flash);
+    ioSegment = new IOSegment(this, MAX_MEM_IO, voidIO);
     Memory noMemorySegment = new NoMemSegment(this);
     for (int i = 0; i < maxSeg; i++) {
         if (config.isRAM(i << 8)) {
 //            System.out.println("Setting RAM segment at: " + Utils.hex16(i << 8));
             memorySegments[i] = ramSegment;
+            instructionCache.setCacheable(i, true);
         } else if (config.isRAMMirror(i << 8)) {
             if (ramMirrorSegment == null) {
                 ramMirrorSegment = new RAMOffsetSegment(this, config.ramMirrorAddress - config.ramMirrorStart);
@@ -237,6 +288,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         } else if (config.isFlash(i << 8) || config.isInfoMem(i << 8)) {
 //            System.out.println("Setting Flash segment at: " + Utils.hex16(i << 8));
             memorySegments[i] = flashSegment;
+            instructionCache.setCacheable(i, true);
         } else if (config.isIO(i << 8)) {
 //            System.out.println("Setting IO segment at: " + Utils.hex16(i << 8));
             memorySegments[i] = ioSegment;
@@ -244,6 +296,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //            System.out.println("Setting NoMem segment at: " + Utils.hex16(i << 8));
             memorySegments[i] = noMemorySegment;
         }
+        updatePageType(i);
     }
 
     this.registry = registry;
@@ -260,19 +313,19 @@ public class MSP430Core extends Chip implements MSP430Constants {
     ioSegment.setIORange(config.flashControllerOffset, Flash.SIZE, flash);
  
     /* Setup special function registers */
-    sfr = new SFR(this, memory);
+    sfr = new SFR(this, ioMemory);
     ioSegment.setIORange(config.sfrOffset, 0x10, sfr);
 
     // first step towards making core configurable
     Timer[] timers = new Timer[config.timerConfig.length];
     for (int i = 0; i < config.timerConfig.length; i++) {
-        Timer t = new Timer(this, memory, config.timerConfig[i]);
+        Timer t = new Timer(this, ioMemory, config.timerConfig[i]);
         ioSegment.setIORange(config.timerConfig[i].offset, 0x20, t);
         ioSegment.setIORange(config.timerConfig[i].timerIVAddr, 1, t);
         timers[i] = t;
     }
 
-    bcs = config.createClockSystem(this, memory, timers);
+    bcs = config.createClockSystem(this, ioMemory, timers);
     ioSegment.setIORange(bcs.getAddressRangeMin(), bcs.getAddressRangeMax() - bcs.getAddressRangeMin() + 1, bcs);
 
     // SFR and Basic clock system.
@@ -318,8 +371,11 @@ public class MSP430Core extends Chip implements MSP430Constants {
           gwm = (GlobalWatchedMemory)currentSegment;
       } else {
           currentSegment = gwm = new GlobalWatchedMemory(currentSegment);
+          updatePageTypes();
       }
       gwm.addGlobalMonitor(mon);
+      // Global monitors must see every instruction fetch
+      instructionCacheEnabled = false;
   }
 
   public synchronized void removeGlobalMonitor(MemoryMonitor mon) {
@@ -329,6 +385,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
           if (!gwm.hasGlobalMonitor()) {
               // No more monitors - switch back to normal memory
               currentSegment = gwm.getWatchedMemory();
+              instructionCacheEnabled = true;
+              updatePageTypes();
           }
       }
   }
@@ -337,6 +395,153 @@ public class MSP430Core extends Chip implements MSP430Constants {
     return registry;
   }
 
+  public InstructionCache getInstructionCache() {
+    return instructionCache;
+  }
+
+  public boolean isCoverageEnabled() {
+    return coverage != null;
+  }
+
+  /**
+   * Enables or disables the execution coverage collector. Disabling
+   * drops all collected coverage.
+   */
+  public synchronized void setCoverageEnabled(boolean enabled) {
+    if (enabled && coverage == null) {
+      Coverage c = new Coverage(this, MAX_MEM, instructionCache);
+      c.clear();
+      instructionCache.coverage = c;
+      coverage = c;
+    } else if (!enabled && coverage != null) {
+      instructionCache.coverage = null;
+      coverage = null;
+    }
+  }
+
+  public TraceRecorder getTraceRecorder() {
+    return traceRecorder;
+  }
+
+  /**
+   * Sets the recorder that all executed instructions, CPU memory writes
+   * and interrupts are streamed to, or null to stop recording. The old
+   * recorder is not closed. While the CPU is running the recorder should
+   * only be detached from the emulation thread, since it may be in use
+   * until the current instruction completes.
+   */
+  public void setTraceRecorder(TraceRecorder recorder) {
+    traceRecorder = recorder;
+  }
+
+  /* Returns the coverage collector or null if coverage is disabled */
+  public Coverage getCoverage() {
+    return coverage;
+  }
+
+  public boolean isInstructionCacheEnabled() {
+    return instructionCacheEnabled;
+  }
+
+  public synchronized void setInstructionCacheEnabled(boolean enabled) {
+    if (enabled && currentSegment instanceof GlobalWatchedMemory) {
+      throw new IllegalStateException("instruction cache can not be used with global memory monitors");
+    }
+    instructionCacheEnabled = enabled;
+    if (!enabled) {
+      instructionCache.invalidateAll();
+    }
+  }
+
+  public boolean isFastMemoryEnabled() {
+    return fastMemoryEnabled;
+  }
+
+  /**
+   * Enables or disables the inlined RAM and flash accesses. When disabled
+   * all memory accesses go through the memory segments.
+   */
+  public synchronized void setFastMemoryEnabled(boolean enabled) {
+    fastMemoryEnabled = enabled;
+    updatePageTypes();
+  }
+
+  private void updatePageTypes() {
+    for (int i = 0; i < pageTypes.length; i++) {
+      updatePageType(i);
+    }
+  }
+
+  private void updatePageType(int page) {
+    Memory mem = memorySegments[page];
+    byte type = PAGE_SEGMENT;
+    if (fastMemoryEnabled && !(currentSegment instanceof GlobalWatchedMemory)) {
+      if (mem == ramSegment) {
+        type = PAGE_RAM;
+      } else if (mem == flashSegment) {
+        type = PAGE_FLASH;
+      }
+    }
+    pageTypes[page] = type;
+  }
+
+  /*
+   * Reads memory for the CPU. The type of the page decides how: byte
+   * and aligned word reads of RAM and flash pages are read directly from
+   * pagedMemory. Everything else goes through currentSegment, i.e. the
+   * memory segment of the page. This covers IO pages, pages with watch
+   * points, unaligned and 20 bit accesses, flash reads while the flash
+   * controller is busy, and all pages when fast memory is disabled or a
+   * global memory monitor is installed.
+   */
+  final int readMemory(int address, AccessMode mode, AccessType type) throws EmulationException {
+    if (address < MAX_MEM) {
+      switch (pageTypes[address >> 8]) {
+      case PAGE_FLASH:
+        if (isFlashBusy) {
+          break;
+        }
+        /* fall through */
+      case PAGE_RAM:
+        if (mode == AccessMode.BYTE) {
+          return pagedMemory.get(address);
+        }
+        if (mode == AccessMode.WORD && (address & 1) == 0) {
+          return pagedMemory.getWord(address);
+        }
+        break;
+      }
+    }
+    return currentSegment.read(address, mode, type);
+  }
+
+  /*
+   * Writes memory for the CPU. Byte and aligned word writes of RAM pages
+   * are stored directly in pagedMemory and the instruction cache is
+   * notified. Flash writes always go through the flash segment so the
+   * flash controller sees them, and all other writes go through
+   * currentSegment in the same cases as for readMemory.
+   */
+  final void writeMemory(int address, int data, AccessMode mode) throws EmulationException {
+    TraceRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.write(address, data, mode);
+    }
+    if (address < MAX_MEM && pageTypes[address >> 8] == PAGE_RAM) {
+      if (mode == AccessMode.BYTE) {
+        pagedMemory.set(address, data);
+        instructionCache.notifyWrite(address, 1);
+        return;
+      }
+      if (mode == AccessMode.WORD && (address & 1) == 0) {
+        pagedMemory.setWord(address, data);
+        instructionCache.notifyWrite(address, 2);
+        return;
+      }
+    }
+    currentSegment.write(address, data, mode);
+  }
+
   public SFR getSFR() {
     return sfr;
   }
@@ -408,6 +613,253 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return l;
   }
 
+  /* The IO units and chips in the order their state is saved in snapshots */
+  private ArrayList<StateSnapshot.Stateful> getStateComponents() {
+      ArrayList<IOUnit> units = new ArrayList<IOUnit>(ioUnits);
+      if (!units.contains(flash)) {
+          units.add(flash);
+      }
+      /* IO units that are only mapped in the IO memory, such as the multiplier */
+      ioSegment.addIOUnits(units);
+      ArrayList<StateSnapshot.Stateful> components = new ArrayList<StateSnapshot.Stateful>(units);
+      for (Chip chip : chips) {
+          if (chip != this) {
+              components.add(chip);
+          }
+      }
+      return components;
+  }
+
+  /**
+   * Saves the state of the CPU in a snapshot: registers, cycle and time
+   * bookkeeping, interrupts, the IO memory, the memory pages and the
+   * sequence numbers of the event queues, followed by the state of each
+   * IO unit and chip. The time events are saved by the IO units and chips
+   * that own them.
+   */
+  @Override
+  public void writeState(DataOutputStream out) throws IOException {
+      for (int i = 0; i < reg.length; i++) {
+          out.writeInt(reg[i]);
+      }
+      out.writeInt(mode);
+      out.writeInt(chipState);
+      out.writeLong(cycles);
+      out.writeLong(cpuCycles);
+      out.writeBoolean(interruptsEnabled);
+      out.writeBoolean(cpuOff);
+      out.writeBoolean(isFlashBusy);
+      out.writeInt(interruptMax);
+      out.writeInt(servicedInterrupt);
+      out.writeInt(dcoFrq);
+      out.writeInt(aclkFrq);
+      out.writeInt(smclkFrq);
+      out.writeDouble(currentDCOFactor);
+      out.writeLong(lastCyclesTime);
+      out.writeLong(lastVTime);
+      out.writeLong(currentTime);
+      out.writeLong(lastMicrosDelta);
+      out.writeLong(nextEventCycles);
+      out.writeLong(nextVTimeEventCycles);
+      out.writeLong(nextCycleEventCycles);
+      out.writeLong(cycleEventQueue.getSequence());
+      out.writeLong(vTimeEventQueue.getSequence());
+      out.writeInt(ioMemory.length);
+      for (int i = 0; i < ioMemory.length; i++) {
+          out.writeInt(ioMemory[i]);
+      }
+      pagedMemory.writeState(out);
+
+      /* Interrupt sources that are not IO units or chips are restored by their owner */
+      ArrayList<StateSnapshot.Stateful> components = getStateComponents();
+      for (int i = 0; i < interruptSource.length; i++) {
+          out.writeInt(interruptSource[i] == null ? -1 : components.indexOf(interruptSource[i]));
+      }
+
+      out.writeInt(components.size());
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(buffer);
+      savedEvents = new IdentityHashMap<TimeEvent,Boolean>();
+      try {
+          for (StateSnapshot.Stateful component : components) {
+              buffer.reset();
+              component.writeState(data);
+              data.flush();
+              out.writeUTF(component.getClass().getName());
+              out.writeInt(buffer.size());
+              buffer.writeTo(out);
+          }
+          int lost = cycleEventQueue.eventCount + vTimeEventQueue.eventCount - savedEvents.size();
+          if (lost > 0) {
+              logw(WarningType.EMULATION_ERROR, "%d scheduled time events are not part of the snapshot", lost);
+          }
+      } finally {
+          savedEvents = null;
+      }
+  }
+
+  /**
+   * Restores the state saved by writeState. The CPU must be set up the
+   * same way, with the same IO units and chips. Time events that are not
+   * owned by an IO unit or chip are removed.
+   */
+  @Override
+  public void readState(DataInputStream in) throws IOException {
+      for (int i = 0; i < reg.length; i++) {
+          reg[i] = in.readInt();
+      }
+      mode = in.readInt();
+      chipState = in.readInt();
+      cycles = in.readLong();
+      cpuCycles = in.readLong();
+      interruptsEnabled = in.readBoolean();
+      cpuOff = in.readBoolean();
+      isFlashBusy = in.readBoolean();
+      interruptMax = in.readInt();
+      servicedInterrupt = in.readInt();
+      dcoFrq = in.readInt();
+      aclkFrq = in.readInt();
+      smclkFrq = in.readInt();
+      currentDCOFactor = in.readDouble();
+      lastCyclesTime = in.readLong();
+      lastVTime = in.readLong();
+      currentTime = in.readLong();
+      lastMicrosDelta = in.readLong();
+      nextEventCycles = in.readLong();
+      nextVTimeEventCycles = in.readLong();
+      nextCycleEventCycles = in.readLong();
+      cycleEventQueue.clear(in.readLong());
+      vTimeEventQueue.clear(in.readLong());
+      if (in.readInt() != ioMemory.length) {
+          throw new IOException("IO memory size does not match the snapshot");
+      }
+      for (int i = 0; i < ioMemory.length; i++) {
+          ioMemory[i] = in.readInt();
+      }
+      pagedMemory.readState(in);
+      instructionCache.invalidateAll();
+
+      ArrayList<StateSnapshot.Stateful> components = getStateComponents();
+      for (int i = 0; i < interruptSource.length; i++) {
+          int index = in.readInt();
+          if (index >= components.size()) {
+              throw new IOException("corrupt snapshot");
+          }
+          interruptSource[i] = index < 0 ? null : (InterruptHandler) components.get(index);
+      }
+
+      if (in.readInt() != components.size()) {
+          throw new IOException("the IO units and chips do not match the snapshot");
+      }
+      for (StateSnapshot.Stateful component : components) {
+          String type = in.readUTF();
+          if (!type.equals(component.getClass().getName())) {
+              throw new IOException("snapshot of " + type + " can not be restored into "
+                      + component.getClass().getName());
+          }
+          byte[] state = new byte[in.readInt()];
+          in.readFully(state);
+          DataInputStream data = new DataInputStream(new ByteArrayInputStream(state));
+          try {
+              component.readState(data);
+          } catch (EOFException e) {
+              throw new IOException("state of " + type + " does not match the snapshot", e);
+          }
+          if (data.available() > 0) {
+              throw new IOException("state of " + type + " does not match the snapshot");
+          }
+      }
+  }
+
+  /*
+   * Saves the primitive and enum fields of an IO unit, a chip or an object
+   * held by one, see StateSnapshot.writeFields, and the time events in its
+   * fields together with their own fields.
+   */
+  void writeFieldState(Object o, Class<?> base, DataOutputStream out) throws IOException {
+      StateSnapshot.writeFields(o, base, out);
+      try {
+          for (Field f : StateSnapshot.getFields(o.getClass(), base)) {
+              Class<?> type = f.getType();
+              if (TimeEvent.class.isAssignableFrom(type)) {
+                  writeEvent((TimeEvent) f.get(o), out);
+              } else if (type.isArray() && TimeEvent.class.isAssignableFrom(type.getComponentType())) {
+                  TimeEvent[] events = (TimeEvent[]) f.get(o);
+                  out.writeInt(events == null ? -1 : events.length);
+                  for (int i = 0; events != null && i < events.length; i++) {
+                      writeEvent(events[i], out);
+                  }
+              }
+          }
+      } catch (IllegalAccessException e) {
+          throw new IOException("failed to save state of " + o.getClass().getName(), e);
+      }
+  }
+
+  void readFieldState(Object o, Class<?> base, DataInputStream in) throws IOException {
+      StateSnapshot.readFields(o, base, in);
+      try {
+          for (Field f : StateSnapshot.getFields(o.getClass(), base)) {
+              Class<?> type = f.getType();
+              if (TimeEvent.class.isAssignableFrom(type)) {
+                  readEvent((TimeEvent) f.get(o), in);
+              } else if (type.isArray() && TimeEvent.class.isAssignableFrom(type.getComponentType())) {
+                  TimeEvent[] events = (TimeEvent[]) f.get(o);
+                  int length = in.readInt();
+                  if (length != (events == null ? -1 : events.length)) {
+                      throw new IOException("time events of " + o.getClass().getName() + "."
+                              + f.getName() + " do not match the snapshot");
+                  }
+                  for (int i = 0; i < length; i++) {
+                      readEvent(events[i], in);
+                  }
+              }
+          }
+      } catch (IllegalAccessException e) {
+          throw new IOException("failed to restore state of " + o.getClass().getName(), e);
+      }
+  }
+
+  /* Saves whether and when the event is scheduled, followed by its own fields */
+  void writeEvent(TimeEvent event, DataOutputStream out) throws IOException {
+      if (event == null) {
+          out.writeByte(-1);
+          return;
+      }
+      int queue = event.scheduledIn == cycleEventQueue ? 1 : event.scheduledIn == vTimeEventQueue ? 2 : 0;
+      out.writeByte(queue);
+      out.writeLong(event.time);
+      out.writeLong(event.sequence);
+      if (queue != 0 && savedEvents != null) {
+          savedEvents.put(event, Boolean.TRUE);
+      }
+      writeFieldState(event, TimeEvent.class, out);
+  }
+
+  void readEvent(TimeEvent event, DataInputStream in) throws IOException {
+      int queue = in.readByte();
+      if (queue < 0) {
+          if (event != null) {
+              event.remove();
+          }
+          return;
+      }
+      if (event == null) {
+          throw new IOException("time event does not match the snapshot");
+      }
+      long time = in.readLong();
+      long sequence = in.readLong();
+      if (queue == 1) {
+          cycleEventQueue.restoreEvent(event, time, sequence);
+      } else if (queue == 2) {
+          vTimeEventQueue.restoreEvent(event, time, sequence);
+      } else {
+          event.remove();
+          event.time = time;
+      }
+      readFieldState(event, TimeEvent.class, in);
+  }
+
   public boolean hasWatchPoint(int address) {
       Memory mem = memorySegments[address >> 8];
       if (mem instanceof WatchedMemory) {
@@ -416,22 +868,79 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return false;
   }
 
-  public synchronized void addWatchPoint(int address, MemoryMonitor mon) {
-      int seg = address >> 8;
-      WatchedMemory wm;
-      if (memorySegments[seg] instanceof WatchedMemory) {
-          wm = (WatchedMemory) memorySegments[seg];
-      } else {
-          wm = new WatchedMemory(address & 0xfff00, memorySegments[seg]);
-          memorySegments[seg] = wm;
+  public synchronized WatchPoint[] getWatchPoints() {
+      return watchPoints.toArray(new WatchPoint[watchPoints.size()]);
+  }
+
+  /* Watches all accesses to a single byte */
+  public void addWatchPoint(int address, MemoryMonitor mon) {
+      addWatchPoint(new WatchPoint(address, 1, mon));
+  }
+
+  public WatchPoint addWatchPoint(int address, int length, MemoryMonitor mon) {
+      WatchPoint wp = new WatchPoint(address, length, mon);
+      addWatchPoint(wp);
+      return wp;
+  }
+
+  /* Watches instruction fetches of the specified address */
+  public WatchPoint addBreakpoint(int address, MemoryMonitor mon) {
+      WatchPoint wp = new WatchPoint(address, 1, WatchPoint.EXECUTE, mon, null);
+      addWatchPoint(wp);
+      return wp;
+  }
+
+  public synchronized void addWatchPoint(WatchPoint wp) {
+      if (wp.start < 0 || wp.end > MAX_MEM) {
+          throw new IllegalArgumentException("watch point outside memory: " + wp);
+      }
+      watchPoints.add(wp);
+      for (int seg = wp.start >> 8, last = (wp.end - 1) >> 8; seg <= last; seg++) {
+          WatchedMemory wm;
+          if (memorySegments[seg] instanceof WatchedMemory) {
+              wm = (WatchedMemory) memorySegments[seg];
+          } else {
+              wm = new WatchedMemory(seg << 8, memorySegments[seg],
+                      instructionCache.isCacheable(seg << 8));
+              memorySegments[seg] = wm;
+              updatePageType(seg);
+          }
+          wm.addWatchPoint(wp);
+          updateWatchedPage(seg, wm);
       }
-      wm.addWatchPoint(address, mon);
   }
 
+  public synchronized void removeWatchPoint(WatchPoint wp) {
+      if (!watchPoints.remove(wp)) {
+          return;
+      }
+      for (int seg = wp.start >> 8, last = (wp.end - 1) >> 8; seg <= last; seg++) {
+          if (memorySegments[seg] instanceof WatchedMemory) {
+              WatchedMemory wm = (WatchedMemory) memorySegments[seg];
+              wm.removeWatchPoint(wp);
+              updateWatchedPage(seg, wm);
+          }
+      }
+  }
+
+  /* Removes all watch points of the monitor that contain the address */
   public synchronized void removeWatchPoint(int address, MemoryMonitor mon) {
-      if (memorySegments[address >> 8] instanceof WatchedMemory) {
-          WatchedMemory wm = (WatchedMemory) memorySegments[address >> 8];
-          wm.removeWatchPoint(address, mon);
+      for (WatchPoint wp : getWatchPoints()) {
+          if (wp.monitor == mon && wp.contains(address)) {
+              removeWatchPoint(wp);
+          }
+      }
+  }
+
+  private void updateWatchedPage(int seg, WatchedMemory wm) {
+      if (wm.isEmpty()) {
+          /* no watches left - back to full speed */
+          memorySegments[seg] = wm.getWatchedMemory();
+          updatePageType(seg);
+          instructionCache.setCacheable(seg, wm.wasCacheable);
+      } else {
+          // Breakpoints are triggered by the EXECUTE reads
+          instructionCache.setCacheable(seg, wm.wasCacheable && !wm.isExecuteWatched());
       }
   }
 
@@ -635,6 +1144,18 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return 1000.0 * getTime() / bcs.getMaxDCOFrequency();
   }
   
+  public long getExecutedEventCount() {
+      return executedEvents;
+  }
+
+  public int getVTimeEventQueueSize() {
+      return vTimeEventQueue.eventCount;
+  }
+
+  public int getCycleEventQueueSize() {
+      return cycleEventQueue.eventCount;
+  }
+
   private void executeEvents() {
     if (cycles >= nextVTimeEventCycles) {
       if (vTimeEventQueue.eventCount == 0) {
@@ -647,6 +1168,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //              cycles + " target Time: " + te.time + " class: " + te.getClass().getName());
 //        }
         te.execute(now);
+        executedEvents++;
         if (vTimeEventQueue.eventCount > 0) {
           nextVTimeEventCycles = convertVTime(vTimeEventQueue.nextTime);
         } else {
@@ -662,6 +1184,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 		  //~ cycleEventQueue.print(System.out);
         TimeEvent te = cycleEventQueue.popFirst();
         te.execute(cycles);
+        executedEvents++;
         if (cycleEventQueue.eventCount > 0) {
           nextCycleEventCycles = cycleEventQueue.nextTime;
         } else {
@@ -869,9 +1392,23 @@ public class MSP430Core extends Chip implements MSP430Constants {
   }  
 
   void profileCall(int dst, int pc) {
-      MapEntry function = map.getEntry(dst);
+      MapEntry[][] cache = functionCache;
+      if (cache == null) {
+          functionCache = cache = new MapEntry[(MAX_MEM + Memory.SEGMENT_SIZE - 1) / Memory.SEGMENT_SIZE][];
+      }
+      MapEntry[] page = cache[dst >> 8];
+      if (page == null) {
+          cache[dst >> 8] = page = new MapEntry[Memory.SEGMENT_SIZE >> 1];
+      }
+      MapEntry function = page[(dst & 0xff) >> 1];
       if (function == null) {
-          function = getFunction(map, dst);
+          function = map.getEntry(dst);
+          if (function == null) {
+              function = getFunction(map, dst);
+          }
+          if ((dst & 1) == 0) {
+              page[(dst & 0xff) >> 1] = function;
+          }
       }
       profiler.profileCall(function, cpuCycles, pc);
   }
@@ -925,6 +1462,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
     if (profiler != null) {
       profiler.profileInterrupt(interruptMax, cycles);
     }
+    TraceRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.interrupt(interruptMax, cycles);
+    }
         
     if (flash.blocksCPU()) {
       /* TODO: how should this error/warning be handled ?? */
@@ -938,16 +1479,16 @@ public class MSP430Core extends Chip implements MSP430Constants {
       // Push PC and SR to stack
       // store on stack - always move 2 steps (W) even if B.
       writeRegister(SP, sp = spBefore - 2);
-      currentSegment.write(sp, pc, AccessMode.WORD);
+      writeMemory(sp, pc, AccessMode.WORD);
 
       writeRegister(SP, sp = sp - 2);
-      currentSegment.write(sp, (sr & 0x0fff) | ((pc & 0xf0000) >> 4), AccessMode.WORD);
+      writeMemory(sp, (sr & 0x0fff) | ((pc & 0xf0000) >> 4), AccessMode.WORD);
     }
     // Clear SR
     writeRegister(SR, 0); // sr & ~CPUOFF & ~SCG1 & ~OSCOFF);
 
     // Jump to the address specified in the interrupt vector
-    pc = currentSegment.read(0xfffe - (MAX_INTERRUPT - interruptMax) * 2, AccessMode.WORD, AccessType.READ);
+    pc = readMemory(0xfffe - (MAX_INTERRUPT - interruptMax) * 2, AccessMode.WORD, AccessType.READ);
 	if (pc == 0) {
 		StringWriter sw = new StringWriter();
 		new Throwable().printStackTrace(new PrintWriter(sw));
@@ -1039,12 +1580,37 @@ public class MSP430Core extends Chip implements MSP430Constants {
       return -1;
     }
 
-    int pcBefore = pc;
-    instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
+    /* Flash reads while busy must reach the flash controller every time */
+    long fetched = instructionCacheEnabled && !isFlashBusy ? instructionCache.lookup(pc) : 0;
+    if (fetched != 0) {
+        instruction = InstructionCache.getInstruction(fetched);
+        extWord = InstructionCache.getExtWord(fetched);
+    } else {
+        instruction = readMemory(pc, AccessMode.WORD, AccessType.EXECUTE);
+        if ((instruction & 0xf800) == 0x1800 && !isStopping) {
+            extWord = instruction;
+            instruction = readMemory(pc + 2, AccessMode.WORD, AccessType.EXECUTE);
+        } else {
+            extWord = 0;
+        }
+        if (instructionCacheEnabled && !isFlashBusy && !isStopping) {
+            instructionCache.store(pc, instruction, extWord, extWord != 0 ? 4 : 2);
+        }
+    }
     if (isStopping) {
         // Signaled to stop the execution before performing the instruction
         return -2;
     }
+    return executeInstruction(pc, startCycles);
+  }
+
+  /* executes an instruction that has been fetched into instruction/extWord */
+  private int executeInstruction(int pc, long startCycles) throws EmulationException {
+    int pcBefore = pc;
+    TraceRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      recorder.instruction(pc, cycles, reg[SR]);
+    }
     int ext3_0 = 0;
     int ext10_7 = 0;
     int extSrc = 0;
@@ -1053,10 +1619,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
     boolean wordx20 = false;
 
     /* check for extension words */
-    if ((instruction & 0xf800) == 0x1800) {
-        extWord = instruction;
-        ext3_0 = instruction & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
-        ext10_7 = (instruction >> 7) & 0xf; /* bit 10 - 7 - src 19-16 */
+    if (extWord != 0) {
+        ext3_0 = extWord & 0xf; /* bit 3 - 0 - either repeat count or dest 19-16 */
+        ext10_7 = (extWord >> 7) & 0xf; /* bit 10 - 7 - src 19-16 */
         extSrc = ext10_7 << 16;
         extDst = ext3_0 << 16;
         pc += 2;
@@ -1066,7 +1631,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	// the bit is 0, ext3_0 contains the number of repeats. If the
 	// bit is 1, ext3_0 contains the register number that holds
 	// the number of repeats.
-	if ((instruction & 0x80) == 0x80) {
+	if ((extWord & 0x80) == 0x80) {
 	    repeatsInDstReg = true;
 	}
 	// Bit 6 indicates whether or not the data length mode should
@@ -1075,13 +1640,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	// length mode if this bit is zero and the MSP430 instruction
 	// that follows the extension word also has a zero bit data
 	// length mode.)
-	wordx20 = (instruction & 0x40) == 0;
-
-	instruction = currentSegment.read(pc, AccessMode.WORD, AccessType.EXECUTE);
+	wordx20 = (extWord & 0x40) == 0;
         /*System.out.println("*** Extension word!!! " + Utils.hex16(extWord) +
                 "  read the instruction too: " + Utils.hex16(instruction) + " at " + Utils.hex16(pc - 2));*/
-    } else {
-        extWord = 0;
     }
     
     op = instruction >> 12;
@@ -1130,7 +1691,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         // 20 bit register write
         case MOVA_IND:
         	/* Read from address in src register (20-bit?), move to destination register (=20 bit). */
-        	writeRegister(dstData, currentSegment.read(readRegister(srcData), mode, AccessType.READ));
+        	writeRegister(dstData, readMemory(readRegister(srcData), mode, AccessType.READ));
         	updateStatus = false;
         	cycles += 3;
             break;
@@ -1143,7 +1704,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
             src = readRegister(srcData);
 //            System.out.println("Reading $" + getAddressAsString(src) +
 //                    " from register: " + srcData);
-            dst = currentSegment.read(src, mode, AccessType.READ);
+            dst = readMemory(src, mode, AccessType.READ);
 //            System.out.println("Reading from mem: $" + getAddressAsString(dst));
             writeRegister(srcData, src + 4);
 //            System.out.println("*** Writing $" + getAddressAsString(dst) + " to reg: " + dstData);
@@ -1152,11 +1713,11 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	    cycles += 3;
             break;
         case MOVA_ABS2REG:
-            src = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            src = readMemory(pc, AccessMode.WORD, AccessType.READ);
             writeRegister(PC, pc += 2);
             dst = src + (srcData << 16);
             //System.out.println(Utils.hex20(pc) + " MOVA &ABS Reading from $" + getAddressAsString(dst) + " to reg: " + dstData);
-            dst = currentSegment.read(dst, mode,  AccessType.READ);
+            dst = readMemory(dst, mode,  AccessType.READ);
             //System.out.println("   => $" + getAddressAsString(dst));
             writeRegister(dstData, dst);
             updateStatus = false;
@@ -1165,22 +1726,22 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	case MOVA_INDX2REG:
 		/* Read data from address in memory, indexed by source
 		 * register, and place into destination register. */
-		int index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+		int index = readMemory(pc, AccessMode.WORD, AccessType.READ);
 		int indexModifier = readRegister(srcData);
 
 		index = convertTwoComplement16(index);
 		indexModifier = convertTwoComplement20(indexModifier);
 
-		writeRegister(dstData, currentSegment.read(indexModifier + index, mode, AccessType.READ));
+		writeRegister(dstData, readMemory(indexModifier + index, mode, AccessType.READ));
 		writeRegister(PC, pc += 2);
 		updateStatus = false;
 		cycles += 4;
 		break;
 
 	case MOVA_REG2ABS:
-            dst = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            dst = readMemory(pc, AccessMode.WORD, AccessType.READ);
             writeRegister(PC, pc += 2);
-	    currentSegment.write(dst + (dstData << 16), readRegister(srcData), mode);
+	    writeMemory(dst + (dstData << 16), readRegister(srcData), mode);
             updateStatus = false;
 	    cycles += 4;
             break;
@@ -1188,20 +1749,20 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	case MOVA_REG2INDX:
 		/* Read data from register, write to address in memory,
 		 * indexed by source register. */
-		index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+		index = readMemory(pc, AccessMode.WORD, AccessType.READ);
 		indexModifier = readRegister(dstData);
 
 		index = convertTwoComplement16(index);
 		indexModifier = convertTwoComplement20(indexModifier);
 
-		currentSegment.write(indexModifier + index, readRegister(srcData), mode);
+		writeMemory(indexModifier + index, readRegister(srcData), mode);
 		writeRegister(PC, pc += 2);
 		updateStatus = false;
 		cycles += 4;
 		break;
 
         case MOVA_IMM2REG:
-            src = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            src = readMemory(pc, AccessMode.WORD, AccessType.READ);
             writeRegister(PC, pc += 2);
             dst = src + (srcData << 16);
 //            System.out.println("*** Writing $" + getAddressAsString(dst) + " to reg: " + dstData);
@@ -1217,7 +1778,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         	// the data is stored in the following word (PC + 2) and
         	// the high 4 bits in the instruction word, which we have
         	// masked out as srcData.
-        	int immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+        	int immData = readMemory(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
         	writeRegister(PC, pc += 2);
         	int dstArg = readRegister(dstData);
         	dst = dstArg + immData;
@@ -1239,7 +1800,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       operand delivers a negative result, or if the subtraction of a positive source
 	       operand from a negative destination operand delivers a positive result, reset
 	       otherwise (no overflow) */
-		immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+		immData = readMemory(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
 		writeRegister(PC, pc += 2);
 		sr = readRegister(SR);
 
@@ -1269,7 +1830,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 		break;
 	}
         case SUBA_IMM:
-            immData = currentSegment.read(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
+            immData = readMemory(pc, AccessMode.WORD, AccessType.READ) + (srcData << 16);
             writeRegister(PC, pc += 2);
 	    dst = readRegister(dstData) - immData;
 	    writeRegister(dstData, dst);
@@ -1444,7 +2005,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
               /* what happens if wrapping here??? */
               /* read the index which is from -15 bit - +15 bit. - so extend sign to 20-bit */
-              int index = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+              int index = readMemory(pc, AccessMode.WORD, AccessType.READ);
               index = convertTwoComplement16(index);
 
 //              System.out.println("CALLA INDX: Reg = " + Utils.hex20(dst) + " INDX: " +  index);
@@ -1453,7 +2014,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
               dst &= 0xfffff;
 
 //              System.out.println("CALLA INDX => " + Utils.hex20(dst));
-              dst = currentSegment.read(dst, AccessMode.WORD20, AccessType.READ);
+              dst = readMemory(dst, AccessMode.WORD20, AccessType.READ);
 //              System.out.println("CALLA Read from INDX => " + Utils.hex20(dst));
               cycles += 5;
               pc += 2;
@@ -1463,7 +2024,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
               sp = readRegister(SP) - 2;
               writeRegister(SP, sp);
 
-              dst = (dstRegister << 16) | currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+              dst = (dstRegister << 16) | readMemory(pc, AccessMode.WORD, AccessType.READ);
               pc += 2;
               cycles += 5;
               break;
@@ -1473,7 +2034,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
               dstAddress = readRegister(dstRegister);
               
-              dst = currentSegment.read(dstAddress, AccessMode.WORD20, AccessType.READ);
+              dst = readMemory(dstAddress, AccessMode.WORD20, AccessType.READ);
               cycles += 5;
               break;
           case CALLA_ABS:
@@ -1481,8 +2042,8 @@ public class MSP430Core extends Chip implements MSP430Constants {
               writeRegister(SP, sp);
 
               /* read the address of where the address to call is */
-              dst = (dstRegister << 16) | currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
-              dst = currentSegment.read(dst, AccessMode.WORD20, AccessType.READ);
+              dst = (dstRegister << 16) | readMemory(pc, AccessMode.WORD, AccessType.READ);
+              dst = readMemory(dst, AccessMode.WORD20, AccessType.READ);
               pc += 2;
               cycles += 7;
               break;
@@ -1507,7 +2068,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         		  for(int i = 0; i < n; i++) {
         			  sp -= size;
         			  cycles += 2;
-        			  currentSegment.write(sp, this.reg[regNo], type);
+        			  writeMemory(sp, this.reg[regNo], type);
         			  /*System.out.println("Saved reg: " + (regNo) + " was " + reg[regNo]);*/
         			  regNo--;
 
@@ -1527,7 +2088,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
         		  for(int i = 0; i < n; i++) {
         			  cycles += 2;
-        			  this.reg[regNo] = currentSegment.read(sp, type, AccessType.READ);
+        			  this.reg[regNo] = readMemory(sp, type, AccessType.READ);
         			  regNo++;
         			  //                      System.out.println("Restored reg: " + (regNo - 1) + " to " + reg[regNo - 1]);
         			  sp += size;
@@ -1546,9 +2107,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
           // store current PC on stack. (current PC points to next instr.)
           /* store 20 bits on stack (costs two words) */
           if (dst != -1) {
-              currentSegment.write(sp, (pc >> 16) & 0xf, AccessMode.WORD);
+              writeMemory(sp, (pc >> 16) & 0xf, AccessMode.WORD);
               sp = sp - 2;
-              currentSegment.write(sp, pc & 0xffff, AccessMode.WORD);
+              writeMemory(sp, pc & 0xffff, AccessMode.WORD);
               writeRegister(SP, sp);
               writeRegister(PC, dst);
               
@@ -1593,7 +2154,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                      * "The operand address is the sum of the 20-bit CPU register
                      * content and the 20-bit index."
                      */
-                    dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+                    dstAddress = readMemory(pc, AccessMode.WORD, AccessType.READ);
                     dstAddress += extDst;
                     dstAddress += rval;
                     dstAddress &= 0xfffff;
@@ -1605,7 +2166,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                        * after the addition of the CPU register Rn and the signed
                        * 16-bit index."
                        */
-                      dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+                      dstAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
                       dstAddress += rval;
                       dstAddress &= 0xffff;
                     } else {
@@ -1614,7 +2175,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                        * "The operand may be located in memory in the range Rn +-32
                        * KB, because the index, X, is a signed 16-bit value"
                        */
-                      dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+                      dstAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
                       dstAddress += rval;
                       dstAddress &= 0xfffff;
                     }
@@ -1636,7 +2197,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                   if (dstRegister == PC) {
                       dstAddress = pc;
 
-                      dst = currentSegment.read(dstAddress, mode != AccessMode.BYTE ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
+                      dst = readMemory(dstAddress, mode != AccessMode.BYTE ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
                       
                       dst += extDst;
                       pc += 2;
@@ -1668,7 +2229,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //                  System.out.println("*** Repeat " + repeats + " ZeroCarry: " + zeroCarry);
 //              }
           } else if (dst == -1) {
-              dst = currentSegment.read(dstAddress, mode, AccessType.READ);
+              dst = readMemory(dstAddress, mode, AccessType.READ);
           }
           
           /* TODO: test add the loop here! */
@@ -1720,7 +2281,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                       sp = readRegister(SP) - 2;
                       writeRegister(SP, sp);
                   }
-                  currentSegment.write(sp, dst, mode);
+                  writeMemory(sp, dst, mode);
 
                   /* if REG or INDIRECT AUTOINC then add 2 cycles, otherwise 1 */
                   cycles += (ad == AM_REG || ad == AM_IND_AUTOINC) ? 2 : 1;
@@ -1733,7 +2294,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
                   //	memory[sp] = pc & 0xff;
                   //	memory[sp + 1] = pc >> 8;
-                  currentSegment.write(sp, pc, AccessMode.WORD);
+                  writeMemory(sp, pc, AccessMode.WORD);
                   writeRegister(PC, dst);
 
                   /* Additional cycles: REG => 3, AM_IND_AUTO => 2, other => 1 */
@@ -1751,13 +2312,13 @@ public class MSP430Core extends Chip implements MSP430Constants {
                   // Put Top of stack to Status DstRegister (TOS -> SR)
                   servicedInterrupt = -1; /* needed before write to SR!!! */
                   sp = readRegister(SP);
-                  sr = currentSegment.read(sp, AccessMode.WORD, AccessType.READ);
+                  sr = readMemory(sp, AccessMode.WORD, AccessType.READ);
                   writeRegister(SR, sr & 0x0fff);
                   sp = sp + 2;
                   //	writeRegister(SR, memory[sp++] + (memory[sp++] << 8));
                   // TOS -> PC
                   //	writeRegister(PC, memory[sp++] + (memory[sp++] << 8));
-                  writeRegister(PC, currentSegment.read(sp, AccessMode.WORD, AccessType.READ) | (sr & 0xf000) << 4);
+                  writeRegister(PC, readMemory(sp, AccessMode.WORD, AccessType.READ) | (sr & 0xf000) << 4);
                   sp = sp + 2;
                   writeRegister(SP, sp);
                   write = false;
@@ -1896,7 +2457,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	     * "The operand address is the sum of the 20-bit CPU register
 	     * content and the 20-bit index."
 	     */
-	    srcAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+	    srcAddress = readMemory(pc, AccessMode.WORD, AccessType.READ);
 	    srcAddress += extSrc;
 	    srcAddress += sval;
 	    srcAddress &= 0xfffff;
@@ -1908,7 +2469,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       * after the addition of the CPU register Rn and the signed
 	       * 16-bit index."
 	       */
-	      srcAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+	      srcAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
 	      srcAddress += sval;
 	      srcAddress &= 0xffff;
 	    } else {
@@ -1917,7 +2478,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 	       * "The operand may be located in memory in the range Rn +-32
 	       * KB, because the index, X, is a signed 16-bit value"
 	       */
-	      srcAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+	      srcAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
 	      srcAddress += sval;
 	      srcAddress &= 0xfffff;
 	    }
@@ -1937,10 +2498,10 @@ public class MSP430Core extends Chip implements MSP430Constants {
 		if (srcRegister == PC) {
 			/* PC is always handled as word */
 			if (mode == AccessMode.BYTE) {
-				src = currentSegment.read(pc, AccessMode.BYTE,
+				src = readMemory(pc, AccessMode.BYTE,
 						AccessType.READ);
 			} else {
-				src = currentSegment.read(pc, AccessMode.WORD,
+				src = readMemory(pc, AccessMode.WORD,
 						AccessType.READ);
 			}
 			src += extSrc;
@@ -1974,7 +2535,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
 
         if (dstRegister == 2) {
           /* absolute mode */
-          dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ); //memory[pc] + (memory[pc + 1] << 8);
+          dstAddress = readMemory(pc, AccessMode.WORD, AccessType.READ); //memory[pc] + (memory[pc + 1] << 8);
           //System.out.println("dstAddress += extDst" + dstAddress + " " + extDst);
           dstAddress += extDst;
         } else {
@@ -1991,7 +2552,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
              * "The operand address is the sum of the 20-bit CPU register
              * content and the 20-bit index."
              */
-            dstAddress = currentSegment.read(pc, AccessMode.WORD, AccessType.READ);
+            dstAddress = readMemory(pc, AccessMode.WORD, AccessType.READ);
             dstAddress += extDst;
             dstAddress += rval;
             dstAddress &= 0xfffff;
@@ -2003,7 +2564,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                * after the addition of the CPU register Rn and the signed
                * 16-bit index."
                */
-              dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+              dstAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
               dstAddress += rval;
               dstAddress &= 0xffff;
             } else {
@@ -2012,7 +2573,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
                * "The operand may be located in memory in the range Rn +-32
                * KB, because the index, X, is a signed 16-bit value"
                */
-              dstAddress = convertTwoComplement16(currentSegment.read(pc, AccessMode.WORD, AccessType.READ));
+              dstAddress = convertTwoComplement16(readMemory(pc, AccessMode.WORD, AccessType.READ));
               dstAddress += rval;
               dstAddress &= 0xfffff;
             }
@@ -2020,7 +2581,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
         }
 
         if (op != MOV) {
-        	dst = currentSegment.read(dstAddress, mode, AccessType.READ);
+        	dst = readMemory(dstAddress, mode, AccessType.READ);
 			//System.out.println("dstAddress + dst = " + dstAddress + " " + dst);
         	
         }
@@ -2035,9 +2596,9 @@ public class MSP430Core extends Chip implements MSP430Constants {
 //            System.out.println("SrcAddress is: " + Utils.hex20(srcAddress));
 //        }
 //	srcAddress = srcAddress & 0xffff;
-        src = currentSegment.read(srcAddress, mode, AccessType.READ);
+        src = readMemory(srcAddress, mode, AccessType.READ);
 
-//	src = currentSegment.read(srcAddress, word ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
+//	src = readMemory(srcAddress, word ? AccessMode.WORD : AccessMode.BYTE, AccessType.READ);
 
 	// 	  if (debug) {
 	// 	    System.out.println("Reading from " + getAddressAsString(srcAddress) +
@@ -2207,7 +2768,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
       if (dstRegMode) {
 	writeRegister(dstRegister, dst);
       } else {
-        currentSegment.write(dstAddress, dst, mode);
+        writeMemory(dstAddress, dst, mode);
       }
     }
     if (updateStatus) {
@@ -2258,6 +2819,51 @@ public class MSP430Core extends Chip implements MSP430Constants {
     return function;
   }
 
+  /**
+   * Returns the byte at the specified address without going through the
+   * memory segments, i.e. without any side effects. For IO addresses the
+   * value last stored by the IO unit is returned.
+   */
+  public int peek(int address) {
+    if (address < ioMemory.length) {
+      return ioMemory[address];
+    }
+    if (pagedMemory.contains(address)) {
+      return pagedMemory.get(address);
+    }
+    return 0;
+  }
+
+  /**
+   * Stores a byte at the specified address without going through the
+   * memory segments. Used for loading firmware and by debuggers.
+   */
+  public void poke(int address, int value) {
+    if (address < ioMemory.length) {
+      ioMemory[address] = value;
+    } else if (pagedMemory.contains(address)) {
+      pagedMemory.set(address, value);
+    } else {
+      return;
+    }
+    instructionCache.notifyWrite(address, 1);
+  }
+
+  /**
+   * Returns a copy of the whole address space as the public memory array
+   * used to hold it. Writes to the copy do not reach the CPU.
+   * @deprecated use peek() and poke(), or getMemory() for accesses that
+   * should go through the IO units and watchpoints.
+   */
+  @Deprecated
+  public int[] getMemoryCopy() {
+    int[] memory = new int[MAX_MEM];
+    for (int i = 0; i < MAX_MEM; i++) {
+      memory[i] = peek(i);
+    }
+    return memory;
+  }
+
   public Memory getMemory() {
       return currentSegment;
   }
@@ -2292,6 +2898,7 @@ public class MSP430Core extends Chip implements MSP430Constants {
               + "  ACLK: " + aclkFrq + " Hz  SMCLK: " + smclkFrq + " Hz MCLK: " + dcoFrq + " Hz   \n"
               + " Cycles: " + cycles + "  CPU Cycles: " + cpuCycles
               + "  Time: " + (long)getTimeMillis() + " msec\n");
+      buf.append(pagedMemory.info()).append('\n');
       buf.append(" Interrupt enabled: " + interruptsEnabled +  " HighestInterrupt: " + interruptMax);
       for (int i = 0; i < MAX_INTERRUPT; i++) {
           int value = currentSegment.get(0xfffe - i * 2, AccessMode.WORD); 
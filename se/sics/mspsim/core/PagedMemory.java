@@ -0,0 +1,219 @@
+package se.sics.mspsim.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+import se.sics.mspsim.util.StateSnapshot;
+
+/**
+ * Byte-packed copy-on-write storage for the RAM, the info memory and the
+ * main flash.
+ *
+ * The address space is divided in pages of Memory.SEGMENT_SIZE bytes and
+ * only the pages of allocated ranges exist. Pages can be shared between
+ * all CPUs in the JVM: share() replaces each page with an identical page
+ * from a global pool, or adds it to the pool when there is none. A shared
+ * page is never modified - the first write to a shared page gives the CPU
+ * a private copy. When many nodes run the same firmware they all use the
+ * same flash pages, and erased flash and untouched RAM pages are shared
+ * by all nodes.
+ *
+ * Each byte is stored in one byte, words are little-endian.
+ */
+public class PagedMemory implements StateSnapshot.Stateful {
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = Memory.SEGMENT_SIZE;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /* A page in the global pool, compared by content */
+    private static final class SharedPage {
+        final byte[] data;
+        final int hash;
+
+        SharedPage(byte[] data) {
+            this.data = data;
+            this.hash = Arrays.hashCode(data);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof SharedPage && ((SharedPage) o).hash == hash
+                && Arrays.equals(((SharedPage) o).data, data);
+        }
+    }
+
+    /* Pages are kept in the pool for as long as some CPU is using them */
+    private static final WeakHashMap<SharedPage,WeakReference<SharedPage>> pool =
+        new WeakHashMap<SharedPage,WeakReference<SharedPage>>();
+
+    private final byte[][] pages;
+    /* The pool entry of each shared page or null for private pages */
+    private final SharedPage[] shared;
+
+    public PagedMemory(int size) {
+        this.pages = new byte[(size + PAGE_MASK) >> PAGE_SHIFT][];
+        this.shared = new SharedPage[pages.length];
+    }
+
+    /**
+     * Allocates the pages of the specified range. The range must be page
+     * aligned and all bytes are set to the specified value.
+     */
+    public void allocate(int start, int size, int value) {
+        if ((start & PAGE_MASK) != 0 || (size & PAGE_MASK) != 0) {
+            throw new IllegalArgumentException("paged memory must be page aligned");
+        }
+        byte[] page = new byte[PAGE_SIZE];
+        Arrays.fill(page, (byte) value);
+        SharedPage filled = intern(new SharedPage(page));
+        for (int p = start >> PAGE_SHIFT, end = (start + size) >> PAGE_SHIFT; p < end; p++) {
+            pages[p] = filled.data;
+            shared[p] = filled;
+        }
+    }
+
+    private static SharedPage intern(SharedPage page) {
+        synchronized (pool) {
+            WeakReference<SharedPage> ref = pool.get(page);
+            SharedPage p = ref == null ? null : ref.get();
+            if (p == null) {
+                pool.put(page, new WeakReference<SharedPage>(page));
+                p = page;
+            }
+            return p;
+        }
+    }
+
+    /* Returns true if the address is within an allocated range */
+    public final boolean contains(int address) {
+        return address >= 0 && (address >> PAGE_SHIFT) < pages.length
+            && pages[address >> PAGE_SHIFT] != null;
+    }
+
+    public final int get(int address) {
+        return pages[address >> PAGE_SHIFT][address & PAGE_MASK] & 0xff;
+    }
+
+    public final int getWord(int address) {
+        int i = address & PAGE_MASK;
+        if (i != PAGE_MASK) {
+            byte[] page = pages[address >> PAGE_SHIFT];
+            return (page[i] & 0xff) | ((page[i + 1] & 0xff) << 8);
+        }
+        return get(address) | (get(address + 1) << 8);
+    }
+
+    public final void set(int address, int value) {
+        int p = address >> PAGE_SHIFT;
+        int i = address & PAGE_MASK;
+        if (shared[p] != null) {
+            if (pages[p][i] == (byte) value) {
+                return;
+            }
+            pages[p] = pages[p].clone();
+            shared[p] = null;
+        }
+        pages[p][i] = (byte) value;
+    }
+
+    public final void setWord(int address, int value) {
+        int p = address >> PAGE_SHIFT;
+        int i = address & PAGE_MASK;
+        if (i != PAGE_MASK && shared[p] == null) {
+            byte[] page = pages[p];
+            page[i] = (byte) value;
+            page[i + 1] = (byte) (value >> 8);
+        } else {
+            set(address, value);
+            set(address + 1, value >> 8);
+        }
+    }
+
+    /**
+     * Shares all private pages with the other CPUs. Called when the memory
+     * contents are expected to stay the same for some time, for example
+     * after loading a firmware.
+     */
+    public void share() {
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null && shared[i] == null) {
+                SharedPage page = intern(new SharedPage(pages[i]));
+                pages[i] = page.data;
+                shared[i] = page;
+            }
+        }
+    }
+
+    public int getPageCount() {
+        int count = 0;
+        for (byte[] page : pages) {
+            if (page != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getPrivatePageCount() {
+        int count = 0;
+        for (int i = 0; i < pages.length; i++) {
+            if (pages[i] != null && shared[i] == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public static int getSharedPageCount() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(pages.length);
+        for (byte[] page : pages) {
+            if (page == null) {
+                out.writeBoolean(false);
+            } else {
+                out.writeBoolean(true);
+                out.write(page);
+            }
+        }
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        if (in.readInt() != pages.length) {
+            throw new IOException("paged memory size mismatch");
+        }
+        byte[] data = new byte[PAGE_SIZE];
+        for (int p = 0; p < pages.length; p++) {
+            if (in.readBoolean() != (pages[p] != null)) {
+                throw new IOException("paged memory layout mismatch at $" + Integer.toHexString(p << PAGE_SHIFT));
+            }
+            if (pages[p] != null) {
+                in.readFully(data);
+                if (!Arrays.equals(data, pages[p])) {
+                    pages[p] = data.clone();
+                    shared[p] = null;
+                }
+            }
+        }
+        share();
+    }
+
+    public String info() {
+        return " Memory pages: " + getPageCount() + " of which " + getPrivatePageCount()
+            + " private, " + getSharedPageCount() + " pages shared in the JVM";
+    }
+}
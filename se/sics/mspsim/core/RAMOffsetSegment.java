@@ -42,46 +42,48 @@ import se.sics.mspsim.core.EmulationLogger.WarningType;
 class RAMOffsetSegment implements Memory {
 
     private final MSP430Core core;
-    private final int memory[];
+    private final PagedMemory memory;
     private final int offset;
+    private final InstructionCache instructionCache;
 
     RAMOffsetSegment(MSP430Core core, int offset) {
         this.core = core;
-        this.memory = core.memory;
+        this.memory = core.pagedMemory;
         this.offset = offset;
+        this.instructionCache = core.instructionCache;
     }
 
     @Override public int read(int address, AccessMode mode, AccessType type)
             throws EmulationException {
         address += offset;
-        int val = memory[address] & 0xff;
-        if (mode != AccessMode.BYTE) {
-            val |= (memory[address + 1] << 8);
-            if ((address & 1) != 0) {
-                core.printWarning(WarningType.MISALIGNED_READ, address);
-            }
-            if (mode == AccessMode.WORD20) {
-                val |= (memory[address + 2] << 16) | (memory[address + 3] << 24);
-            }
-            val &= mode.mask;
+        if (mode == AccessMode.BYTE) {
+            return memory.get(address);
+        }
+        int val = memory.getWord(address);
+        if ((address & 1) != 0) {
+            core.printWarning(WarningType.MISALIGNED_READ, address);
+        }
+        if (mode == AccessMode.WORD20) {
+            val |= memory.getWord(address + 2) << 16;
         }
-        return val;
+        return val & mode.mask;
     }
 
     @Override public void write(int dstAddress, int dst, AccessMode mode)
             throws EmulationException {
         dstAddress += offset;
-        memory[dstAddress] = dst & 0xff;
-        if (mode != AccessMode.BYTE) {
-            memory[dstAddress + 1] = (dst >> 8) & 0xff;
+        if (mode == AccessMode.BYTE) {
+            memory.set(dstAddress, dst);
+        } else {
+            memory.setWord(dstAddress, dst);
             if ((dstAddress & 1) != 0) {
                 core.printWarning(WarningType.MISALIGNED_WRITE, dstAddress);
             }
             if (mode != AccessMode.WORD) {
-                memory[dstAddress + 2] = (dst >> 16) & 0xff;
-                memory[dstAddress + 3] = (dst >> 24) & 0xff;
+                memory.setWord(dstAddress + 2, dst >> 16);
             }
         }
+        instructionCache.notifyWrite(dstAddress, mode.bytes);
     }
 
     @Override public int get(int address, AccessMode mode) {
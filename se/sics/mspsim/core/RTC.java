@@ -32,6 +32,9 @@
  */
 package se.sics.mspsim.core;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
@@ -107,7 +110,7 @@ public class RTC extends IOUnit {
 	 *           CPU core
 	 */
 	public RTC(MSP430Core cpu, int offset, RtcType r, int intVector) {
-		super("RTC", cpu, cpu.memory, offset);
+		super("RTC", cpu, cpu.ioMemory, offset);
 		type = r;
 		rtcIntVector = intVector;
 		DEBUG = true;
@@ -713,8 +716,30 @@ public class RTC extends IOUnit {
 		}
 	}
 
+	@Override
+	protected void log(String format, long arg) {
+		log(format, new Object[] { arg });
+	}
+
+	@Override
+	protected void log(String format, long arg1, long arg2) {
+		log(format, new Object[] { arg1, arg2 });
+	}
+
 	private void logNotImplemented(String feature) {
 		logw(WarningType.EMULATION_ERROR, feature + " is not implemented");
 	}
 
+	@Override
+	public void writeState(DataOutputStream out) throws IOException {
+		super.writeState(out);
+		out.writeLong(cal.getTimeInMillis());
+	}
+
+	@Override
+	public void readState(DataInputStream in) throws IOException {
+		super.readState(in);
+		cal.setTimeInMillis(in.readLong());
+	}
+
 }
@@ -42,9 +42,9 @@
 package se.sics.mspsim.core;
 
 public abstract class TimeEvent {
-  // For linking events...
-  TimeEvent nextEvent;
-  TimeEvent prevEvent;
+  // Position in the event queue heap and insertion order for ties
+  int heapIndex = -1;
+  long sequence;
 
   // Keeps track of where this is scheduled
   EventQueue scheduledIn = null;
@@ -509,7 +509,7 @@ public class Timer extends IOUnit {
       val = ccr[i].tccr;
       break;
     default:
-      logw(WarningType.VOID_IO_READ, "Not supported read, returning zero!!! addr: " + index + " addr: $" + Utils.hex(address, 4));
+      logw(WarningType.VOID_IO_READ, "Not supported read, returning zero!!! addr: %d addr: $%04x", index, address);
     }
     
     if (DEBUG) {
@@ -752,7 +752,7 @@ public class Timer extends IOUnit {
         }
       }
       if (ccr[index] == null)
-          logw(WarningType.VOID_IO_WRITE, "Timer write to " + Utils.hex16(address));
+          logw(WarningType.VOID_IO_WRITE, "Timer write to %04x", address);
       ccr[index].tccr = data;
 
       int diff = data - counter;
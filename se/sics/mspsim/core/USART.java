@@ -331,7 +331,7 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
       // When byte is read - the interruptflag is cleared!
       // and error status should also be cleared later...
       if (MSP430Constants.DEBUGGING_LEVEL > 0) {
-          log(" clearing rx interrupt flag " + cpu.getPC() + " byte: " + tmp);
+          log(" clearing rx interrupt flag %d byte: %d", cpu.getPC(), tmp);
       }
       clrBitIFG(urxifg);
       /* This should be changed to a state rather than an "event" */
@@ -375,7 +375,7 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
 
   private void handleTransmit(long cycles) {
     if (cpu.getMode() >= MSP430Core.MODE_LPM3) {
-      logw(WarningType.EXECUTION, "Warning: USART transmission during LPM!!! " + nextTXByte);
+      logw(WarningType.EXECUTION, "Warning: USART transmission during LPM!!! %d", nextTXByte);
     }
 
     if (transmitting) {
@@ -408,7 +408,7 @@ public class USART extends IOUnit implements SFRModule, DMATrigger, USARTSource
       if (isIEBitsSet(utxifg)) {
         log(" flagging on transmit interrupt");
       }
-      log(" Ready to transmit next at: " + cycles);
+      log(" Ready to transmit next at: %d", cycles);
     }
   }
 
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * WatchPoint
+ */
+
+package se.sics.mspsim.core;
+
+/**
+ * A watch on a range of addresses. The monitor is notified about all
+ * accesses of the selected types that touch any byte in the range and,
+ * when a condition is given, only if the condition accepts the access.
+ *
+ * Watch points are added to the CPU with MSP430Core.addWatchPoint().
+ */
+public class WatchPoint {
+
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int EXECUTE = 4;
+    public static final int ALL = READ | WRITE | EXECUTE;
+
+    public interface Condition {
+        /**
+         * Returns true if the monitor should be notified about the access.
+         * The data is the value read or the value being written.
+         */
+        public boolean matches(int address, int data, Memory.AccessMode mode, Memory.AccessType type);
+    }
+
+    final int start;
+    final int end;
+    final int types;
+    final MemoryMonitor monitor;
+    final Condition condition;
+
+    public WatchPoint(int start, int length, int types, MemoryMonitor monitor, Condition condition) {
+        if (length < 1) {
+            throw new IllegalArgumentException("watch length must be at least one byte");
+        }
+        if ((types & ALL) == 0) {
+            throw new IllegalArgumentException("no access types to watch");
+        }
+        if (monitor == null) {
+            throw new NullPointerException("monitor");
+        }
+        this.start = start;
+        this.end = start + length;
+        this.types = types & ALL;
+        this.monitor = monitor;
+        this.condition = condition;
+    }
+
+    public WatchPoint(int start, int length, MemoryMonitor monitor) {
+        this(start, length, ALL, monitor, null);
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getLength() {
+        return end - start;
+    }
+
+    public int getTypes() {
+        return types;
+    }
+
+    public MemoryMonitor getMonitor() {
+        return monitor;
+    }
+
+    public Condition getCondition() {
+        return condition;
+    }
+
+    public boolean contains(int address) {
+        return address >= start && address < end;
+    }
+
+    static int getTypeMask(Memory.AccessType type) {
+        switch (type) {
+        case EXECUTE:
+            return EXECUTE;
+        case WRITE:
+            return WRITE;
+        default:
+            return READ;
+        }
+    }
+
+    /* Returns true if an access of the given bytes should be reported */
+    final boolean matches(int address, int bytes, int typeMask) {
+        return (types & typeMask) != 0 && address < end && address + bytes > start;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('$').append(Integer.toHexString(start));
+        if (end - start > 1) {
+            sb.append(" - $").append(Integer.toHexString(end - 1));
+        }
+        sb.append(' ');
+        if ((types & READ) != 0) sb.append('r');
+        if ((types & WRITE) != 0) sb.append('w');
+        if ((types & EXECUTE) != 0) sb.append('x');
+        if (condition != null) {
+            sb.append(" if ").append(condition);
+        }
+        return sb.toString();
+    }
+}
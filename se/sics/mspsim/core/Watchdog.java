@@ -89,7 +89,7 @@ public class Watchdog extends IOUnit implements SFRModule {
   };
 
   public Watchdog(MSP430Core cpu, int address) {
-    super("Watchdog", cpu, cpu.memory, address);
+    super("Watchdog", cpu, cpu.ioMemory, address);
 
     resetVector = cpu.MAX_INTERRUPT;
     
@@ -1,41 +1,114 @@
 package se.sics.mspsim.core;
 
+import java.util.Arrays;
+
+/**
+ * Memory segment wrapper for a page that has at least one watch point.
+ *
+ * The watched bytes of the page are kept in a 256 bit bitset so the common
+ * case of an access to an unwatched byte in a watched page costs a single
+ * bit test. Only accesses that touch a watched byte look at the watch
+ * points that overlap the page. Pages without watch points are not wrapped
+ * at all.
+ */
 public class WatchedMemory implements Memory {
 
+    private static final WatchPoint[] EMPTY = new WatchPoint[0];
+
     private final int start;
     private final Memory wrappedMemory;
-    private final MemoryMonitor watchPoints[] = new MemoryMonitor[Memory.SEGMENT_SIZE];
+    /* if the instruction cache was enabled for the page before wrapping */
+    final boolean wasCacheable;
 
-    WatchedMemory(int start, Memory wrapped) {
+    private final long[] watched = new long[Memory.SEGMENT_SIZE >> 6];
+    private volatile WatchPoint[] watchPoints = EMPTY;
+    private boolean executeWatched;
+
+    WatchedMemory(int start, Memory wrapped, boolean wasCacheable) {
         this.start = start;
         this.wrappedMemory = wrapped;
+        this.wasCacheable = wasCacheable;
+    }
+
+    public Memory getWatchedMemory() {
+        return wrappedMemory;
+    }
+
+    /* Returns true if any of the bytes in the access is watched */
+    private boolean isWatched(int address, int bytes) {
+        final int a = address - start;
+        final int i = a >> 6;
+        final int shift = a & 63;
+        long bits = watched[i] >>> shift;
+        if (shift + bytes > 64 && i + 1 < watched.length) {
+            bits |= watched[i + 1] << (64 - shift);
+        }
+        return (bits & ((1L << bytes) - 1)) != 0;
     }
 
     @Override
     public int read(int address, AccessMode mode, AccessType type) throws EmulationException {
-        final int a = address - start;
-        int val;
-        MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyReadBefore(address, mode, type);
-            val = wrappedMemory.read(address, mode, type);
-            mon.notifyReadAfter(address, mode, type);
-        } else {
-            val = wrappedMemory.read(address, mode, type);
+        if (!isWatched(address, mode.bytes)) {
+            return wrappedMemory.read(address, mode, type);
+        }
+        final WatchPoint[] wps = watchPoints;
+        final int typeMask = WatchPoint.getTypeMask(type);
+        /* the conditions before the read are checked against the current value */
+        int data = -1;
+        for (WatchPoint wp : wps) {
+            if (wp.matches(address, mode.bytes, typeMask)) {
+                if (wp.condition != null) {
+                    if (data < 0) {
+                        data = peek(address, mode);
+                    }
+                    if (!wp.condition.matches(address, data, mode, type)) {
+                        continue;
+                    }
+                }
+                wp.monitor.notifyReadBefore(address, mode, type);
+            }
+        }
+        /* and after the read against the value that was read */
+        final int val = wrappedMemory.read(address, mode, type);
+        for (WatchPoint wp : wps) {
+            if (wp.matches(address, mode.bytes, typeMask)
+                    && (wp.condition == null || wp.condition.matches(address, val, mode, type))) {
+                wp.monitor.notifyReadAfter(address, mode, type);
+            }
         }
         return val;
     }
 
+    /*
+     * Returns the value at the address without side effects. The get() of
+     * an IO segment reads the IO units, so the last stored value is used.
+     */
+    private int peek(int address, AccessMode mode) {
+        if (wrappedMemory instanceof IOSegment) {
+            return ((IOSegment) wrappedMemory).peek(address, mode);
+        }
+        return wrappedMemory.get(address, mode);
+    }
+
     @Override
     public void write(int dstAddress, int dst, AccessMode mode) throws EmulationException {
-        final int a = dstAddress - start;
-        final MemoryMonitor mon = watchPoints[a];
-        if (mon != null) {
-            mon.notifyWriteBefore(dstAddress, dst, mode);
-            wrappedMemory.write(dstAddress, dst, mode);
-            mon.notifyWriteAfter(dstAddress, dst, mode);
-        } else {
+        if (!isWatched(dstAddress, mode.bytes)) {
             wrappedMemory.write(dstAddress, dst, mode);
+            return;
+        }
+        final WatchPoint[] wps = watchPoints;
+        for (WatchPoint wp : wps) {
+            if (wp.matches(dstAddress, mode.bytes, WatchPoint.WRITE)
+                    && (wp.condition == null || wp.condition.matches(dstAddress, dst, mode, AccessType.WRITE))) {
+                wp.monitor.notifyWriteBefore(dstAddress, dst, mode);
+            }
+        }
+        wrappedMemory.write(dstAddress, dst, mode);
+        for (WatchPoint wp : wps) {
+            if (wp.matches(dstAddress, mode.bytes, WatchPoint.WRITE)
+                    && (wp.condition == null || wp.condition.matches(dstAddress, dst, mode, AccessType.WRITE))) {
+                wp.monitor.notifyWriteAfter(dstAddress, dst, mode);
+            }
         }
     }
 
@@ -50,18 +123,57 @@ public class WatchedMemory implements Memory {
     }
 
     public boolean hasWatchPoint(int address) {
-        MemoryMonitor mon = watchPoints[address - start];
-        return mon != null;
+        final int a = address - start;
+        return (watched[a >> 6] & (1L << a)) != 0;
     }
 
-    public synchronized void addWatchPoint(int address, MemoryMonitor mon) {
-        final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.add(watchPoints[a], mon);
+    public WatchPoint[] getWatchPoints() {
+        return watchPoints;
     }
 
-    public synchronized void removeWatchPoint(int address, MemoryMonitor mon) {
-        final int a = address - start;
-        watchPoints[a] = MemoryMonitor.Proxy.INSTANCE.remove(watchPoints[a], mon);
+    boolean isEmpty() {
+        return watchPoints.length == 0;
+    }
+
+    /* Returns true if any watch point on the page watches instruction fetches */
+    boolean isExecuteWatched() {
+        return executeWatched;
+    }
+
+    synchronized void addWatchPoint(WatchPoint wp) {
+        WatchPoint[] wps = Arrays.copyOf(watchPoints, watchPoints.length + 1);
+        wps[wps.length - 1] = wp;
+        watchPoints = wps;
+        update();
+    }
+
+    synchronized void removeWatchPoint(WatchPoint wp) {
+        WatchPoint[] wps = watchPoints;
+        for (int i = 0; i < wps.length; i++) {
+            if (wps[i] == wp) {
+                WatchPoint[] tmp = new WatchPoint[wps.length - 1];
+                System.arraycopy(wps, 0, tmp, 0, i);
+                System.arraycopy(wps, i + 1, tmp, i, tmp.length - i);
+                watchPoints = tmp;
+                update();
+                return;
+            }
+        }
+    }
+
+    private void update() {
+        Arrays.fill(watched, 0);
+        executeWatched = false;
+        for (WatchPoint wp : watchPoints) {
+            int a = Math.max(wp.start, start) - start;
+            int end = Math.min(wp.end, start + Memory.SEGMENT_SIZE) - start;
+            for (; a < end; a++) {
+                watched[a >> 6] |= 1L << a;
+            }
+            if ((wp.types & WatchPoint.EXECUTE) != 0) {
+                executeWatched = true;
+            }
+        }
     }
 
 }
@@ -41,6 +41,9 @@ package se.sics.mspsim.debug;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import se.sics.mspsim.util.DebugInfo;
 import se.sics.mspsim.util.ELF;
@@ -103,6 +106,8 @@ public class DwarfReader implements ELFDebug {
     }
 
     ArrayList<LineData> lineInfo = new ArrayList<LineData>();
+    /* address to line index created on first lookup */
+    private volatile LineIndex lineIndex;
 
     /* some state for the line number handling */
     private int lineAddress;
@@ -120,6 +125,7 @@ public class DwarfReader implements ELFDebug {
     }
 
     public void read() {
+        lineIndex = null;
         for (int i = 0; i < elfFile.getSectionCount(); i++) {
             ELFSection sec = elfFile.getSection(i);
             String name = sec.getSectionName();
@@ -439,32 +445,64 @@ public class DwarfReader implements ELFDebug {
 
     /* Access methods for data... */
     public DebugInfo getDebugInfo(int address) {
-        for (int i = 0; i < lineInfo.size(); i++) {
-            LineData data = lineInfo.get(i);
+        LineIndex index = lineIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = lineIndex;
+                if (index == null) {
+                    lineIndex = index = createLineIndex();
+                }
+            }
+        }
+        return index.get(address);
+    }
+
+    /*
+     * A line entry covers the addresses up to the next entry within the
+     * address range of its line table (the last entry of each table only
+     * ends the range). Line tables starting at address 0 are ignored. When
+     * entries overlap the first one in table order wins, so each entry only
+     * claims the parts of its range that no earlier entry has claimed.
+     */
+    private LineIndex createLineIndex() {
+        /* claimed ranges: start -> inclusive end */
+        TreeMap<Integer,Integer> claimed = new TreeMap<Integer,Integer>();
+        /* the entry of each claimed range */
+        HashMap<Integer,LineEntry> entries = new HashMap<Integer,LineEntry>();
+        HashMap<Integer,String> entryFiles = new HashMap<Integer,String>();
+        for (LineData data : lineInfo) {
             int start = data.lineEntries[0].address;
             int end = data.lineEntries[data.lineEntries.length - 1].address;
             /* XXX ignore all line entries starting on address 0 */
             if (start == 0) continue;
 
-            if (address <= end && address >= start) {
-                for (int j = 0; j < data.lineEntries.length; j++) {
-                  LineEntry lineEntry = data.lineEntries[j];
-                  int startEntry = lineEntry.address;
-                  int endEntry;
-                  if (j+1 < data.lineEntries.length) {
-                    endEntry = data.lineEntries[j+1].address-1;
-                  } else {
-                    /* do not match prologue entries */
-                    continue;
-                  }
-                  if (address >= startEntry &&
-                      address <= endEntry) {
-                    return new DebugInfo(lineEntry.line, null, data.sourceFiles[lineEntry.file-1], "* not available");
-                  }
+            for (int j = 0; j + 1 < data.lineEntries.length; j++) {
+                LineEntry lineEntry = data.lineEntries[j];
+                int lo = Math.max(lineEntry.address, start);
+                int hi = Math.min(data.lineEntries[j + 1].address - 1, end);
+                int cur = lo;
+                while (cur <= hi) {
+                    Map.Entry<Integer,Integer> e = claimed.floorEntry(cur);
+                    if (e != null && e.getValue() >= cur) {
+                        cur = e.getValue() + 1;
+                        continue;
+                    }
+                    Integer next = claimed.higherKey(cur);
+                    int gapEnd = next == null ? hi : Math.min(hi, next - 1);
+                    claimed.put(cur, gapEnd);
+                    entries.put(cur, lineEntry);
+                    entryFiles.put(cur, data.sourceFiles[lineEntry.file - 1]);
+                    cur = gapEnd + 1;
                 }
             }
         }
-        return null;
+        LineIndex index = new LineIndex();
+        for (Map.Entry<Integer,Integer> e : claimed.entrySet()) {
+            LineEntry lineEntry = entries.get(e.getKey());
+            index.add(e.getKey(), e.getValue(), lineEntry.line, null,
+                    entryFiles.get(e.getKey()), "* not available");
+        }
+        return index;
     }
 
     public ArrayList<Integer> getExecutableAddresses() {
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * LineIndex
+ */
+
+package se.sics.mspsim.debug;
+import java.util.Arrays;
+
+import se.sics.mspsim.util.DebugInfo;
+
+/**
+ * Sorted table of disjoint address ranges with their source line used by
+ * the debug info readers for O(log n) address to line lookups. The debug
+ * info of each range is created on first lookup and then reused.
+ */
+class LineIndex {
+
+  private int count;
+  private int[] starts = new int[256];
+  /* inclusive end of each range */
+  private int[] ends = new int[256];
+  private int[] lines = new int[256];
+  private String[] paths = new String[256];
+  private String[] files = new String[256];
+  private String[] functions = new String[256];
+  private DebugInfo[] infos;
+
+  /**
+   * Adds a range. Ranges must be added in address order and must not
+   * overlap.
+   */
+  void add(int start, int end, int line, String path, String file, String function) {
+    if (count > 0 && start <= ends[count - 1]) {
+      throw new IllegalArgumentException("line ranges must be added in order");
+    }
+    if (count == starts.length) {
+      int size = count * 2;
+      starts = Arrays.copyOf(starts, size);
+      ends = Arrays.copyOf(ends, size);
+      lines = Arrays.copyOf(lines, size);
+      paths = Arrays.copyOf(paths, size);
+      files = Arrays.copyOf(files, size);
+      functions = Arrays.copyOf(functions, size);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    lines[count] = line;
+    paths[count] = path;
+    files[count] = file;
+    functions[count] = function;
+    count++;
+    infos = null;
+  }
+
+  int size() {
+    return count;
+  }
+
+  DebugInfo get(int address) {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid] <= address) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if (hi < 0 || address > ends[hi]) {
+      return null;
+    }
+    DebugInfo[] infos = this.infos;
+    if (infos == null) {
+      this.infos = infos = new DebugInfo[count];
+    }
+    DebugInfo info = infos[hi];
+    if (info == null) {
+      infos[hi] = info = new DebugInfo(lines[hi], paths[hi], files[hi], functions[hi]);
+    }
+    return info;
+  }
+}
@@ -49,6 +49,8 @@ import se.sics.mspsim.util.Utils;
 public class StabDebug implements ELFDebug {
 
   private Stab[] stabs;
+  /* address to line index created on first lookup */
+  private volatile LineIndex lineIndex;
 
   public static final int N_FUN = 0x24;
   public static final int N_STSYM = 0x26; // Data segment file-scope variable; 
@@ -121,68 +123,70 @@ public class StabDebug implements ELFDebug {
   
   /* Just pick up file + some other things */
   public DebugInfo getDebugInfo(int address) {
+    LineIndex index = lineIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = lineIndex;
+        if (index == null) {
+          lineIndex = index = createLineIndex();
+        }
+      }
+    }
+    return index.get(address);
+  }
+
+  /*
+   * The stabs are scanned in order and a lookup stops at the first file or
+   * function starting at or after the address (no debug info) or at the
+   * first line starting at or after the address. This means that the stab
+   * with the lowest position among those with an address >= the looked up
+   * address decides the result, i.e. only the stabs with an address higher
+   * than all stabs before them matter and each such stab covers the
+   * addresses above the previous one.
+   */
+  private LineIndex createLineIndex() {
+    LineIndex index = new LineIndex();
     String currentPath = null;
     String currentFile = null;
     String currentFunction = null;
     int lastAddress = 0;
-    int currentLine = 0;
-    int currentLineAdr = 0;
+    long maxAddress = Integer.MIN_VALUE - 1L;
     for (int i = 0, n = stabs.length; i < n; i++) {
       Stab stab = stabs[i];
       switch(stab.type) {
       case N_SO:
-	if (stab.value < address) {
-	  if (stab.data != null && stab.data.endsWith("/")) {
-	    currentPath = stab.data;
-	    lastAddress = stab.value;
-	    currentFunction = null;
-	  } else {
-	    currentFile = stab.data;
-	    lastAddress = stab.value;
-	    currentFunction = null;
-	  }
-	} else {
-	  /* requires sorted order of all file entries in stab section */
-	  if (DEBUG) {
-	    System.out.println("FILE: Already passed address..." +
-			       currentPath + " " +
-			       currentFile + " " + currentFunction);
-	  }
-	  return null;
-	}
-	break;
+        if (stab.value > maxAddress) {
+          /* no debug info up to the start of this file */
+          maxAddress = stab.value;
+        }
+        if (stab.data != null && stab.data.endsWith("/")) {
+          currentPath = stab.data;
+        } else {
+          currentFile = stab.data;
+        }
+        lastAddress = stab.value;
+        currentFunction = null;
+        break;
       case N_SLINE:
-	if (currentPath != null) { /* only files with path... */
-	  if (currentLineAdr < address) {
-	    currentLine = stab.desc;
-	    currentLineAdr = lastAddress + stab.value;
-	    if (currentLineAdr >= address) {
-	      // Finished!!!
-	      if (DEBUG) {
-		System.out.println("File: " + currentPath + " " + currentFile);
-		System.out.println("Function: " + currentFunction);
-		System.out.println("Line No: " + currentLine);
-	      }
-	      return new DebugInfo(currentLine, currentPath, currentFile,
-				   currentFunction);
-	    }
-	  }
-	}
-	break;
+        if (currentPath != null) { /* only files with path... */
+          int lineAddress = lastAddress + stab.value;
+          if (lineAddress > maxAddress) {
+            index.add((int) (maxAddress + 1), lineAddress, stab.desc,
+                currentPath, currentFile, currentFunction);
+            maxAddress = lineAddress;
+          }
+        }
+        break;
       case N_FUN:
-	if (stab.value < address) {
-	  currentFunction = stab.data;
-	  lastAddress = stab.value;
-	} else {
-	  if (DEBUG) {
-	    System.out.println("FUN: Already passed address...");
-	  }
-	  return null;
-	}
-	break;
+        if (stab.value > maxAddress) {
+          maxAddress = stab.value;
+        }
+        currentFunction = stab.data;
+        lastAddress = stab.value;
+        break;
       }
     }
-    return null;
+    return index;
   }
 
   public ArrayList<Integer> getExecutableAddresses() {
@@ -46,6 +46,7 @@ import java.io.PrintWriter;
 import java.io.Reader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.Hashtable;
 
 import se.sics.json.JSONArray;
@@ -54,6 +55,9 @@ import se.sics.json.ParseException;
 import se.sics.mspsim.Main;
 import se.sics.mspsim.core.MSP430Constants;
 import se.sics.mspsim.platform.GenericNode;
+import se.sics.mspsim.platform.NodeScheduler;
+import se.sics.mspsim.platform.RadioMedium;
+import se.sics.mspsim.util.ArgumentManager;
 import se.sics.mspsim.util.Utils;
 
 public class EmuLink {
@@ -66,6 +70,32 @@ public class EmuLink {
     private long globalLastTime = 0L;
 
     private final Hashtable<String, GenericNode> nodes = new Hashtable<String, GenericNode>();
+    private final NodeScheduler scheduler = new NodeScheduler();
+
+    public long getLookahead() {
+        return scheduler.getLookahead();
+    }
+
+    /**
+     * Sets the lookahead window used when stepping the nodes. The default 0
+     * steps each node once per request, as a single MSP430.stepMicros call.
+     */
+    public void setLookahead(long micros) {
+        scheduler.setLookahead(micros);
+    }
+
+    public RadioMedium getRadioMedium() {
+        return scheduler.getRadioMedium();
+    }
+
+    /**
+     * Sets the radio medium connecting the radios of the nodes, or null to
+     * keep the nodes disconnected. The nodes are then stepped in windows no
+     * longer than the delay of the medium.
+     */
+    public void setRadioMedium(RadioMedium medium) {
+        scheduler.setRadioMedium(medium);
+    }
 
     public boolean isConnected() {
         return !isConnected;
@@ -178,33 +208,30 @@ public class EmuLink {
                 } else {
                     // Execute for specified time
                     globalEtime += etime;
+                    ArrayList<GenericNode> stepNodes = new ArrayList<GenericNode>();
                     if (nodes == null) {
-                        for (GenericNode node : this.nodes.values()) {
-                            long t0 = System.nanoTime(), t1;
-                            node.getCPU().stepMicros(globalLastTime, etime);
-                            t1 = System.nanoTime();
-                            System.out.println("EmuLink: node " + node.getID()
-                                    + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                    + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                    + " (elapsed " + (t1 - t0) + " ns)");
-                        }
-
+                        stepNodes.addAll(this.nodes.values());
                     } else {
                         for(String id : nodes) {
                             GenericNode node = this.nodes.get(id);
                             if (node != null) {
-                                long t0 = System.nanoTime(), t1;
-                                node.getCPU().stepMicros(globalLastTime, etime);
-                                t1 = System.nanoTime();
-                                System.out.println("EmuLink: node " + node.getID()
-                                        + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
-                                        + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000)
-                                        + " (elapsed " + (t1 - t0) + " ns)");
+                                stepNodes.add(node);
                             } else {
                                 System.err.println("EmuLink: could not find node '" + id + "'");
                             }
                         }
                     }
+                    // All nodes are stepped in parallel, synchronized at each lookahead window if set
+                    long t0 = System.nanoTime(), t1;
+                    scheduler.stepMicros(stepNodes, globalLastTime, etime);
+                    t1 = System.nanoTime();
+                    for (GenericNode node : stepNodes) {
+                        System.out.println("EmuLink: node " + node.getID()
+                                + " is now at $" + Utils.hex(node.getCPU().getRegister(MSP430Constants.PC), 4)
+                                + " " + (long)(node.getCPU().getTimeMillis() + 0.5) + "/" + (globalEtime / 1000));
+                    }
+                    System.out.println("EmuLink: stepped " + stepNodes.size() + " nodes using "
+                            + scheduler.getThreads() + " threads (elapsed " + (t1 - t0) + " ns)");
                     globalLastTime = etime;
                 }
             } else if ("stop".equals(command)) {
@@ -356,7 +383,19 @@ public class EmuLink {
     }
 
     public static void main(String[] args) {
+        ArgumentManager config = new ArgumentManager();
+        config.handleArguments(args);
         EmuLink el = new EmuLink();
+        if (config.getProperty("lookahead") != null) {
+            el.setLookahead(config.getPropertyAsLong("lookahead", NodeScheduler.DEFAULT_LOOKAHEAD));
+        }
+        String radio = config.getProperty("radio");
+        if (radio != null) {
+            // -radio exchanges bytes between the radios and -radio=frame whole frames
+            boolean frameMode = "frame".equals(radio);
+            el.setRadioMedium(new RadioMedium(frameMode ? RadioMedium.DEFAULT_FRAME_CAPACITY
+                    : RadioMedium.DEFAULT_CAPACITY, frameMode));
+        }
         el.run();
     }
 
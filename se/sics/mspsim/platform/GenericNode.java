@@ -38,6 +38,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -52,6 +54,7 @@ import se.sics.mspsim.cli.StreamCommandHandler;
 import se.sics.mspsim.cli.WindowCommands;
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.ExecutionPacer;
 import se.sics.mspsim.core.MSP430;
 import se.sics.mspsim.core.MSP430Config;
 import se.sics.mspsim.core.MSP430Constants;
@@ -62,13 +65,17 @@ import se.sics.mspsim.ui.JFrameWindowManager;
 import se.sics.mspsim.ui.StackUI;
 import se.sics.mspsim.ui.WindowUtils;
 import se.sics.mspsim.util.ArgumentManager;
+import se.sics.mspsim.util.AsyncEmulationLogger;
 import se.sics.mspsim.util.ComponentRegistry;
 import se.sics.mspsim.util.ConfigManager;
 import se.sics.mspsim.util.ELF;
 import se.sics.mspsim.util.IHexReader;
 import se.sics.mspsim.util.MapTable;
+import se.sics.mspsim.util.MetricsServer;
+import se.sics.mspsim.util.NodeMetrics;
 import se.sics.mspsim.util.OperatingModeStatistics;
 import se.sics.mspsim.util.PluginRepository;
+import se.sics.mspsim.util.StateSnapshot;
 import se.sics.mspsim.util.StatCommands;
 
 public abstract class GenericNode extends Chip implements Runnable {
@@ -138,9 +145,9 @@ public abstract class GenericNode extends Chip implements Runnable {
 
     if (firmwareFile.endsWith("ihex")) {
       // IHEX Reading
-      int[] memory = cpu.memory;
       IHexReader reader = new IHexReader();
-      reader.readFile(memory, firmwareFile);
+      reader.readFile(cpu, firmwareFile);
+      cpu.getInstructionCache().invalidateAll();
     } else {
       loadFirmware(firmwareFile);
     }
@@ -249,11 +256,50 @@ public abstract class GenericNode extends Chip implements Runnable {
     registry.registerComponent("netcmd", new NetCommands());
     registry.registerComponent("windowManager", new JFrameWindowManager());
 
-    // Monitor execution
-    cpu.setMonitorExec(true);
+    // Execution coverage is only collected on request
+    if (config.getPropertyAsBoolean("coverage", false)) {
+      cpu.setCoverageEnabled(true);
+    }
+
+    // Warnings are written by a background thread on request
+    if (config.getPropertyAsBoolean("asynclog", false)
+        && cpu.getLogger() instanceof AsyncEmulationLogger) {
+      ((AsyncEmulationLogger) cpu.getLogger()).setAsynchronous(true);
+    }
     
     setupNode();
 
+    // Pacing against the wall clock: max, realtime or a speed factor
+    String speed = config.getProperty("speed");
+    if (speed != null) {
+      if ("max".equals(speed)) {
+        cpu.getPacer().setMode(ExecutionPacer.Mode.MAX_SPEED);
+      } else if ("realtime".equals(speed)) {
+        cpu.getPacer().setMode(ExecutionPacer.Mode.REAL_TIME);
+      } else {
+        try {
+          cpu.getPacer().setMode(ExecutionPacer.Mode.SCALED, Double.parseDouble(speed));
+        } catch (IllegalArgumentException e) {
+          System.err.println("Speed must be max, realtime or a factor larger than zero: " + speed);
+        }
+      }
+    }
+
+    // Health metrics as JMX MBean and optionally on a local HTTP port
+    String metrics = config.getProperty("metrics");
+    if (metrics != null && !"false".equals(metrics)) {
+      NodeMetrics nodeMetrics = new NodeMetrics(getID(), cpu);
+      try {
+        nodeMetrics.register();
+        registry.registerComponent("metrics", nodeMetrics);
+        if (!"true".equals(metrics)) {
+          MetricsServer.start(config.getPropertyAsInt("metrics", 9100));
+        }
+      } catch (Exception e) {
+        System.err.println("Failed to publish the node metrics: " + e);
+      }
+    }
+
     registry.start();
 
     cpu.reset();
@@ -296,42 +342,67 @@ public abstract class GenericNode extends Chip implements Runnable {
     }
   }
 
+  /* Used by the NodeScheduler - see MSP430.stepMicros */
+  public long stepMicros(long jumpMicros, long executeMicros) throws EmulationException {
+    return cpu.stepMicros(jumpMicros, executeMicros);
+  }
+
+  /**
+   * Saves the complete state of the node. The state can be restored into
+   * this node or into another node of the same type running the same
+   * firmware, for example to fork several emulations from a common point.
+   */
+  public void saveState(OutputStream out) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("save state not possible when node is running");
+    }
+    StateSnapshot.save(cpu, out);
+  }
+
+  public void loadState(InputStream in) throws IOException {
+    if (cpu.isRunning()) {
+      throw new IllegalStateException("load state not possible when node is running");
+    }
+    StateSnapshot.restore(cpu, in);
+  }
+
   public ELF loadFirmware(URL url) throws IOException {
-      return loadFirmware(url, cpu.memory);
+      return loadFirmware(ELF.readELF(url));
   }
 
   @Deprecated public ELF loadFirmware(URL url, int[] memory) throws IOException {
-    DataInputStream inputStream = new DataInputStream(url.openStream());
-    ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-    byte[] firmwareData = new byte[2048];
-    int read;
-    while ((read = inputStream.read(firmwareData)) != -1) {
-      byteStream.write(firmwareData, 0, read);
-    }
-    inputStream.close();
-    ELF elf = new ELF(byteStream.toByteArray());
-    elf.readAll();
-    return loadFirmware(elf, memory);
+    return loadFirmware(ELF.readELF(url), memory);
   }
 
   public ELF loadFirmware(String name) throws IOException {
-      return loadFirmware(name, cpu.memory);
+      return loadFirmware(ELF.readELF(firmwareFile = name));
   }
 
   @Deprecated public ELF loadFirmware(String name, int[] memory) throws IOException {
     return loadFirmware(ELF.readELF(firmwareFile = name), memory);
   }
 
-  public ELF loadFirmware(ELF elf) {
-      return loadFirmware(elf, cpu.memory);
+  /**
+   * Loads the firmware into the CPU and into the specified array, which is
+   * no longer the memory of the CPU.
+   * @deprecated use loadFirmware(ELF)
+   */
+  @Deprecated public ELF loadFirmware(ELF elf, int[] memory) {
+    if (memory.length < cpu.MAX_MEM) {
+      throw new IllegalArgumentException("memory array smaller than the address space: "
+          + memory.length + " < " + cpu.MAX_MEM);
+    }
+    elf.loadPrograms(memory);
+    return loadFirmware(elf);
   }
 
-  @Deprecated public ELF loadFirmware(ELF elf, int[] memory) {
+  public ELF loadFirmware(ELF elf) {
     if (cpu.isRunning()) {
         stop();
     }
     this.elf = elf;
-    elf.loadPrograms(memory);
+    elf.loadPrograms(cpu);
+    cpu.getInstructionCache().invalidateAll();
     MapTable map = elf.getMap();
     cpu.getDisAsm().setMap(map);
     cpu.setMap(map);
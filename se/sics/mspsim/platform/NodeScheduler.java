@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * NodeScheduler
+ */
+
+package se.sics.mspsim.platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.util.ProxySupport;
+
+/**
+ * Runs a set of nodes in parallel using conservative time synchronization.
+ *
+ * By default each step is executed as a single window, which gives the
+ * same result as calling MSP430.stepMicros on one node after the other.
+ * When a lookahead is set the simulated time is split into lookahead
+ * windows. Within a window the
+ * nodes are independent of each other and are stepped in parallel on a
+ * worker pool. At the end of each window all nodes have reached the same
+ * time and the synchronization listeners are called, in the calling
+ * thread, to exchange data between the nodes (for example to deliver radio
+ * packets). The lookahead must not be longer than the shortest time it
+ * takes for one node to affect another, which for 802.15.4 radios is at
+ * least the air time of the synchronization header.
+ *
+ * As long as the nodes only interact at the window boundaries the result
+ * is identical to stepping the nodes one after another with the same
+ * windows, independent of the number of worker threads. Note that the
+ * window size itself affects the result since each window ends with a
+ * separate MSP430.stepMicros call.
+ *
+ * A RadioMedium set with setRadioMedium connects the 802.15.4 radios of
+ * the nodes and exchanges their transmissions at the end of each window.
+ * The windows are then never longer than the delay of the medium.
+ */
+public class NodeScheduler {
+
+  /* Air time of the 802.15.4 synchronization header (5 bytes at 250 kbps) */
+  public static final long DEFAULT_LOOKAHEAD = 160;
+
+  public interface SyncListener {
+    /**
+     * Called when all nodes have reached the end of a window.
+     * @param micros the simulated time since the scheduler was created
+     */
+    public void synchronize(long micros);
+
+    public static class Proxy extends ProxySupport<SyncListener> implements SyncListener {
+      public static final Proxy INSTANCE = new Proxy();
+
+      public void synchronize(long micros) {
+        SyncListener[] listeners = this.listeners;
+        for(SyncListener listener : listeners) {
+          listener.synchronize(micros);
+        }
+      }
+    }
+  }
+
+  private final ArrayList<GenericNode> nodes = new ArrayList<GenericNode>();
+  private final HashMap<GenericNode,NodeStep> nodeSteps = new HashMap<GenericNode,NodeStep>();
+  private final int threads;
+  private ExecutorService executor;
+  private SyncListener syncListener;
+  private RadioMedium radioMedium;
+  private long lookahead = 0;
+  private long startMicros;
+  private long currentMicros;
+
+  public NodeScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public NodeScheduler(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("at least one thread is needed: " + threads);
+    }
+    this.threads = threads;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public long getLookahead() {
+    return lookahead;
+  }
+
+  /**
+   * Sets the length of the synchronization windows.
+   * @param micros the window length in microseconds or 0 to run each step
+   * as a single window
+   */
+  public void setLookahead(long micros) {
+    if (micros < 0) {
+      throw new IllegalArgumentException("lookahead must not be negative: " + micros);
+    }
+    this.lookahead = micros;
+  }
+
+  public long getTimeMicros() {
+    return currentMicros;
+  }
+
+  public synchronized void addNode(GenericNode node) {
+    if (!nodes.contains(node)) {
+      nodes.add(node);
+    }
+    if (radioMedium != null) {
+      radioMedium.addNode(node);
+    }
+  }
+
+  public synchronized void removeNode(GenericNode node) {
+    nodes.remove(node);
+    nodeSteps.remove(node);
+  }
+
+  public synchronized GenericNode[] getNodes() {
+    return nodes.toArray(new GenericNode[nodes.size()]);
+  }
+
+  public synchronized void addSyncListener(SyncListener listener) {
+    syncListener = SyncListener.Proxy.INSTANCE.add(syncListener, listener);
+  }
+
+  public synchronized void removeSyncListener(SyncListener listener) {
+    syncListener = SyncListener.Proxy.INSTANCE.remove(syncListener, listener);
+  }
+
+  public synchronized RadioMedium getRadioMedium() {
+    return radioMedium;
+  }
+
+  /**
+   * Sets the radio medium connecting the radios of the nodes, or null to
+   * disconnect the nodes from each other. The radios of the added nodes,
+   * and of nodes stepped later, are connected to the medium. Must not be
+   * called while the nodes are running.
+   */
+  public synchronized void setRadioMedium(RadioMedium medium) {
+    if (radioMedium != null) {
+      removeSyncListener(radioMedium);
+    }
+    radioMedium = medium;
+    if (medium != null) {
+      for (GenericNode node : nodes) {
+        medium.addNode(node);
+      }
+      addSyncListener(medium);
+    }
+  }
+
+  /* The window length or 0 to run each step as a single window */
+  private synchronized long getWindow() {
+    if (radioMedium != null && radioMedium.getDelay() > 0
+        && (lookahead == 0 || lookahead > radioMedium.getDelay())) {
+      return radioMedium.getDelay();
+    }
+    return lookahead;
+  }
+
+  /**
+   * Steps all added nodes, see stepMicros(Collection, long, long).
+   */
+  public long stepMicros(long jumpMicros, long executeMicros) throws EmulationException {
+    return stepMicros(Arrays.asList(getNodes()), jumpMicros, executeMicros);
+  }
+
+  /**
+   * Steps the specified nodes using the same time semantics as
+   * MSP430.stepMicros: first jump jumpMicros, relative to the start of the
+   * previous step, and then execute for executeMicros. The execution is
+   * split into lookahead windows if a lookahead has been set.
+   *
+   * @return the minimum number of microseconds until any node has
+   * something to do, as returned by MSP430.stepMicros
+   */
+  public long stepMicros(Collection<GenericNode> nodes, long jumpMicros, long executeMicros)
+      throws EmulationException {
+    if (jumpMicros < 0) {
+      throw new IllegalArgumentException("Can not jump a negative time: " + jumpMicros);
+    }
+    NodeStep[] steps = new NodeStep[nodes.size()];
+    int index = 0;
+    synchronized (this) {
+      for (GenericNode node : nodes) {
+        NodeStep step = nodeSteps.get(node);
+        if (step == null) {
+          step = new NodeStep(node);
+          nodeSteps.put(node, step);
+          if (radioMedium != null) {
+            radioMedium.addNode(node);
+          }
+        }
+        /* the node has already passed the start of the previous step */
+        if (jumpMicros < step.offset) {
+          throw new IllegalArgumentException("Can not jump less than the last window for node "
+              + node.getID() + ": " + jumpMicros + " < " + step.offset);
+        }
+        step.jumpMicros = jumpMicros - step.offset;
+        steps[index++] = step;
+      }
+    }
+    startMicros += jumpMicros;
+    currentMicros = startMicros;
+
+    long lookahead = getWindow();
+    long remaining = executeMicros;
+    long next = 0;
+    do {
+      long window = lookahead == 0 || remaining < lookahead ? remaining : lookahead;
+      next = stepWindow(steps, window);
+      currentMicros += window;
+      remaining -= window;
+
+      SyncListener listener = this.syncListener;
+      if (listener != null) {
+        listener.synchronize(currentMicros);
+      }
+    } while (remaining > 0);
+    return next;
+  }
+
+  private long stepWindow(NodeStep[] steps, long executeMicros)
+      throws EmulationException {
+    long next = Long.MAX_VALUE;
+    for (NodeStep step : steps) {
+      step.executeMicros = executeMicros;
+    }
+    if (threads == 1 || steps.length < 2) {
+      for (NodeStep step : steps) {
+        long micros = step.call();
+        next = micros < next ? micros : next;
+      }
+    } else {
+      List<Future<Long>> result;
+      try {
+        result = getExecutor().invokeAll(Arrays.asList(steps));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new EmulationException("interrupted while waiting for nodes");
+      }
+      for (Future<Long> f : result) {
+        long micros = getResult(f);
+        next = micros < next ? micros : next;
+      }
+    }
+    return next == Long.MAX_VALUE ? 0 : next;
+  }
+
+  private long getResult(Future<Long> f) throws EmulationException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EmulationException("interrupted while waiting for nodes");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      EmulationException ee = new EmulationException("node failed: " + cause);
+      ee.initCause(cause);
+      throw ee;
+    }
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private int count = 0;
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "NodeScheduler-" + (++count));
+          t.setDaemon(true);
+          t.setPriority(Thread.NORM_PRIORITY);
+          return t;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * Stops the worker threads. The scheduler can still be used and will
+   * start new worker threads when needed.
+   */
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  private class NodeStep implements Callable<Long> {
+    private final GenericNode node;
+    long jumpMicros;
+    long executeMicros;
+    /* start of the last window relative to the start of the last step */
+    long offset;
+
+    NodeStep(GenericNode node) {
+      this.node = node;
+    }
+
+    public Long call() throws EmulationException {
+      long micros = node.stepMicros(jumpMicros, executeMicros);
+      /* the next window starts where this one started */
+      offset = currentMicros - startMicros;
+      jumpMicros = executeMicros;
+      return micros;
+    }
+  }
+
+}
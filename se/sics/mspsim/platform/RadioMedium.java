@@ -0,0 +1,527 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * RadioMedium
+ */
+
+package se.sics.mspsim.platform;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import se.sics.mspsim.chip.RFFrameListener;
+import se.sics.mspsim.chip.RFListener;
+import se.sics.mspsim.chip.Radio802154;
+import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.TimeEvent;
+
+/**
+ * In-process radio medium for 802.15.4 radios running in the same JVM.
+ *
+ * Each radio has a single-producer/single-consumer ring for the bytes it
+ * transmits and one for the bytes it is about to receive. The rings are
+ * preallocated and store primitive slots so nothing is allocated while
+ * the nodes are running. The transmitting node only writes to its own
+ * outbound ring. At each synchronization point, when no node is running,
+ * the medium moves the transmitted bytes, in time order, to the inbound
+ * rings of the radios that are reached according to the link model. Each
+ * receiving node then delivers the bytes from its inbound ring to its
+ * radio at the time they were sent plus the propagation delay.
+ *
+ * In frame mode the medium connects to the radios as an RFFrameListener
+ * and the ring slots hold whole frames, taken from a preallocated pool,
+ * which avoids the per byte events in both the sending and the receiving
+ * radio.
+ *
+ * The medium is enabled with NodeScheduler.setRadioMedium, which makes
+ * the scheduler synchronize the nodes at least once per delay. Bytes that
+ * arrive later than the delay allows are delivered as soon as possible.
+ * All nodes are expected to have started at the same time.
+ */
+public class RadioMedium implements NodeScheduler.SyncListener {
+
+  /* Air time of one byte at 250 kbps */
+  public static final long BYTE_MICROS = 32;
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final int DEFAULT_FRAME_CAPACITY = 64;
+  /* Largest PSDU, the length byte and 127 bytes */
+  public static final int MAX_FRAME_SIZE = 128;
+
+  /**
+   * Decides which radios are reached by a transmission. Called once per
+   * transmission and receiver, from the synchronizing thread.
+   */
+  public interface LinkModel {
+    /**
+     * Returns the probability, between 0 and 1, that a transmission from
+     * the source radio is received by the destination radio.
+     */
+    public double getReceptionRatio(Endpoint source, Endpoint destination);
+  }
+
+  /** All radios reach each other */
+  public static final LinkModel ALL_CONNECTED = new LinkModel() {
+    public double getReceptionRatio(Endpoint source, Endpoint destination) {
+      return 1.0;
+    }
+  };
+
+  /**
+   * Radios within the specified range of each other are connected and
+   * all others are not.
+   */
+  public static class UnitDiskModel implements LinkModel {
+
+    private final double range;
+
+    public UnitDiskModel(double range) {
+      this.range = range;
+    }
+
+    public double getRange() {
+      return range;
+    }
+
+    public double getReceptionRatio(Endpoint source, Endpoint destination) {
+      double dx = source.x - destination.x;
+      double dy = source.y - destination.y;
+      double dz = source.z - destination.z;
+      return dx * dx + dy * dy + dz * dz <= range * range ? 1.0 : 0.0;
+    }
+  }
+
+  /**
+   * Explicit loss probability for each pair of radios, indexed by the
+   * endpoint index. Pairs that have not been set use the default loss.
+   */
+  public static class LossMatrixModel implements LinkModel {
+
+    private double[][] loss = new double[0][];
+    private final double defaultLoss;
+
+    public LossMatrixModel(double defaultLoss) {
+      this.defaultLoss = defaultLoss;
+    }
+
+    public synchronized void setLoss(int source, int destination, double probability) {
+      if (probability < 0.0 || probability > 1.0) {
+        throw new IllegalArgumentException("loss must be between 0 and 1: " + probability);
+      }
+      int size = Math.max(source, destination) + 1;
+      if (size > loss.length) {
+        double[][] tmp = Arrays.copyOf(loss, size);
+        for (int i = 0; i < size; i++) {
+          double[] row = tmp[i] == null ? new double[0] : tmp[i];
+          if (row.length < size) {
+            int old = row.length;
+            row = Arrays.copyOf(row, size);
+            Arrays.fill(row, old, size, defaultLoss);
+          }
+          tmp[i] = row;
+        }
+        loss = tmp;
+      }
+      loss[source][destination] = probability;
+    }
+
+    public synchronized double getLoss(int source, int destination) {
+      if (source < loss.length && destination < loss.length) {
+        return loss[source][destination];
+      }
+      return defaultLoss;
+    }
+
+    public double getReceptionRatio(Endpoint source, Endpoint destination) {
+      return 1.0 - getLoss(source.index, destination.index);
+    }
+  }
+
+  /*
+   * Ring of preallocated slots written by one thread and read by another.
+   * The producer publishes a slot by advancing the volatile tail after the
+   * slot has been written. Each slot holds either one byte or one frame.
+   */
+  private static final class Ring {
+    final long[] time;
+    final byte[] data;
+    final int[] channel;
+    final byte[][] frames;
+    final int[] length;
+    final int mask;
+    volatile long head;
+    volatile long tail;
+    long dropped;
+
+    Ring(int capacity, boolean frameMode) {
+      time = new long[capacity];
+      data = new byte[capacity];
+      channel = new int[capacity];
+      if (frameMode) {
+        frames = new byte[capacity][MAX_FRAME_SIZE];
+        length = new int[capacity];
+      } else {
+        frames = null;
+        length = null;
+      }
+      mask = capacity - 1;
+    }
+
+    boolean offerFrame(long t, byte[] d, int len, int c) {
+      long pos = tail;
+      if (pos - head > mask || len > MAX_FRAME_SIZE) {
+        dropped++;
+        return false;
+      }
+      int i = (int) pos & mask;
+      time[i] = t;
+      System.arraycopy(d, 0, frames[i], 0, len);
+      length[i] = len;
+      channel[i] = c;
+      tail = pos + 1;
+      return true;
+    }
+
+    boolean offer(long t, byte d, int c) {
+      long pos = tail;
+      if (pos - head > mask) {
+        dropped++;
+        return false;
+      }
+      int i = (int) pos & mask;
+      time[i] = t;
+      data[i] = d;
+      channel[i] = c;
+      tail = pos + 1;
+      return true;
+    }
+
+    boolean isEmpty() {
+      return head == tail;
+    }
+
+    /* Only valid when the ring is not empty */
+    long peekTime() {
+      return time[(int) head & mask];
+    }
+  }
+
+  /**
+   * A radio connected to the medium.
+   */
+  public final class Endpoint implements RFListener, RFFrameListener {
+
+    final int index;
+    final Radio802154 radio;
+    final MSP430Core cpu;
+    final Ring outbound;
+    final Ring inbound;
+    double x, y, z;
+    long sent;
+    long received;
+
+    /* Only used by the synchronizing thread */
+    private boolean[] reached = new boolean[0];
+    private long lastMicros = Long.MIN_VALUE;
+
+    private final TimeEvent deliverEvent;
+
+    Endpoint(int index, MSP430Core cpu, Radio802154 radio, int capacity, boolean frameMode) {
+      this.index = index;
+      this.radio = radio;
+      this.cpu = cpu;
+      this.outbound = new Ring(capacity, frameMode);
+      this.inbound = new Ring(capacity, frameMode);
+      this.deliverEvent = new TimeEvent(0, "RadioMedium " + radio.getID()) {
+        public void execute(long t) {
+          deliver();
+        }
+      };
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public Radio802154 getRadio() {
+      return radio;
+    }
+
+    public void setPosition(double x, double y, double z) {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+    }
+
+    public double getX() {
+      return x;
+    }
+
+    public double getY() {
+      return y;
+    }
+
+    public double getZ() {
+      return z;
+    }
+
+    public long getSentBytes() {
+      return sent;
+    }
+
+    public long getReceivedBytes() {
+      return received;
+    }
+
+    public long getDroppedBytes() {
+      return outbound.dropped + inbound.dropped;
+    }
+
+    /* Called by the radio, in the thread running this node */
+    public void receivedByte(byte data) {
+      sent++;
+      outbound.offer(getMicros(), data, radio.getActiveChannel());
+    }
+
+    /* Called by the radio in frame mode, in the thread running this node */
+    public void transmittedFrame(Radio802154 source, byte[] data, int length) {
+      sent += length;
+      outbound.offerFrame(getMicros(), data, length, radio.getActiveChannel());
+    }
+
+    long getMicros() {
+      return (long) (cpu.getTimeMillis() * 1000);
+    }
+
+    /* Called in the thread running this node */
+    private void deliver() {
+      Ring ring = inbound;
+      long now = getMicros();
+      while (!ring.isEmpty()) {
+        long pos = ring.head;
+        int i = (int) pos & ring.mask;
+        if (ring.time[i] > now) {
+          schedule(ring.time[i], now);
+          return;
+        }
+        if (ring.channel[i] == radio.getActiveChannel()) {
+          if (ring.frames != null) {
+            received += ring.length[i];
+            radio.receivedFrame(ring.frames[i], ring.length[i]);
+          } else {
+            received++;
+            radio.receivedByte(ring.data[i]);
+          }
+        }
+        /* the slot may be reused once head has moved past it */
+        ring.head = pos + 1;
+      }
+    }
+
+    /* Late bytes are delivered after one microsecond, the CPU can not schedule events at the current time */
+    private void schedule(long micros, long now) {
+      cpu.scheduleTimeEventMillis(deliverEvent, micros > now ? (micros - now) / 1000.0 : 0.001);
+    }
+  }
+
+  private Endpoint[] endpoints = new Endpoint[0];
+  private LinkModel linkModel = ALL_CONNECTED;
+  private final Random random = new Random(0);
+  private final int capacity;
+  private final boolean frameMode;
+  private long delay = NodeScheduler.DEFAULT_LOOKAHEAD;
+
+  public RadioMedium() {
+    this(DEFAULT_CAPACITY, false);
+  }
+
+  /**
+   * @param capacity the number of bytes, or frames in frame mode, each
+   * ring can hold. Must be a power of two and large enough for all that a
+   * radio can send within one synchronization window.
+   * @param frameMode true to exchange whole frames instead of bytes
+   */
+  public RadioMedium(int capacity, boolean frameMode) {
+    if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+    }
+    this.capacity = capacity;
+    this.frameMode = frameMode;
+  }
+
+  public boolean isFrameMode() {
+    return frameMode;
+  }
+
+  public LinkModel getLinkModel() {
+    return linkModel;
+  }
+
+  public synchronized void setLinkModel(LinkModel linkModel) {
+    this.linkModel = linkModel == null ? ALL_CONNECTED : linkModel;
+  }
+
+  public long getDelay() {
+    return delay;
+  }
+
+  /**
+   * Sets the time from the start of a byte transmission until it is
+   * received. This should not be shorter than the synchronization window.
+   */
+  public synchronized void setDelay(long micros) {
+    if (micros < 0) {
+      throw new IllegalArgumentException("delay can not be negative: " + micros);
+    }
+    this.delay = micros;
+  }
+
+  /* Sets the seed used for the link model decisions */
+  public synchronized void setSeed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /**
+   * Connects a radio to the medium. Must not be called while any node is
+   * running.
+   */
+  public synchronized Endpoint addRadio(MSP430Core cpu, Radio802154 radio) {
+    for (Endpoint e : endpoints) {
+      if (e.radio == radio) {
+        return e;
+      }
+    }
+    Endpoint endpoint = new Endpoint(endpoints.length, cpu, radio, capacity, frameMode);
+    Endpoint[] tmp = Arrays.copyOf(endpoints, endpoints.length + 1);
+    tmp[endpoint.index] = endpoint;
+    for (Endpoint e : tmp) {
+      e.reached = new boolean[tmp.length];
+    }
+    endpoints = tmp;
+    if (frameMode) {
+      radio.setFrameMode(true);
+      radio.addRFFrameListener(endpoint);
+    } else {
+      radio.addRFListener(endpoint);
+    }
+    return endpoint;
+  }
+
+  /**
+   * Connects the radio of the node to the medium.
+   * @return the endpoint or null if the node has no 802.15.4 radio
+   */
+  public Endpoint addNode(GenericNode node) {
+    MSP430Core cpu = node.getCPU();
+    Radio802154 radio = cpu.getChip(Radio802154.class);
+    return radio == null ? null : addRadio(cpu, radio);
+  }
+
+  public synchronized Endpoint[] getEndpoints() {
+    return endpoints.clone();
+  }
+
+  /**
+   * Moves all transmitted bytes to the receiving radios. Must be called
+   * when no node is running, for example as a NodeScheduler.SyncListener.
+   */
+  public synchronized void synchronize(long micros) {
+    Endpoint[] endpoints = this.endpoints;
+    for (;;) {
+      /* merge the outbound rings in time order, ties by endpoint index */
+      Endpoint source = null;
+      long time = Long.MAX_VALUE;
+      for (Endpoint e : endpoints) {
+        if (!e.outbound.isEmpty() && e.outbound.peekTime() < time) {
+          source = e;
+          time = e.outbound.peekTime();
+        }
+      }
+      if (source == null) {
+        break;
+      }
+      Ring ring = source.outbound;
+      long pos = ring.head;
+      int i = (int) pos & ring.mask;
+      int channel = ring.channel[i];
+
+      if (ring.frames != null || time - source.lastMicros > 2 * BYTE_MICROS) {
+        /* a new transmission - decide which radios it reaches */
+        for (Endpoint e : endpoints) {
+          source.reached[e.index] = e != source && isReached(source, e);
+        }
+      }
+      source.lastMicros = time;
+
+      for (Endpoint e : endpoints) {
+        if (source.reached[e.index]) {
+          if (ring.frames != null) {
+            e.inbound.offerFrame(time + delay, ring.frames[i], ring.length[i], channel);
+          } else {
+            e.inbound.offer(time + delay, ring.data[i], channel);
+          }
+        }
+      }
+      ring.head = pos + 1;
+    }
+
+    for (Endpoint e : endpoints) {
+      /* a scheduled delivery is already due no later than the new bytes */
+      if (!e.inbound.isEmpty() && !e.deliverEvent.isScheduled()) {
+        e.schedule(e.inbound.peekTime(), e.getMicros());
+      }
+    }
+  }
+
+  private boolean isReached(Endpoint source, Endpoint destination) {
+    double ratio = linkModel.getReceptionRatio(source, destination);
+    return ratio >= 1.0 || (ratio > 0.0 && random.nextDouble() < ratio);
+  }
+
+  public synchronized String info() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Radio medium: ").append(endpoints.length)
+      .append(frameMode ? " radios in frame mode, delay " : " radios, delay ")
+      .append(delay).append(" us\n");
+    for (Endpoint e : endpoints) {
+      sb.append(" ").append(e.index).append(": ").append(e.radio.getID())
+        .append(" channel ").append(e.radio.getActiveChannel())
+        .append(" position ").append(e.x).append(',').append(e.y).append(',').append(e.z)
+        .append(" sent ").append(e.sent).append(" received ").append(e.received);
+      if (e.getDroppedBytes() > 0) {
+        sb.append(" dropped ").append(e.getDroppedBytes());
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -41,9 +41,9 @@
 
 package se.sics.mspsim.platform.sentillausb;
 import java.io.IOException;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.Leds;
 import se.sics.mspsim.chip.M25P80;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.platform.sky.CC2420Node;
@@ -112,7 +112,7 @@ public class SentillaUSBNode extends CC2420Node {
             setFlash(new M25P80(cpu));
         }
         if (flashFile != null) {
-            getFlash().setStorage(new FileStorage(flashFile));
+            getFlash().setStorage(new MappedFileStorage(flashFile));
         }
     }
 
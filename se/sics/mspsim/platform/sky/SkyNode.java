@@ -41,8 +41,8 @@
 
 package se.sics.mspsim.platform.sky;
 import java.io.IOException;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.M25P80;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.util.ArgumentManager;
@@ -52,6 +52,26 @@ import se.sics.mspsim.util.ArgumentManager;
  */
 public class SkyNode extends MoteIVNode {
 
+  /* Supply voltage and current draw per operating mode in ampere, taken
+   * from the data sheets and used for the energy estimation */
+  public static final double VOLTAGE = 3.0;
+  /* active, lpm0, lpm1, lpm2, lpm3, lpm4 */
+  public static final double[] MSP430_CURRENT = {
+    1.8e-3, 75e-6, 75e-6, 17e-6, 2.6e-6, 0.2e-6
+  };
+  /* idle, receive, transmit at 0 dBm, power down */
+  public static final double[] CC2420_CURRENT = {
+    426e-6, 18.8e-3, 17.4e-3, 20e-6
+  };
+  /* zero to three leds on */
+  public static final double[] LEDS_CURRENT = {
+    0.0, 3e-3, 6e-3, 9e-3
+  };
+  /* standby, active, program/erase, deep power down */
+  public static final double[] M25P80_CURRENT = {
+    50e-6, 4e-3, 15e-3, 10e-6
+  };
+
   private M25P80 flash;
 
   /**
@@ -92,7 +112,19 @@ public class SkyNode extends MoteIVNode {
         setFlash(new M25P80(cpu));
     }
     if (flashFile != null) {
-        getFlash().setStorage(new FileStorage(flashFile));
+        getFlash().setStorage(new MappedFileStorage(flashFile));
+    }
+  }
+
+  public void setupNode() {
+    super.setupNode();
+    if (stats != null) {
+      stats.addMonitor(flash);
+      stats.setVoltage(VOLTAGE);
+      stats.setCurrents(cpu, MSP430_CURRENT);
+      stats.setCurrents(radio, CC2420_CURRENT);
+      stats.setCurrents(this, LEDS_CURRENT);
+      stats.setCurrents(flash, M25P80_CURRENT);
     }
   }
 
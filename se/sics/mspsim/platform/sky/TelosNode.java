@@ -42,7 +42,7 @@
 package se.sics.mspsim.platform.sky;
 import java.io.IOException;
 import se.sics.mspsim.chip.AT45DB;
-import se.sics.mspsim.chip.FileStorage;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.core.IOPort;
 import se.sics.mspsim.core.USARTSource;
 import se.sics.mspsim.util.ArgumentManager;
@@ -94,7 +94,7 @@ public class TelosNode extends MoteIVNode {
         setFlash(new AT45DB(cpu));
     }
     if (flashFile != null) {
-      getFlash().setStorage(new FileStorage(flashFile));
+      getFlash().setStorage(new MappedFileStorage(flashFile));
     }
   }
 
@@ -3,9 +3,9 @@ package se.sics.mspsim.platform.z1;
 import java.io.IOException;
 import se.sics.mspsim.chip.Button;
 import se.sics.mspsim.chip.CC2420;
-import se.sics.mspsim.chip.FileStorage;
 import se.sics.mspsim.chip.Leds;
 import se.sics.mspsim.chip.M25P80;
+import se.sics.mspsim.chip.MappedFileStorage;
 import se.sics.mspsim.config.MSP430f2617Config;
 import se.sics.mspsim.core.EmulationException;
 import se.sics.mspsim.core.IOPort;
@@ -183,7 +183,7 @@ public class Z1Node extends GenericNode implements PortListener, USARTListener {
             setFlash(new M25P80(cpu));
         }
         if (flashFile != null) {
-            getFlash().setStorage(new FileStorage(flashFile));
+            getFlash().setStorage(new MappedFileStorage(flashFile));
         }
     }
 
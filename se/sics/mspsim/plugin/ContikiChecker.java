@@ -102,17 +102,13 @@ public class ContikiChecker implements CallListener, ActiveComponent {
                                 //profiler.printStackTrace(context.out);
                         }
                     };
-                    for (int i = 0; i < 0x100; i++) {
-                        cpu.addWatchPoint(i, monitor);
-                    }
+                    cpu.addWatchPoint(0, 0x100, monitor);
                     return 0;
                 }
 
                 public void stopCommand(CommandContext context) {
                     if (monitor != null) {
-                        for (int i = 0; i < 0x100; i++) {
-                            cpu.removeWatchPoint(i, monitor);
-                        }
+                        cpu.removeWatchPoint(0, monitor);
                         monitor = null;
                         cpu = null;
                     }
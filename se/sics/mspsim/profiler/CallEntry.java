@@ -1,18 +1,13 @@
 package se.sics.mspsim.profiler;
-import java.util.HashMap;
 import se.sics.mspsim.util.MapEntry;
 
 public class CallEntry {
     
-    static class CallCounter implements Comparable<CallCounter> {
-        public int count = 0;
-
-        public int compareTo(CallCounter o) {
-            return (count < o.count ? -1 : (count == o.count ? 0 : 1));
-        }
-    }
-
-    
+    /* the profiler id of the function */
+    int id;
+    /* the call tree node of this call and of its caller */
+    int node;
+    int parentNode;
     int fromPC;
     MapEntry function;
     long cycles;
@@ -22,12 +17,6 @@ public class CallEntry {
     int stackStart;
     int currentStackMax;
     
-    HashMap<MapEntry,CallCounter> callers;
-    
-    public CallEntry() {
-      callers = new HashMap<MapEntry,CallCounter>();
-    }
-    
     public MapEntry getFunction() {
         return function;
     }
@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * CallTree
+ */
+
+package se.sics.mspsim.profiler;
+import java.util.Arrays;
+
+/**
+ * Calling context tree used by the profiler to aggregate the call stacks.
+ *
+ * Each node is a distinct call stack identified by its parent node and the
+ * function id of the called function. The node holds the number of
+ * returns, the exclusive cycles and the number of samples of that stack.
+ * The number of nodes is bounded: when the tree is full new stacks are
+ * collapsed into a TRUNCATED node below the deepest known caller.
+ */
+public class CallTree {
+
+  public static final int ROOT = 0;
+  /* pseudo function of stacks that did not fit in the tree */
+  public static final int TRUNCATED = -2;
+
+  private final int maxNodes;
+  private int nodeCount;
+  private int[] parent;
+  private int[] function;
+  private int[] calls;
+  private long[] cycles;
+  private long[] samples;
+
+  /* child lookup: key is parent << 32 | function, value is node + 1 */
+  private long[] keys;
+  private int[] nodes;
+  private long truncatedCalls;
+
+  public CallTree(int maxNodes) {
+    if (maxNodes < 2) {
+      throw new IllegalArgumentException("too few nodes: " + maxNodes);
+    }
+    this.maxNodes = maxNodes;
+    clear();
+  }
+
+  public void clear() {
+    int size = Math.min(maxNodes, 256);
+    parent = new int[size];
+    function = new int[size];
+    calls = new int[size];
+    cycles = new long[size];
+    samples = new long[size];
+    /* the lookup table is probed with a mask and must be a power of two */
+    int tableSize = Integer.highestOneBit(size * 4 - 1);
+    keys = new long[tableSize];
+    nodes = new int[tableSize];
+    parent[ROOT] = -1;
+    function[ROOT] = TRUNCATED;
+    nodeCount = 1;
+    truncatedCalls = 0;
+  }
+
+  private static int hash(long key) {
+    key *= 0x9e3779b97f4a7c15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  /**
+   * Returns the node of the specified function called from the specified
+   * node. The node is created if needed.
+   */
+  public int getChild(int node, int fn) {
+    long key = ((long) node << 32) | (fn & 0xffffffffL);
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    int n;
+    while ((n = nodes[i]) != 0) {
+      if (keys[i] == key) {
+        return n - 1;
+      }
+      i = (i + 1) & mask;
+    }
+    if (nodeCount >= maxNodes) {
+      truncatedCalls++;
+      if (fn == TRUNCATED || function[node] == TRUNCATED) {
+        return node;
+      }
+      /* one truncated node per known stack - at most doubles the tree */
+      return getTruncated(node);
+    }
+    return addNode(node, fn, key, i);
+  }
+
+  private int getTruncated(int node) {
+    long key = ((long) node << 32) | (TRUNCATED & 0xffffffffL);
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    int n;
+    while ((n = nodes[i]) != 0) {
+      if (keys[i] == key) {
+        return n - 1;
+      }
+      i = (i + 1) & mask;
+    }
+    return addNode(node, TRUNCATED, key, i);
+  }
+
+  private int addNode(int node, int fn, long key, int slot) {
+    int n = nodeCount++;
+    if (n == parent.length) {
+      int size = n * 2;
+      parent = Arrays.copyOf(parent, size);
+      function = Arrays.copyOf(function, size);
+      calls = Arrays.copyOf(calls, size);
+      cycles = Arrays.copyOf(cycles, size);
+      samples = Arrays.copyOf(samples, size);
+    }
+    parent[n] = node;
+    function[n] = fn;
+    keys[slot] = key;
+    nodes[slot] = n + 1;
+    if (nodeCount * 2 > keys.length) {
+      rehash();
+    }
+    return n;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldNodes = nodes;
+    keys = new long[oldKeys.length * 2];
+    nodes = new int[oldKeys.length * 2];
+    int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldNodes[j] != 0) {
+        int k = hash(oldKeys[j]) & mask;
+        while (nodes[k] != 0) {
+          k = (k + 1) & mask;
+        }
+        keys[k] = oldKeys[j];
+        nodes[k] = oldNodes[j];
+      }
+    }
+  }
+
+  public void addCall(int node, long exclusiveCycles) {
+    calls[node]++;
+    cycles[node] += exclusiveCycles;
+  }
+
+  public void addSample(int node) {
+    samples[node]++;
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  public int getMaxNodes() {
+    return maxNodes;
+  }
+
+  /* Returns the number of calls that did not get a node of their own */
+  public long getTruncatedCalls() {
+    return truncatedCalls;
+  }
+
+  public int getParent(int node) {
+    return parent[node];
+  }
+
+  public int getFunction(int node) {
+    return function[node];
+  }
+
+  public int getDepth(int node) {
+    int depth = 0;
+    while (node > ROOT) {
+      node = parent[node];
+      depth++;
+    }
+    return depth;
+  }
+
+  public int getCalls(int node) {
+    return calls[node];
+  }
+
+  public long getCycles(int node) {
+    return cycles[node];
+  }
+
+  public long getSamples(int node) {
+    return samples[node];
+  }
+
+  /**
+   * Returns the function ids of the stack of the node, starting with the
+   * outermost function.
+   */
+  public int[] getStack(int node) {
+    int[] stack = new int[getDepth(node)];
+    for (int i = stack.length - 1; i >= 0; i--) {
+      stack[i] = function[node];
+      node = parent[node];
+    }
+    return stack;
+  }
+}
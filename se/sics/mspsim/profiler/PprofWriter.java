@@ -0,0 +1,202 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * PprofWriter
+ */
+
+package se.sics.mspsim.profiler;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes profiles in the gzipped protocol buffer format read by pprof
+ * and most flame graph tools. Each function gets one location and the
+ * samples refer to the locations, innermost function first.
+ */
+public class PprofWriter {
+
+  private final ArrayList<String> strings = new ArrayList<String>();
+  private final HashMap<String,Integer> stringIndex = new HashMap<String,Integer>();
+
+  private final ByteArrayOutputStream sampleTypes = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream samples = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream locations = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream functions = new ByteArrayOutputStream();
+  private final HashMap<String,Integer> locationIds = new HashMap<String,Integer>();
+  private final int valueCount;
+
+  private int periodType = -1;
+  private int periodUnit;
+  private long period;
+  private long durationNanos;
+
+  /**
+   * Creates a writer for samples with one value of each of the specified
+   * types, for example "cycles" in unit "cycles".
+   */
+  public PprofWriter(String[] types, String[] units) {
+    getString("");
+    valueCount = types.length;
+    for (int i = 0; i < types.length; i++) {
+      writeBytes(sampleTypes, 1, valueType(getString(types[i]), getString(units[i])));
+    }
+  }
+
+  public void setPeriod(String type, String unit, long period) {
+    this.periodType = getString(type);
+    this.periodUnit = getString(unit);
+    this.period = period;
+  }
+
+  public void setDuration(long nanos) {
+    this.durationNanos = nanos;
+  }
+
+  /**
+   * Returns the location id of the function, adding the function and its
+   * location the first time the name is seen. The file and address are
+   * optional.
+   */
+  public int getLocation(String name, String file, long address) {
+    Integer id = locationIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    int n = locationIds.size() + 1;
+    locationIds.put(name, n);
+
+    ByteArrayOutputStream fn = new ByteArrayOutputStream();
+    writeVarint(fn, 1, n);
+    writeVarint(fn, 2, getString(name));
+    writeVarint(fn, 3, getString(name));
+    if (file != null) {
+      writeVarint(fn, 4, getString(file));
+    }
+    writeBytes(functions, 5, fn.toByteArray());
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    writeVarint(line, 1, n);
+    ByteArrayOutputStream loc = new ByteArrayOutputStream();
+    writeVarint(loc, 1, n);
+    if (address > 0) {
+      writeVarint(loc, 3, address);
+    }
+    writeBytes(loc, 4, line.toByteArray());
+    writeBytes(locations, 4, loc.toByteArray());
+    return n;
+  }
+
+  /**
+   * Adds a sample. The locations are given innermost function first.
+   */
+  public void addSample(int[] locationIds, int count, long[] values) {
+    if (values.length != valueCount) {
+      throw new IllegalArgumentException("expected " + valueCount + " values");
+    }
+    ByteArrayOutputStream ids = new ByteArrayOutputStream();
+    for (int i = 0; i < count; i++) {
+      writeRawVarint(ids, locationIds[i]);
+    }
+    ByteArrayOutputStream v = new ByteArrayOutputStream();
+    for (long value : values) {
+      writeRawVarint(v, value);
+    }
+    ByteArrayOutputStream sample = new ByteArrayOutputStream();
+    writeBytes(sample, 1, ids.toByteArray());
+    writeBytes(sample, 2, v.toByteArray());
+    writeBytes(samples, 2, sample.toByteArray());
+  }
+
+  public void write(OutputStream out) throws IOException {
+    ByteArrayOutputStream profile = new ByteArrayOutputStream();
+    sampleTypes.writeTo(profile);
+    samples.writeTo(profile);
+    locations.writeTo(profile);
+    functions.writeTo(profile);
+    for (String s : strings) {
+      writeBytes(profile, 6, s.getBytes("UTF-8"));
+    }
+    writeVarint(profile, 9, System.currentTimeMillis() * 1000000L);
+    if (durationNanos > 0) {
+      writeVarint(profile, 10, durationNanos);
+    }
+    if (periodType >= 0) {
+      writeBytes(profile, 11, valueType(periodType, periodUnit));
+      writeVarint(profile, 12, period);
+    }
+    GZIPOutputStream gz = new GZIPOutputStream(out);
+    profile.writeTo(gz);
+    gz.finish();
+    gz.flush();
+  }
+
+  private int getString(String s) {
+    Integer index = stringIndex.get(s);
+    if (index == null) {
+      index = strings.size();
+      strings.add(s);
+      stringIndex.put(s, index);
+    }
+    return index;
+  }
+
+  private static byte[] valueType(int type, int unit) {
+    ByteArrayOutputStream vt = new ByteArrayOutputStream();
+    writeVarint(vt, 1, type);
+    writeVarint(vt, 2, unit);
+    return vt.toByteArray();
+  }
+
+  private static void writeRawVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int field, long value) {
+    writeRawVarint(out, field << 3);
+    writeRawVarint(out, value);
+  }
+
+  private static void writeBytes(ByteArrayOutputStream out, int field, byte[] data) {
+    writeRawVarint(out, (field << 3) | 2);
+    writeRawVarint(out, data.length);
+    out.write(data, 0, data.length);
+  }
+}
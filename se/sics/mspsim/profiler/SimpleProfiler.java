@@ -38,32 +38,53 @@
  */
 
 package se.sics.mspsim.profiler;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.regex.Pattern;
 
 import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.EventListener;
 import se.sics.mspsim.core.EventSource;
+import se.sics.mspsim.core.MSP430Constants;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.Profiler;
-import se.sics.mspsim.profiler.CallEntry;
-import se.sics.mspsim.profiler.CallEntry.CallCounter;
+import se.sics.mspsim.core.TimeEvent;
 import se.sics.mspsim.util.ArrayUtils;
 import se.sics.mspsim.util.MapEntry;
 import se.sics.mspsim.util.StackMonitor;
 import se.sics.mspsim.util.Utils;
 
+/**
+ * Call profiler.
+ *
+ * Functions get dense ids the first time they are called (based on the id
+ * assigned by the map table) and all per function counters are kept in
+ * primitive arrays indexed by id, so profiling calls and returns does not
+ * allocate or hash anything once all functions have been seen.
+ *
+ * In sampling mode only the call stack is maintained on calls and returns
+ * and the stack is recorded every sample period cycles. This gives a
+ * statistical profile at a fraction of the cost of the full profile.
+ *
+ * The call stacks are aggregated in a bounded call tree while running and
+ * can be exported in collapsed format or as a pprof profile for flame
+ * graph tools.
+ */
 public class SimpleProfiler implements Profiler, EventListener {
- 
-  private HashMap<MapEntry,CallEntry> profileData;
+
+  /* pseudo function ids used in the call stacks */
+  private static final int LPM_ID = -1;
+  private static final int IRQ_ID = -1000;
+
+  public static final int DEFAULT_MAX_STACKS = 1 << 16;
+
   private HashMap<String, TagEntry> tagProfiles;
   private HashMap<String, TagEntry> startTags;
   private HashMap<String, TagEntry> endTags;
@@ -74,6 +95,33 @@ public class SimpleProfiler implements Profiler, EventListener {
   private PrintStream logger;
   private boolean hideIRQ = false;
 
+  /* function ids */
+  private MapEntry[] functions = new MapEntry[256];
+  private int functionCount;
+  private int[] idByMapId = new int[256];
+  private HashMap<MapEntry,Integer> otherIds = new HashMap<MapEntry,Integer>();
+
+  /* per function counters indexed by id */
+  private long[] totalCycles = new long[256];
+  private long[] exclusiveCycles = new long[256];
+  private int[] calls = new int[256];
+  private int[] maxStackUsage = new int[256];
+
+  /* number of calls per caller and callee: key is callee << 32 | caller */
+  private long[] callerKeys = new long[1024];
+  private int[] callerCounts = new int[1024];
+  private int callerSize;
+
+  /* sampling mode */
+  private int samplePeriod;
+  private TimeEvent sampleEvent;
+  private long samples;
+
+  /* the call stacks and the node of the current stack */
+  private CallTree callTree = new CallTree(DEFAULT_MAX_STACKS);
+  private int currentNode = CallTree.ROOT;
+  private int interruptedNode = CallTree.ROOT;
+
   private CallListener[] callListeners;
 
   /* statistics for interrupts */
@@ -88,7 +136,6 @@ public class SimpleProfiler implements Profiler, EventListener {
   private StackMonitor stackMonitor;
   
   public SimpleProfiler() {
-    profileData = new HashMap<MapEntry, CallEntry>();
     tagProfiles = new HashMap<String, TagEntry>();
     startTags = new HashMap<String, TagEntry>();
     endTags = new HashMap<String, TagEntry>();
@@ -112,7 +159,48 @@ public class SimpleProfiler implements Profiler, EventListener {
   public void addIgnoreFunction(String function) {
     ignoreFunctions.put(function, function);
   }
-  
+
+  /* Returns the dense id of the function */
+  private int getId(MapEntry entry) {
+    int mapId = entry.getId();
+    if (mapId >= 0 && mapId < idByMapId.length) {
+      int id = idByMapId[mapId] - 1;
+      if (id >= 0 && functions[id] == entry) {
+        return id;
+      }
+    }
+    return addFunction(entry);
+  }
+
+  private int addFunction(MapEntry entry) {
+    int mapId = entry.getId();
+    if (mapId < 0) {
+      Integer id = otherIds.get(entry);
+      if (id != null) {
+        return id;
+      }
+    }
+    int id = functionCount++;
+    if (id == functions.length) {
+      int size = id * 2;
+      functions = Arrays.copyOf(functions, size);
+      totalCycles = Arrays.copyOf(totalCycles, size);
+      exclusiveCycles = Arrays.copyOf(exclusiveCycles, size);
+      calls = Arrays.copyOf(calls, size);
+      maxStackUsage = Arrays.copyOf(maxStackUsage, size);
+    }
+    functions[id] = entry;
+    if (mapId < 0) {
+      otherIds.put(entry, id);
+    } else {
+      if (mapId >= idByMapId.length) {
+        idByMapId = Arrays.copyOf(idByMapId, Math.max(mapId + 1, idByMapId.length * 2));
+      }
+      idByMapId[mapId] = id + 1;
+    }
+    return id;
+  }
+
   public void profileCall(MapEntry entry, long cycles, int from) {
     if (cSP == callStack.length) {
       CallEntry[] tmp = new CallEntry[cSP + 64];
@@ -143,15 +231,17 @@ public class SimpleProfiler implements Profiler, EventListener {
 
     CallEntry ce = callStack[cSP++];
     ce.function = entry;
+    ce.id = getId(entry);
     ce.calls = 0;
     ce.cycles = cycles;
     ce.exclusiveCycles = cycles;
     ce.hide = hide;
     ce.fromPC = from;
+    ce.parentNode = currentNode;
+    ce.node = currentNode = callTree.getChild(currentNode, ce.id);
     newIRQ = false;
 
-    
-    if (stackMonitor != null) {
+    if (stackMonitor != null && samplePeriod == 0) {
         /* get the current stack MAX for previous function */
         if (cSP > 1) {
             callStack[cSP - 2].currentStackMax = stackMonitor.getProfStackMax();
@@ -172,17 +262,10 @@ public class SimpleProfiler implements Profiler, EventListener {
   public void profileReturn(long cycles) {
     if (cSP <= 0) {
       /* the stack pointer might have been messed with? */
-      PrintStream logger = this.logger;
-      if (logger != null) {
-          // logger.println("SimpleProfiler: Too many returns?");
-      } else {
-        // System.err.println("SimpleProfiler: Too many returns?");
-      }
       return;
     }
     CallEntry cspEntry = callStack[--cSP];
-    MapEntry fkn = cspEntry.function;
-//     System.out.println("Profiler: return / call stack: " + cSP + ", " + fkn);
+    currentNode = cspEntry.parentNode;
     
     long elapsed = cycles - cspEntry.cycles;
     long exElapsed = cycles - cspEntry.exclusiveCycles;
@@ -192,38 +275,27 @@ public class SimpleProfiler implements Profiler, EventListener {
     int maxUsage = 0;
     
     if (cspEntry.calls >= 0) {
-      CallEntry ce = profileData.get(fkn);
-      if (ce == null) {
-        profileData.put(fkn, ce = new CallEntry());
-        ce.function = fkn;
-      }
-      ce.cycles += elapsed;
-      ce.exclusiveCycles += exElapsed;
-      ce.calls++;
-      
-      if (stackMonitor != null) {
+      final int id = cspEntry.id;
+      if (samplePeriod == 0) {
+        totalCycles[id] += elapsed;
+        exclusiveCycles[id] += exElapsed;
+        calls[id]++;
+        callTree.addCall(cspEntry.node, exElapsed);
+
+        if (stackMonitor != null) {
           maxUsage = stackMonitor.getProfStackMax() - cspEntry.stackStart;
-          ce.stackStart = cspEntry.stackStart;
-          if (maxUsage > ce.currentStackMax) {
-              ce.currentStackMax = maxUsage;
+          if (maxUsage > maxStackUsage[id]) {
+            maxStackUsage[id] = maxUsage;
           }
           if (cSP != 0) {
-              /* put the max for previous function back into the max profiler */ 
-              stackMonitor.setProfStackMax(callStack[cSP-1].currentStackMax);
+            /* put the max for previous function back into the max profiler */
+            stackMonitor.setProfStackMax(callStack[cSP-1].currentStackMax);
           }
-      }
+        }
 
-      
-      
-      if (cSP != 0) {
-        MapEntry caller = callStack[cSP-1].function;
-        HashMap<MapEntry,CallCounter> callers = ce.callers;
-        CallCounter numCalls = callers.get(caller);
-        if (numCalls == null) {
-          numCalls = new CallCounter();
-          callers.put(caller, numCalls);
+        if (cSP != 0) {
+          countCaller(id, callStack[cSP-1].id);
         }
-        numCalls.count++;
       }
 
       PrintStream logger = this.logger;
@@ -231,7 +303,7 @@ public class SimpleProfiler implements Profiler, EventListener {
         if ((cspEntry.hide <= 1) && (!hideIRQ || servicedInterrupt == -1)) {
           if (servicedInterrupt >= 0) logger.printf("[%2d] ",servicedInterrupt);
           printSpace(logger, (cSP - interruptLevel) * 2);
-          logger.println("return from " + ce.function.getInfo() + " elapsed: " + elapsed + " maxStackUsage: " + maxUsage);
+          logger.println("return from " + cspEntry.function.getInfo() + " elapsed: " + elapsed + " maxStackUsage: " + maxUsage);
         }
       }
 
@@ -245,12 +317,51 @@ public class SimpleProfiler implements Profiler, EventListener {
     newIRQ = false;
   }
 
+  private static int hash(long key) {
+    key *= 0x9e3779b97f4a7c15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  private void countCaller(int callee, int caller) {
+    long key = ((long) callee << 32) | (caller & 0xffffffffL);
+    int mask = callerKeys.length - 1;
+    int i = hash(key) & mask;
+    while (callerCounts[i] != 0) {
+      if (callerKeys[i] == key) {
+        callerCounts[i]++;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    callerKeys[i] = key;
+    callerCounts[i] = 1;
+    if (++callerSize * 2 > callerKeys.length) {
+      long[] keys = callerKeys;
+      int[] counts = callerCounts;
+      callerKeys = new long[keys.length * 2];
+      callerCounts = new int[keys.length * 2];
+      mask = callerKeys.length - 1;
+      for (int j = 0; j < keys.length; j++) {
+        if (counts[j] != 0) {
+          int k = hash(keys[j]) & mask;
+          while (callerCounts[k] != 0) {
+            k = (k + 1) & mask;
+          }
+          callerKeys[k] = keys[j];
+          callerCounts[k] = counts[j];
+        }
+      }
+    }
+  }
+
   public void profileInterrupt(int vector, long cycles) {
     servicedInterrupt = vector;
     interruptFrom = cpu.getPC(); 
     lastInterruptTime[servicedInterrupt] = cycles;
     interruptLevel = cSP;
     newIRQ = true;
+    interruptedNode = currentNode;
+    currentNode = callTree.getChild(currentNode, IRQ_ID - vector);
 
     PrintStream logger = this.logger;
     if (logger != null && !hideIRQ) {
@@ -271,6 +382,7 @@ public class SimpleProfiler implements Profiler, EventListener {
           (cycles - lastInterruptTime[servicedInterrupt]));
     }
     interruptLevel = 0;
+    currentNode = interruptedNode;
     
     /* what if interrupt from interrupt ? */
     servicedInterrupt = -1;
@@ -283,21 +395,245 @@ public class SimpleProfiler implements Profiler, EventListener {
   }
 
   public void clearProfile() {
-    if (profileData != null) {
-      CallEntry[] entries =
-        profileData.values().toArray(new CallEntry[profileData.size()]);
-      for (int i = 0, n = entries.length; i < n; i++) {
-        entries[i].cycles = 0;
-        entries[i].calls = 0;
+    Arrays.fill(totalCycles, 0);
+    Arrays.fill(exclusiveCycles, 0);
+    Arrays.fill(calls, 0);
+    Arrays.fill(callerCounts, 0);
+    callerSize = 0;
+    callTree.clear();
+    currentNode = CallTree.ROOT;
+    interruptedNode = CallTree.ROOT;
+    samples = 0;
+    for (int i = 0, n = callStack.length; i < n; i++) {
+      CallEntry e = callStack[i];
+      if (e != null) {
+        e.calls = -1;
+        e.node = e.parentNode = CallTree.ROOT;
+      }
+    }
+  }  
+
+  /*
+   * Sampling profiler.
+   */
+
+  public int getSamplePeriod() {
+    return samplePeriod;
+  }
+
+  /**
+   * Switches to sampling mode where the call stack is recorded every
+   * period cycles. A period of 0 switches back to full call profiling.
+   */
+  public void setSamplePeriod(int period) {
+    if (period < 0) {
+      throw new IllegalArgumentException("negative sample period");
+    }
+    if (sampleEvent != null) {
+      sampleEvent.remove();
+      sampleEvent = null;
+    }
+    samplePeriod = period;
+    if (period > 0) {
+      sampleEvent = new TimeEvent(0, "profiler sample") {
+        public void execute(long t) {
+          sample();
+          if (sampleEvent == this) {
+            cpu.scheduleCycleEvent(this, t + samplePeriod);
+          }
+        }
+      };
+      cpu.scheduleCycleEvent(sampleEvent, cpu.cycles + period);
+    }
+  }
+
+  public long getSampleCount() {
+    return samples;
+  }
+
+  /* Returns a copy of the number of serviced interrupts per vector */
+  public long[] getInterruptCounts() {
+    return interruptCount.clone();
+  }
+
+  /* Records the current call stack */
+  private void sample() {
+    int node = currentNode;
+    if (cpu.getMode() != MSP430Constants.MODE_ACTIVE) {
+      node = callTree.getChild(node, LPM_ID);
+    }
+    callTree.addSample(node);
+    samples++;
+  }
+
+  /*
+   * Call stacks.
+   */
+
+  public CallTree getCallTree() {
+    return callTree;
+  }
+
+  /**
+   * Sets the maximal number of distinct call stacks to keep. Clears the
+   * profile.
+   */
+  public void setMaxStacks(int maxStacks) {
+    callTree = new CallTree(maxStacks);
+    clearProfile();
+  }
+
+  private String getStackName(int id) {
+    if (id >= 0) {
+      return functions[id].getName();
+    }
+    switch (id) {
+    case LPM_ID:
+      return "[LPM]";
+    case CallTree.TRUNCATED:
+      return "[truncated]";
+    default:
+      return "[IRQ " + (IRQ_ID - id) + "]";
+    }
+  }
+
+  /* Returns the samples in sampling mode and the exclusive cycles otherwise */
+  private long getStackValue(int node) {
+    return samplePeriod > 0 ? callTree.getSamples(node) : callTree.getCycles(node);
+  }
+
+  /**
+   * Prints the call stacks in the collapsed format used by flame graph
+   * tools: one line per distinct stack with the frames separated by ';'
+   * followed by the number of samples in sampling mode and the exclusive
+   * cycles otherwise.
+   */
+  public void printStacks(PrintStream out) {
+    CallTree tree = callTree;
+    StringBuilder sb = new StringBuilder();
+    for (int node = 0, n = tree.getNodeCount(); node < n; node++) {
+      long value = getStackValue(node);
+      if (value > 0) {
+        sb.setLength(0);
+        int[] stack = tree.getStack(node);
+        if (stack.length == 0) {
+          sb.append("[unknown]");
+        }
+        for (int j = 0; j < stack.length; j++) {
+          if (j > 0) {
+            sb.append(';');
+          }
+          sb.append(getStackName(stack[j]));
+        }
+        out.println(sb.append(' ').append(value));
       }
-      for (int i = 0, n = callStack.length; i < n; i++) {
-        CallEntry e = callStack[i];
-        if (e != null) {
-          e.calls = -1;
+    }
+  }
+
+  /**
+   * Writes the call stacks as a gzipped pprof profile. In sampling mode
+   * each stack has the number of samples and the estimated cycles,
+   * otherwise the number of calls and the exclusive cycles.
+   */
+  public void writePprof(OutputStream out) throws IOException {
+    CallTree tree = callTree;
+    boolean sampling = samplePeriod > 0;
+    PprofWriter writer = sampling
+        ? new PprofWriter(new String[] {"samples", "cycles"}, new String[] {"count", "cycles"})
+        : new PprofWriter(new String[] {"calls", "cycles"}, new String[] {"count", "cycles"});
+    if (sampling) {
+      writer.setPeriod("cycles", "cycles", samplePeriod);
+    }
+    HashMap<Integer,Integer> locations = new HashMap<Integer,Integer>();
+    int[] ids = new int[64];
+    for (int node = 0, n = tree.getNodeCount(); node < n; node++) {
+      long value = getStackValue(node);
+      if (value <= 0) {
+        continue;
+      }
+      int[] stack = tree.getStack(node);
+      int count = stack.length;
+      if (ids.length < count + 1) {
+        ids = new int[count * 2 + 1];
+      }
+      for (int j = 0; j < count; j++) {
+        int id = stack[count - j - 1];
+        Integer location = locations.get(id);
+        if (location == null) {
+          MapEntry entry = id >= 0 ? functions[id] : null;
+          location = entry == null
+              ? writer.getLocation(getStackName(id), null, 0)
+              : writer.getLocation(entry.getName(), entry.getFile(), entry.getAddress());
+          locations.put(id, location);
         }
+        ids[j] = location;
+      }
+      if (count == 0) {
+        ids[count++] = writer.getLocation("[unknown]", null, 0);
       }
+      writer.addSample(ids, count, sampling
+          ? new long[] {value, value * samplePeriod}
+          : new long[] {tree.getCalls(node), value});
     }
-  }  
+    writer.write(out);
+  }
+
+  private void printSampleProfile(PrintStream out, Pattern pattern) {
+    CallTree tree = callTree;
+    HashMap<String,long[]> counts = new HashMap<String,long[]>();
+    for (int node = 0, n = tree.getNodeCount(); node < n; node++) {
+      long value = tree.getSamples(node);
+      if (value == 0) {
+        continue;
+      }
+      int[] s = tree.getStack(node);
+      if (s.length == 0) {
+        long[] c = counts.get("[unknown]");
+        if (c == null) {
+          counts.put("[unknown]", c = new long[2]);
+        }
+        c[0] += value;
+        c[1] += value;
+      }
+      for (int j = 0; j < s.length; j++) {
+        boolean seen = false;
+        for (int k = 0; k < j && !seen; k++) {
+          seen = s[k] == s[j];
+        }
+        String name = getStackName(s[j]);
+        long[] c = counts.get(name);
+        if (c == null) {
+          counts.put(name, c = new long[2]);
+        }
+        if (!seen) {
+          c[1] += value;
+        }
+        if (j == s.length - 1) {
+          c[0] += value;
+        }
+      }
+    }
+    ArrayList<String> names = new ArrayList<String>(counts.keySet());
+    final HashMap<String,long[]> c = counts;
+    Collections.sort(names, new Comparator<String>() {
+      public int compare(String o1, String o2) {
+        long diff = c.get(o2)[0] - c.get(o1)[0];
+        return diff > 0 ? 1 : (diff < 0 ? -1 : o1.compareTo(o2));
+      }
+    });
+    out.println("************************* Sampled Profile ***********************************");
+    out.println("Samples: " + samples + " every " + samplePeriod + " cycles");
+    out.println("Function                                   Self   Self%      Total  Total%");
+    long total = samples > 0 ? samples : 1;
+    for (String name : names) {
+      if (pattern == null || pattern.matcher(name).find()) {
+        long[] v = c.get(name);
+        out.print(name);
+        printSpace(out, 40 - name.length());
+        out.printf(" %8d %6.2f%% %10d %6.2f%%%n", v[0], 100.0 * v[0] / total, v[1], 100.0 * v[1] / total);
+      }
+    }
+  }
 
   public void printProfile(PrintStream out) {
     printProfile(out, new Properties());
@@ -308,16 +644,30 @@ public class SimpleProfiler implements Profiler, EventListener {
     String profSort = parameters.getProperty(PARAM_SORT_MODE);
     boolean profCallers = parameters.getProperty(PARAM_PROFILE_CALLERS) != null;
     Pattern pattern = null;
-    CallEntry[] entries = profileData.values().toArray(new CallEntry[profileData.size()]);
+    if (functionNameRegexp != null && functionNameRegexp.length() > 0) {
+      pattern = Pattern.compile(functionNameRegexp);
+    }
+    if (samplePeriod > 0) {
+      printSampleProfile(out, pattern);
+      return;
+    }
+
+    CallEntry[] entries = new CallEntry[functionCount];
+    for (int i = 0; i < functionCount; i++) {
+      CallEntry ce = new CallEntry();
+      ce.id = i;
+      ce.function = functions[i];
+      ce.cycles = totalCycles[i];
+      ce.exclusiveCycles = exclusiveCycles[i];
+      ce.calls = calls[i];
+      entries[i] = ce;
+    }
 
     Arrays.sort(entries, new CallEntryComparator(profSort));
     
     out.println("************************* Profile Data **************************************");
     out.println("Function                              Calls    Average       Total  Exclusive");
 
-    if (functionNameRegexp != null && functionNameRegexp.length() > 0) {
-      pattern = Pattern.compile(functionNameRegexp);
-    }
     for (int i = 0, n = entries.length; i < n; i++) {
       int c = entries[i].calls;
       if (c > 0) {
@@ -339,7 +689,7 @@ public class SimpleProfiler implements Profiler, EventListener {
           printSpace(out, 11 - exCyclesS.length());
           out.println(exCyclesS);
           if (profCallers) {
-            printCallers(entries[i], out);
+            printCallers(entries[i].id, out);
           }
         }
       }
@@ -356,17 +706,21 @@ public class SimpleProfiler implements Profiler, EventListener {
     }
   }
 
-  private void printCallers(CallEntry callEntry, PrintStream out) {
-    HashMap<MapEntry,CallCounter> callers = callEntry.callers;
-    List<Entry<MapEntry,CallCounter>> list = new ArrayList<Entry<MapEntry,CallCounter>>(callers.entrySet());
-    Collections.sort(list, new Comparator<Entry<MapEntry,CallCounter>>() {
-        public int compare(Entry<MapEntry,CallCounter> o1, Entry<MapEntry,CallCounter> o2) {
-          return o2.getValue().compareTo(o1.getValue());
+  private void printCallers(int callee, PrintStream out) {
+    ArrayList<long[]> list = new ArrayList<long[]>();
+    for (int i = 0; i < callerKeys.length; i++) {
+      if (callerCounts[i] != 0 && (int) (callerKeys[i] >> 32) == callee) {
+        list.add(new long[] { (int) callerKeys[i], callerCounts[i] });
+      }
+    }
+    Collections.sort(list, new Comparator<long[]>() {
+        public int compare(long[] o1, long[] o2) {
+          return o2[1] < o1[1] ? -1 : (o2[1] == o1[1] ? 0 : 1);
         }
     });
-    for (Entry<MapEntry,CallCounter> entry : list) {
-      String functionName = entry.getKey().getName();
-      String callS = "" + entry.getValue().count;
+    for (long[] entry : list) {
+      String functionName = functions[(int) entry[0]].getName();
+      String callS = "" + entry[1];
       printSpace(out, 12 - callS.length());
       out.print(callS);
       printSpace(out, 2);
@@ -1,8 +1,12 @@
 package se.sics.mspsim.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 import se.sics.mspsim.core.EmulationException;
 
-public class ArrayFIFO {
+public class ArrayFIFO implements StateSnapshot.Stateful {
 
     public static final boolean STRICT = false;
     
@@ -121,6 +125,21 @@ public class ArrayFIFO {
         return name + " len: " + len + " rpos: " + readPos + " wpos: " + writePos;
     }
 
+    /* The data is in the memory of the owner and saved with it */
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeInt(readPos);
+        out.writeInt(writePos);
+        out.writeInt(len);
+        out.writeInt(markWritePos);
+    }
+
+    public void readState(DataInputStream in) throws IOException {
+        readPos = in.readInt();
+        writePos = in.readInt();
+        len = in.readInt();
+        markWritePos = in.readInt();
+    }
+
 
     public boolean tailEquals(int[] data, int offset, int len) {
         return tailEquals(data, offset, len, 0);
@@ -0,0 +1,326 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * AsyncEmulationLogger
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import se.sics.mspsim.core.EmulationException;
+import se.sics.mspsim.core.LogListener;
+import se.sics.mspsim.core.Loggable;
+import se.sics.mspsim.core.MSP430Core;
+
+/**
+ * Emulation logger that hands the log events to a background thread.
+ *
+ * Each event is stored as source, warning type, cycle count, message or
+ * format and two primitive arguments in a preallocated ring buffer. The
+ * emulation thread never formats, prints or blocks - formatted messages
+ * are only built by the writer thread, and when the writer can not keep
+ * up new events are dropped and counted instead.
+ *
+ * Printed warnings have the form "cycles TAB source TAB type TAB message"
+ * so the output is easy to parse. No stack trace is generated for the
+ * printed warnings since the CPU has moved on when they are written.
+ * Warnings in EXCEPTION mode still stop the emulation at once.
+ *
+ * The logger is synchronous, and works as DefaultEmulationLogger, until
+ * setAsynchronous(true) is called.
+ */
+public class AsyncEmulationLogger extends DefaultEmulationLogger {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final MSP430Core cpu;
+    private final PrintStream out;
+
+    /* The ring buffer. A slot can be written when its sequence equals the
+     * position and read when its sequence is the position plus one. */
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequence;
+    private final Loggable[] sources;
+    private final WarningType[] types;
+    private final String[] messages;
+    private final boolean[] formats;
+    private final boolean[] printed;
+    private final long[] cycles;
+    private final long[] args1;
+    private final long[] args2;
+
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final AtomicLong dropped = new AtomicLong();
+    private long reportedDropped;
+    private long written;
+
+    private volatile Thread writer;
+
+    public AsyncEmulationLogger(MSP430Core cpu, PrintStream out) {
+        this(cpu, out, DEFAULT_CAPACITY);
+    }
+
+    public AsyncEmulationLogger(MSP430Core cpu, PrintStream out, int capacity) {
+        super(cpu, out);
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.cpu = cpu;
+        this.out = out;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        this.sources = new Loggable[capacity];
+        this.types = new WarningType[capacity];
+        this.messages = new String[capacity];
+        this.formats = new boolean[capacity];
+        this.printed = new boolean[capacity];
+        this.cycles = new long[capacity];
+        this.args1 = new long[capacity];
+        this.args2 = new long[capacity];
+    }
+
+    public boolean isAsynchronous() {
+        return writer != null;
+    }
+
+    public synchronized void setAsynchronous(boolean asynchronous) {
+        if (asynchronous == (writer != null)) {
+            return;
+        }
+        if (asynchronous) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    writeEvents();
+                }
+            }, "EmulationLogger");
+            t.setDaemon(true);
+            writer = t;
+            t.start();
+        } else {
+            Thread t = writer;
+            writer = null;
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Number of events that have been dropped because the buffer was full */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /* Waits until all events logged so far have been handled */
+    public void flush() {
+        long target = head.get();
+        while (tail < target && writer != null) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100000);
+        }
+    }
+
+    @Override
+    public void log(Loggable source, String message) {
+        if (writer == null) {
+            super.log(source, message);
+        } else if (getLogListeners() != null) {
+            /* log messages are only delivered to the listeners */
+            offer(source, null, message, false, 0, 0, false);
+        }
+    }
+
+    @Override
+    public void log(Loggable source, String format, long arg1, long arg2) {
+        if (writer == null) {
+            super.log(source, format, arg1, arg2);
+        } else if (getLogListeners() != null) {
+            offer(source, null, format, true, arg1, arg2, false);
+        }
+    }
+
+    @Override
+    public void logw(Loggable source, WarningType type, String message)
+            throws EmulationException {
+        if (writer == null) {
+            super.logw(source, type, message);
+        } else {
+            countWarning(type);
+            warn(source, type, message, false, 0, 0);
+        }
+    }
+
+    @Override
+    public void logw(Loggable source, WarningType type, String format, long arg1, long arg2)
+            throws EmulationException {
+        if (writer == null) {
+            super.logw(source, type, format, arg1, arg2);
+        } else {
+            countWarning(type);
+            warn(source, type, format, true, arg1, arg2);
+        }
+    }
+
+    private void warn(Loggable source, WarningType type, String message,
+            boolean format, long arg1, long arg2) throws EmulationException {
+        WarningMode mode = getMode(type);
+        if (mode == WarningMode.SILENT) {
+            if (getLogListeners() != null) {
+                offer(source, type, message, format, arg1, arg2, false);
+            }
+        } else if (mode == WarningMode.PRINT) {
+            offer(source, type, message, format, arg1, arg2, true);
+        } else {
+            offer(source, type, message, format, arg1, arg2, true);
+            flush();
+            throw new EmulationException(format ? String.format(message, arg1, arg2) : message);
+        }
+    }
+
+    private void offer(Loggable source, WarningType type, String message,
+            boolean format, long arg1, long arg2, boolean print) {
+        long pos;
+        int i;
+        while (true) {
+            pos = head.get();
+            i = (int) pos & mask;
+            long seq = sequence.get(i);
+            if (seq == pos) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (seq < pos) {
+                /* full - the writer is behind */
+                dropped.incrementAndGet();
+                return;
+            }
+            /* else another thread took the slot - try again */
+        }
+        sources[i] = source;
+        types[i] = type;
+        messages[i] = message;
+        formats[i] = format;
+        printed[i] = print;
+        cycles[i] = cpu.cycles;
+        args1[i] = arg1;
+        args2[i] = arg2;
+        sequence.lazySet(i, pos + 1);
+    }
+
+    private void writeEvents() {
+        Thread current = Thread.currentThread();
+        while (writer == current) {
+            if (drain() == 0) {
+                out.flush();
+                LockSupport.parkNanos(this, 1000000);
+            }
+        }
+        drain();
+        out.flush();
+    }
+
+    /* Handles all available events and returns the number of events */
+    private int drain() {
+        long t = tail;
+        int count = 0;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int i = (int) t & mask;
+            if (sequence.get(i) != t + 1) {
+                break;
+            }
+            Loggable source = sources[i];
+            WarningType type = types[i];
+            String message = messages[i];
+            if (formats[i]) {
+                message = String.format(message, args1[i], args2[i]);
+            }
+            boolean print = printed[i];
+            long time = cycles[i];
+            sources[i] = null;
+            messages[i] = null;
+            sequence.lazySet(i, t + capacity);
+            tail = ++t;
+            count++;
+
+            if (print) {
+                sb.setLength(0);
+                sb.append(time).append('\t').append(source.getID()).append('\t')
+                    .append(type).append('\t').append(message);
+                out.println(sb);
+            }
+            LogListener[] listeners = getLogListeners();
+            if (listeners != null) {
+                for (LogListener l : listeners) {
+                    try {
+                        if (type == null) {
+                            l.log(source, message);
+                        } else {
+                            l.logw(source, type, message);
+                        }
+                    } catch (EmulationException e) {
+                        /* too late to stop the emulation at the warning */
+                        out.println(e.getMessage());
+                    }
+                }
+            }
+        }
+        written += count;
+        long d = dropped.get();
+        if (d != reportedDropped) {
+            out.println(cpu.cycles + "\tlogger\tDROPPED\t" + (d - reportedDropped));
+            reportedDropped = d;
+        }
+        return count;
+    }
+}
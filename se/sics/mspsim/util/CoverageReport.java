@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * CoverageReport
+ */
+
+package se.sics.mspsim.util;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.simple.JSONValue;
+
+import se.sics.mspsim.core.Coverage;
+
+/**
+ * Maps the execution counts of a coverage collector to source lines using
+ * the debug information of the firmware and writes them as lcov tracefiles
+ * or JSON.
+ *
+ * The execution count of a line is the highest count of the instructions
+ * generated for it. Lines that have code but were never executed are
+ * reported with count zero.
+ */
+public class CoverageReport {
+
+  private final Coverage coverage;
+  private final ELF elf;
+  private final MapTable map;
+
+  /* snapshot of the execution counts indexed by address / 2 */
+  private int[] executed;
+  private long[] counts;
+
+  public CoverageReport(Coverage coverage, ELF elf, MapTable map) {
+    this.coverage = coverage;
+    this.elf = elf;
+    this.map = map;
+  }
+
+  private void takeSnapshot() {
+    executed = coverage.getExecutedAddresses();
+    int end = executed.length == 0 ? 0 : executed[executed.length - 1] + 2;
+    counts = coverage.getCounts(0, end);
+  }
+
+  private long getCount(int address) {
+    int i = address >> 1;
+    return i < counts.length ? counts[i] : 0;
+  }
+
+  private static class FunctionInfo {
+    final String name;
+    final int line;
+    final long count;
+
+    FunctionInfo(String name, int line, long count) {
+      this.name = name;
+      this.line = line;
+      this.count = count;
+    }
+  }
+
+  private static class FileInfo {
+    final TreeMap<Integer,Long> lines = new TreeMap<Integer,Long>();
+    final ArrayList<FunctionInfo> functions = new ArrayList<FunctionInfo>();
+
+    void addLine(int line, long count) {
+      Long old = lines.get(line);
+      if (old == null || old < count) {
+        lines.put(line, count);
+      }
+    }
+
+    int getLinesHit() {
+      int hit = 0;
+      for (long count : lines.values()) {
+        if (count > 0) {
+          hit++;
+        }
+      }
+      return hit;
+    }
+  }
+
+  private static String getFileName(DebugInfo info) {
+    String file = info.getFile();
+    String path = info.getPath();
+    if (path != null && file != null && !file.startsWith("/")) {
+      return path.endsWith("/") ? path + file : path + '/' + file;
+    }
+    return file;
+  }
+
+  /* Collects the line coverage per source file */
+  private TreeMap<String,FileInfo> getFiles() {
+    TreeMap<String,FileInfo> files = new TreeMap<String,FileInfo>();
+    ELFDebug debug = elf == null ? null : elf.getDebug();
+    if (debug == null) {
+      return files;
+    }
+    for (int address : debug.getExecutableAddresses()) {
+      addLine(files, debug.getDebugInfo(address), 0);
+    }
+    for (int address : executed) {
+      addLine(files, debug.getDebugInfo(address), getCount(address));
+    }
+    if (map != null) {
+      for (MapEntry entry : map.getAllEntries()) {
+        if (entry.getType() == MapEntry.TYPE.function) {
+          DebugInfo info = debug.getDebugInfo(entry.getAddress());
+          FileInfo file = info == null ? null : files.get(getFileName(info));
+          if (file != null) {
+            file.functions.add(new FunctionInfo(entry.getName(), info.getLine(),
+                getCount(entry.getAddress())));
+          }
+        }
+      }
+    }
+    return files;
+  }
+
+  private static void addLine(TreeMap<String,FileInfo> files, DebugInfo info, long count) {
+    if (info == null || info.getFile() == null || info.getLine() <= 0) {
+      return;
+    }
+    String name = getFileName(info);
+    FileInfo file = files.get(name);
+    if (file == null) {
+      file = new FileInfo();
+      files.put(name, file);
+    }
+    file.addLine(info.getLine(), count);
+  }
+
+  /* Writes the coverage as an lcov tracefile */
+  public void writeLcov(PrintStream out, String testName) {
+    takeSnapshot();
+    for (Map.Entry<String,FileInfo> e : getFiles().entrySet()) {
+      FileInfo file = e.getValue();
+      out.println("TN:" + (testName == null ? "" : testName));
+      out.println("SF:" + e.getKey());
+      int functionsHit = 0;
+      for (FunctionInfo f : file.functions) {
+        out.println("FN:" + f.line + ',' + f.name);
+      }
+      for (FunctionInfo f : file.functions) {
+        out.println("FNDA:" + f.count + ',' + f.name);
+        if (f.count > 0) {
+          functionsHit++;
+        }
+      }
+      out.println("FNF:" + file.functions.size());
+      out.println("FNH:" + functionsHit);
+      for (Map.Entry<Integer,Long> line : file.lines.entrySet()) {
+        out.println("DA:" + line.getKey() + ',' + line.getValue());
+      }
+      out.println("LF:" + file.lines.size());
+      out.println("LH:" + file.getLinesHit());
+      out.println("end_of_record");
+    }
+    out.flush();
+  }
+
+  /*
+   * Writes the coverage as JSON. The report contains the line coverage
+   * per source file and the execution count of each executed address.
+   */
+  public void writeJSON(PrintStream out) {
+    takeSnapshot();
+    out.println('{');
+    out.println("  \"files\": [");
+    boolean first = true;
+    for (Map.Entry<String,FileInfo> e : getFiles().entrySet()) {
+      FileInfo file = e.getValue();
+      if (!first) {
+        out.println(',');
+      }
+      first = false;
+      out.print("    {\"file\": \"" + JSONValue.escape(e.getKey()) + "\", \"linesFound\": "
+          + file.lines.size() + ", \"linesHit\": " + file.getLinesHit() + ", \"lines\": {");
+      boolean firstLine = true;
+      for (Map.Entry<Integer,Long> line : file.lines.entrySet()) {
+        out.print((firstLine ? "\"" : ", \"") + line.getKey() + "\": " + line.getValue());
+        firstLine = false;
+      }
+      out.print("}, \"functions\": {");
+      boolean firstFunction = true;
+      for (FunctionInfo f : file.functions) {
+        out.print((firstFunction ? "\"" : ", \"") + JSONValue.escape(f.name) + "\": " + f.count);
+        firstFunction = false;
+      }
+      out.print("}}");
+    }
+    out.println();
+    out.println("  ],");
+    out.print("  \"addresses\": {");
+    first = true;
+    for (int address : executed) {
+      out.print((first ? "\"0x" : ", \"0x") + Utils.hex(address, 4) + "\": " + getCount(address));
+      first = false;
+    }
+    out.println('}');
+    out.println('}');
+    out.flush();
+  }
+}
@@ -1,20 +1,23 @@
 package se.sics.mspsim.util;
 
 import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import se.sics.mspsim.core.EmulationException;
-import se.sics.mspsim.core.EmulationLogger;
+import se.sics.mspsim.core.FormattingEmulationLogger;
 import se.sics.mspsim.core.LogListener;
 import se.sics.mspsim.core.Loggable;
 import se.sics.mspsim.core.MSP430Core;
 
-public class DefaultEmulationLogger implements EmulationLogger {
+public class DefaultEmulationLogger implements FormattingEmulationLogger {
 
   private final MSP430Core cpu;
   private final WarningMode[] warningModes = new WarningMode[WarningType.values().length];
   private WarningMode defaultMode = WarningMode.PRINT;
   private PrintStream out;
   private LogListener[] logListeners;
+  /* number of warnings per type, updated without locking */
+  private final AtomicLongArray warningCounts = new AtomicLongArray(WarningType.values().length);
   
   public DefaultEmulationLogger(MSP430Core cpu, PrintStream out) {
     this.cpu = cpu;
@@ -43,6 +46,12 @@ public class DefaultEmulationLogger implements EmulationLogger {
   @Override
   public void logw(Loggable source, WarningType type, String message)
           throws EmulationException {
+      countWarning(type);
+      printWarning(source, type, message);
+  }
+
+  private void printWarning(Loggable source, WarningType type, String message)
+          throws EmulationException {
       switch (getMode(type)) {
       case SILENT:
           break;
@@ -64,6 +73,35 @@ public class DefaultEmulationLogger implements EmulationLogger {
       }
   }
 
+  @Override
+  public void log(Loggable source, String format, long arg1, long arg2) {
+      /* only formatted when someone is listening */
+      if (logListeners != null) {
+          log(source, String.format(format, arg1, arg2));
+      }
+  }
+
+  @Override
+  public void logw(Loggable source, WarningType type, String format, long arg1, long arg2)
+          throws EmulationException {
+      countWarning(type);
+      if (getMode(type) != WarningMode.SILENT || logListeners != null) {
+          printWarning(source, type, String.format(format, arg1, arg2));
+      }
+  }
+
+  protected void countWarning(WarningType type) {
+      warningCounts.incrementAndGet(type.ordinal());
+  }
+
+  public long getWarningCount(WarningType type) {
+      return warningCounts.get(type.ordinal());
+  }
+
+  protected LogListener[] getLogListeners() {
+      return logListeners;
+  }
+
   @Override
   public WarningMode getDefaultWarningMode() {
       return defaultMode;
@@ -38,16 +38,34 @@
 package se.sics.mspsim.util;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
+import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.debug.DwarfReader;
 import se.sics.mspsim.debug.StabDebug;
 
+/**
+ * ELF firmware reader.
+ *
+ * Firmware files are read into memory and the debug information is parsed
+ * on first use. Parsed firmwares are kept in a cache keyed by a hash of the
+ * file contents as long as they are in use, so nodes running the same
+ * firmware share the program images, the symbol table and the debug
+ * indexes.
+ */
 public class ELF {
 
   // private static final int EI_NIDENT = 16;
@@ -55,6 +73,10 @@ public class ELF {
   private static final int[] MAGIC = new int[] {0x7f, 'E', 'L', 'F'};
   
   public static final boolean DEBUG = false;
+
+  /* Firmwares in use keyed by content hash */
+  private static final HashMap<String,WeakReference<ELF>> cache =
+      new HashMap<String,WeakReference<ELF>>();
   
   
   boolean encMSB = true;
@@ -72,21 +94,33 @@ public class ELF {
   int shnum;
   int shstrndx;
 
-  byte[] elfData;
+  /* The file contents - only accessed with absolute reads */
+  final ByteBuffer elfData;
   private int pos = 0;
 
   private ELFSection sections[];
   private ELFProgram programs[];
   private ArrayList<FileInfo> files = new ArrayList<FileInfo>();
+  /* true while the file ranges are added in address order */
+  private boolean filesSorted = true;
 
   ELFSection strTable;
   ELFSection symTable;
   ELFSection dbgStab;
   public ELFSection dbgStabStr;
 
-  ELFDebug debug;
+  private boolean hasDwarf;
+  private boolean debugRead;
+  private ELFDebug debug;
+  /* the symbol table - copied for each call to getMap() */
+  private MapTable map;
+  private byte[][] programImages;
 
   public ELF(byte[] data) {
+    this(ByteBuffer.wrap(data));
+  }
+
+  public ELF(ByteBuffer data) {
     elfData = data;
     setPos(0);
   }
@@ -111,17 +145,17 @@ public class ELF {
 
   private void readHeader() throws ELFException {
     for (int i = 0; i < MAGIC.length; i++) {
-      if (elfData[i] != (byte) (MAGIC[i] & 0xff)) {
+      if (elfData.limit() <= i || elfData.get(i) != (byte) (MAGIC[i] & 0xff)) {
         throw new ELFException("Not an elf file");
       }
     }
     
-    if (elfData[EI_ENCODING] == 2) {
+    if (elfData.get(EI_ENCODING) == 2) {
       encMSB = true;
-    } else if (elfData[EI_ENCODING] == 1) {
+    } else if (elfData.get(EI_ENCODING) == 1) {
       encMSB = false;
     } else {
-      throw new ELFException("Illegal encoding: " + elfData[EI_ENCODING]);
+      throw new ELFException("Illegal encoding: " + elfData.get(EI_ENCODING));
     }
     
     setPos(getPos() + 16);
@@ -219,15 +253,15 @@ public class ELF {
   int readElf32(int pos) {
     int b = 0;
     if (encMSB) {
-      b = (elfData[pos++] & 0xff) << 24 |
-	((elfData[pos++] & 0xff) << 16) |
-	((elfData[pos++] & 0xff) << 8) |
-	(elfData[pos++] & 0xff);
+      b = (elfData.get(pos++) & 0xff) << 24 |
+	((elfData.get(pos++) & 0xff) << 16) |
+	((elfData.get(pos++) & 0xff) << 8) |
+	(elfData.get(pos++) & 0xff);
     } else {
-      b = (elfData[pos++] & 0xff) |
-	((elfData[pos++] & 0xff) << 8) |
-	((elfData[pos++] & 0xff) << 16) |
-	((elfData[pos++] & 0xff) << 24);
+      b = (elfData.get(pos++) & 0xff) |
+	((elfData.get(pos++) & 0xff) << 8) |
+	((elfData.get(pos++) & 0xff) << 16) |
+	((elfData.get(pos++) & 0xff) << 24);
     }
     return b;
   }
@@ -235,17 +269,17 @@ public class ELF {
   int readElf16(int pos) {
     int b = 0;
     if (encMSB) {
-      b = ((elfData[pos++] & 0xff) << 8) |
-	(elfData[pos++] & 0xff);
+      b = ((elfData.get(pos++) & 0xff) << 8) |
+	(elfData.get(pos++) & 0xff);
     } else {
-      b = (elfData[pos++] & 0xff) |
-	((elfData[pos++] & 0xff) << 8);
+      b = (elfData.get(pos++) & 0xff) |
+	((elfData.get(pos++) & 0xff) << 8);
     }
     return b;
   }
 
   int readElf8(int pos) {
-    return elfData[pos++] & 0xff;
+    return elfData.get(pos) & 0xff;
   }
 
   public static void printBytes(String name, byte[] data) {
@@ -270,7 +304,6 @@ public class ELF {
       }
     }
 
-    boolean readDwarf = false;
     /* Find sections */
     for (int i = 0, n = shnum; i < n; i++) {
         String name = sections[i].getSectionName();
@@ -285,15 +318,9 @@ public class ELF {
       }
       if (".debug_aranges".equals(name) || 
           ".debug_line".equals(name)) {
-          readDwarf = true;
+          hasDwarf = true;
       }
     }
-    if (readDwarf) {
-        DwarfReader dwarf = new DwarfReader(this);
-        dwarf.read();
-        debug = dwarf;
-    }
-
   }
 
   private void readPrograms() {
@@ -311,27 +338,59 @@ public class ELF {
     readHeader();
     readPrograms();
     readSections();
-    if (dbgStab != null) {
-      debug = new StabDebug(this, dbgStab, dbgStabStr);
+  }
+
+  /* Returns the program data of the program header as stored in the file */
+  private synchronized byte[] getProgramImage(int index) {
+    if (programImages == null) {
+      programImages = new byte[phnum][];
+    }
+    byte[] image = programImages[index];
+    if (image == null) {
+      ByteBuffer data = elfData.duplicate();
+      data.position(programs[index].offset);
+      image = new byte[programs[index].fileSize];
+      data.get(image);
+      programImages[index] = image;
     }
+    return image;
+  }
+
+  /**
+   * Loads the programs into the memory of the CPU. The flash pages are
+   * shared afterwards so that all CPUs running this firmware use the same
+   * flash pages until they write to them.
+   */
+  public void loadPrograms(MSP430Core cpu) {
+    for (int i = 0, n = phnum; i < n; i++) {
+      int addr = programs[i].paddr;
+      byte[] image = getProgramImage(i);
+      for (int j = 0, len = image.length; j < len; j++) {
+        cpu.poke(addr++, image[j] & 0xff);
+      }
+      for (int j = programs[i].fileSize, len = programs[i].memSize; j < len && addr < cpu.MAX_MEM; j++) {
+        cpu.poke(addr++, 0);
+      }
+    }
+    cpu.pagedMemory.share();
   }
 
   public void loadPrograms(int[] memory) {
     for (int i = 0, n = phnum; i < n; i++) {
       // paddr or vaddr???
-      loadBytes(memory, programs[i].offset, programs[i].paddr,
-		programs[i].fileSize, programs[i].memSize);
+      loadBytes(memory, getProgramImage(i), programs[i].paddr,
+		programs[i].memSize);
     }
   }
 
-  private void loadBytes(int[] memory, int offset, int addr, int len,
-			 int fill) {
+  private void loadBytes(int[] memory, byte[] image, int addr, int fill) {
+    int len = image.length;
     if (DEBUG) {
       System.out.println("Loading " + len + " bytes into " +
              Integer.toString(addr, 16) + " fill " + fill);
     }
     for (int i = 0, n = len; i < n; i++) {
-      memory[addr++] = elfData[offset++] & 0xff;
+      memory[addr++] = image[i] & 0xff;
     }
     if (fill > len) {
       int n = fill - len;
@@ -344,24 +403,59 @@ public class ELF {
     }
   }
 
-  public ELFDebug getDebug() {
+  /* Returns the debug information - parsed on first call */
+  public synchronized ELFDebug getDebug() {
+    if (!debugRead) {
+      debugRead = true;
+      if (dbgStab != null) {
+        debug = new StabDebug(this, dbgStab, dbgStabStr);
+      } else if (hasDwarf) {
+        DwarfReader dwarf = new DwarfReader(this);
+        dwarf.read();
+        debug = dwarf;
+      }
+    }
     return debug;
   }
 
   public DebugInfo getDebugInfo(int adr) {
+      ELFDebug debug = getDebug();
       if (debug != null) {
           return debug.getDebugInfo(adr);
       }
       return null;
   }
 
-  public String lookupFile(int address) {
+  /**
+   * Returns the source file of the address. The debug information is only
+   * used once it has been parsed by getDebug(), otherwise the file is
+   * looked up in the file ranges of the symbol table, which keeps the
+   * symbol table from forcing the debug information to be parsed.
+   */
+  public synchronized String lookupFile(int address) {
     if (debug != null) {
         DebugInfo di = debug.getDebugInfo(address);
         if (di != null) {
             return di.getFile();
         }
     }
+    if (filesSorted) {
+      /* find the first file with end >= address */
+      int lo = 0;
+      int hi = files.size() - 1;
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        if (files.get(mid).end < address) {
+          lo = mid + 1;
+        } else {
+          hi = mid - 1;
+        }
+      }
+      if (lo < files.size() && address >= files.get(lo).start) {
+        return files.get(lo).name;
+      }
+      return null;
+    }
     for (int i = 0; i < files.size(); i++) {
       FileInfo fi = files.get(i);
       if (address >= fi.start && address <= fi.end) {
@@ -371,7 +465,26 @@ public class ELF {
     return null;
   }
 
-  public MapTable getMap() {
+  private void addFile(FileInfo file) {
+    if (file.end < file.start
+        || (!files.isEmpty() && file.start < files.get(files.size() - 1).end)) {
+      filesSorted = false;
+    }
+    files.add(file);
+  }
+
+  /**
+   * Returns the symbol table of the firmware. The symbols are read on the
+   * first call and each call returns a new table sharing the symbols.
+   */
+  public synchronized MapTable getMap() {
+    if (map == null) {
+      map = readMap();
+    }
+    return map.copy();
+  }
+
+  private MapTable readMap() {
     MapTable map = new MapTable();
     int sAddrHighest = -1;
     boolean foundEnd = false;
@@ -398,7 +511,7 @@ public class ELF {
       if (type == ELFSection.SYMTYPE_NONE && sn != null){
         if ("Letext".equals(sn)) {
           if (currentFile != null) {
-            files.add(new FileInfo(currentFile, currentAddress, sAddr));
+            addFile(new FileInfo(currentFile, currentAddress, sAddr));
             currentAddress = sAddr;
           }
         } else if (!sn.startsWith("_")) {
@@ -438,7 +551,7 @@ public class ELF {
           if (file == null) {
             file = currentFile;
           }
-	  map.setEntry(new MapEntry(MapEntry.TYPE.function, sAddr, 0, symbolName, file,
+	  map.setEntry(new MapEntry(MapEntry.TYPE.function, sAddr, size, symbolName, file,
 	      bind == ELFSection.SYMBIND_LOCAL));
 	} else if (type == ELFSection.SYMTYPE_OBJECT) {
           String file = lookupFile(sAddr);
@@ -465,26 +578,94 @@ public class ELF {
     return map;
   }
 
+  /**
+   * Reads a firmware file. The file is copied into memory so it can be
+   * rebuilt while in use, and firmwares already in use with the same
+   * contents are reused.
+   */
   public static ELF readELF(String file) throws IOException {
-    DataInputStream input = new DataInputStream(new FileInputStream(file));
-    ByteArrayOutputStream baous = new ByteArrayOutputStream();
-    byte[] buf = new byte[2048];
-    for(int read; (read = input.read(buf)) != -1; baous.write(buf, 0, read)) {
-      ;
-    }
-    input.close();
-    buf = null;
-    byte[] data = baous.toByteArray();
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      long length = input.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("firmware file too large: " + file);
+      }
+      byte[] data = new byte[(int) length];
+      input.readFully(data);
+      return readELF(ByteBuffer.wrap(data));
+    } finally {
+      input.close();
+    }
+  }
+
+  public static ELF readELF(URL url) throws IOException {
+    if ("file".equals(url.getProtocol())) {
+      try {
+        return readELF(new File(url.toURI()).getPath());
+      } catch (URISyntaxException e) {
+        /* read it as a stream instead */
+      }
+    }
+    InputStream input = url.openStream();
+    try {
+      ByteArrayOutputStream data = new ByteArrayOutputStream(65536);
+      byte[] buf = new byte[65536];
+      for (int read; (read = input.read(buf)) != -1; data.write(buf, 0, read)) {
+        ;
+      }
+      return readELF(ByteBuffer.wrap(data.toByteArray()));
+    } finally {
+      input.close();
+    }
+  }
+
+  public static ELF readELF(ByteBuffer data) throws IOException {
     if (DEBUG) {
-      System.out.println("Length of data: " + data.length);
+      System.out.println("Length of data: " + data.limit());
+    }
+    String key = getContentHash(data);
+    synchronized (cache) {
+      WeakReference<ELF> ref = cache.get(key);
+      ELF elf = ref == null ? null : ref.get();
+      if (elf != null) {
+        return elf;
+      }
     }
 
     ELF elf = new ELF(data);
     elf.readAll();
 
+    synchronized (cache) {
+      WeakReference<ELF> ref = cache.get(key);
+      ELF other = ref == null ? null : ref.get();
+      if (other != null) {
+        return other;
+      }
+      for (Iterator<WeakReference<ELF>> i = cache.values().iterator(); i.hasNext(); ) {
+        if (i.next().get() == null) {
+          i.remove();
+        }
+      }
+      cache.put(key, new WeakReference<ELF>(elf));
+    }
     return elf;
   }
 
+  private static String getContentHash(ByteBuffer data) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      md.update(data.duplicate());
+      byte[] digest = md.digest();
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(Utils.hex8(b & 0xff));
+      }
+      return sb.append(':').append(data.limit()).toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 not available", e);
+    }
+  }
+
   public static void main(String[] args) throws Exception {
     ELF elf = readELF(args[0]);
 
@@ -501,7 +682,7 @@ public class ELF {
           }
           for (int j = 0, m = 2000; j < m; j++) {
             if (DEBUG) {
-              System.out.print((char) elf.elfData[adr++]);
+              System.out.print((char) elf.elfData.get(adr++));
               if (i % 20 == 19) {
                 System.out.println();
               }
@@ -40,163 +40,747 @@
  */
 package se.sics.mspsim.util;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 
 import se.sics.mspsim.core.EmulationException;
-import se.sics.mspsim.core.MSP430Core;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.MSP430Config;
 import se.sics.mspsim.core.Memory;
+import se.sics.mspsim.core.MemoryMonitor;
+import se.sics.mspsim.core.SimEvent;
+import se.sics.mspsim.core.SimEventListener;
+import se.sics.mspsim.core.WatchPoint;
 
-public class GDBStubs implements Runnable {
+/**
+ * Server for the GDB remote serial protocol.
+ *
+ * All socket I/O is done by a single thread using non-blocking channels.
+ * Packets are framed directly from the receive buffer and the responses
+ * are queued in a send buffer that is written whenever the socket can
+ * take more data, so neither large memory transfers nor a slow client
+ * ever block the emulation.
+ *
+ * Continue and step run the CPU on a separate thread and the stop reply
+ * is sent when the CPU stops, which lets GDB interrupt a running target
+ * with ^C. Breakpoints and watchpoints (Z0 - Z4) are mapped to the watch
+ * points of the core and the memory map is reported to GDB so that
+ * "load" writes the flash using the vFlash packets.
+ */
+public class GDBStubs implements Runnable, SimEventListener {
 
     private final static String OK = "OK";
+    private final static Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* maximal packet size, reported to GDB in qSupported */
+    private final static int PACKET_SIZE = 0x4000;
+
+    private final static int SIGINT = 2;
+    private final static int SIGILL = 4;
+    private final static int SIGTRAP = 5;
+
+    /* packet framing states */
+    private final static int IDLE = 0;
+    private final static int DATA = 1;
+    private final static int ESCAPE = 2;
+    private final static int CHECKSUM1 = 3;
+    private final static int CHECKSUM2 = 4;
 
-    ServerSocket serverSocket;
-    OutputStream output;
-    MSP430Core cpu;
+    private MSP430 cpu;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private SocketChannel client;
 
-    public void setupServer(MSP430Core cpu, int port) {
+    private final ByteBuffer input = ByteBuffer.allocate(PACKET_SIZE);
+    private ByteBuffer output = ByteBuffer.allocate(PACKET_SIZE * 2 + 8);
+
+    private int state = IDLE;
+    private byte[] packet = new byte[PACKET_SIZE];
+    private int packetLen;
+    private int checksum;
+    private int receivedChecksum;
+    private boolean noAck;
+    private byte[] lastPacket;
+
+    /* set while a stop reply is owed to GDB */
+    private boolean waitingForStop;
+    /* the thread running the CPU on behalf of GDB */
+    private Thread runner;
+    private int stopSignal = SIGTRAP;
+    private String stopInfo = "";
+    /* a breakpoint at the resume address must not trigger at once */
+    private int resumeAddress = -1;
+
+    private final HashMap<String,WatchPoint> watchPoints = new HashMap<String,WatchPoint>();
+
+    private final MemoryMonitor breakMonitor = new MemoryMonitor.Adapter() {
+        @Override
+        public void notifyReadBefore(int addr, Memory.AccessMode mode, Memory.AccessType type) {
+            if (type == Memory.AccessType.EXECUTE) {
+                if (addr == resumeAddress) {
+                    resumeAddress = -1;
+                } else {
+                    stop(SIGTRAP, "");
+                }
+            }
+        }
+    };
+
+    public void setupServer(MSP430 cpu, int port) {
         this.cpu = cpu;
         try {
-            serverSocket = new ServerSocket(port);
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
             System.out.println("GDBStubs open server socket port: " + port);
-            new Thread(this).start();
+            cpu.addSimEventListener(this);
+            Thread thread = new Thread(this, "GDBStubs");
+            thread.setDaemon(true);
+            thread.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    int[] buffer = new int[256];
-    int len;
-
     public void run() {
-        while (true) {
-            try {
-                Socket s = serverSocket.accept();
-
-                DataInputStream input = new DataInputStream(s.getInputStream());
-                output = s.getOutputStream();
-
-                String cmd = "";
-                boolean readCmd = false;
-                int c;
-                while (s != null && ((c = input.read()) != -1)) {
-                    System.out.println("GDBStubs: Read  " + c + " => "
-                            + (char) c);
-                    if (c == '#') {
-                        readCmd = false;
-                        /* ack the message */
-                        output.write('+');
-                        handleCmd(cmd, buffer, len);
-                        cmd = "";
-                        len = 0;
-                    }
-                    if (readCmd) {
-                        cmd += (char) c;
-                        buffer[len++] = (c & 0xff);
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
                     }
-                    if (c == '$') {
-                        readCmd = true;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read();
                     }
                 }
+                flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        if (client != null) {
+            /* only one debugger at a time */
+            System.out.println("GDBStubs: already connected - rejecting " + channel.socket().getRemoteSocketAddress());
+            channel.close();
+            return;
+        }
+        System.out.println("GDBStubs: connection from " + channel.socket().getRemoteSocketAddress());
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ);
+        client = channel;
+        state = IDLE;
+        noAck = false;
+        lastPacket = null;
+        synchronized (this) {
+            output.clear();
+        }
+    }
+
+    private void disconnect() {
+        if (client != null) {
+            System.out.println("GDBStubs: connection closed");
+            try {
+                client.close();
             } catch (IOException e) {
-                e.printStackTrace();
-            } catch (EmulationException e) {
-                e.printStackTrace();
+                // Ignore close errors
+            }
+            client = null;
+        }
+        removeWatchPoints();
+        synchronized (this) {
+            waitingForStop = false;
+        }
+    }
+
+    private void read() {
+        int n;
+        try {
+            n = client.read(input);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            disconnect();
+            return;
+        }
+        input.flip();
+        while (input.hasRemaining()) {
+            receive(input.get() & 0xff);
+        }
+        input.clear();
+    }
+
+    /* Frames "$data#cs" packets, acks and interrupts */
+    private void receive(int c) {
+        switch (state) {
+        case IDLE:
+            if (c == '$') {
+                packetLen = 0;
+                checksum = 0;
+                state = DATA;
+            } else if (c == 0x03) {
+                interrupt();
+            } else if (c == '-' && lastPacket != null) {
+                queue(lastPacket, 0, lastPacket.length);
+            }
+            /* '+' needs no action */
+            break;
+        case DATA:
+            if (c == '#') {
+                state = CHECKSUM1;
+                break;
+            }
+            checksum += c;
+            if (c == '}') {
+                state = ESCAPE;
+            } else {
+                append(c);
+            }
+            break;
+        case ESCAPE:
+            checksum += c;
+            append(c ^ 0x20);
+            state = DATA;
+            break;
+        case CHECKSUM1:
+            receivedChecksum = hexValue(c) << 4;
+            state = CHECKSUM2;
+            break;
+        case CHECKSUM2:
+            receivedChecksum |= hexValue(c);
+            state = IDLE;
+            if (noAck) {
+                handlePacket();
+            } else if (receivedChecksum == (checksum & 0xff)) {
+                queueByte('+');
+                handlePacket();
+            } else {
+                queueByte('-');
             }
+            break;
         }
     }
 
-    private void handleCmd(String cmd, int[] cmdBytes, int cmdLen)
-    throws IOException, EmulationException {
-        System.out.println("cmd: " + cmd);
+    private void append(int c) {
+        if (packetLen == packet.length) {
+            byte[] tmp = new byte[packet.length * 2];
+            System.arraycopy(packet, 0, tmp, 0, packetLen);
+            packet = tmp;
+        }
+        packet[packetLen++] = (byte) c;
+    }
+
+    private void handlePacket() {
+        String cmd = new String(packet, 0, packetLen, LATIN1);
+        if (cmd.length() == 0) {
+            sendResponse("");
+            return;
+        }
+        try {
+            handleCmd(cmd);
+        } catch (RuntimeException e) {
+            /* malformed packet */
+            sendResponse("E01");
+        }
+    }
+
+    private void handleCmd(String cmd) {
         char c = cmd.charAt(0);
         switch (c) {
         case 'H':
+        case 'T':
             sendResponse(OK);
             break;
         case 'q':
-            if ("qC".equals(cmd)) {
-                sendResponse("QC1");
-            } else if ("qOffsets".equals(cmd)) {
-                sendResponse("Text=0;Data=0;Bss=0");
-            } else if ("qfThreadInfo".equals(cmd)){
-                sendResponse("m 01");
-            } else if ("qsThreadInfo".equals(cmd)){
-                sendResponse("l");      
-            } else if ("qSymbol::".equals(cmd)){
+            handleQuery(cmd);
+            break;
+        case 'Q':
+            if ("QStartNoAckMode".equals(cmd)) {
                 sendResponse(OK);
-                //} else if ("qThreadExtraInfo,1".equals(cmd)){
-                //              sendResponse(stringToHex("Stoped"));
+                noAck = true;
             } else {
-                System.out.println("Command unknown");
                 sendResponse("");
             }
-
+            break;
+        case 'v':
+            handleV(cmd);
             break;
         case '?':
-            sendResponse("S01");
+            synchronized (this) {
+                if (cpu.isRunning()) {
+                    /* report the state as soon as the CPU has stopped */
+                    waitingForStop = true;
+                    stopSignal = SIGINT;
+                    stopInfo = "";
+                    cpu.stop();
+                    break;
+                }
+            }
+            sendResponse(stopReply());
             break;
         case 'g':
             readRegisters();
             break;
-        case 'k': // kill
+        case 'G':
+            writeRegisters(cmd);
+            break;
+        case 'p': {
+            StringBuilder sb = new StringBuilder();
+            appendRegister(sb, Integer.parseInt(cmd.substring(1), 16));
+            sendResponse(sb.toString());
+            break;
+        }
+        case 'P': {
+            int eq = cmd.indexOf('=');
+            int r = Integer.parseInt(cmd.substring(1, eq), 16);
+            cpu.writeRegister(r, parseRegister(cmd, eq + 1));
             sendResponse(OK);
             break;
-        case 'm':
-        case 'M':
-        case 'X':
-            String cmd2 = cmd.substring(1);
-            String wdata[] = cmd2.split(":");
-            int cPos = cmd.indexOf(':');
-            if (cPos > 0) {
-                /* only until length in first part */
-                cmd2 = wdata[0];
-            }
-            String parts[] = cmd2.split(",");
-            int addr = Integer.decode("0x" + parts[0]);
-            int len = Integer.decode("0x" + parts[1]);
-            String data = "";
-            Memory mem = cpu.getMemory();
-            if (c == 'm') {
-                System.out.println("Returning memory from: " + addr + " len = "
-                        + len);
-                /* This might be wrong - which is the correct byte order? */
-                for (int i = 0; i < len; i++) {
-                    data += Utils.hex8(mem.get(addr++, Memory.AccessMode.BYTE));
-                }
-                sendResponse(data);
-            } else {
-                System.out.println("Writing to memory at: " + addr + " len = "
-                        + len + " with: "
-                        + ((wdata.length > 1) ? wdata[1] : ""));
-                cPos++;
-                for (int i = 0; i < len; i++) {
-                    System.out.println("Writing: " + cmdBytes[cPos] + " to "
-                            + addr + " cpos=" + cPos);
-                    mem.set(addr++, cmdBytes[cPos++], Memory.AccessMode.BYTE);
-                }
-                sendResponse(OK);
+        }
+        case 'm': {
+            int comma = cmd.indexOf(',');
+            int addr = Integer.parseInt(cmd.substring(1, comma), 16);
+            int len = Math.min(Integer.parseInt(cmd.substring(comma + 1), 16), (PACKET_SIZE - 8) / 2);
+            StringBuilder sb = new StringBuilder(len * 2);
+            for (int i = 0; i < len; i++) {
+                appendHex(sb, cpu.peek(addr + i));
             }
+            sendResponse(sb.toString());
             break;
+        }
+        case 'M': {
+            int comma = cmd.indexOf(',');
+            int colon = cmd.indexOf(':');
+            int addr = Integer.parseInt(cmd.substring(1, comma), 16);
+            int len = Integer.parseInt(cmd.substring(comma + 1, colon), 16);
+            for (int i = 0, p = colon + 1; i < len; i++, p += 2) {
+                cpu.poke(addr + i, (hexValue(cmd.charAt(p)) << 4) | hexValue(cmd.charAt(p + 1)));
+            }
+            sendResponse(OK);
+            break;
+        }
+        case 'X': {
+            int comma = cmd.indexOf(',');
+            int colon = cmd.indexOf(':');
+            int addr = Integer.parseInt(cmd.substring(1, comma), 16);
+            int len = Integer.parseInt(cmd.substring(comma + 1, colon), 16);
+            writeBinary(addr, colon + 1, len);
+            sendResponse(OK);
+            break;
+        }
+        case 'Z':
+        case 'z':
+            handleBreakpoint(cmd);
+            break;
+        case 'c':
         case 'C':
-            sendResponse("S01");
+            resume(cmd, false);
+            break;
+        case 's':
+        case 'S':
+            resume(cmd, true);
+            break;
+        case 'D':
+            removeWatchPoints();
+            sendResponse(OK);
+            flush();
+            disconnect();
+            break;
+        case 'k':
+            cpu.stop();
+            disconnect();
             break;
         default:
-            System.out.println("Command unknown");
+            /* not supported */
             sendResponse("");
         }
     }
 
-    private void readRegisters() throws IOException {
-        String regs = "";
+    private void handleQuery(String cmd) {
+        if (cmd.startsWith("qSupported")) {
+            sendResponse("PacketSize=" + Integer.toHexString(PACKET_SIZE)
+                    + ";qXfer:memory-map:read+;QStartNoAckMode+;vContSupported+");
+        } else if ("qC".equals(cmd)) {
+            sendResponse("QC1");
+        } else if ("qAttached".equals(cmd)) {
+            sendResponse("1");
+        } else if ("qOffsets".equals(cmd)) {
+            sendResponse("Text=0;Data=0;Bss=0");
+        } else if ("qfThreadInfo".equals(cmd)) {
+            sendResponse("m01");
+        } else if ("qsThreadInfo".equals(cmd)) {
+            sendResponse("l");
+        } else if ("qSymbol::".equals(cmd)) {
+            sendResponse(OK);
+        } else if (cmd.startsWith("qXfer:memory-map:read::")) {
+            String range = cmd.substring("qXfer:memory-map:read::".length());
+            int comma = range.indexOf(',');
+            int offset = Integer.parseInt(range.substring(0, comma), 16);
+            int len = Integer.parseInt(range.substring(comma + 1), 16);
+            String map = getMemoryMap();
+            if (offset >= map.length()) {
+                sendResponse("l");
+            } else if (offset + len >= map.length()) {
+                sendResponse("l" + map.substring(offset));
+            } else {
+                sendResponse("m" + map.substring(offset, offset + len));
+            }
+        } else {
+            sendResponse("");
+        }
+    }
+
+    private void handleV(String cmd) {
+        if ("vCont?".equals(cmd)) {
+            sendResponse("vCont;c;C;s;S;t");
+        } else if (cmd.startsWith("vCont;")) {
+            /* single thread - the first action decides */
+            String action = cmd.substring(6);
+            int end = action.indexOf(';');
+            if (end >= 0) {
+                action = action.substring(0, end);
+            }
+            end = action.indexOf(':');
+            if (end >= 0) {
+                action = action.substring(0, end);
+            }
+            switch (action.charAt(0)) {
+            case 'c':
+            case 'C':
+                resume("c", false);
+                break;
+            case 's':
+            case 'S':
+                resume("s", true);
+                break;
+            case 't':
+                interrupt();
+                break;
+            default:
+                sendResponse("");
+            }
+        } else if (cmd.startsWith("vFlashErase:")) {
+            int comma = cmd.indexOf(',');
+            int addr = Integer.parseInt(cmd.substring(12, comma), 16);
+            int len = Integer.parseInt(cmd.substring(comma + 1), 16);
+            for (int i = 0; i < len; i++) {
+                cpu.poke(addr + i, 0xff);
+            }
+            sendResponse(OK);
+        } else if (cmd.startsWith("vFlashWrite:")) {
+            int colon = cmd.indexOf(':', 12);
+            int addr = Integer.parseInt(cmd.substring(12, colon), 16);
+            writeBinary(addr, colon + 1, packetLen - colon - 1);
+            sendResponse(OK);
+        } else if ("vFlashDone".equals(cmd)) {
+            sendResponse(OK);
+        } else if ("vMustReplyEmpty".equals(cmd)) {
+            sendResponse("");
+        } else {
+            sendResponse("");
+        }
+    }
+
+    /* Writes unescaped binary packet data to memory */
+    private void writeBinary(int addr, int offset, int len) {
+        for (int i = 0; i < len; i++) {
+            cpu.poke(addr + i, packet[offset + i] & 0xff);
+        }
+    }
+
+    private void handleBreakpoint(String cmd) {
+        boolean insert = cmd.charAt(0) == 'Z';
+        int type = cmd.charAt(1) - '0';
+        int c1 = cmd.indexOf(',');
+        int c2 = cmd.indexOf(',', c1 + 1);
+        int addr = Integer.parseInt(cmd.substring(c1 + 1, c2 < 0 ? cmd.length() : c2), 16);
+        int kind = c2 < 0 ? 1 : Integer.parseInt(cmd.substring(c2 + 1).split(";")[0], 16);
+        int types;
+        switch (type) {
+        case 0:
+        case 1:
+            types = WatchPoint.EXECUTE;
+            break;
+        case 2:
+            types = WatchPoint.WRITE;
+            break;
+        case 3:
+            types = WatchPoint.READ;
+            break;
+        case 4:
+            types = WatchPoint.READ | WatchPoint.WRITE;
+            break;
+        default:
+            sendResponse("");
+            return;
+        }
+        String key = type + ":" + addr + ":" + kind;
+        synchronized (watchPoints) {
+            WatchPoint wp = watchPoints.get(key);
+            if (insert && wp == null) {
+                if (types == WatchPoint.EXECUTE) {
+                    wp = cpu.addBreakpoint(addr, breakMonitor);
+                } else {
+                    wp = new WatchPoint(addr, Math.max(kind, 1), types, createWatchMonitor(type), null);
+                    cpu.addWatchPoint(wp);
+                }
+                watchPoints.put(key, wp);
+            } else if (!insert && wp != null) {
+                cpu.removeWatchPoint(wp);
+                watchPoints.remove(key);
+            }
+        }
+        sendResponse(OK);
+    }
+
+    private MemoryMonitor createWatchMonitor(final int type) {
+        final String name = type == 2 ? "watch" : (type == 3 ? "rwatch" : "awatch");
+        return new MemoryMonitor.Adapter() {
+            @Override
+            public void notifyReadBefore(int addr, Memory.AccessMode mode, Memory.AccessType type) {
+                stop(SIGTRAP, name + ":" + Integer.toHexString(addr) + ";");
+            }
+            @Override
+            public void notifyWriteBefore(int addr, int data, Memory.AccessMode mode) {
+                stop(SIGTRAP, name + ":" + Integer.toHexString(addr) + ";");
+            }
+        };
+    }
+
+    private void removeWatchPoints() {
+        synchronized (watchPoints) {
+            for (WatchPoint wp : watchPoints.values()) {
+                cpu.removeWatchPoint(wp);
+            }
+            watchPoints.clear();
+        }
+    }
+
+    /* Called from the emulation thread by the break and watch monitors */
+    private void stop(int signal, String info) {
+        synchronized (this) {
+            if (waitingForStop) {
+                stopSignal = signal;
+                stopInfo = info;
+            }
+        }
+        cpu.triggBreakpoint();
+    }
+
+    private void interrupt() {
+        synchronized (this) {
+            stopSignal = SIGINT;
+            stopInfo = "";
+        }
+        cpu.stop();
+    }
+
+    private void resume(String cmd, final boolean step) {
+        /* "c addr" and "s addr" resume at the specified address */
+        int semi = cmd.indexOf(';');
+        if ((cmd.charAt(0) == 'c' || cmd.charAt(0) == 's') && cmd.length() > 1) {
+            cpu.writeRegister(MSP430.PC, Integer.parseInt(cmd.substring(1), 16));
+        } else if (semi > 0) {
+            cpu.writeRegister(MSP430.PC, Integer.parseInt(cmd.substring(semi + 1), 16));
+        }
+        synchronized (this) {
+            waitingForStop = true;
+            stopSignal = SIGTRAP;
+            stopInfo = "";
+            if (cpu.isRunning()) {
+                /* already running - just report the next stop */
+                return;
+            }
+            resumeAddress = cpu.getPC();
+            runner = new Thread(new Runnable() {
+                public void run() {
+                    int signal = -1;
+                    try {
+                        if (step) {
+                            cpu.stepInstructions(1);
+                        } else {
+                            cpu.cpuloop();
+                        }
+                    } catch (EmulationException e) {
+                        System.out.println("GDBStubs: " + e.getMessage());
+                        signal = SIGILL;
+                    } finally {
+                        synchronized (GDBStubs.this) {
+                            runner = null;
+                            resumeAddress = -1;
+                            if (signal > 0) {
+                                stopSignal = signal;
+                                stopInfo = "";
+                            }
+                        }
+                        reportStop();
+                    }
+                }
+            }, "GDBStubs CPU");
+            runner.start();
+        }
+    }
+
+    @Override
+    public void simChanged(SimEvent event) {
+        if (event.getType() == SimEvent.Type.STOP) {
+            synchronized (this) {
+                if (runner != null) {
+                    /* reported when the runner is done */
+                    return;
+                }
+            }
+            reportStop();
+        }
+    }
+
+    private void reportStop() {
+        synchronized (this) {
+            if (!waitingForStop || client == null) {
+                return;
+            }
+            waitingForStop = false;
+        }
+        sendResponse(stopReply());
+        selector.wakeup();
+    }
+
+    private synchronized String stopReply() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('T');
+        appendHex(sb, stopSignal);
+        sb.append(stopInfo);
+        /* the PC saves GDB a register read */
+        appendHex(sb, MSP430.PC);
+        sb.append(':');
+        appendRegister(sb, MSP430.PC);
+        sb.append(';');
+        return sb.toString();
+    }
+
+    private int getRegisterSize() {
+        return cpu.config.MSP430XArch ? 4 : 2;
+    }
+
+    private void appendRegister(StringBuilder sb, int r) {
+        int value = cpu.reg[r];
+        for (int i = 0, n = getRegisterSize(); i < n; i++) {
+            appendHex(sb, (value >> (i * 8)) & 0xff);
+        }
+    }
+
+    private int parseRegister(String data, int offset) {
+        int value = 0;
+        for (int i = 0, n = getRegisterSize(); i < n && offset + 1 < data.length(); i++, offset += 2) {
+            value |= ((hexValue(data.charAt(offset)) << 4) | hexValue(data.charAt(offset + 1))) << (i * 8);
+        }
+        return value;
+    }
+
+    private void readRegisters() {
+        StringBuilder sb = new StringBuilder(16 * 8);
         for (int i = 0; i < 16; i++) {
-            regs += Utils.hex8(cpu.reg[i] & 0xff) + Utils.hex8(cpu.reg[i] >> 8);
+            appendRegister(sb, i);
+        }
+        sendResponse(sb.toString());
+    }
+
+    private void writeRegisters(String cmd) {
+        int size = getRegisterSize() * 2;
+        for (int i = 0; i < 16 && 1 + i * size < cmd.length(); i++) {
+            cpu.writeRegister(i, parseRegister(cmd, 1 + i * size));
         }
-        sendResponse(regs);
+        sendResponse(OK);
+    }
+
+    private String getMemoryMap() {
+        MSP430Config config = cpu.config;
+        ArrayList<int[]> regions = new ArrayList<int[]>();
+        /* start, length, flash block size (0 for RAM) */
+        regions.add(new int[] { 0, config.maxMemIO, 0 });
+        regions.add(new int[] { config.ramStart, config.ramSize, 0 });
+        if (config.isRAMMirror(config.ramMirrorStart)) {
+            regions.add(new int[] { config.ramMirrorStart, config.ramMirrorSize, 0 });
+        }
+        regions.add(new int[] { config.infoMemStart, config.infoMemSize, 128 });
+        regions.add(new int[] { config.mainFlashStart, config.mainFlashSize, 512 });
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\"?>\n<!DOCTYPE memory-map PUBLIC \"+//IDN gnu.org//DTD GDB Memory Map V1.0//EN\""
+                + " \"http://sourceware.org/gdb/gdb-memory-map.dtd\">\n<memory-map>\n");
+        /* GDB refuses overlapping regions - earlier regions take precedence */
+        int[][] sorted = regions.toArray(new int[regions.size()][]);
+        for (int i = 0; i < sorted.length; i++) {
+            int start = sorted[i][0];
+            int end = start + sorted[i][1];
+            for (int j = 0; j < i; j++) {
+                int s = sorted[j][0];
+                int e = s + sorted[j][1];
+                if (s <= start && e > start) {
+                    start = e;
+                } else if (s > start && s < end) {
+                    end = s;
+                }
+            }
+            if (end <= start) {
+                continue;
+            }
+            if (sorted[i][2] == 0) {
+                sb.append("  <memory type=\"ram\" start=\"0x").append(Integer.toHexString(start))
+                .append("\" length=\"0x").append(Integer.toHexString(end - start)).append("\"/>\n");
+            } else {
+                sb.append("  <memory type=\"flash\" start=\"0x").append(Integer.toHexString(start))
+                .append("\" length=\"0x").append(Integer.toHexString(end - start)).append("\">\n")
+                .append("    <property name=\"blocksize\">0x").append(Integer.toHexString(sorted[i][2]))
+                .append("</property>\n  </memory>\n");
+            }
+        }
+        sb.append("</memory-map>\n");
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, int value) {
+        sb.append(HEX[(value >> 4) & 0xf]).append(HEX[value & 0xf]);
+    }
+
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return 0;
     }
 
     public static String stringToHex(String base)
@@ -221,34 +805,63 @@ public class GDBStubs implements Runnable {
         return buffer.toString();
     }
 
-
-    public void sendResponse(String resp) throws IOException {
-        output.write('$');
+    /* Queues a "$data#cs" packet - characters that need it are escaped */
+    public synchronized void sendResponse(String resp) {
+        int len = resp == null ? 0 : resp.length();
+        byte[] data = new byte[len * 2 + 4];
+        int pos = 0;
         int cs = 0;
-        if (resp != null) {
-            for (int i = 0; i < resp.length(); i++) {
-                output.write(resp.charAt(i));
-                System.out.print(resp.charAt(i));
-                cs += resp.charAt(i);
-            }
-        }
-        output.write('#');
-        System.out.print('#');
-        int c = (cs & 0xff) >> 4;
-            if (c < 10) {
-                c = c + '0';
-            } else {
-                c = c - 10 + 'a';
+        data[pos++] = '$';
+        for (int i = 0; i < len; i++) {
+            int c = resp.charAt(i) & 0xff;
+            if (c == '$' || c == '#' || c == '}' || c == '*') {
+                data[pos++] = '}';
+                cs += '}';
+                c ^= 0x20;
             }
-            output.write((char) c);
-            System.out.print((char) c);
-            c = cs & 15;
-            if (c < 10) {
-                c = c + '0';
-            } else {
-                c = c - 10 + 'a';
+            data[pos++] = (byte) c;
+            cs += c;
+        }
+        data[pos++] = '#';
+        data[pos++] = (byte) HEX[(cs >> 4) & 0xf];
+        data[pos++] = (byte) HEX[cs & 0xf];
+        byte[] frame = new byte[pos];
+        System.arraycopy(data, 0, frame, 0, pos);
+        lastPacket = frame;
+        queue(frame, 0, pos);
+    }
+
+    private void queueByte(int c) {
+        queue(new byte[] { (byte) c }, 0, 1);
+    }
+
+    private synchronized void queue(byte[] data, int offset, int len) {
+        if (output.remaining() < len) {
+            ByteBuffer tmp = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + len));
+            output.flip();
+            tmp.put(output);
+            output = tmp;
+        }
+        output.put(data, offset, len);
+    }
+
+    /* Writes as much of the queued output as the socket will take */
+    private synchronized void flush() {
+        SocketChannel channel = client;
+        if (channel == null || output.position() == 0) {
+            return;
+        }
+        try {
+            output.flip();
+            channel.write(output);
+            output.compact();
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(output.position() > 0
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
             }
-            output.write((char) c);
-            System.out.println((char) c);
+        } catch (IOException e) {
+            output.clear();
+        }
     }
-}
\ No newline at end of file
+}
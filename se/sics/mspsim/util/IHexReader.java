@@ -46,6 +46,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import se.sics.mspsim.config.MSP430f1611Config;
 import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.MSP430Core;
 
 public class IHexReader {
 
@@ -60,6 +61,33 @@ public class IHexReader {
   }
 
   public boolean readFile(int memory[], String file) {
+    if (!parseFile(file)) {
+      return false;
+    }
+    // Write all data that we got in to the real memory!!!
+    System.out.println("Writing to memory!");
+    for (int i = 0, n = tmpMemory.length; i < n; i++) {
+      if (tmpMemory[i] != -1) {
+	memory[i] = tmpMemory[i];
+      }
+    }
+    return true;
+  }
+
+  public boolean readFile(MSP430Core cpu, String file) {
+    if (!parseFile(file)) {
+      return false;
+    }
+    for (int i = 0, n = tmpMemory.length; i < n; i++) {
+      if (tmpMemory[i] != -1) {
+	cpu.poke(i, tmpMemory[i]);
+      }
+    }
+    cpu.pagedMemory.share();
+    return true;
+  }
+
+  private boolean parseFile(String file) {
     for (int i = 0, n = tmpMemory.length; i < n; i++) {
       tmpMemory[i] = -1;
     }
@@ -98,15 +126,6 @@ public class IHexReader {
 	}
       }
       bInput.close();
-
-      // Write all data that we got in to the real memory!!!
-      System.out.println("Writing to memory!");
-      for (int i = 0, n = tmpMemory.length; i < n; i++) {
-	if (tmpMemory[i] != -1) {
-	  memory[i] = tmpMemory[i];
-	}
-      }
-
       return true;
     } catch (IOException ioe) {
       ioe.printStackTrace();
@@ -139,8 +158,7 @@ public class IHexReader {
 // 		       " T ^ F => " + (false ^ true));
 
     MSP430 cpu = new MSP430(0, new ComponentRegistry(), new MSP430f1611Config());
-    int[] memory = cpu.memory;
-    reader.readFile(memory, args[0]);
+    reader.readFile(cpu, args[0]);
     cpu.reset();
     cpu.cpuloop();
   }
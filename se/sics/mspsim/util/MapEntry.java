@@ -50,6 +50,8 @@ public class MapEntry {
   private final String name;
   private final String file;
   private final boolean isLocal;
+  /* index in the map table or -1 when not added to a table */
+  int id = -1;
   private int size;
   private int dataAddr;
   private int dataSize;
@@ -99,6 +101,11 @@ public class MapEntry {
     return bssSize;
   }
 
+  /* Returns a small unique number assigned by the map table or -1 */
+  public int getId() {
+    return id;
+  }
+
   public TYPE getType() {
     return type;
   }
@@ -70,7 +70,10 @@ public class MapTable {
 
   private ArrayList<MapEntry> modules = new ArrayList<MapEntry>();
   private ArrayList<MapEntry> entries = new ArrayList<MapEntry>();
-  private HashMap<Integer, MapEntry> addressMap = new HashMap<Integer, MapEntry>();
+  private HashMap<String, MapEntry> nameMap = new HashMap<String, MapEntry>();
+  /* indexes of all entries and of the functions - rebuilt after changes */
+  private volatile SymbolIndex index;
+  private volatile SymbolIndex functionIndex;
   
   public MapTable() {
   }
@@ -208,18 +211,71 @@ public class MapTable {
       }
   }
 
+  /* Returns the entry starting at the address or null */
   public MapEntry getEntry(int address) {
-      return addressMap.get(address);
+      return getIndex().get(address);
   }
 
-  public MapEntry[] getAllEntries() {
+  /* Returns the entry containing the address or null */
+  public MapEntry findEntry(int address) {
+      return getIndex().find(address);
+  }
+
+  /* Returns the function containing the address or null */
+  public MapEntry getFunctionEntry(int address) {
+      return getFunctionIndex().find(address);
+  }
+
+  /* Returns the function containing the address as name+offset or null */
+  public String getFunctionLocation(int address) {
+      MapEntry entry = getFunctionEntry(address);
+      if (entry == null) {
+          return null;
+      }
+      int offset = address - entry.getAddress();
+      return offset == 0 ? entry.getName() : entry.getName() + '+' + offset;
+  }
+
+  public SymbolIndex getIndex() {
+    SymbolIndex index = this.index;
+    if (index == null) {
+      synchronized (this) {
+        index = this.index;
+        if (index == null) {
+          this.index = index = new SymbolIndex(getAllEntries());
+        }
+      }
+    }
+    return index;
+  }
+
+  public SymbolIndex getFunctionIndex() {
+    SymbolIndex index = this.functionIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = this.functionIndex;
+        if (index == null) {
+          ArrayList<MapEntry> functions = new ArrayList<MapEntry>();
+          for (MapEntry entry : entries) {
+            if (entry.getType() == MapEntry.TYPE.function) {
+              functions.add(entry);
+            }
+          }
+          this.functionIndex = index = new SymbolIndex(functions.toArray(new MapEntry[functions.size()]));
+        }
+      }
+    }
+    return index;
+  }
+
+  public synchronized MapEntry[] getAllEntries() {
     return entries.toArray(new MapEntry[entries.size()]);
   }
 
   public MapEntry[] getEntries(String regexp) {
     Pattern pattern = Pattern.compile(regexp);
     ArrayList<MapEntry> allEntries = new ArrayList<MapEntry>();
-    for (MapEntry entry : entries) {
+    for (MapEntry entry : getAllEntries()) {
         if (pattern.matcher(entry.getName()).find()) {
             allEntries.add(entry);
         }
@@ -232,20 +288,38 @@ public class MapTable {
     setEntry(new MapEntry(MapEntry.TYPE.function, address, 0, name, null, false));
   }
 
-  public void setEntry(MapEntry entry) {
+  public synchronized void setEntry(MapEntry entry) {
+    if (entry.id < 0) {
+      entry.id = entries.size();
+    }
     entries.add(entry);
-    addressMap.put(entry.getAddress(), entry);
+    if (!nameMap.containsKey(entry.getName())) {
+      nameMap.put(entry.getName(), entry);
+    }
+    index = null;
+    if (entry.getType() == MapEntry.TYPE.function) {
+      functionIndex = null;
+    }
   }
 
-  // Really slow way to find a specific function address!!!!
-  // Either reimplement this or cache in hashtable...
-  public int getFunctionAddress(String function) {
-      for (MapEntry entry : entries) {
-        if (function.equals(entry.getName())) {
-          return entry.getAddress();
-        }
-      }
-    return -1;
+  public synchronized int getFunctionAddress(String function) {
+    MapEntry entry = nameMap.get(function);
+    return entry != null ? entry.getAddress() : -1;
+  }
+
+  /* Returns a copy of the table sharing the entries and the indexes */
+  public synchronized MapTable copy() {
+    MapTable copy = new MapTable();
+    copy.heapStartAddress = heapStartAddress;
+    copy.stackStartAddress = stackStartAddress;
+    copy.bssFill = bssFill;
+    copy.dataFill = dataFill;
+    copy.modules.addAll(modules);
+    copy.entries.addAll(entries);
+    copy.nameMap.putAll(nameMap);
+    copy.index = index;
+    copy.functionIndex = functionIndex;
+    return copy;
   }
 
   public int getStackStart() {
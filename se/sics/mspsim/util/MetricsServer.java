@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * MetricsServer
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+/**
+ * Minimal HTTP server publishing the metrics of all registered nodes in
+ * the Prometheus text format at /metrics. The server only listens on the
+ * loopback interface and handles one request at a time in a daemon thread.
+ */
+public class MetricsServer implements Runnable {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final HashMap<Integer,MetricsServer> servers = new HashMap<Integer,MetricsServer>();
+
+    private final ServerSocket serverSocket;
+
+    public MetricsServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+    }
+
+    /* Starts a server on the port unless one is already running in this JVM */
+    public static synchronized MetricsServer start(int port) throws IOException {
+        MetricsServer server = servers.get(port);
+        if (server == null) {
+            server = new MetricsServer(port);
+            Thread thread = new Thread(server, "metrics server :" + port);
+            thread.setDaemon(true);
+            thread.start();
+            servers.put(server.getPort(), server);
+        }
+        return server;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    socket.setSoTimeout(5000);
+                    handleRequest(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("metrics server: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handleRequest(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        String request = in.readLine();
+        if (request == null) {
+            return;
+        }
+        /* skip the headers */
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+        }
+
+        String[] parts = request.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        int index = path.indexOf('?');
+        if (index >= 0) {
+            path = path.substring(0, index);
+        }
+
+        OutputStream out = socket.getOutputStream();
+        if (!"GET".equals(parts[0]) && !"HEAD".equals(parts[0])) {
+            writeResponse(out, "405 Method Not Allowed", "text/plain", "", true);
+        } else if (!"/metrics".equals(path) && !"/".equals(path)) {
+            writeResponse(out, "404 Not Found", "text/plain", "not found\n", true);
+        } else {
+            StringWriter body = new StringWriter();
+            NodeMetrics.writeMetrics(new PrintWriter(body));
+            writeResponse(out, "200 OK", CONTENT_TYPE, body.toString(), "GET".equals(parts[0]));
+        }
+    }
+
+    private void writeResponse(OutputStream out, String status, String contentType,
+            String body, boolean includeBody) throws IOException {
+        byte[] data = body.getBytes("UTF-8");
+        PrintWriter header = new PrintWriter(new OutputStreamWriter(out, "ISO-8859-1"));
+        header.print("HTTP/1.0 " + status + "\r\n");
+        header.print("Content-Type: " + contentType + "\r\n");
+        header.print("Content-Length: " + data.length + "\r\n");
+        header.print("Connection: close\r\n\r\n");
+        header.flush();
+        if (includeBody) {
+            out.write(data);
+        }
+        out.flush();
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+        synchronized (MetricsServer.class) {
+            servers.values().remove(this);
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * NodeMetrics
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import se.sics.mspsim.chip.Radio802154;
+import se.sics.mspsim.core.EmulationLogger;
+import se.sics.mspsim.core.EmulationLogger.WarningType;
+import se.sics.mspsim.core.MSP430;
+import se.sics.mspsim.core.Profiler;
+import se.sics.mspsim.profiler.SimpleProfiler;
+
+/**
+ * Emulator health metrics of one node.
+ *
+ * The metrics are read directly from counters kept by the CPU, the radios,
+ * the profiler and the logger. These counters are plain fields written only
+ * by the emulation thread, except the warning counters that are updated
+ * with atomic instructions, so reading the metrics never takes a lock the
+ * emulation thread would wait for. The values may lag slightly behind.
+ *
+ * The rates are computed from the change since the previous sample and
+ * are updated at most once per second, when the metrics are read.
+ *
+ * Registered nodes are published as JMX MBeans named
+ * "se.sics.mspsim:type=Node,name=&lt;node id&gt;" and by the Prometheus text
+ * endpoint of MetricsServer.
+ */
+public class NodeMetrics implements NodeMetricsMBean {
+
+    public static final String DOMAIN = "se.sics.mspsim";
+
+    /* Minimum time between two rate samples in nanoseconds */
+    private static final long SAMPLE_PERIOD = 1000000000L;
+
+    private static final CopyOnWriteArrayList<NodeMetrics> nodes =
+        new CopyOnWriteArrayList<NodeMetrics>();
+
+    private final MSP430 cpu;
+    private String id;
+    private Radio802154[] radios;
+    private ObjectName objectName;
+
+    private long sampleTime;
+    private long sampleCycles;
+    private long sampleEvents;
+    private double cyclesPerSecond;
+    private double eventsPerSecond;
+
+    public NodeMetrics(String id, MSP430 cpu) {
+        this.id = id;
+        this.cpu = cpu;
+    }
+
+    /* Returns the metrics of all registered nodes */
+    public static NodeMetrics[] getNodes() {
+        return nodes.toArray(new NodeMetrics[0]);
+    }
+
+    /**
+     * Registers the metrics as a JMX MBean and with the Prometheus endpoint.
+     * Should be called when all chips have been created. The node id gets
+     * a numeric suffix if another node with the same id is registered.
+     */
+    public synchronized void register() throws JMException {
+        if (objectName != null) {
+            return;
+        }
+        radios = cpu.getChips(Radio802154.class);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String name = id;
+        for (int i = 2; objectName == null; i++) {
+            ObjectName on = new ObjectName(DOMAIN + ":type=Node,name=" + ObjectName.quote(name));
+            try {
+                server.registerMBean(this, on);
+                objectName = on;
+            } catch (InstanceAlreadyExistsException e) {
+                name = id + '-' + i;
+            }
+        }
+        id = name;
+        nodes.add(this);
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (objectName != null) {
+            nodes.remove(this);
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long elapsed = now - sampleTime;
+        if (sampleTime == 0 || elapsed >= SAMPLE_PERIOD) {
+            long cycles = cpu.cycles;
+            long events = cpu.getExecutedEventCount();
+            if (sampleTime != 0) {
+                cyclesPerSecond = (cycles - sampleCycles) * 1e9 / elapsed;
+                eventsPerSecond = (events - sampleEvents) * 1e9 / elapsed;
+            }
+            sampleTime = now;
+            sampleCycles = cycles;
+            sampleEvents = events;
+        }
+    }
+
+    @Override
+    public synchronized String getNodeId() {
+        return id;
+    }
+
+    @Override
+    public long getCycles() {
+        return cpu.cycles;
+    }
+
+    @Override
+    public synchronized double getCyclesPerSecond() {
+        sample();
+        return cyclesPerSecond;
+    }
+
+    @Override
+    public double getSimulatedTimeMillis() {
+        return cpu.getTimeMillis();
+    }
+
+    @Override
+    public double getCPUPercent() {
+        return cpu.getCPUPercent();
+    }
+
+    @Override
+    public double getTargetRate() {
+        return cpu.getPacer().getTargetRate();
+    }
+
+    @Override
+    public double getAchievedRate() {
+        return cpu.getPacer().getAchievedRate();
+    }
+
+    @Override
+    public double getLagMillis() {
+        return cpu.getPacer().getLagMillis();
+    }
+
+    @Override
+    public int getVTimeEventQueueSize() {
+        return cpu.getVTimeEventQueueSize();
+    }
+
+    @Override
+    public int getCycleEventQueueSize() {
+        return cpu.getCycleEventQueueSize();
+    }
+
+    @Override
+    public long getExecutedEvents() {
+        return cpu.getExecutedEventCount();
+    }
+
+    @Override
+    public synchronized double getEventsPerSecond() {
+        sample();
+        return eventsPerSecond;
+    }
+
+    /* The interrupt counts are only available when the SimpleProfiler is used */
+    @Override
+    public long[] getInterruptCounts() {
+        Profiler profiler = cpu.getProfiler();
+        if (profiler instanceof SimpleProfiler) {
+            return ((SimpleProfiler) profiler).getInterruptCounts();
+        }
+        return new long[0];
+    }
+
+    @Override
+    public long getTransmittedFrames() {
+        long frames = 0;
+        for (Radio802154 radio : getRadios()) {
+            frames += radio.getTransmittedFrames();
+        }
+        return frames;
+    }
+
+    @Override
+    public long getReceivedFrames() {
+        long frames = 0;
+        for (Radio802154 radio : getRadios()) {
+            frames += radio.getReceivedFrames();
+        }
+        return frames;
+    }
+
+    private synchronized Radio802154[] getRadios() {
+        return radios == null ? new Radio802154[0] : radios;
+    }
+
+    @Override
+    public String[] getWarningTypes() {
+        WarningType[] types = WarningType.values();
+        String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i].name();
+        }
+        return names;
+    }
+
+    /* The warning counts in the order of getWarningTypes() */
+    @Override
+    public long[] getWarningCounts() {
+        WarningType[] types = WarningType.values();
+        long[] counts = new long[types.length];
+        EmulationLogger logger = cpu.getLogger();
+        if (logger instanceof DefaultEmulationLogger) {
+            for (int i = 0; i < types.length; i++) {
+                counts[i] = ((DefaultEmulationLogger) logger).getWarningCount(types[i]);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Writes the metrics of all registered nodes in the Prometheus text
+     * exposition format.
+     */
+    public static void writeMetrics(PrintWriter out) {
+        NodeMetrics[] nodes = getNodes();
+
+        family(out, "mspsim_cycles_total", "counter", "Emulated CPU cycles.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_cycles_total", m, null, null, m.getCycles());
+        }
+        family(out, "mspsim_cycles_per_second", "gauge", "Emulated CPU cycles per wall clock second.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_cycles_per_second", m, null, null, m.getCyclesPerSecond());
+        }
+        family(out, "mspsim_simulated_seconds", "gauge", "Simulated time.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_simulated_seconds", m, null, null, m.getSimulatedTimeMillis() / 1000);
+        }
+        family(out, "mspsim_cpu_duty_percent", "gauge", "Share of the cycles the CPU was active.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_cpu_duty_percent", m, null, null, m.getCPUPercent());
+        }
+        family(out, "mspsim_speed_ratio", "gauge", "Simulated time per wall clock time.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_speed_ratio", m, "rate", "target", m.getTargetRate());
+            write(out, "mspsim_speed_ratio", m, "rate", "achieved", m.getAchievedRate());
+        }
+        family(out, "mspsim_pacing_lag_seconds", "gauge", "How far the emulation is behind the pacing target.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_pacing_lag_seconds", m, null, null, m.getLagMillis() / 1000);
+        }
+        family(out, "mspsim_event_queue_size", "gauge", "Scheduled time events.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_event_queue_size", m, "queue", "vtime", m.getVTimeEventQueueSize());
+            write(out, "mspsim_event_queue_size", m, "queue", "cycle", m.getCycleEventQueueSize());
+        }
+        family(out, "mspsim_events_total", "counter", "Executed time events.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_events_total", m, null, null, m.getExecutedEvents());
+        }
+        family(out, "mspsim_events_per_second", "gauge", "Executed time events per wall clock second.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_events_per_second", m, null, null, m.getEventsPerSecond());
+        }
+        family(out, "mspsim_interrupts_total", "counter", "Serviced interrupts per vector.");
+        for (NodeMetrics m : nodes) {
+            long[] counts = m.getInterruptCounts();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    write(out, "mspsim_interrupts_total", m, "vector", Integer.toString(i), counts[i]);
+                }
+            }
+        }
+        family(out, "mspsim_radio_frames_total", "counter", "Radio frames sent and received.");
+        for (NodeMetrics m : nodes) {
+            write(out, "mspsim_radio_frames_total", m, "direction", "tx", m.getTransmittedFrames());
+            write(out, "mspsim_radio_frames_total", m, "direction", "rx", m.getReceivedFrames());
+        }
+        family(out, "mspsim_warnings_total", "counter", "Emulation warnings per type.");
+        for (NodeMetrics m : nodes) {
+            String[] types = m.getWarningTypes();
+            long[] counts = m.getWarningCounts();
+            for (int i = 0; i < types.length; i++) {
+                write(out, "mspsim_warnings_total", m, "type", types[i], counts[i]);
+            }
+        }
+        out.flush();
+    }
+
+    private static void family(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP " + name + ' ' + help + '\n');
+        out.print("# TYPE " + name + ' ' + type + '\n');
+    }
+
+    private static void write(PrintWriter out, String name, NodeMetrics m,
+            String label, String labelValue, double value) {
+        out.print(name);
+        out.print("{node=\"" + escape(m.getNodeId()) + '"');
+        if (label != null) {
+            out.print("," + label + "=\"" + escape(labelValue) + '"');
+        }
+        out.print("} ");
+        if (Double.isInfinite(value)) {
+            out.print(value > 0 ? "+Inf" : "-Inf");
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.print((long) value);
+        } else {
+            out.print(value);
+        }
+        out.print('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -48,6 +48,14 @@ import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.OperatingModeListener;
 
 /**
+ * Keeps track of the time spent in each operating mode of the monitored
+ * chips.
+ *
+ * When the current draw of each mode is known for a chip (see
+ * setCurrents) the energy used by the chip is integrated at every mode
+ * change. The energy of a chip or the whole node can then be queried at
+ * any time without any sampling.
+ *
  * @author Joakim
  *
  */
@@ -58,6 +66,7 @@ public class OperatingModeStatistics {
 
   private final MSP430Core cpu;
   private ArrayList<StatEntry> statistics = new ArrayList<StatEntry>();
+  private double voltage = 3.0;
 
   public OperatingModeStatistics(MSP430Core cpu) {
     this.cpu = cpu;
@@ -94,6 +103,73 @@ public class OperatingModeStatistics {
     }
   }
 
+  private synchronized StatEntry getStatEntry(Chip chip) {
+      for (StatEntry entry : statistics) {
+          if (entry.chip == chip) {
+              return entry;
+          }
+      }
+      return null;
+  }
+
+  public double getVoltage() {
+    return voltage;
+  }
+
+  /* The supply voltage used for converting the charge to energy */
+  public void setVoltage(double voltage) {
+    this.voltage = voltage;
+  }
+
+  /**
+   * Sets the current draw in ampere for each operating mode of a
+   * monitored chip. The energy is only accounted for chips with known
+   * current draw.
+   */
+  public void setCurrents(Chip chip, double[] current) {
+    StatEntry entry = getStatEntry(chip);
+    if (entry == null) {
+      throw new IllegalArgumentException("chip " + chip.getID() + " is not monitored");
+    }
+    if (current != null && current.length < entry.elapsed.length) {
+      throw new IllegalArgumentException("current needed for " + entry.elapsed.length + " modes");
+    }
+    entry.setCurrents(current);
+  }
+
+  public double[] getCurrents(Chip chip) {
+    StatEntry entry = getStatEntry(chip);
+    return entry == null ? null : entry.current;
+  }
+
+  /* Returns the energy in joules used by the chip since it was added */
+  public double getEnergy(Chip chip) {
+    StatEntry entry = getStatEntry(chip);
+    return entry == null ? 0.0 : entry.getCharge(cpu.getTimeMillis()) * voltage / 1000.0;
+  }
+
+  /* Returns the energy in joules used by all monitored chips */
+  public synchronized double getEnergy() {
+    double now = cpu.getTimeMillis();
+    double charge = 0.0;
+    for (StatEntry entry : statistics) {
+      charge += entry.getCharge(now);
+    }
+    return charge * voltage / 1000.0;
+  }
+
+  /* Returns the time in milliseconds the chip has spent in the mode */
+  public double getModeMillis(Chip chip, int mode) {
+    StatEntry entry = getStatEntry(chip);
+    return entry == null ? 0.0 : entry.getModeMillis(mode, cpu.getTimeMillis());
+  }
+
+  /* Returns the time in milliseconds since the chip was added */
+  public double getMonitoredMillis(Chip chip) {
+    StatEntry entry = getStatEntry(chip);
+    return entry == null ? 0.0 : cpu.getTimeMillis() - entry.startMillis;
+  }
+
   public synchronized void printStat() {
     for (StatEntry entry : statistics) {
       entry.printStat(System.out);
@@ -124,6 +200,34 @@ public class OperatingModeStatistics {
     return null;
   }
 
+  /* Returns a data source for the average power in mW since the last call */
+  public DataSource getPowerDataSource(String chip) {
+    final StatEntry se = getStatEntry(chip);
+    if (se == null) {
+      return null;
+    }
+    return new DataSource() {
+      private double lastMillis = cpu.getTimeMillis();
+      private double lastCharge = se.getCharge(lastMillis);
+
+      public double getDoubleValue() {
+        double now = cpu.getTimeMillis();
+        if (now <= lastMillis) {
+          return 0.0;
+        }
+        double charge = se.getCharge(now);
+        double power = 1000.0 * voltage * (charge - lastCharge) / (now - lastMillis);
+        lastCharge = charge;
+        lastMillis = now;
+        return power;
+      }
+
+      public int getValue() {
+        return (int) getDoubleValue();
+      }
+    };
+  }
+
   public MultiDataSource getMultiDataSource(String chip) {
     StatEntry se = getStatEntry(chip);
     if (se != null) {
@@ -213,14 +317,55 @@ public class OperatingModeStatistics {
     int mode;
     long[] elapsed;
 
+    /* current draw in ampere per mode or null if unknown */
+    double[] current;
+    final double startMillis;
+    double lastMillis;
+    /* charge in ampere milliseconds up to lastMillis */
+    double charge;
+    final double[] modeMillis;
+
     StatEntry(Chip chip) {
       this.chip = chip;
       this.elapsed = new long[chip.getModeMax() + 1];
+      this.modeMillis = new double[elapsed.length];
       this.mode = chip.getMode();
       this.startTime = cpu.cycles;
+      this.startMillis = this.lastMillis = cpu.getTimeMillis();
       chip.addOperatingModeListener(this);
     }
 
+    /* Accounts the time and energy of the current mode up to now */
+    private void update() {
+      double now = cpu.getTimeMillis();
+      double millis = now - lastMillis;
+      modeMillis[mode] += millis;
+      if (current != null) {
+        charge += current[mode] * millis;
+      }
+      lastMillis = now;
+    }
+
+    void setCurrents(double[] current) {
+      update();
+      this.current = current;
+    }
+
+    double getCharge(double now) {
+      double[] current = this.current;
+      if (current == null) {
+        return charge;
+      }
+      return charge + current[mode] * (now - lastMillis);
+    }
+
+    double getModeMillis(int mode, double now) {
+      if (mode == this.mode) {
+        return modeMillis[mode] + (now - lastMillis);
+      }
+      return modeMillis[mode];
+    }
+
     long getValue(int mode, long cycles) {
       if (mode == this.mode) {
         return elapsed[mode] + (cycles - startTime);
@@ -229,6 +374,7 @@ public class OperatingModeStatistics {
     }
 
     public void modeChanged(Chip source, int mode) {
+      update();
       this.elapsed[this.mode] += cpu.cycles - startTime;
       this.mode = mode;
       this.startTime = cpu.cycles;
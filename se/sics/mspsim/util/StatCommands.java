@@ -47,6 +47,7 @@ import se.sics.mspsim.cli.BasicLineCommand;
 import se.sics.mspsim.cli.CommandBundle;
 import se.sics.mspsim.cli.CommandContext;
 import se.sics.mspsim.cli.CommandHandler;
+import se.sics.mspsim.core.Chip;
 import se.sics.mspsim.core.Loggable;
 import se.sics.mspsim.core.MSP430Core;
 import se.sics.mspsim.core.TimeEvent;
@@ -199,6 +200,115 @@ public class StatCommands implements CommandBundle {
         context.exit(0);
       }
     });
+
+    handler.registerCommand("energy", new BasicCommand("show the estimated energy used by the chips",
+        "[chip...]") {
+
+      public int executeCommand(CommandContext context) {
+        Chip[] chips = getChips(context, 0);
+        if (chips == null) {
+          return 1;
+        }
+        double millis = cpu.getTimeMillis();
+        context.out.println(String.format("Energy after %.1f ms at %.2f V:",
+            millis, statistics.getVoltage()));
+        double total = 0.0;
+        for (Chip chip : chips) {
+          StringBuilder sb = new StringBuilder();
+          sb.append(String.format("  %-16s", chip.getID()));
+          double monitored = statistics.getMonitoredMillis(chip);
+          if (statistics.getCurrents(chip) == null) {
+            sb.append(String.format("%12s %12s", "-", "-"));
+          } else {
+            double energy = statistics.getEnergy(chip);
+            total += energy;
+            sb.append(String.format("%9.3f mJ %9.3f mW", energy * 1000,
+                monitored > 0 ? energy * 1e6 / monitored : 0.0));
+          }
+          for (int i = 0, n = chip.getModeMax(); i <= n; i++) {
+            double time = statistics.getModeMillis(chip, i);
+            if (time > 0) {
+              String name = chip.getModeName(i);
+              sb.append(String.format("  %s %.1f%%", name == null ? "mode" + i : name,
+                  100.0 * time / monitored));
+            }
+          }
+          context.out.println(sb.toString());
+        }
+        context.out.println(String.format("  %-16s%9.3f mJ %9.3f mW", "Total", total * 1000,
+            millis > 0 ? total * 1e6 / millis : 0.0));
+        return 0;
+      }
+    });
+
+    handler.registerCommand("energylog", new BasicAsyncCommand("print the estimated energy in mJ used by the chips",
+        "<frequency> [chip...]") {
+
+      private PrintStream out;
+      private Chip[] chips;
+      private double frequency;
+      private boolean isRunning = true;
+
+      public int executeCommand(CommandContext context) {
+        frequency = context.getArgumentAsDouble(0);
+        if (frequency <= 0.0) {
+          context.err.println("illegal frequency: " + context.getArgument(0));
+          return 1;
+        }
+        chips = getChips(context, 1);
+        if (chips == null) {
+          return 1;
+        }
+        this.out = context.out;
+        StringBuilder sb = new StringBuilder("# time total");
+        for (Chip chip : chips) {
+          sb.append(' ').append(chip.getID().replace(' ', '_'));
+        }
+        out.println(sb.toString());
+
+        cpu.scheduleTimeEventMillis(new TimeEvent(0) {
+
+          private final StringBuilder line = new StringBuilder();
+
+          @Override
+          public void execute(long t) {
+            if (isRunning) {
+              cpu.scheduleTimeEventMillis(this, 1000.0 / frequency);
+              line.setLength(0);
+              line.append(Math.round(cpu.getTimeMillis())).append(' ')
+                .append(String.format("%.6f", statistics.getEnergy() * 1000));
+              for (Chip chip : chips) {
+                line.append(' ').append(String.format("%.6f", statistics.getEnergy(chip) * 1000));
+              }
+              out.println(line);
+            }
+          }
+        }, 1000.0 / frequency);
+        return 0;
+      }
+
+      public void stopCommand(CommandContext context) {
+        isRunning = false;
+        context.exit(0);
+      }
+    });
+  }
+
+  /* Returns the specified chips or all monitored chips if none specified */
+  private Chip[] getChips(CommandContext context, int first) {
+    int count = context.getArgumentCount() - first;
+    if (count <= 0) {
+      return statistics.getChips();
+    }
+    Chip[] chips = new Chip[count];
+    for (int i = 0; i < count; i++) {
+      chips[i] = statistics.getChip(context.getArgument(first + i));
+      if (chips[i] == null) {
+        context.err.println("could not find chip " + context.getArgument(first + i));
+        return null;
+      }
+    }
+    return chips;
   }
 
 }
@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * StateSnapshot
+ */
+
+package se.sics.mspsim.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Snapshot files of the emulator state.
+ *
+ * A snapshot does not walk the emulator objects. Each part of the emulator
+ * that has state implements StateSnapshot.Stateful and saves exactly that
+ * state: the CPU saves its registers, memory pages and event queues and
+ * then lets each IO unit and chip save its own state. A snapshot can be
+ * restored into the node it was taken from or into a new node of the same
+ * type running the same firmware, for example to fork several emulations
+ * from one point.
+ *
+ * Most IO units and chips only keep their state in plain fields. For those
+ * writeFields and readFields save the primitive, enum and primitive array
+ * fields that a class declares below a base class. References to other
+ * objects are never saved this way, so listeners and wiring are never
+ * mistaken for state.
+ */
+public class StateSnapshot {
+
+    private static final int MAGIC = 0x4d535053; /* "MSPS" */
+    private static final int VERSION = 2;
+    private static final int END = 0x454e4421; /* "END!" */
+
+    private static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+        public int compare(Field f1, Field f2) {
+            return f1.getName().compareTo(f2.getName());
+        }
+    };
+
+    private static final HashMap<Class<?>,HashMap<Class<?>,Field[]>> fieldCache =
+        new HashMap<Class<?>,HashMap<Class<?>,Field[]>>();
+
+    /**
+     * Implemented by the parts of the emulator that are saved in snapshots.
+     * readState must read exactly what writeState wrote.
+     */
+    public interface Stateful {
+        public void writeState(DataOutputStream out) throws IOException;
+        public void readState(DataInputStream in) throws IOException;
+    }
+
+    private StateSnapshot() {
+    }
+
+    public static void save(Stateful root, OutputStream output) throws IOException {
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeUTF(root.getClass().getName());
+        header.flush();
+
+        DeflaterOutputStream deflater = new DeflaterOutputStream(output);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(deflater, 65536));
+        root.writeState(out);
+        out.writeInt(END);
+        out.flush();
+        deflater.finish();
+        output.flush();
+    }
+
+    public static void restore(Stateful root, InputStream input) throws IOException {
+        DataInputStream header = new DataInputStream(input);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("not an MSPSim snapshot");
+        }
+        int version = header.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        String rootType = header.readUTF();
+        if (!rootType.equals(root.getClass().getName())) {
+            throw new IOException("snapshot of " + rootType + " can not be restored into "
+                    + root.getClass().getName());
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(input), 65536));
+        root.readState(in);
+        if (in.readInt() != END) {
+            throw new IOException("corrupt snapshot");
+        }
+    }
+
+    /**
+     * Returns the non-static fields declared by the class of the object
+     * and its superclasses below the base class, in a fixed order.
+     */
+    public static synchronized Field[] getFields(Class<?> type, Class<?> base) {
+        HashMap<Class<?>,Field[]> byBase = fieldCache.get(type);
+        if (byBase == null) {
+            byBase = new HashMap<Class<?>,Field[]>();
+            fieldCache.put(type, byBase);
+        }
+        Field[] fields = byBase.get(base);
+        if (fields == null) {
+            ArrayList<Field> list = new ArrayList<Field>();
+            for (Class<?> c = type; c != null && c != base; c = c.getSuperclass()) {
+                Field[] declared = c.getDeclaredFields();
+                Arrays.sort(declared, FIELD_ORDER);
+                for (Field f : declared) {
+                    if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic()) {
+                        f.setAccessible(true);
+                        list.add(f);
+                    }
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            byBase.put(base, fields);
+        }
+        return fields;
+    }
+
+    /* Fields with plain values: non-final primitives and enums, and primitive arrays */
+    private static boolean isValueField(Field f) {
+        Class<?> t = f.getType();
+        if (t.isArray()) {
+            return t.getComponentType().isPrimitive();
+        }
+        return (t.isPrimitive() || t.isEnum()) && !Modifier.isFinal(f.getModifiers());
+    }
+
+    /**
+     * Saves the primitive, enum and primitive array fields declared by the
+     * class of the object and its superclasses below the base class.
+     */
+    public static void writeFields(Object o, Class<?> base, DataOutputStream out) throws IOException {
+        try {
+            for (Field f : getFields(o.getClass(), base)) {
+                if (!isValueField(f)) {
+                    continue;
+                }
+                Class<?> t = f.getType();
+                if (t == int.class) {
+                    out.writeInt(f.getInt(o));
+                } else if (t == long.class) {
+                    out.writeLong(f.getLong(o));
+                } else if (t == boolean.class) {
+                    out.writeBoolean(f.getBoolean(o));
+                } else if (t == byte.class) {
+                    out.writeByte(f.getByte(o));
+                } else if (t == short.class) {
+                    out.writeShort(f.getShort(o));
+                } else if (t == char.class) {
+                    out.writeChar(f.getChar(o));
+                } else if (t == float.class) {
+                    out.writeFloat(f.getFloat(o));
+                } else if (t == double.class) {
+                    out.writeDouble(f.getDouble(o));
+                } else if (t.isEnum()) {
+                    Enum<?> e = (Enum<?>) f.get(o);
+                    out.writeInt(e == null ? -1 : e.ordinal());
+                } else {
+                    Object array = f.get(o);
+                    if (array == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(Array.getLength(array));
+                        writeArray(out, array);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("failed to save state of " + o.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Restores the fields saved by writeFields. Primitive arrays are
+     * restored in place when the length matches.
+     */
+    public static void readFields(Object o, Class<?> base, DataInputStream in) throws IOException {
+        try {
+            for (Field f : getFields(o.getClass(), base)) {
+                if (!isValueField(f)) {
+                    continue;
+                }
+                Class<?> t = f.getType();
+                if (t == int.class) {
+                    f.setInt(o, in.readInt());
+                } else if (t == long.class) {
+                    f.setLong(o, in.readLong());
+                } else if (t == boolean.class) {
+                    f.setBoolean(o, in.readBoolean());
+                } else if (t == byte.class) {
+                    f.setByte(o, in.readByte());
+                } else if (t == short.class) {
+                    f.setShort(o, in.readShort());
+                } else if (t == char.class) {
+                    f.setChar(o, in.readChar());
+                } else if (t == float.class) {
+                    f.setFloat(o, in.readFloat());
+                } else if (t == double.class) {
+                    f.setDouble(o, in.readDouble());
+                } else if (t.isEnum()) {
+                    int ordinal = in.readInt();
+                    Object[] values = t.getEnumConstants();
+                    if (ordinal >= values.length) {
+                        throw new IOException("corrupt snapshot");
+                    }
+                    f.set(o, ordinal < 0 ? null : values[ordinal]);
+                } else {
+                    int length = in.readInt();
+                    Object array = f.get(o);
+                    if (length < 0 || array == null || Array.getLength(array) != length) {
+                        if (Modifier.isFinal(f.getModifiers())) {
+                            throw new IOException("state of " + o.getClass().getName() + "."
+                                    + f.getName() + " does not match the snapshot");
+                        }
+                        array = length < 0 ? null : Array.newInstance(t.getComponentType(), length);
+                        f.set(o, array);
+                    }
+                    if (array != null) {
+                        readArray(in, array);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("failed to restore state of " + o.getClass().getName(), e);
+        }
+    }
+
+    private static void writeArray(DataOutputStream out, Object array) throws IOException {
+        if (array instanceof int[]) {
+            for (int v : (int[]) array) out.writeInt(v);
+        } else if (array instanceof byte[]) {
+            out.write((byte[]) array);
+        } else if (array instanceof long[]) {
+            for (long v : (long[]) array) out.writeLong(v);
+        } else if (array instanceof boolean[]) {
+            for (boolean v : (boolean[]) array) out.writeBoolean(v);
+        } else if (array instanceof short[]) {
+            for (short v : (short[]) array) out.writeShort(v);
+        } else if (array instanceof char[]) {
+            for (char v : (char[]) array) out.writeChar(v);
+        } else if (array instanceof float[]) {
+            for (float v : (float[]) array) out.writeFloat(v);
+        } else if (array instanceof double[]) {
+            for (double v : (double[]) array) out.writeDouble(v);
+        }
+    }
+
+    private static void readArray(DataInputStream in, Object array) throws IOException {
+        if (array instanceof int[]) {
+            int[] a = (int[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readInt();
+        } else if (array instanceof byte[]) {
+            in.readFully((byte[]) array);
+        } else if (array instanceof long[]) {
+            long[] a = (long[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readLong();
+        } else if (array instanceof boolean[]) {
+            boolean[] a = (boolean[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readBoolean();
+        } else if (array instanceof short[]) {
+            short[] a = (short[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readShort();
+        } else if (array instanceof char[]) {
+            char[] a = (char[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readChar();
+        } else if (array instanceof float[]) {
+            float[] a = (float[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readFloat();
+        } else if (array instanceof double[]) {
+            double[] a = (double[]) array;
+            for (int i = 0; i < a.length; i++) a[i] = in.readDouble();
+        }
+    }
+
+}
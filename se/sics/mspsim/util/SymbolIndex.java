@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * SymbolIndex
+ */
+
+package se.sics.mspsim.util;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorted interval index of map entries giving O(log n) lookup of the
+ * entry at or containing an address.
+ *
+ * Each entry covers the range from its address to its address plus size.
+ * Entries without size cover the range up to the next entry (functions)
+ * or a single byte (other symbols). When several entries start at the
+ * same address the last added entry wins.
+ */
+public class SymbolIndex {
+
+  private static final Comparator<MapEntry> ADDRESS_ORDER = new Comparator<MapEntry>() {
+    public int compare(MapEntry e1, MapEntry e2) {
+      return e1.getAddress() < e2.getAddress() ? -1 : (e1.getAddress() == e2.getAddress() ? 0 : 1);
+    }
+  };
+
+  private final MapEntry[] entries;
+  private final int[] starts;
+  private final int[] ends;
+
+  /**
+   * Creates an index of the entries. The entries must be given in the
+   * order they were added.
+   */
+  public SymbolIndex(MapEntry[] symbols) {
+    MapEntry[] sorted = symbols.clone();
+    /* stable - entries at the same address stay in added order */
+    Arrays.sort(sorted, ADDRESS_ORDER);
+
+    /* only keep the last added entry at each address */
+    int n = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (n > 0 && sorted[n - 1].getAddress() == sorted[i].getAddress()) {
+        n--;
+      }
+      sorted[n++] = sorted[i];
+    }
+    entries = Arrays.copyOf(sorted, n);
+    starts = new int[n];
+    ends = new int[n];
+    for (int i = 0; i < n; i++) {
+      starts[i] = entries[i].getAddress();
+    }
+    for (int i = 0; i < n; i++) {
+      MapEntry e = entries[i];
+      if (e.getSize() > 0) {
+        ends[i] = starts[i] + e.getSize();
+      } else if (e.getType() == MapEntry.TYPE.function && i + 1 < n) {
+        ends[i] = starts[i + 1];
+      } else {
+        ends[i] = starts[i] + 1;
+      }
+    }
+  }
+
+  public int size() {
+    return entries.length;
+  }
+
+  public MapEntry getEntry(int index) {
+    return entries[index];
+  }
+
+  public int getStart(int index) {
+    return starts[index];
+  }
+
+  /* Returns the exclusive end address of the entry */
+  public int getEnd(int index) {
+    return ends[index];
+  }
+
+  /* Returns the index of the last entry starting at or before the address or -1 */
+  private int floor(int address) {
+    int lo = 0;
+    int hi = starts.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid] <= address) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return hi;
+  }
+
+  /* Returns the index of the entry containing the address or -1 */
+  public int indexOf(int address) {
+    int i = floor(address);
+    return i >= 0 && address < ends[i] ? i : -1;
+  }
+
+  /* Returns the entry containing the address or null */
+  public MapEntry find(int address) {
+    int i = indexOf(address);
+    return i >= 0 ? entries[i] : null;
+  }
+
+  /* Returns the entry starting at the address or null */
+  public MapEntry get(int address) {
+    int i = floor(address);
+    return i >= 0 && starts[i] == address ? entries[i] : null;
+  }
+}
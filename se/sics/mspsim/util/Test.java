@@ -98,9 +98,8 @@ public class Test implements USARTListener {
     }
 
     try {
-      int[] memory = cpu.memory;
       ELF elf = ELF.readELF(args[index++]);
-      elf.loadPrograms(memory);
+      elf.loadPrograms(cpu);
       MapTable map = elf.getMap();
       cpu.getDisAsm().setMap(map);
       cpu.setMap(map);
@@ -0,0 +1,421 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * TraceReader
+ */
+
+package se.sics.mspsim.util;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+
+/**
+ * Reads execution traces written by TraceRecorder.
+ *
+ * The chunk headers are indexed when the trace is opened so seeking by
+ * cycles only decodes the chunk containing the requested time. Records
+ * are iterated with next() and inspected with the getters:
+ *
+ *   TraceReader reader = new TraceReader("trace.bin");
+ *   reader.seek(cycles);
+ *   while (reader.next()) { ... reader.getPC() ... }
+ */
+public class TraceReader {
+
+  public static final int INSTRUCTION = TraceRecorder.INSTRUCTION;
+  public static final int WRITE = TraceRecorder.WRITE;
+  public static final int INTERRUPT = TraceRecorder.INTERRUPT;
+
+  private static final AccessMode[] MODES = AccessMode.values();
+
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+
+  /* chunk index */
+  private long[] offsets = new long[16];
+  private long[] firstCycles = new long[16];
+  private long[] lastCycles = new long[16];
+  private int chunks;
+
+  private final Inflater inflater = new Inflater();
+  private byte[] compressed = new byte[0];
+  private byte[] data = new byte[0];
+  private int length;
+  private int pos;
+  private int currentChunk = -1;
+
+  /* current record */
+  private int type;
+  private int pc;
+  private long cycles;
+  private int sr;
+  private int address;
+  private int value;
+  private AccessMode mode;
+  private int vector;
+
+  public TraceReader(String file) throws IOException {
+    raf = new RandomAccessFile(file, "r");
+    channel = raf.getChannel();
+    ByteBuffer header = ByteBuffer.allocate(TraceRecorder.CHUNK_HEADER_SIZE);
+    header.limit(TraceRecorder.FILE_HEADER_SIZE);
+    channel.read(header, 0);
+    header.flip();
+    byte[] magic = new byte[TraceRecorder.MAGIC.length()];
+    if (header.remaining() < TraceRecorder.FILE_HEADER_SIZE) {
+      throw new IOException("not a trace file: " + file);
+    }
+    header.get(magic);
+    if (!TraceRecorder.MAGIC.equals(new String(magic, "US-ASCII"))) {
+      throw new IOException("not a trace file: " + file);
+    }
+    int version = header.getInt();
+    if (version != TraceRecorder.VERSION) {
+      throw new IOException("unsupported trace version " + version);
+    }
+
+    long size = channel.size();
+    long offset = TraceRecorder.FILE_HEADER_SIZE;
+    while (offset + TraceRecorder.CHUNK_HEADER_SIZE <= size) {
+      header.clear();
+      channel.read(header, offset);
+      header.flip();
+      header.getInt();
+      int clen = header.getInt();
+      if (offset + TraceRecorder.CHUNK_HEADER_SIZE + clen > size) {
+        /* truncated trace - ignore the last chunk */
+        break;
+      }
+      if (chunks == offsets.length) {
+        offsets = Arrays.copyOf(offsets, chunks * 2);
+        firstCycles = Arrays.copyOf(firstCycles, chunks * 2);
+        lastCycles = Arrays.copyOf(lastCycles, chunks * 2);
+      }
+      offsets[chunks] = offset;
+      firstCycles[chunks] = header.getLong();
+      lastCycles[chunks] = header.getLong();
+      chunks++;
+      offset += TraceRecorder.CHUNK_HEADER_SIZE + clen;
+    }
+  }
+
+  public int getChunkCount() {
+    return chunks;
+  }
+
+  public long getFirstCycles() {
+    return chunks > 0 ? firstCycles[0] : 0;
+  }
+
+  public long getLastCycles() {
+    return chunks > 0 ? lastCycles[chunks - 1] : 0;
+  }
+
+  private boolean loadChunk(int index) throws IOException {
+    if (index >= chunks) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(TraceRecorder.CHUNK_HEADER_SIZE);
+    channel.read(header, offsets[index]);
+    header.flip();
+    int rawLength = header.getInt();
+    int clen = header.getInt();
+    if (compressed.length < clen) {
+      compressed = new byte[clen];
+    }
+    if (data.length < rawLength) {
+      data = new byte[rawLength];
+    }
+    ByteBuffer in = ByteBuffer.wrap(compressed, 0, clen);
+    long p = offsets[index] + TraceRecorder.CHUNK_HEADER_SIZE;
+    while (in.hasRemaining()) {
+      int n = channel.read(in, p + in.position());
+      if (n < 0) {
+        throw new IOException("unexpected end of trace");
+      }
+    }
+    inflater.reset();
+    inflater.setInput(compressed, 0, clen);
+    try {
+      int n = 0;
+      while (n < rawLength && !inflater.finished()) {
+        n += inflater.inflate(data, n, rawLength - n);
+      }
+      length = n;
+    } catch (DataFormatException e) {
+      throw new IOException("corrupt trace chunk " + index, e);
+    }
+    currentChunk = index;
+    pos = 0;
+    pc = 0;
+    cycles = firstCycles[index];
+    sr = 0;
+    address = 0;
+    return true;
+  }
+
+  /* Positions the reader at the start of the trace */
+  public void rewind() throws IOException {
+    currentChunk = -1;
+    length = pos = 0;
+  }
+
+  /**
+   * Positions the reader so that the next instruction or interrupt record
+   * is the first one at or after the specified cycles. Returns false if
+   * the trace ends before that time.
+   */
+  public boolean seek(long targetCycles) throws IOException {
+    int lo = 0;
+    int hi = chunks - 1;
+    int index = -1;
+    /* find the last chunk starting at or before the target */
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (firstCycles[mid] <= targetCycles) {
+        index = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if (index < 0) {
+      rewind();
+      return chunks > 0;
+    }
+    if (!loadChunk(index)) {
+      return false;
+    }
+    while (true) {
+      int savedPos = pos;
+      int savedChunk = currentChunk;
+      int savedPC = pc;
+      long savedCycles = cycles;
+      int savedSR = sr;
+      int savedAddress = address;
+      if (!next()) {
+        return false;
+      }
+      if (type != WRITE && cycles >= targetCycles) {
+        /* step back so that next() returns this record */
+        if (currentChunk != savedChunk) {
+          loadChunk(currentChunk);
+        } else {
+          pos = savedPos;
+          pc = savedPC;
+          cycles = savedCycles;
+          sr = savedSR;
+          address = savedAddress;
+        }
+        return true;
+      }
+    }
+  }
+
+  private int getVarint() {
+    int v = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = data[pos++];
+      v |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return v;
+  }
+
+  private long getVarlong() {
+    long v = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = data[pos++];
+      v |= (long) (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return v;
+  }
+
+  private static int unzigzag(int v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /* Reads the next record. Returns false at the end of the trace. */
+  public boolean next() throws IOException {
+    while (pos >= length) {
+      if (!loadChunk(currentChunk + 1)) {
+        return false;
+      }
+    }
+    int tag = data[pos++] & 0xff;
+    type = tag & 3;
+    switch (type) {
+    case INSTRUCTION: {
+      pc += unzigzag(getVarint());
+      long delta = tag >> 4;
+      if (delta == 15) {
+        delta = getVarlong();
+      }
+      cycles += delta;
+      if ((tag & TraceRecorder.HAS_SR) != 0) {
+        sr = getVarint();
+      }
+      break;
+    }
+    case WRITE:
+      mode = MODES[(tag >> 2) & 3];
+      address += unzigzag(getVarint());
+      value = getVarint();
+      break;
+    case INTERRUPT: {
+      vector = getVarint();
+      long delta = tag >> 4;
+      if (delta == 15) {
+        delta = getVarlong();
+      }
+      cycles += delta;
+      break;
+    }
+    default:
+      throw new IOException("corrupt trace record " + tag + " in chunk " + currentChunk);
+    }
+    return true;
+  }
+
+  public int getType() {
+    return type;
+  }
+
+  /* PC of the last instruction record */
+  public int getPC() {
+    return pc;
+  }
+
+  /* Cycles of the last instruction or interrupt record */
+  public long getCycles() {
+    return cycles;
+  }
+
+  public int getSR() {
+    return sr;
+  }
+
+  public int getAddress() {
+    return address;
+  }
+
+  public int getValue() {
+    return value;
+  }
+
+  public AccessMode getAccessMode() {
+    return mode;
+  }
+
+  public int getVector() {
+    return vector;
+  }
+
+  /* Returns the function containing the address as name+offset or null */
+  public String getFunction(MapTable map, int address) {
+    return map != null ? map.getFunctionLocation(address) : null;
+  }
+
+  /* Returns the current record as text, symbolized when a map table is given */
+  public String toString(MapTable map) {
+    switch (type) {
+    case INSTRUCTION: {
+      String name = getFunction(map, pc);
+      return cycles + " $" + Utils.hex(pc, 4) + " SR=" + Utils.hex16(sr)
+          + (name != null ? " " + name : "");
+    }
+    case WRITE: {
+      MapEntry entry = map != null ? map.getEntry(address) : null;
+      return "    write $" + Utils.hex(address, 4) + " = 0x"
+          + Utils.hex(value, mode == AccessMode.BYTE ? 2 : 4)
+          + (entry != null ? " " + entry.getName() : "");
+    }
+    default:
+      return cycles + " interrupt " + vector;
+    }
+  }
+
+  public void close() throws IOException {
+    inflater.end();
+    raf.close();
+  }
+
+  /* Prints a trace file */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: TraceReader <trace> [-elf <firmware>] [-map <mapfile>] [-from <cycles>] [-count <records>]");
+      System.exit(1);
+    }
+    MapTable map = null;
+    long from = -1;
+    long count = Long.MAX_VALUE;
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      if ("-elf".equals(args[i])) {
+        ELF elf = ELF.readELF(args[i + 1]);
+        map = elf.getMap();
+      } else if ("-map".equals(args[i])) {
+        map = new MapTable(args[i + 1]);
+      } else if ("-from".equals(args[i])) {
+        from = Long.parseLong(args[i + 1]);
+      } else if ("-count".equals(args[i])) {
+        count = Long.parseLong(args[i + 1]);
+      } else {
+        System.err.println("Unknown option: " + args[i]);
+        System.exit(1);
+      }
+    }
+    TraceReader reader = new TraceReader(args[0]);
+    PrintStream out = System.out;
+    out.println("# " + reader.getChunkCount() + " chunks, cycles "
+        + reader.getFirstCycles() + " - " + reader.getLastCycles());
+    if (from >= 0) {
+      reader.seek(from);
+    }
+    while (count-- > 0 && reader.next()) {
+      out.println(reader.toString(map));
+    }
+    reader.close();
+  }
+}
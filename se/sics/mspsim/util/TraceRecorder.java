@@ -0,0 +1,380 @@
+/**
+ * Copyright (c) 2007, Swedish Institute of Computer Science.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the Institute nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE INSTITUTE AND CONTRIBUTORS ``AS IS'' AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED.  IN NO EVENT SHALL THE INSTITUTE OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ * OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ * LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+ * OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ *
+ * This file is part of MSPSim.
+ *
+ * $Id$
+ *
+ * -----------------------------------------------------------------
+ *
+ * TraceRecorder
+ */
+
+package se.sics.mspsim.util;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+import se.sics.mspsim.core.Memory.AccessMode;
+
+/**
+ * Streams an execution trace to a file.
+ *
+ * The CPU reports every executed instruction (PC, cycles and SR), every
+ * memory write done by the CPU and every serviced interrupt. The records
+ * are delta encoded into chunks in the emulator thread and the chunks are
+ * compressed and appended to a memory mapped file by a writer thread. At
+ * most a few chunks are queued - when the writer can not keep up the
+ * emulator waits for it, which bounds both the memory use and the lag.
+ *
+ * File format (big endian):
+ *   header: "MSPTRACE", int version, int chunk size
+ *   chunk:  int raw length, int compressed length, long first cycles,
+ *           long last cycles, deflated records
+ *
+ * Each chunk decodes on its own: the delta state is reset at the start of
+ * the chunk and cycle deltas are relative to the first cycles of the
+ * chunk. A record starts with a tag byte where bits 0-1 is the record
+ * type:
+ *   instruction: bit 2 set if SR follows, bits 4-7 cycle delta (15 means
+ *                that the delta follows), zigzag PC delta, [cycle delta], [SR]
+ *   write:       bits 2-3 access mode, zigzag address delta, value
+ *   interrupt:   bits 4-7 cycle delta as above, vector, [cycle delta]
+ * All numbers are unsigned LEB128 varints. Memory writes belong to the
+ * instruction (or interrupt) record preceding them.
+ *
+ * Use TraceReader to read the trace.
+ */
+public class TraceRecorder {
+
+  public static final String MAGIC = "MSPTRACE";
+  public static final int VERSION = 1;
+
+  public static final int INSTRUCTION = 0;
+  public static final int WRITE = 1;
+  public static final int INTERRUPT = 2;
+
+  static final int HAS_SR = 0x04;
+  static final int FILE_HEADER_SIZE = 16;
+  static final int CHUNK_HEADER_SIZE = 24;
+
+  private static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+  private static final int MAX_RECORD_SIZE = 32;
+  private static final int QUEUED_CHUNKS = 4;
+  private static final int MAP_WINDOW = 32 * 1024 * 1024;
+
+  private static class Chunk {
+    final byte[] data;
+    int length;
+    long firstCycles;
+    long lastCycles;
+
+    Chunk(int size) {
+      data = new byte[size];
+    }
+  }
+
+  private static final Chunk END = new Chunk(0);
+
+  private final File file;
+  private final int chunkSize;
+  private final ArrayBlockingQueue<Chunk> queue;
+  private final ArrayBlockingQueue<Chunk> free;
+  private final Thread writer;
+  private volatile boolean closed;
+  private volatile IOException error;
+
+  /* emulator side state */
+  private Chunk chunk;
+  private byte[] data;
+  private int pos;
+  private int limit;
+  private int lastPC;
+  private long lastCycles;
+  private int lastSR;
+  private int lastAddress;
+  private long records;
+
+  /* writer side state */
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private long mappedStart;
+  private long fileSize;
+
+  public TraceRecorder(String file) throws IOException {
+    this(new File(file), DEFAULT_CHUNK_SIZE);
+  }
+
+  public TraceRecorder(File file, int chunkSize) throws IOException {
+    this.file = file;
+    this.chunkSize = chunkSize;
+    this.queue = new ArrayBlockingQueue<Chunk>(QUEUED_CHUNKS + 1);
+    this.free = new ArrayBlockingQueue<Chunk>(QUEUED_CHUNKS + 2);
+    for (int i = 0; i < QUEUED_CHUNKS + 2; i++) {
+      free.add(new Chunk(chunkSize));
+    }
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    channel = raf.getChannel();
+    map(0, MAP_WINDOW);
+    mapped.put(MAGIC.getBytes("US-ASCII"));
+    mapped.putInt(VERSION);
+    mapped.putInt(chunkSize);
+    fileSize = FILE_HEADER_SIZE;
+    startChunk(0);
+
+    writer = new Thread(new Runnable() {
+      public void run() {
+        writeChunks();
+      }
+    }, "trace writer " + file.getName());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /* Returns the number of records written so far */
+  public long getRecordCount() {
+    return records;
+  }
+
+  public long getFileSize() {
+    return fileSize;
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  private void startChunk(long cycles) {
+    Chunk c;
+    try {
+      c = free.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      c = new Chunk(chunkSize);
+    }
+    c.length = 0;
+    c.firstCycles = cycles;
+    c.lastCycles = cycles;
+    chunk = c;
+    data = c.data;
+    pos = 0;
+    limit = data.length - MAX_RECORD_SIZE;
+    lastPC = 0;
+    lastCycles = cycles;
+    lastSR = -1;
+    lastAddress = 0;
+  }
+
+  private void endChunk() {
+    chunk.length = pos;
+    chunk.lastCycles = lastCycles;
+    try {
+      queue.put(chunk);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void putVarint(long v) {
+    while ((v & ~0x7fL) != 0) {
+      data[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    data[pos++] = (byte) v;
+  }
+
+  private void putVarint(int v) {
+    while ((v & ~0x7f) != 0) {
+      data[pos++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    data[pos++] = (byte) v;
+  }
+
+  private static int zigzag(int v) {
+    return (v << 1) ^ (v >> 31);
+  }
+
+  private void checkSpace(long cycles) {
+    if (pos > limit) {
+      endChunk();
+      startChunk(cycles);
+    }
+  }
+
+  public final void instruction(int pc, long cycles, int sr) {
+    if (closed) {
+      return;
+    }
+    checkSpace(cycles);
+    long delta = cycles - lastCycles;
+    int tag = INSTRUCTION;
+    if (sr != lastSR) {
+      tag |= HAS_SR;
+    }
+    tag |= (delta < 15 ? (int) delta : 15) << 4;
+    data[pos++] = (byte) tag;
+    putVarint(zigzag(pc - lastPC));
+    if (delta >= 15) {
+      putVarint(delta);
+    }
+    if (sr != lastSR) {
+      putVarint(sr);
+      lastSR = sr;
+    }
+    lastPC = pc;
+    lastCycles = cycles;
+    records++;
+  }
+
+  public final void write(int address, int value, AccessMode mode) {
+    if (closed) {
+      return;
+    }
+    checkSpace(lastCycles);
+    data[pos++] = (byte) (WRITE | (mode.ordinal() << 2));
+    putVarint(zigzag(address - lastAddress));
+    putVarint(value & mode.mask);
+    lastAddress = address;
+    records++;
+  }
+
+  public final void interrupt(int vector, long cycles) {
+    if (closed) {
+      return;
+    }
+    checkSpace(cycles);
+    long delta = cycles - lastCycles;
+    data[pos++] = (byte) (INTERRUPT | ((delta < 15 ? (int) delta : 15) << 4));
+    putVarint(vector);
+    if (delta >= 15) {
+      putVarint(delta);
+    }
+    lastCycles = cycles;
+    records++;
+  }
+
+  /**
+   * Writes the last records and closes the file. The recorder must be
+   * removed from the CPU before it is closed.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    endChunk();
+    try {
+      queue.put(END);
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /* Writer thread */
+
+  private void map(long start, long size) throws IOException {
+    mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+    mapped.order(ByteOrder.BIG_ENDIAN);
+    mappedStart = start;
+  }
+
+  private void writeChunks() {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    byte[] out = new byte[chunkSize + chunkSize / 8 + 64];
+    try {
+      while (true) {
+        Chunk c = queue.take();
+        if (c == END) {
+          break;
+        }
+        if (c.length > 0 && error == null) {
+          deflater.reset();
+          deflater.setInput(c.data, 0, c.length);
+          deflater.finish();
+          int len = 0;
+          while (!deflater.finished()) {
+            if (len == out.length) {
+              out = java.util.Arrays.copyOf(out, out.length * 2);
+            }
+            len += deflater.deflate(out, len, out.length - len);
+          }
+          try {
+            append(c, out, len);
+          } catch (IOException e) {
+            error = e;
+          }
+        }
+        free.put(c);
+      }
+    } catch (InterruptedException e) {
+      /* closing */
+    } finally {
+      deflater.end();
+      try {
+        mapped.force();
+        mapped = null;
+        channel.truncate(fileSize);
+        raf.close();
+      } catch (IOException e) {
+        if (error == null) {
+          error = e;
+        }
+      }
+    }
+  }
+
+  private void append(Chunk c, byte[] out, int len) throws IOException {
+    int needed = CHUNK_HEADER_SIZE + len;
+    if (fileSize + needed > mappedStart + mapped.capacity()) {
+      mapped.force();
+      map(fileSize, Math.max(MAP_WINDOW, needed));
+    }
+    mapped.position((int) (fileSize - mappedStart));
+    mapped.putInt(c.length);
+    mapped.putInt(len);
+    mapped.putLong(c.firstCycles);
+    mapped.putLong(c.lastCycles);
+    mapped.put(out, 0, len);
+    fileSize += needed;
+  }
+}